@@ -0,0 +1,289 @@
+package com.wiltech.odata.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpMethod;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.apache.olingo.server.core.uri.parser.Parser;
+import org.apache.olingo.server.core.uri.parser.UriParserException;
+import org.apache.olingo.server.core.uri.validator.UriValidationException;
+
+import com.wiltech.odata.data.BulkLoader;
+import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.data.WriteAheadLog;
+import com.wiltech.odata.service.DemoEdmProvider;
+
+/**
+ * The type Benchmark dataset. Writes a dataset of a given number of products, with a category per hundred products and
+ * a supplier per ten, as the files of a {@link BulkLoader} directory, and loads a {@link Storage} from it the way the
+ * servlet does with odata.load.directory. Also holds what every benchmark needs around the storage: the service metadata,
+ * the requests, the parsed uris and a way to read a response to the end.
+ * Without skew every category has as many products and every product two suppliers, so every key costs the same.
+ * With skew the products are spread over the categories and suppliers by a {@link ZipfDistribution}, a product has one
+ * to three suppliers and a description of 20 to 400 characters, drawn from a fixed seed so the files are the same every time.
+ */
+public final class BenchmarkDataset {
+
+    public static final String BASE_URI = "http://localhost:8080/DemoService/DemoService.svc";
+
+    private static final int PRODUCTS_PER_CATEGORY = 100;
+    private static final int PRODUCTS_PER_SUPPLIER = 10;
+    private static final int SUPPLIERS_PER_PRODUCT = 2;
+    private static final int MAX_SUPPLIERS_PER_PRODUCT = 3;
+    private static final int MIN_DESCRIPTION = 20;
+    private static final int MAX_DESCRIPTION = 400;
+    private static final long SEED = 42;
+
+    private final int products;
+    private final double skew;
+    private final Path directory;
+    private final OData odata;
+    private final ServiceMetadata serviceMetadata;
+
+    /**
+     * Instantiates a new Benchmark dataset without skew and writes its files to a new temporary directory.
+     * @param products the number of products
+     * @throws IOException if a file can't be written
+     */
+    public BenchmarkDataset(final int products) throws IOException {
+        this(products, 0);
+    }
+
+    /**
+     * Instantiates a new Benchmark dataset and writes its files to a new temporary directory.
+     * @param products the number of products
+     * @param skew the exponent of the Zipf distribution of the products over categories and suppliers, 0 for none
+     * @throws IOException if a file can't be written
+     */
+    public BenchmarkDataset(final int products, final double skew) throws IOException {
+        this.products = products;
+        this.skew = skew;
+        this.directory = Files.createTempDirectory("odata-benchmark-");
+        this.odata = OData.newInstance();
+        this.serviceMetadata = odata.createServiceMetadata(new DemoEdmProvider(), DemoEdmProvider.getReferences());
+        write();
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    public int getCategories() {
+        return Math.max(1, products / PRODUCTS_PER_CATEGORY);
+    }
+
+    public int getSuppliers() {
+        return Math.max(SUPPLIERS_PER_PRODUCT, products / PRODUCTS_PER_SUPPLIER);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public OData getOData() {
+        return odata;
+    }
+
+    public ServiceMetadata getServiceMetadata() {
+        return serviceMetadata;
+    }
+
+    /**
+     * Loads a new storage from the files, without a write-ahead log.
+     * @return the storage
+     */
+    public Storage load() {
+        return load(null);
+    }
+
+    /**
+     * Loads a new storage from the files, which then writes to a log.
+     * @param log the write-ahead log, or null for none
+     * @return the storage
+     */
+    public Storage load(final WriteAheadLog log) {
+        return new Storage(log, new BulkLoader(directory, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Deletes the files.
+     */
+    public void delete() {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses a uri once, so the benchmarks measure the processors and not the parser.
+     * @param path the resource path, e.g. /Products(1)
+     * @param query the query, e.g. $top=10, or null
+     * @return the uri info
+     */
+    public UriInfo parse(final String path, final String query) {
+        try {
+            return new Parser(serviceMetadata.getEdm(), odata).parseUri(path, query, null, BASE_URI);
+        } catch (final UriParserException | UriValidationException e) {
+            throw new IllegalArgumentException("Unable to parse " + path, e);
+        }
+    }
+
+    /**
+     * A GET request, as the servlet hands it to the handler.
+     * @param path the resource path, e.g. /Products(1)
+     * @param query the query, e.g. $top=10, or null
+     * @param format the format the client accepts
+     * @return the request
+     */
+    public static ODataRequest request(final String path, final String query, final ContentType format) {
+        final ODataRequest request = new ODataRequest();
+        request.setMethod(HttpMethod.GET);
+        request.setRawBaseUri(BASE_URI);
+        request.setRawServiceResolutionUri("");
+        request.setRawODataPath(path);
+        request.setRawQueryPath(query == null ? "" : query);
+        request.setRawRequestUri(BASE_URI + path + (query == null ? "" : "?" + query));
+        request.setProtocol("HTTP/1.1");
+        request.addHeader("Accept", format.toContentTypeString());
+        return request;
+    }
+
+    /**
+     * The format of a benchmark parameter.
+     * @param name json or xml
+     * @return the content type
+     */
+    public static ContentType format(final String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case "json":
+            return ContentType.JSON;
+        case "xml":
+            return ContentType.APPLICATION_XML;
+        default:
+            throw new IllegalArgumentException("Unknown format " + name + ", expected json or xml");
+        }
+    }
+
+    /**
+     * Reads a response to the end, so a streamed response is serialized too.
+     * @param response the response
+     * @return the number of bytes of the content
+     * @throws IOException if the content can't be read
+     */
+    public static long drain(final ODataResponse response) throws IOException {
+        if (response.getODataContent() != null) {
+            final CountingOutputStream out = new CountingOutputStream();
+            response.getODataContent().write(out);
+            return out.count;
+        }
+        if (response.getContent() == null) {
+            return 0;
+        }
+        long count = 0;
+        final byte[] buffer = new byte[8192];
+        try (InputStream content = response.getContent()) {
+            int read;
+            while ((read = content.read(buffer)) > 0) {
+                count += read;
+            }
+        }
+        return count;
+    }
+
+    // the files of the BulkLoader: the entity sets and the relationships Products/Category and Products/Suppliers
+    private void write() throws IOException {
+        final Random random = new Random(SEED);
+        final StringBuilder description = new StringBuilder();
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("Products.csv"), StandardCharsets.UTF_8)) {
+            out.write("ID,Name,Description\n");
+            for (int id = 1; id <= products; id++) {
+                description.setLength(0);
+                description.append("The product number ").append(id).append(", for benchmarks");
+                if (skew > 0) {
+                    final int length = MIN_DESCRIPTION + random.nextInt(MAX_DESCRIPTION - MIN_DESCRIPTION + 1);
+                    while (description.length() < length) {
+                        description.append(' ').append(Long.toString(random.nextLong() & Long.MAX_VALUE, Character.MAX_RADIX));
+                    }
+                    description.setLength(length);
+                }
+                out.write(id + ",Product " + id + ",\"" + description + "\"\n");
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("Categories.csv"), StandardCharsets.UTF_8)) {
+            out.write("ID,Name\n");
+            for (int id = 1; id <= getCategories(); id++) {
+                out.write(id + ",Category " + id + "\n");
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("Suppliers.csv"), StandardCharsets.UTF_8)) {
+            out.write("SupplierID,CompanyName,Fax,Address/City,Address/Country\n");
+            for (int id = 1; id <= getSuppliers(); id++) {
+                out.write(id + ",Supplier " + id + ",,City " + id % 50 + ",Country " + id % 20 + "\n");
+            }
+        }
+        final ZipfDistribution categories = skew > 0 ? new ZipfDistribution(getCategories(), skew) : null;
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("Products.Category.csv"), StandardCharsets.UTF_8)) {
+            out.write("source,target\n");
+            for (int id = 1; id <= products; id++) {
+                out.write(id + "," + (categories == null ? (id - 1) % getCategories() + 1 : categories.next(random)) + "\n");
+            }
+        }
+        final ZipfDistribution suppliers = skew > 0 ? new ZipfDistribution(getSuppliers(), skew) : null;
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("Products.Suppliers.csv"), StandardCharsets.UTF_8)) {
+            out.write("source,target\n");
+            for (int id = 1; id <= products; id++) {
+                if (suppliers == null) {
+                    for (int i = 0; i < SUPPLIERS_PER_PRODUCT; i++) {
+                        out.write(id + "," + ((id + i * 7) % getSuppliers() + 1) + "\n");
+                    }
+                } else {
+                    // a supplier drawn twice is linked once
+                    final int count = 1 + random.nextInt(MAX_SUPPLIERS_PER_PRODUCT);
+                    final Set<Integer> linked = new HashSet<Integer>();
+                    for (int i = 0; i < count; i++) {
+                        final int supplier = suppliers.next(random);
+                        if (linked.add(supplier)) {
+                            out.write(id + "," + supplier + "\n");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // counts the bytes of a streamed response and drops them
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.wiltech.odata.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * The type Benchmark runner, the main class of benchmarks.jar. Takes the options of the JMH command line, e.g.
+ * java -jar benchmarks.jar ProcessorBenchmark -p size=100000 -p format=json, and adds what a run needs to be compared with
+ * the run of another version: the GC profiler, for the allocation rate per operation, and the results as JSON in
+ * jmh-result.json, unless the command line asks for another profiler, format or file.
+ */
+public final class BenchmarkRunner {
+
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Runs the benchmarks.
+     * @param args the JMH command line options
+     * @throws IOException if the benchmarks can't be listed
+     * @throws CommandLineOptionException if an option is invalid
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main(final String[] args) throws IOException, CommandLineOptionException, RunnerException {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        if (commandLine.shouldList() || commandLine.shouldListWithParams() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats()) {
+            // the plain JMH runner does the listing
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        boolean gcProfiler = false;
+        for (final ProfilerConfig profiler : commandLine.getProfilers()) {
+            gcProfiler |= profiler.getKlass().equals(GCProfiler.class.getName()) || "gc".equals(profiler.getKlass());
+        }
+        if (!gcProfiler) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result(DEFAULT_RESULT_FILE);
+        }
+        new Runner(options.build()).run();
+    }
+}
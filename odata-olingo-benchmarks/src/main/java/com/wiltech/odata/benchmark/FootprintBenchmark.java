@@ -0,0 +1,98 @@
+package com.wiltech.odata.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wiltech.odata.data.Storage;
+
+/**
+ * The type Footprint benchmark. Loads the storage from the files of a dataset: the time of a load, and the heap the loaded
+ * storage keeps per product, as the secondary result bytesPerProduct. 10M products need a heap of about 4GB, e.g.
+ * -p size=10000000 -jvmArgsAppend -Xmx4g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(1)
+public class FootprintBenchmark {
+
+    @Param({ "100000", "1000000" })
+    private int size;
+
+    private BenchmarkDataset dataset;
+    private long heapBefore;
+    // the storage of the last load, kept so it is still reachable when the heap is measured
+    private Storage storage;
+
+    /**
+     * The type Footprint, the secondary results of a load. JMH adds up such counters over the iterations, so the benchmark
+     * measures a single iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long bytesPerProduct;
+
+        // after the load, so the time of the load doesn't include the collections
+        @TearDown(Level.Iteration)
+        public void measure(final FootprintBenchmark benchmark) {
+            bytesPerProduct = (usedHeap() - benchmark.heapBefore) / benchmark.size;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataset = new BenchmarkDataset(size);
+    }
+
+    @Setup(Level.Iteration)
+    public void measureBefore() {
+        storage = null;
+        heapBefore = usedHeap();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataset.delete();
+    }
+
+    /**
+     * Loads the storage.
+     * @param footprint the secondary results
+     * @return the storage
+     */
+    @Benchmark
+    public Storage load(final Footprint footprint) {
+        storage = dataset.load();
+        return storage;
+    }
+
+    // the heap in use after a full collection, as far as System.gc() gets there
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
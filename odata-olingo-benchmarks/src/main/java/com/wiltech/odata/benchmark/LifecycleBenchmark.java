@@ -0,0 +1,125 @@
+package com.wiltech.odata.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wiltech.odata.service.DemoEdmProvider;
+import com.wiltech.odata.web.DemoServlet;
+
+/**
+ * The type Lifecycle benchmark. The throughput of the {@link DemoServlet} with the OData service built once per servlet
+ * lifecycle, the default, and built on every request, odata.lifecycle=request, as before: a product and a page of products
+ * read through a Jetty without network, over an in-memory connector, by four threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class LifecycleBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({ "1000" })
+    private int size;
+
+    @Param({ DemoServlet.LIFECYCLE_SERVLET, DemoServlet.LIFECYCLE_REQUEST })
+    private String lifecycle;
+
+    private BenchmarkDataset dataset;
+    private Server server;
+    private LocalConnector connector;
+    private String[] entityRequests;
+    private String collectionRequest;
+
+    @Setup
+    public void setUp() throws Exception {
+        dataset = new BenchmarkDataset(size);
+
+        server = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/DemoService");
+        final ServletHolder holder = new ServletHolder(DemoServlet.class);
+        holder.setInitParameter(DemoServlet.LOAD_DIRECTORY_PARAM, dataset.getDirectory().toString());
+        holder.setInitParameter(DemoServlet.LIFECYCLE_PARAM, lifecycle);
+        holder.setInitOrder(1);
+        context.addServlet(holder, "/DemoService.svc/*");
+        server.setHandler(context);
+        server.start();
+
+        // the same keys for both lifecycles
+        final Random random = new Random(42);
+        entityRequests = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            entityRequests[i] = request(DemoEdmProvider.ES_PRODUCTS_NAME + "(" + (random.nextInt(size) + 1) + ")");
+        }
+        collectionRequest = request(DemoEdmProvider.ES_PRODUCTS_NAME + "?$top=10");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop();
+        dataset.delete();
+    }
+
+    /**
+     * GET Products(n), the whole http exchange.
+     * @param thread the keys of the calling thread
+     * @return the response
+     * @throws Exception if the request fails
+     */
+    @Benchmark
+    public String readEntity(final ThreadKeys thread) throws Exception {
+        return connector.getResponse(entityRequests[thread.next()]);
+    }
+
+    /**
+     * GET Products?$top=10, the whole http exchange.
+     * @return the response
+     * @throws Exception if the request fails
+     */
+    @Benchmark
+    public String readEntityCollection() throws Exception {
+        return connector.getResponse(collectionRequest);
+    }
+
+    private static String request(final String path) {
+        return "GET /DemoService/DemoService.svc/" + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+    }
+
+    /**
+     * The type Thread keys. The position of one benchmark thread in the keys, so the threads don't share a counter.
+     */
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+
+        private int next;
+
+        int next() {
+            next = (next + 1) & (KEYS - 1);
+            return next;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.wiltech.odata.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wiltech.odata.service.DemoEdmProvider;
+import com.wiltech.odata.web.DemoServlet;
+
+/**
+ * The type Metrics benchmark. The cost of the request metrics: a product read through the {@link DemoServlet} in a Jetty
+ * without network, over an in-memory connector, with the metrics on and off. The difference of the two runs is the cost
+ * of timing and counting one request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({ "1000" })
+    private int size;
+
+    @Param({ "true", "false" })
+    private boolean metrics;
+
+    private BenchmarkDataset dataset;
+    private Server server;
+    private LocalConnector connector;
+    private String[] requests;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        dataset = new BenchmarkDataset(size);
+
+        server = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/DemoService");
+        final ServletHolder holder = new ServletHolder(DemoServlet.class);
+        holder.setInitParameter(DemoServlet.LOAD_DIRECTORY_PARAM, dataset.getDirectory().toString());
+        holder.setInitParameter(DemoServlet.METRICS_PARAM, Boolean.toString(metrics));
+        holder.setInitOrder(1);
+        context.addServlet(holder, "/DemoService.svc/*");
+        server.setHandler(context);
+        server.start();
+
+        // the same keys for every run, so the runs with and without metrics read the same products
+        final Random random = new Random(42);
+        requests = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            requests[i] = "GET /DemoService/DemoService.svc/" + DemoEdmProvider.ES_PRODUCTS_NAME + "(" + (random.nextInt(size) + 1)
+                    + ") HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop();
+        dataset.delete();
+    }
+
+    /**
+     * GET Products(n), the whole http exchange.
+     * @return the response
+     * @throws Exception if the request fails
+     */
+    @Benchmark
+    public String readEntity() throws Exception {
+        next = (next + 1) & (KEYS - 1);
+        return connector.getResponse(requests[next]);
+    }
+}
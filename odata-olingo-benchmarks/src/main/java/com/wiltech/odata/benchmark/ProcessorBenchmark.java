@@ -0,0 +1,228 @@
+package com.wiltech.odata.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataHandler;
+import org.apache.olingo.server.api.ODataLibraryException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.service.DemoEdmProvider;
+import com.wiltech.odata.service.DemoEntityCollectionProcessor;
+import com.wiltech.odata.service.DemoEntityProcessor;
+import com.wiltech.odata.service.DemoPrimitiveProcessor;
+
+/**
+ * The type Processor benchmark. Calls the read methods of the processors the way olingo's handler does, with uris that
+ * are parsed once in the setup, and reads every response to the end, so a benchmark covers the storage and the serializer
+ * but not the parser. {@link #handle()} goes through the whole handler, parser included, for comparison.
+ * The keys of the single entity reads are random and cycle through {@value #KEYS} products.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    private static final int KEYS = 1024;
+    private static final String PAGE_QUERY = "$top=100";
+    private static final String ORDER_QUERY = "$orderby=Name desc&$top=100";
+    private static final String EXPAND_QUERY = "$expand=Category&$top=100";
+    // answered from the hash index on Name, one row whatever the size
+    private static final String INDEXED_FILTER_QUERY = "$filter=Name eq 'Product 42'";
+    // no index helps, every row is tested for the count
+    private static final String SCAN_FILTER_QUERY = "$filter=contains(Description,'99')&$top=100&$count=true";
+
+    @Param({ "1000", "100000" })
+    private int size;
+
+    @Param({ "json", "xml" })
+    private String format;
+
+    private BenchmarkDataset dataset;
+    private ContentType contentType;
+    private DemoEntityCollectionProcessor collectionProcessor;
+    private DemoEntityProcessor entityProcessor;
+    private DemoPrimitiveProcessor primitiveProcessor;
+    private ODataHandler handler;
+
+    private ODataRequest pageRequest;
+    private UriInfo pageUri;
+    private ODataRequest orderRequest;
+    private UriInfo orderUri;
+    private ODataRequest expandRequest;
+    private UriInfo expandUri;
+    private ODataRequest indexedFilterRequest;
+    private UriInfo indexedFilterUri;
+    private ODataRequest scanFilterRequest;
+    private UriInfo scanFilterUri;
+    private ODataRequest[] entityRequests;
+    private UriInfo[] entityUris;
+    private ODataRequest[] primitiveRequests;
+    private UriInfo[] primitiveUris;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataset = new BenchmarkDataset(size);
+        contentType = BenchmarkDataset.format(format);
+        final Storage storage = dataset.load();
+
+        // as the servlet builds them, without the response cache so every call does the work
+        collectionProcessor = new DemoEntityCollectionProcessor(storage);
+        collectionProcessor.init(dataset.getOData(), dataset.getServiceMetadata());
+        entityProcessor = new DemoEntityProcessor(storage);
+        entityProcessor.init(dataset.getOData(), dataset.getServiceMetadata());
+        primitiveProcessor = new DemoPrimitiveProcessor(storage);
+        primitiveProcessor.init(dataset.getOData(), dataset.getServiceMetadata());
+        handler = dataset.getOData().createRawHandler(dataset.getServiceMetadata());
+        handler.register(collectionProcessor);
+        handler.register(entityProcessor);
+        handler.register(primitiveProcessor);
+        handler.register(new DemoEdmProvider());
+
+        final String products = "/" + DemoEdmProvider.ES_PRODUCTS_NAME;
+        pageRequest = BenchmarkDataset.request(products, PAGE_QUERY, contentType);
+        pageUri = dataset.parse(products, PAGE_QUERY);
+        orderRequest = BenchmarkDataset.request(products, ORDER_QUERY, contentType);
+        orderUri = dataset.parse(products, ORDER_QUERY);
+        expandRequest = BenchmarkDataset.request(products, EXPAND_QUERY, contentType);
+        expandUri = dataset.parse(products, EXPAND_QUERY);
+        indexedFilterRequest = BenchmarkDataset.request(products, INDEXED_FILTER_QUERY, contentType);
+        indexedFilterUri = dataset.parse(products, INDEXED_FILTER_QUERY);
+        scanFilterRequest = BenchmarkDataset.request(products, SCAN_FILTER_QUERY, contentType);
+        scanFilterUri = dataset.parse(products, SCAN_FILTER_QUERY);
+
+        // the same keys for every run, so the runs of two versions read the same products
+        final Random random = new Random(42);
+        entityRequests = new ODataRequest[KEYS];
+        entityUris = new UriInfo[KEYS];
+        primitiveRequests = new ODataRequest[KEYS];
+        primitiveUris = new UriInfo[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            final String entity = products + "(" + (random.nextInt(size) + 1) + ")";
+            entityRequests[i] = BenchmarkDataset.request(entity, null, contentType);
+            entityUris[i] = dataset.parse(entity, null);
+            primitiveRequests[i] = BenchmarkDataset.request(entity + "/Name", null, contentType);
+            primitiveUris[i] = dataset.parse(entity + "/Name", null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataset.delete();
+    }
+
+    /**
+     * Products?$top=100.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readEntityCollection() throws ODataApplicationException, ODataLibraryException, IOException {
+        final ODataResponse response = new ODataResponse();
+        collectionProcessor.readEntityCollection(pageRequest, response, pageUri, contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products?$orderby=Name desc&$top=100.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readEntityCollectionOrdered() throws ODataApplicationException, ODataLibraryException, IOException {
+        final ODataResponse response = new ODataResponse();
+        collectionProcessor.readEntityCollection(orderRequest, response, orderUri, contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products?$expand=Category&$top=100.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readEntityCollectionExpanded() throws ODataApplicationException, ODataLibraryException, IOException {
+        final ODataResponse response = new ODataResponse();
+        collectionProcessor.readEntityCollection(expandRequest, response, expandUri, contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products?$filter=Name eq 'Product 42', a selective filter on an indexed property.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readEntityCollectionFilteredIndexed() throws ODataApplicationException, ODataLibraryException, IOException {
+        final ODataResponse response = new ODataResponse();
+        collectionProcessor.readEntityCollection(indexedFilterRequest, response, indexedFilterUri, contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products?$filter=contains(Description,'99')&$top=100&$count=true, a filter that scans every product.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readEntityCollectionFilteredScan() throws ODataApplicationException, ODataLibraryException, IOException {
+        final ODataResponse response = new ODataResponse();
+        collectionProcessor.readEntityCollection(scanFilterRequest, response, scanFilterUri, contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products(n).
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readEntity() throws ODataApplicationException, ODataLibraryException, IOException {
+        final int key = nextKey();
+        final ODataResponse response = new ODataResponse();
+        entityProcessor.readEntity(entityRequests[key], response, entityUris[key], contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products(n)/Name.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long readPrimitive() throws ODataApplicationException, ODataLibraryException, IOException {
+        final int key = nextKey();
+        final ODataResponse response = new ODataResponse();
+        primitiveProcessor.readPrimitive(primitiveRequests[key], response, primitiveUris[key], contentType);
+        return BenchmarkDataset.drain(response);
+    }
+
+    /**
+     * Products(n) through the handler: parsing, dispatching and the processor.
+     * @return the number of bytes of the response
+     */
+    @Benchmark
+    public long handle() throws IOException {
+        return BenchmarkDataset.drain(handler.process(entityRequests[nextKey()]));
+    }
+
+    private int nextKey() {
+        next = (next + 1) & (KEYS - 1);
+        return next;
+    }
+}
@@ -0,0 +1,152 @@
+package com.wiltech.odata.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.edm.Edm;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.server.api.uri.UriParameter;
+import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.service.DemoEdmProvider;
+import com.wiltech.odata.utils.Util;
+
+/**
+ * The type Storage benchmark. The key lookups and the navigation of the {@link Storage}, without processors or serializers.
+ * {@link #findEntity()} is the linear search of {@link Util#findEntity} over the whole entity set, {@link #readEntityData()}
+ * the primary key index for the same keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({ "1000", "100000" })
+    private int size;
+
+    private BenchmarkDataset dataset;
+    private Storage storage;
+    private EdmEntitySet products;
+    private EdmEntityType productType;
+    private EdmNavigationProperty productCategory;
+    private EdmNavigationProperty productSuppliers;
+    private EdmNavigationProperty categoryProducts;
+
+    private EntityCollection allProducts;
+    private List<UriParameter>[] productKeys;
+    private Entity[] productEntities;
+    private Entity[] categoryEntities;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        dataset = new BenchmarkDataset(size);
+        storage = dataset.load();
+
+        final Edm edm = dataset.getServiceMetadata().getEdm();
+        products = edm.getEntityContainer().getEntitySet(DemoEdmProvider.ES_PRODUCTS_NAME);
+        productType = products.getEntityType();
+        productCategory = productType.getNavigationProperty("Category");
+        productSuppliers = productType.getNavigationProperty("Suppliers");
+        final EdmEntitySet categories = edm.getEntityContainer().getEntitySet(DemoEdmProvider.ES_CATEGORIES_NAME);
+        categoryProducts = categories.getEntityType().getNavigationProperty("Products");
+        allProducts = storage.readEntitySetData(products);
+
+        // the same keys for every run, so the runs of two versions read the same entities
+        final Random random = new Random(42);
+        productKeys = new List[KEYS];
+        productEntities = new Entity[KEYS];
+        categoryEntities = new Entity[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            final String product = "/" + DemoEdmProvider.ES_PRODUCTS_NAME + "(" + (random.nextInt(size) + 1) + ")";
+            productKeys[i] = ((UriResourceEntitySet) dataset.parse(product, null).getUriResourceParts().get(0)).getKeyPredicates();
+            productEntities[i] = storage.readEntityData(products, productKeys[i]);
+            final String category = "/" + DemoEdmProvider.ES_CATEGORIES_NAME + "(" + (random.nextInt(dataset.getCategories()) + 1) + ")";
+            categoryEntities[i] = storage.readEntityData(categories,
+                    ((UriResourceEntitySet) dataset.parse(category, null).getUriResourceParts().get(0)).getKeyPredicates());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataset.delete();
+    }
+
+    /**
+     * Util.findEntity over all products.
+     * @return the product
+     */
+    @Benchmark
+    public Entity findEntity() {
+        return Util.findEntity(productType, allProducts, productKeys[nextKey()]);
+    }
+
+    /**
+     * A product by its key.
+     * @return the product
+     */
+    @Benchmark
+    public Entity readEntityData() {
+        return storage.readEntityData(products, productKeys[nextKey()]);
+    }
+
+    /**
+     * Products(n)/Category.
+     * @return the category
+     */
+    @Benchmark
+    public Entity navigateToOne() {
+        return storage.getRelatedEntity(productEntities[nextKey()], productCategory);
+    }
+
+    /**
+     * Products(n)/Suppliers, the contained suppliers.
+     * @return the suppliers
+     */
+    @Benchmark
+    public EntityCollection navigateContained() {
+        return storage.getRelatedEntityCollection(productEntities[nextKey()], productSuppliers);
+    }
+
+    /**
+     * Categories(n)/Products, a hundred products, each read to the end as the serializer would.
+     * @param blackhole the blackhole
+     */
+    @Benchmark
+    public void navigateToMany(final Blackhole blackhole) {
+        for (final Entity product : storage.getRelatedEntityCollection(categoryEntities[nextKey()], categoryProducts)) {
+            blackhole.consume(product.getProperties());
+        }
+    }
+
+    private int nextKey() {
+        next = (next + 1) & (KEYS - 1);
+        return next;
+    }
+}
@@ -0,0 +1,104 @@
+package com.wiltech.odata.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriParameter;
+import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.data.WriteAheadLog;
+import com.wiltech.odata.service.DemoEdmProvider;
+
+/**
+ * The type Write benchmark. Updates of the {@link Storage} on tables of realistic size, memory only and with a
+ * {@link WriteAheadLog} that never or always forces the disk. The log isn't compacted, so the benchmark measures the writes
+ * and not the rewrite of the whole state.
+ * {@link #updateProperty()} changes the Name of a product, so its hash index and its sorted index move the row;
+ * the keys are random and cycle through {@value #KEYS} products.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    private static final int KEYS = 1024;
+    private static final long FSYNC_INTERVAL_MILLIS = 100;
+
+    @Param({ "100000", "1000000" })
+    private int size;
+
+    // none for memory only, otherwise the fsync policy of the log
+    @Param({ "none", "never", "always" })
+    private String wal;
+
+    private BenchmarkDataset dataset;
+    private WriteAheadLog log;
+    private Storage storage;
+    private EdmEntitySet products;
+    private List<UriParameter>[] productKeys;
+    private int next;
+    private long version;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        dataset = new BenchmarkDataset(size);
+        if (!"none".equals(wal)) {
+            log = new WriteAheadLog(dataset.getDirectory().resolve("benchmark.wal"),
+                    WriteAheadLog.FsyncPolicy.valueOf(wal.toUpperCase(Locale.ROOT)), FSYNC_INTERVAL_MILLIS, 0);
+        }
+        storage = dataset.load(log);
+        products = dataset.getServiceMetadata().getEdm().getEntityContainer().getEntitySet(DemoEdmProvider.ES_PRODUCTS_NAME);
+
+        // the same keys for every run, so the runs of two versions write the same products
+        final Random random = new Random(42);
+        productKeys = new List[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            final String product = "/" + DemoEdmProvider.ES_PRODUCTS_NAME + "(" + (random.nextInt(size) + 1) + ")";
+            productKeys[i] = ((UriResourceEntitySet) dataset.parse(product, null).getUriResourceParts().get(0)).getKeyPredicates();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        dataset.delete();
+    }
+
+    /**
+     * PATCH Products(n)/Name with a new name.
+     * @return the updated product
+     */
+    @Benchmark
+    public Entity updateProperty() throws ODataApplicationException {
+        next = (next + 1) & (KEYS - 1);
+        final Property name = new Property(null, "Name", ValueType.PRIMITIVE, "Product " + next + " v" + version++);
+        return storage.updatePropertyData(products, productKeys[next], "Name", name, null);
+    }
+}
@@ -0,0 +1,46 @@
+package com.wiltech.odata.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The type Zipf distribution. Draws the numbers 1 to n, the number k with a probability proportional to 1 / k^exponent:
+ * a few popular numbers and a long tail, as the sizes of categories or the keys requested by clients tend to be.
+ * An exponent of 0 draws every number with the same probability.
+ */
+public final class ZipfDistribution {
+
+    // cumulative[k - 1] is the probability of drawing a number up to k
+    private final double[] cumulative;
+
+    /**
+     * Instantiates a new Zipf distribution.
+     * @param n the largest number
+     * @param exponent the exponent, 0 or more
+     */
+    public ZipfDistribution(final int n, final double exponent) {
+        if (n < 1 || exponent < 0) {
+            throw new IllegalArgumentException("Invalid Zipf distribution of " + n + " numbers with exponent " + exponent);
+        }
+        cumulative = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1 / Math.pow(k, exponent);
+            cumulative[k - 1] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cumulative[k] /= sum;
+        }
+    }
+
+    /**
+     * Draws a number.
+     * @param random the source of randomness
+     * @return a number from 1 to n
+     */
+    public int next(final Random random) {
+        final int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        // the insertion point if the value isn't there, which is the first bound above it
+        return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1) + 1;
+    }
+}
@@ -0,0 +1,229 @@
+package com.wiltech.odata.loadtest;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+
+import com.wiltech.odata.loadtest.RequestMix.Kind;
+
+/**
+ * The type Load generator. Sends requests at a target rate whatever the server does, an open model: the start of every
+ * request is scheduled in advance, with exponentially distributed gaps as the arrivals of independent clients, and the
+ * request is sent asynchronously, so a slow response never delays the next request. The latency of a request is measured
+ * from its scheduled start, not from when it was actually sent, so the time a request waited because the generator or
+ * the client fell behind counts too and coordinated omission doesn't hide it.
+ * The latencies are recorded in microseconds into a histogram per kind of request.
+ * The requests come from a number of clients, picked at random per request, and every client keeps the cookie the server
+ * last set for it, as a browser keeps its session, so the server sees as many sessions as there are clients if it keeps any.
+ */
+public final class LoadGenerator {
+
+    // a request that gets no answer in this time fails, so a run always ends
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+    private final HttpClient client;
+    private final String serviceRoot;
+    private final String accept;
+    private final RequestMix mix;
+    private final double rate;
+    private final int clients;
+    // the cookie of every client, e.g. JSESSIONID=..., or null
+    private final AtomicReferenceArray<String> cookies;
+
+    private final Map<Kind, Histogram> latencies = new EnumMap<Kind, Histogram>(Kind.class);
+    private final Map<Kind, AtomicLong> errors = new EnumMap<Kind, AtomicLong>(Kind.class);
+    private final ConcurrentMap<String, AtomicLong> statuses = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private long maxSendLagNanos;
+    private long measuredNanos;
+
+    /**
+     * Instantiates a new Load generator.
+     * @param client the started http client
+     * @param serviceRoot the root of the service, e.g. http://127.0.0.1:8080/DemoService/DemoService.svc
+     * @param accept the Accept header of the requests
+     * @param mix the requests
+     * @param rate the target rate, in requests per second
+     */
+    public LoadGenerator(final HttpClient client, final String serviceRoot, final String accept, final RequestMix mix, final double rate) {
+        this(client, serviceRoot, accept, mix, rate, 1);
+    }
+
+    /**
+     * Instantiates a new Load generator with several clients.
+     * @param client the started http client, without a cookie store of its own, the generator keeps the cookies per client
+     * @param serviceRoot the root of the service, e.g. http://127.0.0.1:8080/DemoService/DemoService.svc
+     * @param accept the Accept header of the requests
+     * @param mix the requests
+     * @param rate the target rate, in requests per second, of all clients together
+     * @param clients the number of clients
+     */
+    public LoadGenerator(final HttpClient client, final String serviceRoot, final String accept, final RequestMix mix, final double rate,
+            final int clients) {
+        this.client = client;
+        this.serviceRoot = serviceRoot;
+        this.accept = accept;
+        this.mix = mix;
+        this.rate = rate;
+        this.clients = clients;
+        this.cookies = new AtomicReferenceArray<String>(clients);
+        for (final Kind kind : mix.getKinds()) {
+            latencies.put(kind, new ConcurrentHistogram(3));
+            errors.put(kind, new AtomicLong());
+        }
+    }
+
+    /**
+     * Sends the requests of a warmup, which are not recorded, then those of the measurement, and waits for the last answer.
+     * @param warmupSeconds the length of the warmup
+     * @param durationSeconds the length of the measurement
+     * @param seed the seed of the arrivals and the uris
+     * @throws InterruptedException if interrupted while waiting for the last answers
+     */
+    public void run(final int warmupSeconds, final int durationSeconds, final long seed) throws InterruptedException {
+        final Random random = new Random(seed);
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        final double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        long scheduled = start;
+        while (scheduled < end) {
+            long now = System.nanoTime();
+            while (now < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+                now = System.nanoTime();
+            }
+            if (scheduled >= measureFrom) {
+                maxSendLagNanos = Math.max(maxSendLagNanos, now - scheduled);
+            }
+            send(random, scheduled, scheduled >= measureFrom);
+            scheduled += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+        }
+        measuredNanos = end - measureFrom;
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS + 5);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Prints the throughput and the latency percentiles, in total and per kind of request.
+     * @param out the stream
+     */
+    public void report(final PrintStream out) {
+        final Histogram total = new Histogram(3);
+        long totalErrors = 0;
+        for (final Kind kind : mix.getKinds()) {
+            total.add(latencies.get(kind));
+            totalErrors += errors.get(kind).get();
+        }
+        final double seconds = measuredNanos / 1e9;
+
+        out.println();
+        out.printf(Locale.ROOT, "target rate %.1f req/s, achieved %.1f req/s over %.0f s, %d errors, %.2f MB/s received%n",
+                rate, total.getTotalCount() / seconds, seconds, totalErrors, bytes.get() / seconds / (1 << 20));
+        out.printf(Locale.ROOT, "sending fell behind the schedule by at most %.3f ms%n", maxSendLagNanos / 1e6);
+        out.printf(Locale.ROOT, "status codes %s%n", new TreeMap<String, AtomicLong>(statuses));
+        out.println();
+        out.printf(Locale.ROOT, "%-12s %10s %8s %10s %9s %9s %9s %9s %9s %9s%n",
+                "kind", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99 ms", "max ms");
+        for (final Kind kind : mix.getKinds()) {
+            printRow(out, RequestMix.nameOf(kind), latencies.get(kind), errors.get(kind).get(), seconds);
+        }
+        printRow(out, "all", total, totalErrors, seconds);
+    }
+
+    /**
+     * Writes the percentile distribution of every kind of request, e.g. entity.hgrm, as HdrHistogram writes it,
+     * for the HdrHistogram plotter or to compare two runs.
+     * @param directory the directory
+     * @throws FileNotFoundException if a file can't be created
+     */
+    public void writeHistograms(final Path directory) throws FileNotFoundException {
+        for (final Kind kind : mix.getKinds()) {
+            try (PrintStream out = new PrintStream(directory.resolve(RequestMix.nameOf(kind) + ".hgrm").toFile())) {
+                // recorded in microseconds, written in milliseconds
+                latencies.get(kind).outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    private void send(final Random random, final long scheduled, final boolean measured) {
+        final Kind kind = mix.nextKind(random);
+        final String uri = mix.nextUri(kind, random);
+        // a single client draws nothing, so its requests are the same as before there were clients
+        final int clientIndex = clients == 1 ? 0 : random.nextInt(clients);
+        inFlight.incrementAndGet();
+        client.newRequest(serviceRoot + uri)
+                .header(HttpHeader.ACCEPT, accept)
+                .header(HttpHeader.COOKIE, cookies.get(clientIndex))
+                .timeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .send(new Response.Listener.Adapter() {
+
+                    @Override
+                    public void onHeaders(final Response response) {
+                        final String setCookie = response.getHeaders().get(HttpHeader.SET_COOKIE);
+                        if (setCookie != null) {
+                            // the name=value, without the attributes
+                            final int end = setCookie.indexOf(';');
+                            cookies.set(clientIndex, end < 0 ? setCookie : setCookie.substring(0, end));
+                        }
+                    }
+
+                    @Override
+                    public void onContent(final Response response, final ByteBuffer content) {
+                        if (measured) {
+                            bytes.addAndGet(content.remaining());
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(final Result result) {
+                        // from the scheduled start, whenever the request was actually sent
+                        final long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled);
+                        if (measured) {
+                            latencies.get(kind).recordValue(latencyMicros);
+                            final String status = result.isFailed() ? result.getFailure().getClass().getSimpleName()
+                                    : Integer.toString(result.getResponse().getStatus());
+                            statuses.computeIfAbsent(status, key -> new AtomicLong()).incrementAndGet();
+                            if (result.isFailed() || result.getResponse().getStatus() >= 400) {
+                                errors.get(kind).incrementAndGet();
+                            }
+                        }
+                        inFlight.decrementAndGet();
+                    }
+                });
+    }
+
+    private static void printRow(final PrintStream out, final String name, final Histogram histogram, final long errorCount,
+            final double seconds) {
+        out.printf(Locale.ROOT, "%-12s %10d %8d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                name, histogram.getTotalCount(), errorCount, histogram.getTotalCount() / seconds,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getValueAtPercentile(99.99) / 1000.0, histogram.getMaxValue() / 1000.0);
+    }
+}
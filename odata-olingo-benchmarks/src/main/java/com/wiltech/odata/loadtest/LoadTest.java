@@ -0,0 +1,233 @@
+package com.wiltech.odata.loadtest;
+
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.session.DefaultSessionCache;
+import org.eclipse.jetty.server.session.SessionCache;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import com.wiltech.odata.benchmark.BenchmarkDataset;
+import com.wiltech.odata.web.DemoServlet;
+
+/**
+ * The type Load test. Seeds a dataset, starts the war in an embedded Jetty on 127.0.0.1 with the servlet loading that dataset
+ * through odata.load.directory, sends a mix of requests at a target rate with a {@link LoadGenerator} and prints the
+ * throughput and the latency percentiles. The options, all optional:
+ * <pre>
+ * --war ../odata-olingo/target/DemoService.war   the war to deploy
+ * --products 100000      the number of products of the dataset
+ * --skew 1.0             the Zipf exponent of the products over categories and suppliers
+ * --key-skew 0.8         the Zipf exponent of the requested keys, 0 to request every key as often
+ * --rate 500             the requests per second
+ * --warmup 10            the seconds of requests that aren't recorded
+ * --duration 60          the seconds of requests that are recorded
+ * --mix entity=40,collection=20,navigation=30,primitive=10
+ * --format json          json or xml
+ * --connections 256      the connections of the client to the server
+ * --threads 200          the threads of the server
+ * --histograms dir       also writes the percentile distribution of every kind of request into dir
+ * --clients 1,10,100,1000  steps through these numbers of clients, each keeping its own session cookie, one run each,
+ *                        and prints the heap used after a full GC and the sessions of the server after every step
+ * --init name=value      an init parameter of the servlet, may be repeated; it overrides the web.xml of the war,
+ *                        e.g. --init odata.cache.maxbytes=0 turns off the response cache the web.xml enables
+ * </pre>
+ */
+public final class LoadTest {
+
+    private static final String CONTEXT_PATH = "/DemoService";
+    private static final String SERVICE_PATH = "/DemoService.svc";
+    private static final String SERVLET_NAME = "DemoServlet";
+    private static final int MAX_QUEUED_REQUESTS = 1 << 16;
+    private static final long SEED = 42;
+    // full collections until the heap stops shrinking, at most
+    private static final int GC_ROUNDS = 5;
+
+    private LoadTest() {
+    }
+
+    /**
+     * Runs a load test.
+     * @param args the options
+     * @throws Exception if the server can't be started or stopped
+     */
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<String, String>();
+        final Map<String, String> initParameters = new LinkedHashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value instead of " + args[i]);
+            }
+            final String name = args[i].substring(2);
+            final String value = args[++i];
+            if ("init".equals(name)) {
+                final String[] nameAndValue = value.split("=", 2);
+                if (nameAndValue.length != 2) {
+                    throw new IllegalArgumentException("Expected --init name=value instead of " + value);
+                }
+                initParameters.put(nameAndValue[0], nameAndValue[1]);
+            } else {
+                options.put(name, value);
+            }
+        }
+
+        final Path war = Paths.get(option(options, "war", "../odata-olingo/target/DemoService.war"));
+        if (!Files.isRegularFile(war)) {
+            throw new IllegalArgumentException("No war at " + war.toAbsolutePath() + ", build odata-olingo or pass --war");
+        }
+        final String format = option(options, "format", "json").toLowerCase(Locale.ROOT);
+        final String accept = BenchmarkDataset.format(format).toContentTypeString();
+        final double rate = Double.parseDouble(option(options, "rate", "500"));
+        final int warmup = Integer.parseInt(option(options, "warmup", "10"));
+        final int duration = Integer.parseInt(option(options, "duration", "60"));
+
+        System.out.println("Writing the dataset");
+        final BenchmarkDataset dataset = new BenchmarkDataset(Integer.parseInt(option(options, "products", "100000")),
+                Double.parseDouble(option(options, "skew", "1.0")));
+        final RequestMix mix = new RequestMix(option(options, "mix", RequestMix.DEFAULT_MIX), dataset,
+                Double.parseDouble(option(options, "key-skew", "0.8")));
+        initParameters.put(DemoServlet.LOAD_DIRECTORY_PARAM, dataset.getDirectory().toString());
+
+        final Server server = startServer(war, initParameters, Integer.parseInt(option(options, "threads", "200")));
+        final HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(Integer.parseInt(option(options, "connections", "256")));
+        // the generator never waits, so the requests that find every connection busy queue up in the client;
+        // once the queue is full they fail, and count as errors
+        client.setMaxRequestsQueuedPerDestination(MAX_QUEUED_REQUESTS);
+        // the generator keeps the cookies, one per client
+        client.setCookieStore(new HttpCookieStore.Empty());
+        try {
+            client.start();
+            final String serviceRoot = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                    + CONTEXT_PATH + SERVICE_PATH;
+            System.out.printf(Locale.ROOT, "Sending %s requests to %s at %.1f req/s, %d s of warmup and %d s measured%n",
+                    format, serviceRoot, rate, warmup, duration);
+
+            if (options.containsKey("clients")) {
+                stepClients(server, client, serviceRoot, accept, mix, rate, warmup, duration, options.get("clients"));
+            } else {
+                run(client, serviceRoot, accept, mix, rate, warmup, duration, options.get("histograms"));
+            }
+        } finally {
+            client.stop();
+            server.stop();
+            dataset.delete();
+        }
+    }
+
+    private static void run(final HttpClient client, final String serviceRoot, final String accept, final RequestMix mix,
+            final double rate, final int warmup, final int duration, final String histograms) throws Exception {
+        final LoadGenerator generator = new LoadGenerator(client, serviceRoot, accept, mix, rate);
+        generator.run(warmup, duration, SEED);
+        generator.report(System.out);
+        if (histograms != null) {
+            final Path directory = Files.createDirectories(Paths.get(histograms));
+            generator.writeHistograms(directory);
+            System.out.println("Histograms written to " + directory.toAbsolutePath());
+        }
+    }
+
+    /*
+     * Runs the same load from more and more clients. The server's heap doesn't grow with the clients unless it keeps
+     * something per client, e.g. per session; the client runs in the same JVM, its few objects per client are included.
+     */
+    private static void stepClients(final Server server, final HttpClient client, final String serviceRoot, final String accept,
+            final RequestMix mix, final double rate, final int warmup, final int duration, final String steps) throws Exception {
+        final SessionHandler sessions = ((WebAppContext) server.getHandler()).getSessionHandler();
+        final StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "%10s %10s %10s %14s%n",
+                "clients", "sessions", "created", "heap MB"));
+        table.append(String.format(Locale.ROOT, "%10d %10d %10d %14.1f%n", 0, currentSessions(sessions),
+                sessions.getSessionsCreated(), heapAfterGc() / 1048576.0));
+        for (final String step : steps.split(",")) {
+            final int clients = Integer.parseInt(step.trim());
+            System.out.printf(Locale.ROOT, "%n%d clients%n", clients);
+            final LoadGenerator generator = new LoadGenerator(client, serviceRoot, accept, mix, rate, clients);
+            generator.run(warmup, duration, SEED);
+            generator.report(System.out);
+            table.append(String.format(Locale.ROOT, "%10d %10d %10d %14.1f%n", clients, currentSessions(sessions),
+                    sessions.getSessionsCreated(), heapAfterGc() / 1048576.0));
+        }
+        System.out.println();
+        System.out.println("heap used after a full GC and the sessions of the server, after every step");
+        System.out.print(table);
+    }
+
+    private static long currentSessions(final SessionHandler sessions) {
+        final SessionCache cache = sessions.getSessionCache();
+        return cache instanceof DefaultSessionCache ? ((DefaultSessionCache) cache).getSessionsCurrent() : -1;
+    }
+
+    private static long heapAfterGc() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            memory.gc();
+            Thread.sleep(100);
+            final long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /*
+     * Deploys the war as the servlet container would, with the init parameters of DemoServlet replaced or added by an
+     * override descriptor, as web.xml can't be changed inside the war.
+     */
+    private static Server startServer(final Path war, final Map<String, String> initParameters, final int threads) throws Exception {
+        final Path overrideDescriptor = Files.createTempFile("odata-load-test-", ".xml");
+        overrideDescriptor.toFile().deleteOnExit();
+        try (Writer out = Files.newBufferedWriter(overrideDescriptor, StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\" version=\"2.5\">\n");
+            out.write("  <servlet>\n");
+            out.write("    <servlet-name>" + SERVLET_NAME + "</servlet-name>\n");
+            for (final Map.Entry<String, String> parameter : initParameters.entrySet()) {
+                out.write("    <init-param><param-name>" + escape(parameter.getKey()) + "</param-name><param-value>"
+                        + escape(parameter.getValue()) + "</param-value></init-param>\n");
+            }
+            out.write("  </servlet>\n");
+            out.write("</web-app>\n");
+        }
+
+        final Server server = new Server(new QueuedThreadPool(threads));
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final WebAppContext webapp = new WebAppContext();
+        webapp.setContextPath(CONTEXT_PATH);
+        webapp.setWar(war.toAbsolutePath().toString());
+        webapp.setOverrideDescriptor(overrideDescriptor.toString());
+        // a servlet that fails to start fails the test instead of leaving a server that answers 503
+        webapp.setThrowUnavailableOnStartupException(true);
+        server.setHandler(webapp);
+        server.start();
+        return server;
+    }
+
+    private static String option(final Map<String, String> options, final String name, final String defaultValue) {
+        final String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
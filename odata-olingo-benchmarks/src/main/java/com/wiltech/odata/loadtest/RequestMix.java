@@ -0,0 +1,135 @@
+package com.wiltech.odata.loadtest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import com.wiltech.odata.benchmark.BenchmarkDataset;
+import com.wiltech.odata.benchmark.ZipfDistribution;
+
+/**
+ * The type Request mix. Draws the uris of a load test: first the kind of request by its weight, e.g.
+ * entity=40,collection=20,navigation=30,primitive=10, then one of the uris of that kind, with the keys of products and
+ * categories drawn from a {@link ZipfDistribution}, so some products are requested far more often than others.
+ */
+public final class RequestMix {
+
+    public static final String DEFAULT_MIX = "entity=40,collection=20,navigation=30,primitive=10";
+
+    private static final int PAGE = 50;
+
+    /**
+     * The kinds of requests.
+     */
+    public enum Kind {
+        ENTITY("/Products({product})"),
+        COLLECTION("/Products?$top=" + PAGE + "&$skip={skip}",
+                "/Products?$orderby=Name%20desc&$top=" + PAGE,
+                "/Products?$filter=ID%20ge%20{product}%20and%20ID%20lt%20{productEnd}"),
+        NAVIGATION("/Products({product})/Category",
+                "/Products({product})/Suppliers",
+                "/Categories({category})/Products?$top=" + PAGE,
+                "/Products?$top=" + PAGE + "&$skip={skip}&$expand=Category"),
+        PRIMITIVE("/Products({product})/Name",
+                "/Products({product})/Description");
+
+        private final String[] templates;
+
+        Kind(final String... templates) {
+            this.templates = templates;
+        }
+    }
+
+    private final Kind[] kinds;
+    private final int[] cumulativeWeights;
+    private final int products;
+    private final int categories;
+    private final ZipfDistribution productKeys;
+    private final ZipfDistribution categoryKeys;
+
+    /**
+     * Instantiates a new Request mix.
+     * @param mix the weights of the kinds, e.g. entity=40,collection=20,navigation=30,primitive=10; kinds left out aren't requested
+     * @param dataset the dataset the server was seeded with
+     * @param keySkew the exponent of the Zipf distribution of the keys, 0 to draw every key as often
+     */
+    public RequestMix(final String mix, final BenchmarkDataset dataset, final double keySkew) {
+        final Map<Kind, Integer> weights = parse(mix);
+        kinds = weights.keySet().toArray(new Kind[0]);
+        cumulativeWeights = new int[kinds.length];
+        int sum = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            sum += weights.get(kinds[i]);
+            cumulativeWeights[i] = sum;
+        }
+        products = dataset.getProducts();
+        categories = dataset.getCategories();
+        productKeys = new ZipfDistribution(products, keySkew);
+        categoryKeys = new ZipfDistribution(categories, keySkew);
+    }
+
+    public List<Kind> getKinds() {
+        return Collections.unmodifiableList(Arrays.asList(kinds));
+    }
+
+    /**
+     * Draws the kind of the next request.
+     * @param random the source of randomness
+     * @return the kind
+     */
+    public Kind nextKind(final Random random) {
+        final int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+        while (cumulativeWeights[i] <= value) {
+            i++;
+        }
+        return kinds[i];
+    }
+
+    /**
+     * Draws a uri of a kind.
+     * @param kind the kind
+     * @param random the source of randomness
+     * @return the path and query, relative to the service root, e.g. /Products(12)
+     */
+    public String nextUri(final Kind kind, final Random random) {
+        final int product = productKeys.next(random);
+        return kind.templates[random.nextInt(kind.templates.length)]
+                .replace("{productEnd}", Integer.toString(product + PAGE))
+                .replace("{product}", Integer.toString(product))
+                .replace("{category}", Integer.toString(categoryKeys.next(random)))
+                .replace("{skip}", Integer.toString(random.nextInt(Math.max(1, products - PAGE))));
+    }
+
+    private static Map<Kind, Integer> parse(final String mix) {
+        final Map<Kind, Integer> weights = new LinkedHashMap<Kind, Integer>();
+        for (final String entry : mix.split(",")) {
+            final String[] nameAndWeight = entry.split("=", 2);
+            try {
+                final Kind kind = Kind.valueOf(nameAndWeight[0].trim().toUpperCase(Locale.ROOT));
+                final int weight = Integer.parseInt(nameAndWeight[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Negative weight in the request mix: " + entry);
+                }
+                if (weight > 0) {
+                    weights.put(kind, weight);
+                }
+            } catch (final ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid request mix " + mix + ", expected e.g. " + DEFAULT_MIX, e);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("The request mix " + mix + " requests nothing");
+        }
+        return weights;
+    }
+
+    // the name of a kind in the report
+    static String nameOf(final Kind kind) {
+        return kind.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,64 @@
+package com.wiltech.odata.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import com.wiltech.odata.utils.ContentEncoding;
+
+/**
+ * The type Cached response. The serialized body of a response and the headers needed to replay it,
+ * stamped with the ETag of the data it was built from and the entity sets it depends on.
+ * The body compressed with a content encoding is kept too, once a client asked for it, so it is compressed only once.
+ */
+public final class CachedResponse {
+
+    private final byte[] body;
+    private final Map<String, String> headers;
+    private final String eTag;
+    private final Set<String> entitySetNames;
+    // by content encoding, null until compressed, guarded by the cache
+    private final byte[][] encodedBodies = new byte[ContentEncoding.values().length][];
+
+    CachedResponse(final byte[] body, final Map<String, String> headers, final String eTag, final Set<String> entitySetNames) {
+        this.body = body;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.eTag = eTag;
+        this.entitySetNames = Collections.unmodifiableSet(entitySetNames);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public Set<String> getEntitySetNames() {
+        return entitySetNames;
+    }
+
+    byte[] getEncodedBody(final ContentEncoding encoding) {
+        return encodedBodies[encoding.ordinal()];
+    }
+
+    void setEncodedBody(final ContentEncoding encoding, final byte[] encodedBody) {
+        encodedBodies[encoding.ordinal()] = encodedBody;
+    }
+
+    // the bodies and a rough allowance for the headers and the entry itself
+    long size() {
+        long size = body.length + 256L;
+        for (final byte[] encodedBody : encodedBodies) {
+            if (encodedBody != null) {
+                size += encodedBody.length;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,418 @@
+package com.wiltech.odata.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataContent;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+
+import com.wiltech.odata.utils.ContentEncoding;
+
+/**
+ * The type Response cache. Holds the serialized bytes of read responses, keyed by the normalized request: base URI,
+ * resource path, sorted query options, response format and the Prefer header (which changes the page size).
+ * Every entry is stamped with the ETag of the data it was built from; a lookup with another ETag is a miss,
+ * and the storage's change listener drops the entries of a changed entity set right away, so a stale entry is never served.
+ * The entries are evicted least recently used first, once their total size exceeds the configured maximum.
+ * A hit of a client that accepts a compressed response is answered with the body compressed once, on the first such hit,
+ * and kept in the entry, if compression is on and the body is large enough.
+ */
+public final class ResponseCache implements ResponseCacheMXBean {
+
+    // the entity set name of responses that depend on several entity sets, e.g. navigation and $expand
+    public static final String ALL_ENTITY_SETS = "*";
+
+    private static final String[] REPLAYED_HEADERS = { HttpHeader.CONTENT_TYPE, HttpHeader.ETAG, HttpHeader.PREFERENCE_APPLIED };
+    // a single response may take at most this fraction of the cache
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final int compressMinBytes;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(64, 0.75f, true);
+    private final Map<String, Set<String>> keysByEntitySet = new HashMap<String, Set<String>>();
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ResponseCache(final long maxBytes) {
+        this(maxBytes, -1);
+    }
+
+    /**
+     * Instantiates a new Response cache.
+     * @param maxBytes the maximum size of the entries
+     * @param compressMinBytes the smallest body that is served compressed, -1 to serve none compressed
+     */
+    public ResponseCache(final long maxBytes, final int compressMinBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / MAX_ENTRY_FRACTION;
+        this.compressMinBytes = compressMinBytes;
+    }
+
+    /**
+     * The cache key of a request.
+     * @param request the request
+     * @param responseFormat the negotiated response format
+     * @return the key
+     */
+    public static String key(final ODataRequest request, final ContentType responseFormat) {
+        final StringBuilder sb = new StringBuilder(request.getRawBaseUri()).append(request.getRawODataPath());
+        final String rawQueryPath = request.getRawQueryPath();
+        if (rawQueryPath != null && !rawQueryPath.isEmpty()) {
+            // the order of the query options doesn't change the response
+            final String[] options = rawQueryPath.replace("%24", "$").split("&");
+            Arrays.sort(options);
+            sb.append('?');
+            for (final String option : options) {
+                sb.append(option).append('&');
+            }
+        }
+        sb.append(' ').append(responseFormat.toContentTypeString());
+        final String prefer = request.getHeader(HttpHeader.PREFER);
+        if (prefer != null) {
+            sb.append(' ').append(prefer);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Answers a request from the cache.
+     * @param key the key of the request
+     * @param eTag the current ETag of the requested data
+     * @param acceptEncoding the Accept-Encoding header of the request, may be null
+     * @param response the response, completed with the cached body and headers on a hit
+     * @return true on a hit
+     */
+    public boolean serve(final String key, final String eTag, final String acceptEncoding, final ODataResponse response) {
+        final CachedResponse cached;
+        synchronized (this) {
+            final CachedResponse entry = entries.get(key);
+            if (entry != null && !entry.getETag().equals(eTag)) {
+                // written before the last change, but not invalidated yet
+                remove(key);
+                invalidations.incrementAndGet();
+                cached = null;
+            } else {
+                cached = entry;
+            }
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        hits.incrementAndGet();
+        for (final Map.Entry<String, String> header : cached.getHeaders().entrySet()) {
+            response.setHeader(header.getKey(), header.getValue());
+        }
+        final ContentEncoding encoding = compressMinBytes < 0 || cached.getBody().length < compressMinBytes
+                || !ContentEncoding.isCompressible(cached.getHeaders().get(HttpHeader.CONTENT_TYPE)) ? null
+                        : ContentEncoding.negotiate(acceptEncoding);
+        if (encoding == null) {
+            response.setContent(new ByteArrayInputStream(cached.getBody()));
+        } else {
+            response.setHeader(HttpHeader.CONTENT_ENCODING, encoding.getCoding());
+            response.setHeader(HttpHeader.VARY, HttpHeader.ACCEPT_ENCODING);
+            response.setContent(new ByteArrayInputStream(encodedBody(key, cached, encoding)));
+        }
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        return true;
+    }
+
+    /**
+     * Stores a complete response, whose body was serialized into the response content.
+     * The content is read into the cache and replaced by a stream over the cached bytes.
+     * @param key the key of the request
+     * @param eTag the ETag of the data the response was built from
+     * @param entitySetNames the entity sets the response depends on, or {@link #ALL_ENTITY_SETS}
+     * @param response the response
+     */
+    public void store(final String key, final String eTag, final Set<String> entitySetNames, final ODataResponse response) {
+        final byte[] body;
+        try {
+            body = readFully(response.getContent());
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to read response content", e);
+        }
+        response.setContent(new ByteArrayInputStream(body));
+        put(key, new CachedResponse(body, replayedHeaders(response), eTag, entitySetNames));
+    }
+
+    /**
+     * Wraps streamed content, so the bytes are cached while they are written to the client.
+     * Nothing is stored if the content is larger than an entry may be, or if writing fails.
+     * @param key the key of the request
+     * @param eTag the ETag of the data the response was built from
+     * @param entitySetNames the entity sets the response depends on, or {@link #ALL_ENTITY_SETS}
+     * @param response the response, with all headers already set
+     * @param content the streamed content
+     * @return the wrapping content
+     */
+    public ODataContent storing(final String key, final String eTag, final Set<String> entitySetNames, final ODataResponse response,
+            final ODataContent content) {
+        final Map<String, String> headers = replayedHeaders(response);
+        return new ODataContent() {
+
+            @Override
+            public void write(final WritableByteChannel channel) {
+                write(Channels.newOutputStream(channel));
+            }
+
+            @Override
+            public void write(final OutputStream stream) {
+                final TeeOutputStream tee = new TeeOutputStream(stream, maxEntryBytes);
+                content.write(tee);
+                if (!tee.isOverflow()) {
+                    put(key, new CachedResponse(tee.getCopy(), headers, eTag, entitySetNames));
+                }
+            }
+        };
+    }
+
+    /**
+     * Drops all entries that depend on an entity set.
+     * @param entitySetName the name of the changed entity set
+     */
+    public void invalidate(final String entitySetName) {
+        synchronized (this) {
+            invalidate(keysByEntitySet.get(entitySetName));
+            invalidate(keysByEntitySet.get(ALL_ENTITY_SETS));
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        keysByEntitySet.clear();
+        bytes = 0;
+    }
+
+    private void put(final String key, final CachedResponse response) {
+        if (response.size() > maxEntryBytes) {
+            return;
+        }
+        synchronized (this) {
+            remove(key);
+            entries.put(key, response);
+            bytes += response.size();
+            for (final String entitySetName : response.getEntitySetNames()) {
+                Set<String> keys = keysByEntitySet.get(entitySetName);
+                if (keys == null) {
+                    keys = new HashSet<String>();
+                    keysByEntitySet.put(entitySetName, keys);
+                }
+                keys.add(key);
+            }
+            evict();
+        }
+    }
+
+    // the compressed body of an entry, compressed outside the lock by the first hit that needs it
+    private byte[] encodedBody(final String key, final CachedResponse cached, final ContentEncoding encoding) {
+        synchronized (this) {
+            final byte[] encodedBody = cached.getEncodedBody(encoding);
+            if (encodedBody != null) {
+                return encodedBody;
+            }
+        }
+        final byte[] encodedBody = encoding.compress(cached.getBody());
+        synchronized (this) {
+            // kept unless another hit was faster or the entry is gone
+            if (cached.getEncodedBody(encoding) == null && entries.get(key) == cached) {
+                cached.setEncodedBody(encoding, encodedBody);
+                bytes += encodedBody.length;
+                evict();
+            }
+        }
+        return encodedBody;
+    }
+
+    // guarded by this, least recently used first
+    private void evict() {
+        final Iterator<Map.Entry<String, CachedResponse>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, CachedResponse> entry = eldest.next();
+            eldest.remove();
+            forget(entry.getKey(), entry.getValue());
+            evictions.incrementAndGet();
+        }
+    }
+
+    // guarded by this
+    private void invalidate(final Set<String> keys) {
+        if (keys == null) {
+            return;
+        }
+        for (final String key : keys.toArray(new String[keys.size()])) {
+            if (remove(key)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    // guarded by this
+    private boolean remove(final String key) {
+        final CachedResponse removed = entries.remove(key);
+        if (removed == null) {
+            return false;
+        }
+        forget(key, removed);
+        return true;
+    }
+
+    // guarded by this, drops the bookkeeping of an entry that is no longer in the map
+    private void forget(final String key, final CachedResponse removed) {
+        if (removed == null) {
+            return;
+        }
+        bytes -= removed.size();
+        for (final String entitySetName : removed.getEntitySetNames()) {
+            final Set<String> keys = keysByEntitySet.get(entitySetName);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByEntitySet.remove(entitySetName);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> replayedHeaders(final ODataResponse response) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (final String name : REPLAYED_HEADERS) {
+            final String value = response.getHeader(name);
+            if (value != null) {
+                headers.put(name, value);
+            }
+        }
+        return headers;
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes through to the client and keeps a copy, until the copy gets too large.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+
+        private final OutputStream target;
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private TeeOutputStream(final OutputStream target, final long limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            target.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            target.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        boolean isOverflow() {
+            return copy == null;
+        }
+
+        byte[] getCopy() {
+            return copy.toByteArray();
+        }
+
+        private void checkLimit() {
+            if (copy.size() > limit) {
+                copy = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.wiltech.odata.cache;
+
+/**
+ * The interface Response cache MX bean. The statistics of the {@link ResponseCache}, published over JMX.
+ */
+public interface ResponseCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * Entries removed to make room for new ones.
+     * @return the count
+     */
+    long getEvictions();
+
+    /**
+     * Entries removed because an entity set they depend on changed.
+     * @return the count
+     */
+    long getInvalidations();
+
+    int getEntries();
+
+    long getBytes();
+
+    long getMaxBytes();
+
+    double getHitRatio();
+
+    /**
+     * Removes all entries.
+     */
+    void clear();
+}
@@ -0,0 +1,633 @@
+package com.wiltech.odata.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.apache.olingo.commons.api.data.ComplexValue;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeException;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
+import org.apache.olingo.commons.api.edm.FullQualifiedName;
+import org.apache.olingo.commons.api.edm.provider.CsdlComplexType;
+import org.apache.olingo.commons.api.edm.provider.CsdlEntityType;
+import org.apache.olingo.commons.api.edm.provider.CsdlProperty;
+import org.apache.olingo.commons.api.edm.provider.CsdlPropertyRef;
+import org.apache.olingo.commons.api.ex.ODataException;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.server.api.OData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.wiltech.odata.service.DemoEdmProvider;
+
+/**
+ * The type Bulk loader. Loads the entity sets and their relationships from the files of one directory, instead of the sample data.
+ * An entity set is read from e.g. Products.csv or Products.ndjson, one entity per line: a CSV file starts with a header that names
+ * the properties, the fields of complex properties as e.g. Address/City; an NDJSON line is a JSON object with complex properties
+ * as nested objects. A relationship is read from e.g. Products.Category.csv, one link per line, the keys of the source and the
+ * target entity as the columns source and target, or as {"source":1,"target":2}.
+ * Every file is memory mapped and cut at line breaks into splits that are parsed in parallel, the rows are handed to the table
+ * in file order, and the table sorts them and builds its indexes once, at the end. Quoted CSV fields can't contain line breaks.
+ */
+public final class BulkLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkLoader.class);
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final OData ODATA = OData.newInstance();
+    // the bounds of the size of a split; a file is cut into a few splits per thread
+    private static final long MIN_SPLIT_SIZE = 1 << 20;
+    private static final long MAX_SPLIT_SIZE = 8 << 20;
+    // read at a time while looking for the end of a line
+    private static final int SCAN_SIZE = 64 << 10;
+
+    private final Path directory;
+    private final int threads;
+    private final DemoEdmProvider edmProvider = new DemoEdmProvider();
+
+    /**
+     * Instantiates a new Bulk loader.
+     * @param directory the directory with the files
+     * @param threads the number of threads that parse a file
+     */
+    public BulkLoader(final Path directory, final int threads) {
+        this.directory = directory;
+        this.threads = threads;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Loads an entity set from its file, if there is one.
+     * @param table the table of the entity set
+     * @param entityTypeName the type of its entities
+     * @return the number of entities loaded, -1 if there is no file
+     */
+    int loadEntities(final EntityTable table, final FullQualifiedName entityTypeName) {
+        final Path file = find(table.getEntitySetName());
+        if (file == null) {
+            return -1;
+        }
+        final Schema schema = schema(entityTypeName);
+        final long start = System.nanoTime();
+        final int loaded = read(file, header -> new EntityParser(schema, header, file), table::load);
+        LOG.info("Loaded {} entities into {} from {} in {} ms", loaded, table.getEntitySetName(), file,
+                (System.nanoTime() - start) / 1000000);
+        return loaded;
+    }
+
+    /**
+     * Loads a relationship from its file, if there is one.
+     * @param relation the relationship
+     * @param sourceTypeName the type of the source entities
+     * @param targetTypeName the type of the target entities
+     * @return the number of links loaded, -1 if there is no file
+     */
+    int loadLinks(final RelationIndex relation, final FullQualifiedName sourceTypeName, final FullQualifiedName targetTypeName) {
+        final Path file = find(relation.getSourceTable() + "." + relation.getNavigationName());
+        if (file == null) {
+            return -1;
+        }
+        final EdmPrimitiveTypeKind sourceKind = schema(sourceTypeName).keyKind();
+        final EdmPrimitiveTypeKind targetKind = schema(targetTypeName).keyKind();
+        final long start = System.nanoTime();
+        final int loaded = read(file, header -> new LinkParser(sourceKind, targetKind, header, file), batches -> {
+            final List<EntityKey[]> links = new ArrayList<EntityKey[]>();
+            while (batches.hasNext()) {
+                links.addAll(batches.next());
+            }
+            relation.linkAll(links);
+            return links.size();
+        });
+        LOG.info("Loaded {} links of {}/{} from {} in {} ms", loaded, relation.getSourceTable(), relation.getNavigationName(), file,
+                (System.nanoTime() - start) / 1000000);
+        return loaded;
+    }
+
+    // the CSV file, else the NDJSON file, else null
+    private Path find(final String baseName) {
+        final Path csv = directory.resolve(baseName + ".csv");
+        if (Files.isRegularFile(csv)) {
+            return csv;
+        }
+        final Path ndjson = directory.resolve(baseName + ".ndjson");
+        return Files.isRegularFile(ndjson) ? ndjson : null;
+    }
+
+    private static boolean isCsv(final Path file) {
+        return file.getFileName().toString().endsWith(".csv");
+    }
+
+    /*
+     * Parses the splits of a file on a pool of its own, at most two per thread ahead of the consumer,
+     * and hands the rows of every split to the consumer in file order.
+     */
+    private <T> int read(final Path file, final Function<String, LineParser<T>> parsers, final ToIntFunction<Iterator<List<T>>> consumer) {
+        final AtomicInteger count = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "odata-load-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long start = 0;
+            String header = null;
+            if (isCsv(file)) {
+                start = lineEnd(channel, 0);
+                final ByteBuffer bytes = ByteBuffer.allocate((int) start);
+                channel.read(bytes, 0);
+                header = new String(bytes.array(), StandardCharsets.UTF_8).replace("\uFEFF", "").trim();
+            }
+            final LineParser<T> parser = parsers.apply(header);
+
+            final Deque<long[]> splits = splits(channel, start);
+            final Deque<Future<List<T>>> pending = new ArrayDeque<Future<List<T>>>();
+            final Runnable submit = () -> {
+                final long[] split = splits.poll();
+                pending.add(executor.submit(() -> parseSplit(channel, file, split[0], split[1], parser)));
+            };
+            while (pending.size() < threads * 2 && !splits.isEmpty()) {
+                submit.run();
+            }
+            return consumer.applyAsInt(new Iterator<List<T>>() {
+
+                @Override
+                public boolean hasNext() {
+                    return !pending.isEmpty();
+                }
+
+                @Override
+                public List<T> next() {
+                    if (pending.isEmpty()) {
+                        throw new NoSuchElementException();
+                    }
+                    final Future<List<T>> next = pending.poll();
+                    if (!splits.isEmpty()) {
+                        submit.run();
+                    }
+                    return get(next, file);
+                }
+            });
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to read " + file, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> List<T> get(final Future<List<T>> future, final Path file) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ODataRuntimeException("Interrupted while reading " + file, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ODataRuntimeException("Unable to read " + file, e);
+        }
+    }
+
+    // the splits from the start to the end of the file, each ending after a line break
+    private Deque<long[]> splits(final FileChannel channel, final long start) throws IOException {
+        final long size = channel.size();
+        final long splitSize = Math.max(MIN_SPLIT_SIZE, Math.min(MAX_SPLIT_SIZE, (size - start) / (threads * 4L) + 1));
+        final Deque<long[]> splits = new ArrayDeque<long[]>();
+        long position = start;
+        while (position < size) {
+            final long end = position + splitSize >= size ? size : lineEnd(channel, position + splitSize);
+            splits.add(new long[] { position, end });
+            position = end;
+        }
+        return splits;
+    }
+
+    // the position after the next line break from the position, or the end of the file
+    private static long lineEnd(final FileChannel channel, final long from) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        long position = from;
+        while (true) {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    private static <T> List<T> parseSplit(final FileChannel channel, final Path file, final long start, final long end,
+            final LineParser<T> parser) throws IOException {
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        final List<T> rows = new ArrayList<T>();
+        final int limit = buffer.limit();
+        byte[] line = new byte[1024];
+        int lineStart = 0;
+        for (int i = 0; i <= limit; i++) {
+            if (i < limit && buffer.get(i) != '\n') {
+                continue;
+            }
+            int length = i - lineStart;
+            if (length > 0 && buffer.get(lineStart + length - 1) == '\r') {
+                length--;
+            }
+            if (length > 0) {
+                if (length > line.length) {
+                    line = new byte[Math.max(length, line.length * 2)];
+                }
+                buffer.position(lineStart);
+                buffer.get(line, 0, length);
+                try {
+                    rows.add(parser.parse(line, length));
+                } catch (final IOException | IllegalArgumentException e) {
+                    throw new ODataRuntimeException("Unable to read the line at byte " + (start + lineStart) + " of " + file + ": "
+                            + e.getMessage(), e);
+                }
+            }
+            lineStart = i + 1;
+        }
+        return rows;
+    }
+
+    private Schema schema(final FullQualifiedName entityTypeName) {
+        try {
+            final CsdlEntityType entityType = edmProvider.getEntityType(entityTypeName);
+            final Schema schema = new Schema(entityTypeName.getFullQualifiedNameAsString());
+            for (final CsdlProperty property : entityType.getProperties()) {
+                final EdmPrimitiveTypeKind kind = primitiveKind(property.getTypeAsFQNObject());
+                if (kind != null) {
+                    schema.add(property.getName(), null, kind);
+                    continue;
+                }
+                final CsdlComplexType complexType = edmProvider.getComplexType(property.getTypeAsFQNObject());
+                for (final CsdlProperty field : complexType.getProperties()) {
+                    // complex properties within complex properties aren't loaded
+                    final EdmPrimitiveTypeKind fieldKind = primitiveKind(field.getTypeAsFQNObject());
+                    if (fieldKind != null) {
+                        schema.add(property.getName(), field.getName(), fieldKind);
+                    }
+                }
+            }
+            for (final CsdlPropertyRef key : entityType.getKey()) {
+                schema.keys.add(key.getName());
+            }
+            return schema;
+        } catch (final ODataException e) {
+            throw new ODataRuntimeException("Unable to read the entity type " + entityTypeName, e);
+        }
+    }
+
+    private static EdmPrimitiveTypeKind primitiveKind(final FullQualifiedName typeName) {
+        return EdmPrimitiveType.EDM_NAMESPACE.equals(typeName.getNamespace()) ? EdmPrimitiveTypeKind.valueOfFQN(typeName) : null;
+    }
+
+    // the value of a field as the storage keeps it, e.g. an Integer for Edm.Int32
+    private static Object convert(final String text, final EdmPrimitiveTypeKind kind) {
+        switch (kind) {
+        case String:
+            return text;
+        case Boolean:
+            if ("true".equals(text.trim()) || "false".equals(text.trim())) {
+                return Boolean.valueOf(text.trim());
+            }
+            throw new IllegalArgumentException("Invalid Edm.Boolean " + text);
+        case Byte:
+        case Int16:
+            return Short.valueOf(text.trim());
+        case SByte:
+            return Byte.valueOf(text.trim());
+        case Int32:
+            return Integer.valueOf(text.trim());
+        case Int64:
+            return Long.valueOf(text.trim());
+        case Single:
+            return Float.valueOf(text.trim());
+        case Double:
+            return Double.valueOf(text.trim());
+        case Decimal:
+            return new BigDecimal(text.trim());
+        default:
+            final EdmPrimitiveType type = ODATA.createPrimitiveTypeInstance(kind);
+            try {
+                return type.valueOfString(text.trim(), true, null, null, null, true, type.getDefaultType());
+            } catch (final EdmPrimitiveTypeException e) {
+                throw new IllegalArgumentException("Invalid Edm." + kind + " " + text, e);
+            }
+        }
+    }
+
+    // the fields of a CSV line; an empty field is null, an empty quoted field the empty string
+    private static String[] readCsv(final byte[] line, final int length, final int width) {
+        final String[] fields = new String[width];
+        int position = 0;
+        for (int index = 0; index < width; index++) {
+            if (position < length && line[position] == '"') {
+                // unquoted in place, "" is a quote
+                final int start = position + 1;
+                int read = start;
+                int written = start;
+                while (read < length) {
+                    if (line[read] == '"') {
+                        if (read + 1 < length && line[read + 1] == '"') {
+                            line[written++] = '"';
+                            read += 2;
+                            continue;
+                        }
+                        read++;
+                        break;
+                    }
+                    line[written++] = line[read++];
+                }
+                fields[index] = new String(line, start, written - start, StandardCharsets.UTF_8);
+                position = read;
+            } else {
+                int end = position;
+                while (end < length && line[end] != ',') {
+                    end++;
+                }
+                fields[index] = end == position ? null : new String(line, position, end - position, StandardCharsets.UTF_8);
+                position = end;
+            }
+            if (position >= length || line[position] != ',') {
+                break;
+            }
+            position++;
+        }
+        return fields;
+    }
+
+    // the index of every column of a CSV header
+    private static String[] readHeader(final String header) {
+        final byte[] bytes = header.getBytes(StandardCharsets.UTF_8);
+        final String[] columns = readCsv(bytes, bytes.length, bytes.length + 1);
+        int width = 0;
+        while (width < columns.length && columns[width] != null) {
+            width++;
+        }
+        final String[] result = new String[width];
+        for (int i = 0; i < width; i++) {
+            result[i] = columns[i].trim();
+        }
+        return result;
+    }
+
+    /**
+     * Parses one line of a file. Called by several threads at once.
+     */
+    private interface LineParser<T> {
+
+        /**
+         * Parses a line.
+         * @param line the bytes of the line, without the line break; the parser may change them
+         * @param length the length of the line
+         * @return the row
+         * @throws IOException if the line isn't valid JSON
+         * @throws IllegalArgumentException if a value isn't valid
+         */
+        T parse(byte[] line, int length) throws IOException;
+    }
+
+    /**
+     * The primitive properties and complex property fields of an entity type, e.g. ID or Address/City, in the order of the type.
+     */
+    private static final class Schema {
+
+        private final String typeName;
+        private final List<String> paths = new ArrayList<String>();
+        private final List<String> propertyNames = new ArrayList<String>();
+        private final List<String> fieldNames = new ArrayList<String>();
+        private final List<EdmPrimitiveTypeKind> kinds = new ArrayList<EdmPrimitiveTypeKind>();
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> keys = new ArrayList<String>();
+
+        private Schema(final String typeName) {
+            this.typeName = typeName;
+        }
+
+        private void add(final String propertyName, final String fieldName, final EdmPrimitiveTypeKind kind) {
+            final String path = fieldName == null ? propertyName : propertyName + "/" + fieldName;
+            indexes.put(path, paths.size());
+            paths.add(path);
+            propertyNames.add(propertyName);
+            fieldNames.add(fieldName);
+            kinds.add(kind);
+        }
+
+        private EdmPrimitiveTypeKind keyKind() {
+            if (keys.size() != 1) {
+                throw new ODataRuntimeException("Links can only be loaded for a single key property, " + typeName + " has " + keys);
+            }
+            return kinds.get(indexes.get(keys.get(0)));
+        }
+
+        // the entity with the values that are present, complex fields grouped into their complex property
+        private Entity entity(final Object[] values, final boolean[] present) {
+            final Entity entity = new Entity();
+            entity.setType(typeName);
+            ComplexValue complexValue = null;
+            for (int i = 0; i < paths.size(); i++) {
+                if (fieldNames.get(i) == null) {
+                    if (present[i]) {
+                        entity.addProperty(new Property(null, propertyNames.get(i), ValueType.PRIMITIVE, values[i]));
+                    }
+                    continue;
+                }
+                if (present[i]) {
+                    if (complexValue == null) {
+                        complexValue = new ComplexValue();
+                        entity.addProperty(new Property(null, propertyNames.get(i), ValueType.COMPLEX, complexValue));
+                    }
+                    complexValue.getValue().add(new Property(null, fieldNames.get(i), ValueType.PRIMITIVE, values[i]));
+                }
+                if (i + 1 == paths.size() || !propertyNames.get(i + 1).equals(propertyNames.get(i))) {
+                    complexValue = null;
+                }
+            }
+            // no id, the store gives every row the canonical one
+            for (final String key : keys) {
+                if (values[indexes.get(key)] == null) {
+                    throw new IllegalArgumentException("The key " + key + " is missing");
+                }
+            }
+            return entity;
+        }
+    }
+
+    /**
+     * Parses entities from CSV lines, with the header, or from NDJSON lines, without.
+     */
+    private static final class EntityParser implements LineParser<Entity> {
+
+        private final Schema schema;
+        // the schema index of every CSV column, null for NDJSON
+        private final int[] columns;
+        private final boolean[] csvPresent;
+
+        private EntityParser(final Schema schema, final String header, final Path file) {
+            this.schema = schema;
+            if (header == null) {
+                columns = null;
+                csvPresent = null;
+                return;
+            }
+            final String[] names = readHeader(header);
+            columns = new int[names.length];
+            csvPresent = new boolean[schema.paths.size()];
+            for (int i = 0; i < names.length; i++) {
+                final Integer index = schema.indexes.get(names[i]);
+                if (index == null) {
+                    throw new ODataRuntimeException("Unknown property " + names[i] + " in the header of " + file);
+                }
+                columns[i] = index;
+                csvPresent[index] = true;
+            }
+        }
+
+        @Override
+        public Entity parse(final byte[] line, final int length) throws IOException {
+            final Object[] values = new Object[schema.paths.size()];
+            if (columns != null) {
+                final String[] fields = readCsv(line, length, columns.length);
+                for (int i = 0; i < columns.length; i++) {
+                    values[columns[i]] = fields[i] == null ? null : convert(fields[i], schema.kinds.get(columns[i]));
+                }
+                return schema.entity(values, csvPresent);
+            }
+
+            final boolean[] present = new boolean[schema.paths.size()];
+            try (JsonParser json = JSON.createParser(line, 0, length)) {
+                if (json.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("An entity must be a JSON object");
+                }
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = json.getCurrentName();
+                    if (json.nextToken() == JsonToken.START_OBJECT) {
+                        while (json.nextToken() == JsonToken.FIELD_NAME) {
+                            final String field = json.getCurrentName();
+                            json.nextToken();
+                            readValue(json, name + "/" + field, values, present);
+                        }
+                    } else {
+                        readValue(json, name, values, present);
+                    }
+                }
+            }
+            return schema.entity(values, present);
+        }
+
+        // unknown names, e.g. annotations, are skipped
+        private void readValue(final JsonParser json, final String path, final Object[] values, final boolean[] present)
+                throws IOException {
+            final Integer index = schema.indexes.get(path);
+            if (index == null) {
+                json.skipChildren();
+                return;
+            }
+            present[index] = true;
+            values[index] = json.currentToken() == JsonToken.VALUE_NULL ? null : convert(json.getText(), schema.kinds.get(index));
+        }
+    }
+
+    /**
+     * Parses links from CSV lines with the columns source and target, or from NDJSON lines {"source":1,"target":2}.
+     */
+    private static final class LinkParser implements LineParser<EntityKey[]> {
+
+        private static final String SOURCE = "source";
+        private static final String TARGET = "target";
+
+        private final EdmPrimitiveTypeKind sourceKind;
+        private final EdmPrimitiveTypeKind targetKind;
+        // the CSV columns of the source and the target, -1 for NDJSON
+        private final int sourceColumn;
+        private final int targetColumn;
+        private final int width;
+
+        private LinkParser(final EdmPrimitiveTypeKind sourceKind, final EdmPrimitiveTypeKind targetKind, final String header,
+                final Path file) {
+            this.sourceKind = sourceKind;
+            this.targetKind = targetKind;
+            if (header == null) {
+                sourceColumn = -1;
+                targetColumn = -1;
+                width = 0;
+                return;
+            }
+            final List<String> names = Arrays.asList(readHeader(header));
+            sourceColumn = names.indexOf(SOURCE);
+            targetColumn = names.indexOf(TARGET);
+            width = names.size();
+            if (sourceColumn < 0 || targetColumn < 0) {
+                throw new ODataRuntimeException("The header of " + file + " must name the columns source and target");
+            }
+        }
+
+        @Override
+        public EntityKey[] parse(final byte[] line, final int length) throws IOException {
+            String source = null;
+            String target = null;
+            if (width > 0) {
+                final String[] fields = readCsv(line, length, width);
+                source = fields[sourceColumn];
+                target = fields[targetColumn];
+            } else {
+                try (JsonParser json = JSON.createParser(line, 0, length)) {
+                    if (json.nextToken() != JsonToken.START_OBJECT) {
+                        throw new IllegalArgumentException("A link must be a JSON object");
+                    }
+                    while (json.nextToken() == JsonToken.FIELD_NAME) {
+                        final String name = json.getCurrentName();
+                        json.nextToken();
+                        if (SOURCE.equals(name)) {
+                            source = json.getText();
+                        } else if (TARGET.equals(name)) {
+                            target = json.getText();
+                        } else {
+                            json.skipChildren();
+                        }
+                    }
+                }
+            }
+            if (source == null || target == null) {
+                throw new IllegalArgumentException("A link needs a source and a target");
+            }
+            return new EntityKey[] { EntityKey.of(convert(source, sourceKind)), EntityKey.of(convert(target, targetKind)) };
+        }
+    }
+}
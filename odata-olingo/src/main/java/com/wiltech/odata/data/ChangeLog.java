@@ -0,0 +1,92 @@
+package com.wiltech.odata.data;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The type Change log. The last writes to one table, as the version of the write, the key of the written row and whether
+ * it was deleted, kept in a ring of fixed capacity: once it is full every write forgets the oldest one, and the changes
+ * after a version can only be told as long as none after it was forgotten.
+ * It isn't thread safe, the table only uses it while it holds its own lock.
+ */
+final class ChangeLog {
+
+    // the changes kept per entity set, unless configured otherwise
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final long[] versions;
+    private final EntityKey[] keys;
+    private final boolean[] deleted;
+    private int start;
+    private int size;
+    // the version of the last change forgotten, all changes after it are in the log
+    private long horizon;
+
+    /**
+     * Instantiates a new Change log.
+     * @param capacity the number of changes kept
+     * @param horizon the version of the table when the log starts
+     */
+    ChangeLog(final int capacity, final long horizon) {
+        this.versions = new long[capacity];
+        this.keys = new EntityKey[capacity];
+        this.deleted = new boolean[capacity];
+        this.horizon = horizon;
+    }
+
+    void add(final long version, final EntityKey key, final boolean isDeleted) {
+        final int index;
+        if (size == versions.length) {
+            index = start;
+            horizon = versions[index];
+            start = (start + 1) % versions.length;
+        } else {
+            index = (start + size) % versions.length;
+            size++;
+        }
+        versions[index] = version;
+        keys[index] = key;
+        deleted[index] = isDeleted;
+    }
+
+    /**
+     * Forgets all changes, e.g. after a bulk load or a clear that replaced the whole table in one write.
+     * @param version the version of that write
+     */
+    void reset(final long version) {
+        Arrays.fill(keys, null);
+        start = 0;
+        size = 0;
+        horizon = version;
+    }
+
+    /**
+     * The keys changed after a version, each once with its last change.
+     * @param version the version
+     * @return the keys in the order of their first change after the version, mapped to true if the last change deleted the row;
+     * null if the log no longer holds all changes after the version
+     */
+    Map<EntityKey, Boolean> since(final long version) {
+        if (version < horizon) {
+            return null;
+        }
+        final Map<EntityKey, Boolean> changed = new LinkedHashMap<EntityKey, Boolean>();
+        // the versions grow along the ring, the changes after the version are its tail
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (versions[(start + middle) % versions.length] <= version) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < size; i++) {
+            final int index = (start + i) % versions.length;
+            changed.put(keys[index], deleted[index]);
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,50 @@
+package com.wiltech.odata.data;
+
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * The type Changes. What changed in an entity set after a version, i.e. the content of a delta response:
+ * the current state of the entities added or updated since, the keys of the entities deleted since,
+ * and the keys of the entities that changed and no longer match the filter of the client's query.
+ * All of them are read from one snapshot, whose version is where the next delta starts.
+ */
+public final class Changes {
+
+    private final List<Entity> entities;
+    private final List<EntityKey> deletedKeys;
+    private final List<EntityKey> unmatchedKeys;
+    private final long version;
+
+    Changes(final List<Entity> entities, final List<EntityKey> deletedKeys, final List<EntityKey> unmatchedKeys, final long version) {
+        this.entities = entities;
+        this.deletedKeys = deletedKeys;
+        this.unmatchedKeys = unmatchedKeys;
+        this.version = version;
+    }
+
+    public List<Entity> getEntities() {
+        return entities;
+    }
+
+    public List<EntityKey> getDeletedKeys() {
+        return deletedKeys;
+    }
+
+    /**
+     * The keys of the entities that still exist, but changed and no longer match the filter.
+     * @return the keys
+     */
+    public List<EntityKey> getUnmatchedKeys() {
+        return unmatchedKeys;
+    }
+
+    /**
+     * The version of the entity set the changes were read from.
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+}
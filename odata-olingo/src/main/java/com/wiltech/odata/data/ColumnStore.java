@@ -0,0 +1,502 @@
+package com.wiltech.odata.data;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.data.ComplexValue;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+
+/**
+ * The type Column store. The rows of an {@link EntityTable}, one column per property instead of one object per row:
+ * Edm.Int32, Edm.Int64 and Edm.Double values are kept in primitive arrays, strings of the columns declared as dictionary columns
+ * as codes into a dictionary of their distinct values, and complex properties are flattened into one column per field,
+ * e.g. Address/City. The property names, types and value types are kept once per column, the ETag as the version of the row,
+ * and the id only if it isn't the canonical one, e.g. Products(1).
+ * A row is a slot; slots are only appended and never changed once written, so an update appends a new version of the row
+ * and a snapshot just lists the slots it sees. Readers don't lock: every array is replaced, never changed in place,
+ * where a slot that is already published lives, and all of them are published through volatile fields.
+ * Only one writer at a time, the table, appends.
+ */
+final class ColumnStore {
+
+    private static final long[] NO_BITS = new long[0];
+
+    private final String entitySetName;
+    private final String[] keyPropertyNames;
+    private final Set<String> dictionaryPaths;
+
+    // the entity type of the rows, all rows of an entity set have the same
+    private volatile String type;
+    // all properties, also the fields of complex properties, in the order they were first written
+    private volatile List<Layout> layouts = Collections.emptyList();
+    // path -> column, e.g. Name or Address/City; a column is replaced when a value of another type comes along
+    private volatile Map<String, Column> columns = Collections.emptyMap();
+    private final LongColumn versions = new LongColumn();
+    // the ids that differ from the canonical one; absent means canonical, also for a row written without an id
+    private final ObjectColumn ids = new ObjectColumn();
+    private int size;
+
+    ColumnStore(final String entitySetName, final String[] keyPropertyNames, final Set<String> dictionaryPaths) {
+        this.entitySetName = entitySetName;
+        this.keyPropertyNames = keyPropertyNames;
+        this.dictionaryPaths = dictionaryPaths;
+    }
+
+    /**
+     * A store for the same entity set without any rows, e.g. to compact this one into.
+     * @return the store
+     */
+    ColumnStore emptyCopy() {
+        return new ColumnStore(entitySetName, keyPropertyNames, dictionaryPaths);
+    }
+
+    /**
+     * The number of slots, live or not.
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends a row. Only the table calls this, while it holds its lock.
+     * @param entity the entity, it isn't kept
+     * @param version the version of the write, the ETag of the row
+     * @return the slot
+     */
+    int append(final Entity entity, final long version) {
+        final int slot = size;
+        if (type == null) {
+            type = entity.getType();
+        }
+        versions.setLong(slot, version);
+        final String id = entity.getId() == null ? null : entity.getId().toString();
+        if (id != null && !id.equals(canonicalId(entity))) {
+            ids.set(slot, id);
+        }
+        write(null, entity.getProperties(), slot);
+        size++;
+        return slot;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    long version(final int slot) {
+        return versions.getLong(slot);
+    }
+
+    URI id(final int slot) {
+        if (ids.isPresent(slot)) {
+            final Object id = ids.get(slot);
+            return id == null ? null : URI.create((String) id);
+        }
+        return URI.create(entitySetName + "(" + value(slot, keyPropertyNames[0]) + ")");
+    }
+
+    /**
+     * The value of a property, without building the property.
+     * @param slot the slot
+     * @param path the property, or the field of a complex property, e.g. Address/City
+     * @return the value, null if it is null or absent
+     */
+    Object value(final int slot, final String path) {
+        final Column column = columns.get(path);
+        return column == null ? null : column.get(slot);
+    }
+
+    /**
+     * The column of a property, if it holds Edm.Int32 values only, to read e.g. a key without boxing it.
+     * @param path the property
+     * @return the column, or null if it holds other values too
+     */
+    IntColumn intColumn(final String path) {
+        final Column column = columns.get(path);
+        return column instanceof IntColumn ? (IntColumn) column : null;
+    }
+
+    EntityKey key(final int slot) {
+        final Object[] values = new Object[keyPropertyNames.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value(slot, keyPropertyNames[i]);
+        }
+        return EntityKey.of(values);
+    }
+
+    /**
+     * Builds the properties of a row, as they were written.
+     * @param slot the slot
+     * @return the properties
+     */
+    List<Property> properties(final int slot) {
+        return properties(layouts, columns, null, slot);
+    }
+
+    private static List<Property> properties(final List<Layout> layouts, final Map<String, Column> columns, final String parent,
+            final int slot) {
+        final List<Property> properties = new ArrayList<Property>();
+        for (final Layout layout : layouts) {
+            if (parent == null ? layout.parent != null : !parent.equals(layout.parent)) {
+                continue;
+            }
+            final Column column = columns.get(layout.path);
+            if (column == null || !column.isPresent(slot)) {
+                continue;
+            }
+            Object value = column.get(slot);
+            if (layout.complex && value != null) {
+                final ComplexValue complexValue = new ComplexValue();
+                complexValue.getValue().addAll(properties(layouts, columns, layout.path, slot));
+                value = complexValue;
+            }
+            properties.add(new Property(layout.type, layout.name, layout.valueType, value));
+        }
+        return properties;
+    }
+
+    private void write(final String parent, final List<Property> properties, final int slot) {
+        for (final Property property : properties) {
+            final String path = parent == null ? property.getName() : parent + "/" + property.getName();
+            if (!columns.containsKey(path)) {
+                addColumn(new Layout(path, property.getName(), parent, property.getType(), property.getValueType(),
+                        property.getValueType() == ValueType.COMPLEX));
+            }
+            if (property.getValue() instanceof ComplexValue) {
+                // the column of a complex property only says whether it is there and whether it is null
+                column(path, Boolean.TRUE).set(slot, Boolean.TRUE);
+                write(path, ((ComplexValue) property.getValue()).getValue(), slot);
+            } else {
+                column(path, property.getValue()).set(slot, property.getValue());
+            }
+        }
+    }
+
+    private void addColumn(final Layout layout) {
+        final List<Layout> newLayouts = new ArrayList<Layout>(layouts);
+        newLayouts.add(layout);
+        layouts = Collections.unmodifiableList(newLayouts);
+        replaceColumn(layout.path, new NullColumn());
+    }
+
+    // the column of the path, replaced by one that can hold the value if it can't
+    private Column column(final String path, final Object value) {
+        final Column column = columns.get(path);
+        if (column.accepts(value)) {
+            return column;
+        }
+        final Column replacement = column instanceof NullColumn ? Column.forValue(value, dictionaryPaths.contains(path))
+                : new ObjectColumn();
+        for (int slot = 0; slot < size; slot++) {
+            if (column.isPresent(slot)) {
+                replacement.set(slot, column.get(slot));
+            }
+        }
+        replaceColumn(path, replacement);
+        return replacement;
+    }
+
+    private void replaceColumn(final String path, final Column column) {
+        final Map<String, Column> newColumns = new HashMap<String, Column>(columns);
+        newColumns.put(path, column);
+        columns = newColumns;
+    }
+
+    private String canonicalId(final Entity entity) {
+        if (keyPropertyNames.length != 1) {
+            return null;
+        }
+        final Property key = entity.getProperty(keyPropertyNames[0]);
+        return key == null ? null : entitySetName + "(" + key.getValue() + ")";
+    }
+
+    /**
+     * A property as it is written: its name, types and whether it is complex, shared by all rows.
+     */
+    private static final class Layout {
+
+        private final String path;
+        private final String name;
+        private final String parent;
+        private final String type;
+        private final ValueType valueType;
+        private final boolean complex;
+
+        private Layout(final String path, final String name, final String parent, final String type, final ValueType valueType,
+                final boolean complex) {
+            this.path = path;
+            this.name = name;
+            this.parent = parent;
+            this.type = type;
+            this.valueType = valueType;
+            this.complex = complex;
+        }
+    }
+
+    /**
+     * The values of one property, by slot. A slot the property was never written for is absent;
+     * a present slot may be null. The arrays grow by copying, so a reader always sees a complete array.
+     */
+    abstract static class Column {
+
+        private volatile long[] present = NO_BITS;
+        private volatile long[] nulls = NO_BITS;
+
+        static Column forValue(final Object value, final boolean dictionary) {
+            if (value instanceof Integer) {
+                return new IntColumn();
+            } else if (value instanceof Long) {
+                return new LongColumn();
+            } else if (value instanceof Double) {
+                return new DoubleColumn();
+            } else if (value instanceof String && dictionary) {
+                return new DictionaryColumn();
+            }
+            return new ObjectColumn();
+        }
+
+        final boolean isPresent(final int slot) {
+            return isSet(present, slot);
+        }
+
+        final boolean isNull(final int slot) {
+            return isSet(nulls, slot);
+        }
+
+        final Object get(final int slot) {
+            return !isPresent(slot) || isNull(slot) ? null : read(slot);
+        }
+
+        final void set(final int slot, final Object value) {
+            if (value == null) {
+                nulls = setBit(nulls, slot);
+            } else {
+                write(slot, value);
+            }
+            present = setBit(present, slot);
+        }
+
+        // null fits every column
+        boolean accepts(final Object value) {
+            return value == null || acceptsValue(value);
+        }
+
+        abstract boolean acceptsValue(Object value);
+
+        abstract Object read(int slot);
+
+        abstract void write(int slot, Object value);
+
+        private static boolean isSet(final long[] bits, final int slot) {
+            final int word = slot >>> 6;
+            return word < bits.length && (bits[word] & 1L << slot) != 0;
+        }
+
+        private static long[] setBit(final long[] bits, final int slot) {
+            final int word = slot >>> 6;
+            final long[] result = word < bits.length ? bits : Arrays.copyOf(bits, Math.max(word + 1, bits.length * 3 / 2));
+            result[word] |= 1L << slot;
+            return result;
+        }
+
+        static int grow(final int length, final int slot) {
+            return Math.max(slot + 1, Math.max(16, length * 3 / 2));
+        }
+    }
+
+    /**
+     * A column without values so far, e.g. of a property that was always null.
+     */
+    private static final class NullColumn extends Column {
+
+        @Override
+        boolean acceptsValue(final Object value) {
+            return false;
+        }
+
+        @Override
+        Object read(final int slot) {
+            return null;
+        }
+
+        @Override
+        void write(final int slot, final Object value) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Edm.Int32 values.
+     */
+    static final class IntColumn extends Column {
+
+        private volatile int[] values = new int[0];
+
+        int getInt(final int slot) {
+            return values[slot];
+        }
+
+        @Override
+        boolean acceptsValue(final Object value) {
+            return value instanceof Integer;
+        }
+
+        @Override
+        Object read(final int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void write(final int slot, final Object value) {
+            int[] current = values;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, grow(current.length, slot));
+            }
+            current[slot] = (Integer) value;
+            values = current;
+        }
+    }
+
+    /**
+     * Edm.Int64 values, and the versions of the rows.
+     */
+    static final class LongColumn extends Column {
+
+        private volatile long[] values = new long[0];
+
+        long getLong(final int slot) {
+            return values[slot];
+        }
+
+        void setLong(final int slot, final long value) {
+            long[] current = values;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, grow(current.length, slot));
+            }
+            current[slot] = value;
+            values = current;
+        }
+
+        @Override
+        boolean acceptsValue(final Object value) {
+            return value instanceof Long;
+        }
+
+        @Override
+        Object read(final int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void write(final int slot, final Object value) {
+            setLong(slot, (Long) value);
+        }
+    }
+
+    /**
+     * Edm.Double values.
+     */
+    private static final class DoubleColumn extends Column {
+
+        private volatile double[] values = new double[0];
+
+        @Override
+        boolean acceptsValue(final Object value) {
+            return value instanceof Double;
+        }
+
+        @Override
+        Object read(final int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void write(final int slot, final Object value) {
+            double[] current = values;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, grow(current.length, slot));
+            }
+            current[slot] = (Double) value;
+            values = current;
+        }
+    }
+
+    /**
+     * Strings with few distinct values, e.g. countries: each slot holds the code of its value in the dictionary,
+     * so every distinct string is kept once.
+     */
+    private static final class DictionaryColumn extends Column {
+
+        private volatile int[] codes = new int[0];
+        private volatile String[] dictionary = new String[0];
+        // only used by the writer
+        private final Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+
+        @Override
+        boolean acceptsValue(final Object value) {
+            return value instanceof String;
+        }
+
+        @Override
+        Object read(final int slot) {
+            return dictionary[codes[slot]];
+        }
+
+        @Override
+        void write(final int slot, final Object value) {
+            Integer code = codesByValue.get(value);
+            if (code == null) {
+                code = codesByValue.size();
+                String[] currentDictionary = dictionary;
+                if (code >= currentDictionary.length) {
+                    currentDictionary = Arrays.copyOf(currentDictionary, grow(currentDictionary.length, code));
+                }
+                currentDictionary[code] = (String) value;
+                dictionary = currentDictionary;
+                codesByValue.put((String) value, code);
+            }
+            int[] current = codes;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, grow(current.length, slot));
+            }
+            current[slot] = code;
+            codes = current;
+        }
+    }
+
+    /**
+     * Any other values, as they are.
+     */
+    private static final class ObjectColumn extends Column {
+
+        private volatile Object[] values = new Object[0];
+
+        @Override
+        boolean acceptsValue(final Object value) {
+            return true;
+        }
+
+        @Override
+        Object read(final int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void write(final int slot, final Object value) {
+            Object[] current = values;
+            if (slot >= current.length) {
+                current = Arrays.copyOf(current, grow(current.length, slot));
+            }
+            current[slot] = value;
+            values = current;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.wiltech.odata.data;
+
+import java.net.URI;
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.ComplexValue;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+
+/**
+ * The type Columnar entity. An entity read from a {@link ColumnStore}: it only knows its row until someone asks for
+ * its properties, typically the serializer, and builds them then. Filters, sorts and key lookups read single values
+ * through {@link #valueOf(Entity, String...)} and never build the properties.
+ * Once built, it is an ordinary entity that belongs to the caller, as every read returns a new one.
+ */
+public final class ColumnarEntity extends Entity {
+
+    private final ColumnStore store;
+    private int slot;
+    private boolean materialized;
+
+    ColumnarEntity(final ColumnStore store, final int slot) {
+        this.store = store;
+        this.slot = slot;
+        setType(store.getType());
+    }
+
+    /**
+     * The value of a property, or of a field of a complex property, of any entity; of a columnar one without building its properties.
+     * @param entity the entity
+     * @param path the property name, and the field names within complex properties, e.g. Address, City
+     * @return the value, null if it is null or absent
+     */
+    public static Object valueOf(final Entity entity, final String... path) {
+        if (entity instanceof ColumnarEntity && !((ColumnarEntity) entity).materialized) {
+            final ColumnarEntity columnar = (ColumnarEntity) entity;
+            return columnar.store.value(columnar.slot, path.length == 1 ? path[0] : String.join("/", path));
+        }
+
+        Property property = entity.getProperty(path[0]);
+        for (int i = 1; i < path.length && property != null; i++) {
+            if (!(property.getValue() instanceof ComplexValue)) {
+                return null;
+            }
+            Property nested = null;
+            for (final Property candidate : ((ComplexValue) property.getValue()).getValue()) {
+                if (candidate.getName().equals(path[i])) {
+                    nested = candidate;
+                    break;
+                }
+            }
+            property = nested;
+        }
+        return property == null ? null : property.getValue();
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    // reuses this entity for another row, e.g. to test a filter on every row of a scan
+    void moveTo(final int newSlot) {
+        slot = newSlot;
+        setETag(null);
+        setId(null);
+        if (materialized) {
+            super.getProperties().clear();
+            materialized = false;
+        }
+    }
+
+    @Override
+    public List<Property> getProperties() {
+        materialize();
+        return super.getProperties();
+    }
+
+    @Override
+    public Property getProperty(final String name) {
+        materialize();
+        return super.getProperty(name);
+    }
+
+    @Override
+    public Entity addProperty(final Property property) {
+        materialize();
+        return super.addProperty(property);
+    }
+
+    @Override
+    public String getETag() {
+        if (super.getETag() == null) {
+            setETag(EntityTable.eTag(store.version(slot)));
+        }
+        return super.getETag();
+    }
+
+    @Override
+    public URI getId() {
+        if (super.getId() == null) {
+            setId(store.id(slot));
+        }
+        return super.getId();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        materialize();
+        if (o instanceof ColumnarEntity) {
+            ((ColumnarEntity) o).materialize();
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        materialize();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+
+    private void materialize() {
+        if (!materialized) {
+            materialized = true;
+            super.getProperties().addAll(store.properties(slot));
+            getETag();
+            getId();
+        }
+    }
+}
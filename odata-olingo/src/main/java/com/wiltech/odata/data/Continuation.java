@@ -0,0 +1,56 @@
+package com.wiltech.odata.data;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+
+/**
+ * The type Continuation. Where the next page of a query starts, i.e. the content of a $skiptoken.
+ * It carries every position the storage may need, and the storage picks the one that fits how it answers the query:
+ * the last key for rows in key order, the last sort value and key for rows read from a pre-sorted index,
+ * and the number of rows already returned for rows sorted on the fly.
+ */
+public final class Continuation {
+
+    private final EntityKey afterKey;
+    private final Object afterValue;
+    private final int offset;
+
+    public Continuation(final EntityKey afterKey, final Object afterValue, final int offset) {
+        this.afterKey = afterKey;
+        this.afterValue = afterValue;
+        this.offset = offset;
+    }
+
+    /**
+     * The continuation after the last entity of a page.
+     * @param last the last entity of the page
+     * @param lastKey its key
+     * @param order the order of the query, or null for key order
+     * @param offset the number of rows returned by this and all previous pages, including skipped ones
+     * @return the continuation
+     */
+    public static Continuation after(final Entity last, final EntityKey lastKey, final EntityOrder order, final int offset) {
+        Object value = null;
+        if (order != null && order.getPropertyName() != null) {
+            final Property property = last.getProperty(order.getPropertyName());
+            value = property == null ? null : property.getValue();
+        }
+        return new Continuation(lastKey, value, offset);
+    }
+
+    public EntityKey getAfterKey() {
+        return afterKey;
+    }
+
+    /**
+     * The value of the sort property of the last row, if the order is a single property.
+     * @return the value, may be null
+     */
+    public Object getAfterValue() {
+        return afterValue;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+}
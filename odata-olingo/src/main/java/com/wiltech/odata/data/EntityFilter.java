@@ -0,0 +1,43 @@
+package com.wiltech.odata.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * The type Entity filter. A compiled $filter: the predicate every returned entity must satisfy,
+ * and the conditions that are implied by it (all conjuncts of the top level "and"), which the storage may answer
+ * with an index to find the candidates. The predicate is always applied to the candidates, so an index is only an optimization.
+ * A filter that is exact consists of nothing but its conditions, so a single condition can be counted by an index alone.
+ * Instances are immutable and can be reused by concurrent requests.
+ */
+public final class EntityFilter {
+
+    private final Predicate<Entity> predicate;
+    private final List<IndexCondition> indexConditions;
+    private final boolean exact;
+
+    public EntityFilter(final Predicate<Entity> predicate, final List<IndexCondition> indexConditions) {
+        this(predicate, indexConditions, false);
+    }
+
+    public EntityFilter(final Predicate<Entity> predicate, final List<IndexCondition> indexConditions, final boolean exact) {
+        this.predicate = predicate;
+        this.indexConditions = Collections.unmodifiableList(indexConditions);
+        this.exact = exact;
+    }
+
+    public boolean test(final Entity entity) {
+        return predicate.test(entity);
+    }
+
+    public List<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+}
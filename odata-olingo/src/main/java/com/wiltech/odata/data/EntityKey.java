@@ -0,0 +1,66 @@
+package com.wiltech.odata.data;
+
+import java.util.Arrays;
+
+/**
+ * The type Entity key. The typed values of all key properties of an entity, in the order the entity type declares its keys.
+ * Used as the hash key of the primary key index, so e.g. contacts(ContactID=1, CompanyID=1) is found without scanning,
+ * and as the sort order of the rows of an entity set, which keyset paging resumes from.
+ */
+public final class EntityKey implements Comparable<EntityKey> {
+
+    private final Object[] values;
+    private final int hash;
+
+    private EntityKey(final Object[] values) {
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    public static EntityKey of(final Object... values) {
+        return new EntityKey(values.clone());
+    }
+
+    public Object getValue(final int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public int compareTo(final EntityKey other) {
+        final int size = Math.min(values.length, other.values.length);
+        for (int i = 0; i < size; i++) {
+            final int result = ((Comparable) values[i]).compareTo(other.values[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return values.length - other.values.length;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EntityKey)) {
+            return false;
+        }
+        final EntityKey other = (EntityKey) obj;
+        return hash == other.hash && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,39 @@
+package com.wiltech.odata.data;
+
+import java.util.Comparator;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * The type Entity order. A compiled $orderby: the comparator over all its items, and, if the $orderby is a single
+ * top level property, the name of that property, so the storage can read the rows from a pre-sorted index instead of sorting them.
+ * Ties are always broken by key, which the storage adds itself. Instances are immutable and can be reused by concurrent requests.
+ */
+public final class EntityOrder {
+
+    private final Comparator<Entity> comparator;
+    private final String propertyName;
+    private final boolean descending;
+
+    public EntityOrder(final Comparator<Entity> comparator, final String propertyName, final boolean descending) {
+        this.comparator = comparator;
+        this.propertyName = propertyName;
+        this.descending = descending;
+    }
+
+    public Comparator<Entity> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * The property, if the order is a single top level property.
+     * @return the property name or null
+     */
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+}
@@ -0,0 +1,1001 @@
+package com.wiltech.odata.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * The type Entity table. Holds the rows of one entity set as an immutable copy-on-write snapshot.
+ * Readers never lock, they just take the current snapshot; writers publish a new snapshot.
+ * Writes are serialized storage-wide by the write lock of the {@link Storage}, held by a changeset until it closes,
+ * so a write to Products waits for a write to Categories; only the reads are concurrent.
+ * The rows themselves are kept in a {@link ColumnStore}, a snapshot only lists the slots of its rows, sorted by key,
+ * so a row is found by key, and a page resumed from the last key it returned, with a binary search.
+ * Reads return {@link ColumnarEntity} views, which build their properties only when they are serialized.
+ * Properties declared as indexed get a hash index from value to rows, used to answer equality filters.
+ * Properties declared as sorted get a sorted index, the rows ordered by value and then key, used to answer $orderby
+ * without sorting; it is maintained by insertion on every write. Any other order is sorted on the fly, in parallel for large sets.
+ * The rows in key order and the sorted indexes are {@link SlotList}s and the hash indexes {@link ValueIndex}es, which share all
+ * but the changed chunk or stripe with the snapshot before, so a write copies O(sqrt n) slots instead of every index.
+ * Every write takes a new version from a clock shared by all tables of the storage; the version of the write is stamped
+ * on the written entity as its ETag, and the version of the last write is the version of the table.
+ * The number of rows is kept by the snapshot, so the table is counted in O(1); a filter on a single indexed condition
+ * is counted from the index in O(1) or O(log n), any other filter by testing the index candidates, without copying them.
+ * An update appends the new version of the row to the store, once the store holds more old versions than live rows
+ * it is compacted into a new one.
+ * Many rows are loaded at once by {@link #load(Iterator)}, which sorts them and builds the indexes once, at the end.
+ * The last writes are kept in a {@link ChangeLog}, so the rows changed since a version are found without a scan.
+ * The writes of a changeset build a staged snapshot next to the published one, which only the changeset's thread reads
+ * until the {@link Staging} is committed; a changeset that is closed without a commit just drops it.
+ */
+class EntityTable {
+
+    // old row versions a store may hold beyond the number of live rows before it is compacted
+    private static final int COMPACTION_SLACK = 1024;
+
+    private final String entitySetName;
+    private final String[] keyPropertyNames;
+    private final List<String> indexedPropertyNames;
+    private final List<String> sortedPropertyNames;
+    private final VersionClock clock;
+    private volatile Snapshot snapshot;
+    // the writes of an open changeset, or null
+    private volatile Staged staged;
+    private ChangeLog changes;
+
+    EntityTable(final VersionClock clock, final String entitySetName, final String[] keyPropertyNames, final String[] indexedPropertyNames,
+            final String[] sortedPropertyNames) {
+        this(clock, entitySetName, keyPropertyNames, indexedPropertyNames, sortedPropertyNames, new String[0]);
+    }
+
+    /**
+     * Instantiates a new Entity table.
+     * @param clock the clock of the storage
+     * @param entitySetName the entity set
+     * @param keyPropertyNames the key properties
+     * @param indexedPropertyNames the properties with a hash index
+     * @param sortedPropertyNames the properties with a sorted index
+     * @param dictionaryPropertyNames the string properties with few distinct values, e.g. Address/Country, kept as dictionary codes
+     */
+    EntityTable(final VersionClock clock, final String entitySetName, final String[] keyPropertyNames, final String[] indexedPropertyNames,
+            final String[] sortedPropertyNames, final String[] dictionaryPropertyNames) {
+        this.entitySetName = entitySetName;
+        this.keyPropertyNames = keyPropertyNames;
+        this.indexedPropertyNames = Arrays.asList(indexedPropertyNames);
+        this.sortedPropertyNames = Arrays.asList(sortedPropertyNames);
+        this.clock = clock;
+        final ColumnStore store = new ColumnStore(entitySetName, keyPropertyNames,
+                Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(dictionaryPropertyNames))));
+        this.snapshot = buildSnapshot(store, new int[0], clock.current());
+        this.changes = new ChangeLog(ChangeLog.DEFAULT_CAPACITY, snapshot.version);
+    }
+
+    String getEntitySetName() {
+        return entitySetName;
+    }
+
+    /**
+     * The current rows. The returned list is immutable and never changes, even if the table is written to afterwards.
+     * @return the snapshot
+     */
+    List<Entity> snapshot() {
+        final Snapshot current = visible();
+        return new EntityList(current.store, Slots.of(current.rows));
+    }
+
+    /**
+     * The version of the last write, which changes whenever any row of the table changes.
+     * @return the version
+     */
+    long version() {
+        return visible().version;
+    }
+
+    /**
+     * The weak ETag of a version, e.g. W/"42".
+     * @param version the version
+     * @return the ETag
+     */
+    static String eTag(final long version) {
+        return "W/\"" + version + "\"";
+    }
+
+    /**
+     * Sets the number of writes kept to tell the changes since a version; the writes kept so far are forgotten.
+     * @param maxChanges the number of writes
+     */
+    synchronized void setMaxChanges(final int maxChanges) {
+        changes = new ChangeLog(maxChanges, snapshot.version);
+    }
+
+    /**
+     * The rows changed after a version, read from the published snapshot.
+     * @param version the version of the table the client read last
+     * @param filter the filter of the client's query, or null for all rows
+     * @return the changes, or null if the version is unknown or the log no longer holds all changes after it
+     */
+    synchronized Changes changesSince(final long version, final EntityFilter filter) {
+        final Snapshot current = snapshot;
+        final Map<EntityKey, Boolean> changed = version > current.version ? null : changes.since(version);
+        if (changed == null) {
+            return null;
+        }
+        final List<Entity> entities = new ArrayList<Entity>();
+        final List<EntityKey> deletedKeys = new ArrayList<EntityKey>();
+        final List<EntityKey> unmatchedKeys = new ArrayList<EntityKey>();
+        for (final Map.Entry<EntityKey, Boolean> entry : changed.entrySet()) {
+            final int slot = entry.getValue() ? -1 : findSlot(current, entry.getKey());
+            if (slot < 0) {
+                deletedKeys.add(entry.getKey());
+                continue;
+            }
+            final Entity entity = new ColumnarEntity(current.store, slot);
+            if (filter == null || filter.test(entity)) {
+                entities.add(entity);
+            } else {
+                unmatchedKeys.add(entry.getKey());
+            }
+        }
+        return new Changes(entities, deletedKeys, unmatchedKeys, current.version);
+    }
+
+    /**
+     * Find by key in O(log n).
+     * @param key the key, with the values in the order of the key property names
+     * @return the entity or null if there is none with this key
+     */
+    Entity findByKey(final EntityKey key) {
+        if (key == null) {
+            return null;
+        }
+        final Snapshot current = visible();
+        final int slot = findSlot(current, key);
+        return slot < 0 ? null : new ColumnarEntity(current.store, slot);
+    }
+
+    /**
+     * One page of the rows matching a filter, in the requested order.
+     * The candidates come from the most selective index the filter allows, all other rows are never visited;
+     * without a usable index the rows are scanned from the continuation until the page is full.
+     * Ordered by a sorted property without a more selective index, the rows are read from the sorted index in O(page);
+     * any other order sorts the matching rows first.
+     * @param filter the filter, or null for all rows
+     * @param order the order, or null for key order
+     * @param continuation where the previous page ended, or null to start from the first row
+     * @param skip the number of matching rows to skip, after the continuation
+     * @param limit the maximum number of rows
+     * @return the page
+     */
+    List<Entity> query(final EntityFilter filter, final EntityOrder order, final Continuation continuation, final int skip,
+            final int limit) {
+        final Iterator<Entity> rows = iterate(filter, order, continuation, skip);
+        final List<Entity> result = new ArrayList<Entity>(Math.min(limit, 64));
+        while (result.size() < limit && rows.hasNext()) {
+            result.add(rows.next());
+        }
+        return result;
+    }
+
+    /**
+     * The rows matching a filter in the requested order, as {@link #query(EntityFilter, EntityOrder, Continuation, int, int)},
+     * but read lazily while the iterator is consumed, so nothing but the iterator and the returned views is allocated
+     * for key order and the order of a sorted index. The iterator reads the snapshot taken when it was created.
+     * @param filter the filter, or null for all rows
+     * @param order the order, or null for key order
+     * @param continuation where the previous page ended, or null to start from the first row
+     * @param skip the number of matching rows to skip, after the continuation
+     * @return the iterator
+     */
+    Iterator<Entity> iterate(final EntityFilter filter, final EntityOrder order, final Continuation continuation, final int skip) {
+        final Snapshot current = visible();
+        final ColumnStore store = current.store;
+        final Slots candidates = filter == null ? Slots.of(current.rows) : findCandidates(current, filter);
+
+        if (order == null) {
+            // all candidate lists are in key order, so the scan can resume from the last key in any of them
+            final EntityKey afterKey = continuation == null ? null : continuation.getAfterKey();
+            return new ScanIterator(store, candidates, afterKey == null ? 0 : search(store, candidates, afterKey, true), filter, skip);
+        }
+
+        final String propertyName = order.getPropertyName();
+        if (propertyName != null) {
+            final SlotList sorted = current.sorted.get(propertyName);
+            Slots rows;
+            if (sorted == null || candidates.size() < current.rows.size()) {
+                // no sorted index, or an index already narrowed the candidates down: sort those
+                rows = Slots.of(sortMatching(store, candidates, filter, propertyComparator(store, propertyName, order.isDescending())));
+            } else {
+                rows = order.isDescending() ? Slots.reversed(sorted) : Slots.of(sorted);
+            }
+            final int start = continuation == null ? 0 : indexAfter(store, rows, propertyName, order.isDescending(), continuation);
+            return new ScanIterator(store, rows, start, filter, skip);
+        }
+
+        // an order by expressions or several properties is sorted on the fly and resumed by position
+        final Comparator<Entity> comparator = order.getComparator().thenComparing(this::keyOf);
+        final Slots rows = Slots.of(sortMatchingEntities(store, candidates, filter, comparator));
+        return new ScanIterator(store, rows, continuation == null ? 0 : continuation.getOffset(), null, skip);
+    }
+
+    /**
+     * The number of rows matching a filter.
+     * @param filter the filter, or null for all rows
+     * @return the count
+     */
+    int count(final EntityFilter filter) {
+        final Snapshot current = visible();
+        if (filter == null) {
+            return current.rows.size();
+        }
+        if (filter.isExact() && filter.getIndexConditions().size() == 1) {
+            final int counted = countIndexed(current, filter.getIndexConditions().get(0));
+            if (counted >= 0) {
+                return counted;
+            }
+        }
+
+        final Slots candidates = findCandidates(current, filter);
+        final ColumnarEntity probe = new ColumnarEntity(current.store, 0);
+        int count = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            probe.moveTo(candidates.get(i));
+            if (filter.test(probe)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized void insert(final Entity entity) {
+        if (findSlot(visible(), keyOf(entity)) >= 0) {
+            throw new ODataRuntimeException("Duplicate key " + keyOf(entity) + " in entity set " + entitySetName);
+        }
+        put(entity);
+    }
+
+    /**
+     * Inserts an entity, or replaces the entity with the same key. Rows are never changed once they are in a snapshot,
+     * an update always appends a new one. The given entity isn't kept, only its values.
+     * @param entity the entity
+     * @return the replaced entity, or null if it was inserted
+     */
+    synchronized Entity put(final Entity entity) {
+        final Snapshot current = visible();
+        final ColumnStore store = current.store;
+        final EntityKey key = keyOf(entity);
+        final int index = search(store, Slots.of(current.rows), key, false);
+        final boolean replacing = index < current.rows.size() && compareKey(store, current.rows.get(index), key) == 0;
+        final int replacedSlot = replacing ? current.rows.get(index) : -1;
+
+        final long version = clock.next();
+        entity.setETag(eTag(version));
+        final int slot = store.append(entity, version);
+        changed(version, key, false);
+
+        final SlotList rows = replacing ? current.rows.set(index, slot) : current.rows.insert(index, slot);
+
+        final Map<String, ValueIndex> byValue = new HashMap<String, ValueIndex>();
+        for (final String propertyName : indexedPropertyNames) {
+            final Object value = store.value(slot, propertyName);
+            ValueIndex valueIndex = current.byValue.get(propertyName);
+            if (replacing && value != null && value.equals(store.value(replacedSlot, propertyName))) {
+                // an unchanged value, the new row takes the place of the old one in the posting list
+                final SlotList posting = valueIndex.get(value);
+                valueIndex = valueIndex.with(value, replaced(posting, keyPosition(store, posting, replacedSlot), replacedSlot, slot));
+            } else {
+                if (replacing) {
+                    valueIndex = removeFromPosting(store, valueIndex, store.value(replacedSlot, propertyName), replacedSlot);
+                }
+                valueIndex = addToPosting(store, valueIndex, value, slot);
+            }
+            byValue.put(propertyName, valueIndex);
+        }
+
+        final Map<String, SlotList> sorted = new HashMap<String, SlotList>();
+        for (final Map.Entry<String, SlotList> entry : current.sorted.entrySet()) {
+            final String propertyName = entry.getKey();
+            final Comparator<Integer> comparator = propertyComparator(store, propertyName, false);
+            if (replacing && compareValues(store.value(replacedSlot, propertyName), store.value(slot, propertyName)) == 0) {
+                // the same value and key, so the same place
+                final int replacedIndex = insertionPoint(entry.getValue(), replacedSlot, comparator);
+                sorted.put(propertyName, replaced(entry.getValue(), replacedIndex, replacedSlot, slot));
+            } else {
+                final SlotList sortedRows = replacing ? without(entry.getValue(), replacedSlot, comparator) : entry.getValue();
+                sorted.put(propertyName, sortedRows.insert(insertionPoint(sortedRows, slot, comparator), slot));
+            }
+        }
+        publish(new Snapshot(store, rows, byValue, sorted, version));
+        return replacing ? new ColumnarEntity(store, replacedSlot) : null;
+    }
+
+    /**
+     * Loads many rows at once, e.g. from files on startup. The rows are appended as they come, the key order and all indexes
+     * are built once at the end instead of row by row, and the whole load is one write with one version.
+     * A row with the key of an existing row, or of a row loaded before it, replaces that row.
+     * @param batches the rows, in batches; the batches are read on the calling thread, in order
+     * @return the number of rows read
+     */
+    synchronized int load(final Iterator<List<Entity>> batches) {
+        final Snapshot current = snapshot;
+        final ColumnStore store = current.store;
+        final long version = clock.next();
+        final int first = store.size();
+        while (batches.hasNext()) {
+            for (final Entity entity : batches.next()) {
+                keyOf(entity);
+                store.append(entity, version);
+            }
+        }
+        final int loaded = store.size() - first;
+        // the load isn't told row by row, a client that read the table before it has to read it again
+        changes.reset(version);
+
+        // the existing rows first, then the loaded ones in order, so that the last row with a key wins
+        final int[] existing = current.rows.toArray();
+        final int[] slots = Arrays.copyOf(existing, existing.length + loaded);
+        for (int i = 0; i < loaded; i++) {
+            slots[existing.length + i] = first + i;
+        }
+        publish(buildSnapshot(store, sortByKey(store, slots), version));
+        return loaded;
+    }
+
+    /**
+     * Removes all rows.
+     */
+    synchronized void clear() {
+        snapshot = buildSnapshot(snapshot.store.emptyCopy(), new int[0], clock.next());
+        changes.reset(snapshot.version);
+        clock.changed(entitySetName);
+    }
+
+    synchronized Entity remove(final EntityKey key) {
+        final Snapshot current = visible();
+        final ColumnStore store = current.store;
+        final int index = search(store, Slots.of(current.rows), key, false);
+        if (index == current.rows.size() || compareKey(store, current.rows.get(index), key) != 0) {
+            return null;
+        }
+        final int removedSlot = current.rows.get(index);
+
+        final Map<String, ValueIndex> byValue = new HashMap<String, ValueIndex>();
+        for (final String propertyName : indexedPropertyNames) {
+            byValue.put(propertyName,
+                    removeFromPosting(store, current.byValue.get(propertyName), store.value(removedSlot, propertyName), removedSlot));
+        }
+        final Map<String, SlotList> sorted = new HashMap<String, SlotList>();
+        for (final Map.Entry<String, SlotList> entry : current.sorted.entrySet()) {
+            sorted.put(entry.getKey(), without(entry.getValue(), removedSlot, propertyComparator(store, entry.getKey(), false)));
+        }
+        final long version = clock.next();
+        changed(version, key, true);
+        publish(new Snapshot(store, current.rows.remove(index), byValue, sorted, version));
+        return new ColumnarEntity(store, removedSlot);
+    }
+
+    EntityKey keyOf(final Entity entity) {
+        final Object[] values = new Object[keyPropertyNames.length];
+        for (int i = 0; i < keyPropertyNames.length; i++) {
+            values[i] = ColumnarEntity.valueOf(entity, keyPropertyNames[i]);
+            if (values[i] == null) {
+                throw new ODataRuntimeException("Missing key property " + keyPropertyNames[i] + " in entity set " + entitySetName);
+            }
+        }
+        return EntityKey.of(values);
+    }
+
+    /**
+     * Stages the writes of a changeset from now on, see {@link #publishStaged()} and {@link #discardStaged()}.
+     * @param staging the changeset
+     */
+    synchronized void stage(final Staging staging) {
+        staged = new Staged(staging, snapshot);
+    }
+
+    /**
+     * Publishes the staged snapshot, once its {@link Staging} is committed, and stops staging.
+     */
+    synchronized void publishStaged() {
+        final Staged pending = staged;
+        if (pending == null) {
+            return;
+        }
+        final boolean written = pending.snapshot != snapshot;
+        // the snapshot first, so that a reader who no longer finds the staged one finds it published
+        snapshot = pending.snapshot;
+        pending.changes.forEach(Runnable::run);
+        staged = null;
+        if (written) {
+            clock.changed(entitySetName);
+        }
+    }
+
+    /**
+     * Drops the staged snapshot and stops staging; the rows it appended to the store are never read.
+     */
+    synchronized void discardStaged() {
+        staged = null;
+    }
+
+    // the staged snapshot to the thread of its changeset and after the commit, otherwise the published one
+    private Snapshot visible() {
+        final Staged pending = staged;
+        return pending != null && pending.staging.isVisible() ? pending.snapshot : snapshot;
+    }
+
+    // tells the change log about a write, a staged one on publication
+    private void changed(final long version, final EntityKey key, final boolean deleted) {
+        final Staged pending = staged;
+        if (pending == null) {
+            changes.add(version, key, deleted);
+        } else {
+            pending.changes.add(() -> changes.add(version, key, deleted));
+        }
+    }
+
+    // publishes a snapshot, compacted first if its store holds too many old versions; a staged one only to its changeset
+    private void publish(final Snapshot next) {
+        Snapshot published = next;
+        if (next.store.size() > 2 * next.rows.size() + COMPACTION_SLACK) {
+            final ColumnStore store = next.store.emptyCopy();
+            final int[] live = next.rows.toArray();
+            final int[] rows = new int[live.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = store.append(new ColumnarEntity(next.store, live[i]), next.store.version(live[i]));
+            }
+            published = buildSnapshot(store, rows, next.version);
+        }
+        final Staged pending = staged;
+        if (pending == null) {
+            snapshot = published;
+            clock.changed(entitySetName);
+        } else {
+            pending.snapshot = published;
+        }
+    }
+
+    // the slots sorted by key, of several slots with the same key only the last one
+    private int[] sortByKey(final ColumnStore store, final int[] slots) {
+        final ColumnStore.IntColumn column = keyPropertyNames.length == 1 ? store.intColumn(keyPropertyNames[0]) : null;
+        final int[] sorted = new int[slots.length];
+        int size = 0;
+        if (column != null) {
+            // an int key and a slot fit into one long, so that the sort needs no comparator and no boxing
+            final long[] keys = new long[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                keys[i] = (long) column.getInt(slots[i]) << 32 | slots[i];
+            }
+            Arrays.parallelSort(keys);
+            for (int i = 0; i < keys.length; i++) {
+                if (i + 1 == keys.length || keys[i] >> 32 != keys[i + 1] >> 32) {
+                    sorted[size++] = (int) keys[i];
+                }
+            }
+        } else {
+            final Integer[] boxed = new Integer[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                boxed[i] = slots[i];
+            }
+            Arrays.parallelSort(boxed, (left, right) -> {
+                final int result = compareSlots(store, left, right);
+                return result != 0 ? result : Integer.compare(left, right);
+            });
+            for (int i = 0; i < boxed.length; i++) {
+                if (i + 1 == boxed.length || compareSlots(store, boxed[i], boxed[i + 1]) != 0) {
+                    sorted[size++] = boxed[i];
+                }
+            }
+        }
+        return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+
+    // the slot of the row with the key, or -1
+    private int findSlot(final Snapshot current, final EntityKey key) {
+        final int index = search(current.store, Slots.of(current.rows), key, false);
+        return index < current.rows.size() && compareKey(current.store, current.rows.get(index), key) == 0 ? current.rows.get(index) : -1;
+    }
+
+    private int compareKey(final ColumnStore store, final int slot, final EntityKey key) {
+        if (keyPropertyNames.length == 1 && key.getValue(0) instanceof Integer) {
+            final ColumnStore.IntColumn column = store.intColumn(keyPropertyNames[0]);
+            if (column != null) {
+                return Integer.compare(column.getInt(slot), (Integer) key.getValue(0));
+            }
+        }
+        return store.key(slot).compareTo(key);
+    }
+
+    private int compareSlots(final ColumnStore store, final int left, final int right) {
+        if (keyPropertyNames.length == 1) {
+            final ColumnStore.IntColumn column = store.intColumn(keyPropertyNames[0]);
+            if (column != null) {
+                return Integer.compare(column.getInt(left), column.getInt(right));
+            }
+        }
+        return store.key(left).compareTo(store.key(right));
+    }
+
+    // the posting lists of a hash index are in key order, like the rows
+    private ValueIndex addToPosting(final ColumnStore store, final ValueIndex valueIndex, final Object value, final int slot) {
+        if (value == null) {
+            return valueIndex;
+        }
+        final SlotList posting = valueIndex.get(value);
+        if (posting == null) {
+            return valueIndex.with(value, SlotList.of(new int[] { slot }));
+        }
+        return valueIndex.with(value, posting.insert(keyPosition(store, posting, slot), slot));
+    }
+
+    private ValueIndex removeFromPosting(final ColumnStore store, final ValueIndex valueIndex, final Object value, final int slot) {
+        final SlotList posting = value == null ? null : valueIndex.get(value);
+        if (posting == null) {
+            return valueIndex;
+        }
+        final int index = keyPosition(store, posting, slot);
+        return index < posting.size() && posting.get(index) == slot ? valueIndex.with(value, posting.remove(index)) : valueIndex;
+    }
+
+    // the index of the first slot in a list in key order with a key greater than or equal to the key of the slot
+    private int keyPosition(final ColumnStore store, final SlotList slots, final int slot) {
+        int low = 0;
+        int high = slots.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareSlots(store, slots.get(mid), slot) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the slot is found with the comparator of the list, which orders every row, so no list is ever scanned
+    private static SlotList without(final SlotList rows, final int slot, final Comparator<Integer> comparator) {
+        final int index = insertionPoint(rows, slot, comparator);
+        return index < rows.size() && rows.get(index) == slot ? rows.remove(index) : rows;
+    }
+
+    private static SlotList replaced(final SlotList rows, final int index, final int replacedSlot, final int slot) {
+        return index < rows.size() && rows.get(index) == replacedSlot ? rows.set(index, slot) : rows;
+    }
+
+    private static int insertionPoint(final SlotList rows, final int slot, final Comparator<Integer> comparator) {
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (comparator.compare(rows.get(mid), slot) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the matching candidates, sorted; Arrays.parallelSort only forks for large arrays and sorts small ones in place
+    private static int[] sortMatching(final ColumnStore store, final Slots candidates, final EntityFilter filter,
+            final Comparator<Integer> comparator) {
+        final List<Integer> matching = new ArrayList<Integer>(candidates.size());
+        final ColumnarEntity probe = new ColumnarEntity(store, 0);
+        for (int i = 0; i < candidates.size(); i++) {
+            probe.moveTo(candidates.get(i));
+            if (filter == null || filter.test(probe)) {
+                matching.add(candidates.get(i));
+            }
+        }
+        final Integer[] rows = matching.toArray(new Integer[matching.size()]);
+        Arrays.parallelSort(rows, comparator);
+        final int[] result = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            result[i] = rows[i];
+        }
+        return result;
+    }
+
+    // rows in key order sorted by the value of the property, nulls first; the sort is stable, so rows with equal values stay in key order
+    private static int[] sortByValue(final ColumnStore store, final int[] rows, final String propertyName) {
+        final SortEntry[] entries = new SortEntry[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            entries[i] = new SortEntry(store.value(rows[i], propertyName), rows[i]);
+        }
+        Arrays.parallelSort(entries, (left, right) -> compareValues(left.value, right.value));
+        final int[] result = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            result[i] = entries[i].slot;
+        }
+        return result;
+    }
+
+    // as sortMatching, for comparators of entities, e.g. of expressions; every matching row gets a view of its own
+    private static int[] sortMatchingEntities(final ColumnStore store, final Slots candidates, final EntityFilter filter,
+            final Comparator<Entity> comparator) {
+        final List<ColumnarEntity> matching = new ArrayList<ColumnarEntity>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            final ColumnarEntity row = new ColumnarEntity(store, candidates.get(i));
+            if (filter == null || filter.test(row)) {
+                matching.add(row);
+            }
+        }
+        final ColumnarEntity[] rows = matching.toArray(new ColumnarEntity[matching.size()]);
+        Arrays.parallelSort(rows, comparator);
+        final int[] result = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            result[i] = rows[i].getSlot();
+        }
+        return result;
+    }
+
+    // by the value of the property, nulls first, then by key; reversed as a whole for descending
+    private Comparator<Integer> propertyComparator(final ColumnStore store, final String propertyName, final boolean descending) {
+        final Comparator<Integer> ascending = (left, right) -> {
+            final int result = compareValues(store.value(left, propertyName), store.value(right, propertyName));
+            return result != 0 ? result : compareSlots(store, left, right);
+        };
+        return descending ? ascending.reversed() : ascending;
+    }
+
+    // the index of the first row after the continuation, in rows sorted by the property
+    private int indexAfter(final ColumnStore store, final Slots rows, final String propertyName, final boolean descending,
+            final Continuation continuation) {
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            int result = compareValues(store.value(rows.get(mid), propertyName), continuation.getAfterValue());
+            if (result == 0) {
+                result = compareKey(store, rows.get(mid), continuation.getAfterKey());
+            }
+            if (descending ? result >= 0 : result <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // all values of one property have the same Java type
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compareValues(final Object left, final Object right) {
+        if (left == null || right == null) {
+            return left == null ? right == null ? 0 : -1 : 1;
+        }
+        return ((Comparable) left).compareTo(right);
+    }
+
+    private Slots findCandidates(final Snapshot current, final EntityFilter filter) {
+        Slots candidates = Slots.of(current.rows);
+        for (final IndexCondition condition : filter.getIndexConditions()) {
+            final Slots indexed = findIndexed(current, condition);
+            if (indexed != null && indexed.size() < candidates.size()) {
+                candidates = indexed;
+            }
+        }
+        return candidates;
+    }
+
+    // the rows that may match the condition according to an index, or null if no index can answer it
+    private Slots findIndexed(final Snapshot current, final IndexCondition condition) {
+        final boolean isKey = keyPropertyNames.length == 1 && keyPropertyNames[0].equals(condition.getPropertyName());
+        if (isKey) {
+            final EntityKey key = EntityKey.of(condition.getValue());
+            final Slots rows = Slots.of(current.rows);
+            switch (condition.getOperator()) {
+            case EQ:
+                final int slot = findSlot(current, key);
+                return slot < 0 ? Slots.EMPTY : Slots.of(SlotList.of(new int[] { slot }));
+            case GT:
+                return rows.range(search(current.store, rows, key, true), rows.size());
+            case GE:
+                return rows.range(search(current.store, rows, key, false), rows.size());
+            case LT:
+                return rows.range(0, search(current.store, rows, key, false));
+            case LE:
+                return rows.range(0, search(current.store, rows, key, true));
+            default:
+                return null;
+            }
+        }
+
+        final ValueIndex valueIndex = current.byValue.get(condition.getPropertyName());
+        if (valueIndex != null && condition.getOperator() == IndexCondition.Operator.EQ) {
+            final SlotList rows = valueIndex.get(condition.getValue());
+            return rows == null ? Slots.EMPTY : Slots.of(rows);
+        }
+        return null;
+    }
+
+    // the number of rows matching the condition according to an index, or -1 if no index can count it
+    private int countIndexed(final Snapshot current, final IndexCondition condition) {
+        final Slots indexed = findIndexed(current, condition);
+        if (indexed != null) {
+            return indexed.size();
+        }
+
+        // a range on a sorted property is counted between two binary searches; null values are first and never match
+        final SlotList rows = current.sorted.get(condition.getPropertyName());
+        if (rows == null) {
+            return -1;
+        }
+        final ColumnStore store = current.store;
+        final String propertyName = condition.getPropertyName();
+        final Object value = condition.getValue();
+        switch (condition.getOperator()) {
+        case EQ:
+            return valueBound(store, rows, propertyName, value, true) - valueBound(store, rows, propertyName, value, false);
+        case GT:
+            return rows.size() - valueBound(store, rows, propertyName, value, true);
+        case GE:
+            return rows.size() - valueBound(store, rows, propertyName, value, false);
+        case LT:
+            return valueBound(store, rows, propertyName, value, false) - valueBound(store, rows, propertyName, null, true);
+        case LE:
+            return valueBound(store, rows, propertyName, value, true) - valueBound(store, rows, propertyName, null, true);
+        default:
+            return -1;
+        }
+    }
+
+    // the index of the first row with a value greater than (after) or greater than or equal to the given value
+    private static int valueBound(final ColumnStore store, final SlotList rows, final String propertyName, final Object value,
+            final boolean after) {
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int result = compareValues(store.value(rows.get(mid), propertyName), value);
+            if (result < 0 || after && result == 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the index of the first row with a key greater than (after) or greater than or equal to the given key
+    private int search(final ColumnStore store, final Slots rows, final EntityKey key, final boolean after) {
+        int low = 0;
+        int high = rows.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int result = compareKey(store, rows.get(mid), key);
+            if (result < 0 || after && result == 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // all indexes built from scratch, e.g. after a load or a compaction
+    private Snapshot buildSnapshot(final ColumnStore store, final int[] rows, final long version) {
+        final Map<String, ValueIndex> byValue = new HashMap<String, ValueIndex>();
+        for (final String propertyName : indexedPropertyNames) {
+            // counted first, so that every list is allocated once at its size
+            final Map<Object, int[]> counts = new HashMap<Object, int[]>();
+            for (final int row : rows) {
+                final Object value = store.value(row, propertyName);
+                if (value != null) {
+                    counts.computeIfAbsent(value, v -> new int[1])[0]++;
+                }
+            }
+            final Map<Object, int[]> valueIndex = new HashMap<Object, int[]>(counts.size() * 4 / 3 + 1);
+            for (final Map.Entry<Object, int[]> count : counts.entrySet()) {
+                valueIndex.put(count.getKey(), new int[count.getValue()[0]]);
+            }
+            // filled from the back, so that the lists are in key order like the rows
+            for (int i = rows.length - 1; i >= 0; i--) {
+                final Object value = store.value(rows[i], propertyName);
+                if (value != null) {
+                    valueIndex.get(value)[--counts.get(value)[0]] = rows[i];
+                }
+            }
+            byValue.put(propertyName, ValueIndex.of(valueIndex));
+        }
+
+        final Map<String, SlotList> sorted = new HashMap<String, SlotList>();
+        for (final String propertyName : sortedPropertyNames) {
+            sorted.put(propertyName, SlotList.of(sortByValue(store, rows, propertyName)));
+        }
+        return new Snapshot(store, SlotList.of(rows), byValue, sorted, version);
+    }
+
+    /**
+     * The rows and their indexes at one point in time, always published together. The lists and indexes are never changed.
+     */
+    private static final class Snapshot {
+
+        private final ColumnStore store;
+        private final SlotList rows;
+        private final Map<String, ValueIndex> byValue;
+        private final Map<String, SlotList> sorted;
+        private final long version;
+
+        private Snapshot(final ColumnStore store, final SlotList rows, final Map<String, ValueIndex> byValue,
+                final Map<String, SlotList> sorted, final long version) {
+            this.store = store;
+            this.rows = rows;
+            this.byValue = byValue;
+            this.sorted = sorted;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The writes of a changeset: its snapshot, which starts as the published one, and its entries of the change log.
+     * Written only by the thread of the changeset, read by others once the staging is committed.
+     */
+    private static final class Staged {
+
+        private final Staging staging;
+        private volatile Snapshot snapshot;
+        private final List<Runnable> changes = new ArrayList<Runnable>();
+
+        private Staged(final Staging staging, final Snapshot snapshot) {
+            this.staging = staging;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * A row and its value, read once before a sort instead of on every comparison.
+     */
+    private static final class SortEntry {
+
+        private final Object value;
+        private final int slot;
+
+        private SortEntry(final Object value, final int slot) {
+            this.value = value;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A range of slots, possibly read backwards, e.g. to read a sorted index in descending order without copying it.
+     */
+    private static final class Slots {
+
+        private static final Slots EMPTY = of(SlotList.EMPTY);
+
+        private final SlotList slots;
+        private final int from;
+        private final int to;
+        private final boolean reversed;
+        // the chunk read last, so that reading the slots in order skips the search for their chunk
+        private int chunk = -1;
+
+        private Slots(final SlotList slots, final int from, final int to, final boolean reversed) {
+            this.slots = slots;
+            this.from = from;
+            this.to = to;
+            this.reversed = reversed;
+        }
+
+        static Slots of(final int[] slots) {
+            return of(SlotList.of(slots));
+        }
+
+        static Slots of(final SlotList slots) {
+            return new Slots(slots, 0, slots.size(), false);
+        }
+
+        static Slots reversed(final SlotList slots) {
+            return new Slots(slots, 0, slots.size(), true);
+        }
+
+        int size() {
+            return to - from;
+        }
+
+        int get(final int index) {
+            final int position = reversed ? to - 1 - index : from + index;
+            chunk = slots.chunkOf(position, chunk);
+            return slots.get(position, chunk);
+        }
+
+        // only for ranges read forwards
+        Slots range(final int start, final int end) {
+            return new Slots(slots, from + start, from + end, false);
+        }
+    }
+
+    /**
+     * Scans rows from a start index, applying a filter and skip, one row ahead of the consumer.
+     * The filter is tested on one reused view, only the returned rows get views of their own.
+     */
+    private static final class ScanIterator implements Iterator<Entity> {
+
+        private final ColumnStore store;
+        private final Slots rows;
+        private final EntityFilter filter;
+        private final ColumnarEntity probe;
+        private int index;
+        private int toSkip;
+        private int next = -1;
+
+        private ScanIterator(final ColumnStore store, final Slots rows, final int start, final EntityFilter filter, final int skip) {
+            this.store = store;
+            this.rows = rows;
+            this.filter = filter;
+            this.probe = filter == null ? null : new ColumnarEntity(store, 0);
+            this.index = start;
+            this.toSkip = skip;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        public Entity next() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            final Entity result = new ColumnarEntity(store, next);
+            advance();
+            return result;
+        }
+
+        private void advance() {
+            next = -1;
+            while (next < 0 && index < rows.size()) {
+                final int slot = rows.get(index++);
+                if (filter != null) {
+                    probe.moveTo(slot);
+                    if (!filter.test(probe)) {
+                        continue;
+                    }
+                }
+                if (toSkip > 0) {
+                    toSkip--;
+                } else {
+                    next = slot;
+                }
+            }
+        }
+    }
+
+    /**
+     * The rows of a snapshot as entities, each read as a new view.
+     */
+    private static final class EntityList extends AbstractList<Entity> implements RandomAccess {
+
+        private final ColumnStore store;
+        private final Slots rows;
+
+        private EntityList(final ColumnStore store, final Slots rows) {
+            this.store = store;
+            this.rows = rows;
+        }
+
+        @Override
+        public Entity get(final int index) {
+            return new ColumnarEntity(store, rows.get(index));
+        }
+
+        @Override
+        public int size() {
+            return rows.size();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.wiltech.odata.data;
+
+/**
+ * The type Index condition. A comparison of a top level property with a constant, e.g. ID gt 3 or Name eq 'Ergo Screen',
+ * that the storage can answer with an index instead of a full scan. The value has the Java type of the property.
+ */
+public final class IndexCondition {
+
+    /**
+     * The comparison operators an index can answer.
+     */
+    public enum Operator {
+        EQ, GT, GE, LT, LE;
+
+        /**
+         * The operator with the operands swapped, e.g. 3 lt ID is ID gt 3.
+         * @return the operator
+         */
+        public Operator swap() {
+            switch (this) {
+            case GT:
+                return LT;
+            case GE:
+                return LE;
+            case LT:
+                return GT;
+            case LE:
+                return GE;
+            default:
+                return this;
+            }
+        }
+    }
+
+    private final String propertyName;
+    private final Operator operator;
+    private final Object value;
+
+    public IndexCondition(final String propertyName, final Operator operator, final Object value) {
+        this.propertyName = propertyName;
+        this.operator = operator;
+        this.value = value;
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return propertyName + " " + operator.name().toLowerCase() + " " + value;
+    }
+}
@@ -0,0 +1,332 @@
+package com.wiltech.odata.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.ComplexValue;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * The type Log record. One change of the storage as it is written to the {@link WriteAheadLog}:
+ * the new image of an entity, the deletion of an entity, a link between two entities, or the removal of everything,
+ * which starts a compacted log. Deleting an entity also removes its links, so unlinking is never logged on its own.
+ * The writes of a changeset are one batch record, so the log has either all or none of them.
+ * The encoding is a plain binary format of its own, so the log doesn't depend on any serializer or on the metadata.
+ */
+final class LogRecord {
+
+    /**
+     * The kinds of change, written as their ordinal.
+     */
+    enum Type {
+        PUT, DELETE, LINK, CLEAR, BATCH
+    }
+
+    // tags of the encoded values
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DECIMAL = 9;
+    private static final byte BIG_INTEGER = 10;
+    private static final byte COMPLEX = 11;
+    private static final byte COLLECTION = 12;
+
+    private final Type type;
+    // the entity set, or the relation for a link, e.g. Products/Category
+    private final String name;
+    private final Entity entity;
+    private final EntityKey key;
+    private final EntityKey targetKey;
+    private final List<LogRecord> records;
+
+    private LogRecord(final Type type, final String name, final Entity entity, final EntityKey key, final EntityKey targetKey,
+            final List<LogRecord> records) {
+        this.type = type;
+        this.name = name;
+        this.entity = entity;
+        this.key = key;
+        this.targetKey = targetKey;
+        this.records = records;
+    }
+
+    static LogRecord put(final String entitySetName, final Entity entity) {
+        return new LogRecord(Type.PUT, entitySetName, entity, null, null, null);
+    }
+
+    static LogRecord delete(final String entitySetName, final EntityKey key) {
+        return new LogRecord(Type.DELETE, entitySetName, null, key, null, null);
+    }
+
+    static LogRecord link(final String relationName, final EntityKey sourceKey, final EntityKey targetKey) {
+        return new LogRecord(Type.LINK, relationName, null, sourceKey, targetKey, null);
+    }
+
+    static LogRecord clear() {
+        return new LogRecord(Type.CLEAR, "", null, null, null, null);
+    }
+
+    static LogRecord batch(final List<LogRecord> records) {
+        return new LogRecord(Type.BATCH, "", null, null, null, new ArrayList<LogRecord>(records));
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Entity getEntity() {
+        return entity;
+    }
+
+    EntityKey getKey() {
+        return key;
+    }
+
+    EntityKey getTargetKey() {
+        return targetKey;
+    }
+
+    List<LogRecord> getRecords() {
+        return records;
+    }
+
+    byte[] encode() {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type.ordinal());
+            writeString(out, name);
+            switch (type) {
+            case PUT:
+                writeString(out, entity.getType());
+                writeString(out, entity.getId() == null ? null : entity.getId().toString());
+                writeProperties(out, entity.getProperties());
+                break;
+            case DELETE:
+                writeKey(out, key);
+                break;
+            case LINK:
+                writeKey(out, key);
+                writeKey(out, targetKey);
+                break;
+            case BATCH:
+                out.writeInt(records.size());
+                for (final LogRecord record : records) {
+                    final byte[] encoded = record.encode();
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+                break;
+            default:
+                break;
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (final IOException e) {
+            // a byte array doesn't throw
+            throw new ODataRuntimeException(e);
+        }
+    }
+
+    static LogRecord decode(final byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown log record type " + ordinal);
+        }
+        final Type type = Type.values()[ordinal];
+        final String name = readString(in);
+        switch (type) {
+        case PUT:
+            final Entity entity = new Entity();
+            entity.setType(readString(in));
+            final String id = readString(in);
+            entity.setId(id == null ? null : URI.create(id));
+            entity.getProperties().addAll(readProperties(in));
+            return put(name, entity);
+        case DELETE:
+            return delete(name, readKey(in));
+        case LINK:
+            return link(name, readKey(in), readKey(in));
+        case BATCH:
+            final int size = in.readInt();
+            final List<LogRecord> records = new ArrayList<LogRecord>(size);
+            for (int i = 0; i < size; i++) {
+                final byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                records.add(decode(encoded));
+            }
+            return batch(records);
+        default:
+            return clear();
+        }
+    }
+
+    private static void writeProperties(final DataOutputStream out, final List<Property> properties) throws IOException {
+        out.writeInt(properties.size());
+        for (final Property property : properties) {
+            writeString(out, property.getName());
+            writeString(out, property.getType());
+            out.writeByte(property.getValueType() == null ? -1 : property.getValueType().ordinal());
+            writeValue(out, property.getValue());
+        }
+    }
+
+    private static List<Property> readProperties(final DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final List<Property> properties = new ArrayList<Property>(size);
+        for (int i = 0; i < size; i++) {
+            final String name = readString(in);
+            final String type = readString(in);
+            final byte valueType = in.readByte();
+            properties.add(new Property(type, name, valueType < 0 ? null : ValueType.values()[valueType], readValue(in)));
+        }
+        return properties;
+    }
+
+    private static void writeKey(final DataOutputStream out, final EntityKey key) throws IOException {
+        out.writeByte(key.size());
+        for (int i = 0; i < key.size(); i++) {
+            writeValue(out, key.getValue(i));
+        }
+    }
+
+    private static EntityKey readKey(final DataInputStream in) throws IOException {
+        final Object[] values = new Object[in.readUnsignedByte()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(in);
+        }
+        return EntityKey.of(values);
+    }
+
+    private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof ComplexValue) {
+            out.writeByte(COMPLEX);
+            writeProperties(out, ((ComplexValue) value).getValue());
+        } else if (value instanceof List) {
+            out.writeByte(COLLECTION);
+            final List<?> items = (List<?>) value;
+            out.writeInt(items.size());
+            for (final Object item : items) {
+                writeValue(out, item);
+            }
+        } else {
+            throw new ODataRuntimeException("Values of type " + value.getClass().getName() + " can't be logged");
+        }
+    }
+
+    private static Object readValue(final DataInputStream in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case INTEGER:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case SHORT:
+            return in.readShort();
+        case BYTE:
+            return in.readByte();
+        case BOOLEAN:
+            return in.readBoolean();
+        case DOUBLE:
+            return in.readDouble();
+        case FLOAT:
+            return in.readFloat();
+        case DECIMAL:
+            return new BigDecimal(readString(in));
+        case BIG_INTEGER:
+            return new BigInteger(readString(in));
+        case COMPLEX:
+            final ComplexValue complexValue = new ComplexValue();
+            complexValue.getValue().addAll(readProperties(in));
+            return complexValue;
+        case COLLECTION:
+            final int size = in.readInt();
+            final List<Object> items = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                items.add(readValue(in));
+            }
+            return items;
+        default:
+            throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    // UTF-8 with a length, -1 for null; DataOutputStream.writeUTF is limited to 64K
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,351 @@
+package com.wiltech.odata.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * The type Media store. Keeps the media resources of media entities, e.g. the $value of Products(1), as files in a directory,
+ * one file per entity: entity set/key predicate.version.content type, the key predicate and the content type URL encoded.
+ * A write streams the body into a temporary file and then moves it over in one step, so a reader opens either the old or the
+ * new file, never a partial one, and a reader that opened the old file reads it to the end after it was replaced.
+ * The current file of every entity is kept in memory, listed from the directory on startup.
+ * Nothing is read onto the heap: the files are written from the request and read to the response through file channels.
+ */
+public class MediaStore {
+
+    private static final String UTF_8 = "UTF-8";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // bytes moved from the request into a file per call
+    private static final long TRANSFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    // the versions of the files, they only grow, also over restarts
+    private final AtomicLong versions;
+    // entity set/encoded key predicate -> current file
+    private final ConcurrentMap<String, Media> files = new ConcurrentHashMap<String, Media>();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<Consumer<String>>();
+
+    /**
+     * Instantiates a new Media store, with the files already in the directory.
+     * @param directory the directory, created if it doesn't exist
+     * @throws IOException if the directory can't be read
+     */
+    public MediaStore(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        long lastVersion = System.currentTimeMillis();
+        try (DirectoryStream<Path> entitySets = Files.newDirectoryStream(directory)) {
+            for (final Path entitySet : entitySets) {
+                if (Files.isDirectory(entitySet)) {
+                    lastVersion = Math.max(lastVersion, list(entitySet));
+                }
+            }
+        }
+        this.versions = new AtomicLong(lastVersion);
+    }
+
+    /**
+     * The ETag of the media resource of an entity, which changes with every write.
+     * @param entitySetName the entity set
+     * @param keyPredicate the key predicate of the entity, e.g. 1
+     * @return the strong ETag, or null if the entity has no media resource
+     */
+    public String getETag(final String entitySetName, final String keyPredicate) {
+        final Media media = get(entitySetName, keyPredicate);
+        return media == null ? null : media.getETag();
+    }
+
+    /**
+     * The current version of the media resource of an entity, not opened, e.g. for the media annotations of the entity.
+     * @param entitySetName the entity set
+     * @param keyPredicate the key predicate of the entity, e.g. 1
+     * @return the media resource, with its content type and ETag but no channel; null if the entity has none
+     */
+    public Media get(final String entitySetName, final String keyPredicate) {
+        return files.get(id(entitySetName, keyPredicate));
+    }
+
+    /**
+     * Registers a listener that is told the name of an entity set after the media resource of one of its entities was written
+     * or deleted, e.g. to invalidate the cached responses with its media annotations.
+     * @param listener the listener
+     */
+    public void addChangeListener(final Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener registered with {@link #addChangeListener(Consumer)}.
+     * @param listener the listener, the same instance that was registered
+     */
+    public void removeChangeListener(final Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Opens the media resource of an entity for reading. A write that replaces it afterwards doesn't change what is read.
+     * @param entitySetName the entity set
+     * @param keyPredicate the key predicate of the entity, e.g. 1
+     * @return the open media resource, closed by the caller; null if the entity has none
+     */
+    public Media open(final String entitySetName, final String keyPredicate) {
+        final String id = id(entitySetName, keyPredicate);
+        while (true) {
+            final Media media = files.get(id);
+            if (media == null) {
+                return null;
+            }
+            try {
+                return media.open();
+            } catch (final NoSuchFileException e) {
+                // replaced or deleted since it was looked up, unless the file was removed behind our back
+                if (files.get(id) == media) {
+                    throw new ODataRuntimeException("Media resource " + media.file + " is missing", e);
+                }
+            } catch (final IOException e) {
+                throw new ODataRuntimeException("Unable to read media resource " + media.file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the media resource of an entity, replacing the current one.
+     * @param entitySetName the entity set
+     * @param keyPredicate the key predicate of the entity, e.g. 1
+     * @param contentType the content type of the media resource
+     * @param content the content, read to its end
+     * @param eTag the ETag the current media resource must still have, or null to replace any
+     * @return the ETag of the new media resource
+     * @throws ODataApplicationException with 412 if the media resource changed since its ETag was checked
+     */
+    public String write(final String entitySetName, final String keyPredicate, final String contentType, final InputStream content,
+            final String eTag) throws ODataApplicationException {
+        final String encodedKey = encode(keyPredicate);
+        final Path entitySetDirectory = directory.resolve(entitySetName);
+        Path temp = null;
+        try {
+            // the body is copied before the lock is taken, a slow upload doesn't hold up other writes
+            Files.createDirectories(entitySetDirectory);
+            temp = Files.createTempFile(entitySetDirectory, encodedKey + ".", TEMP_SUFFIX);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+                    ReadableByteChannel in = Channels.newChannel(content)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = out.transferFrom(in, position, TRANSFER_SIZE)) > 0) {
+                    position += transferred;
+                }
+                // acknowledged once it is on disk
+                out.force(true);
+            }
+
+            final String id = id(entitySetName, keyPredicate);
+            synchronized (this) {
+                final Media current = files.get(id);
+                checkETag(current, eTag);
+                final long version = versions.incrementAndGet();
+                final Path file = entitySetDirectory.resolve(encodedKey + "." + version + "." + encode(contentType));
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+                temp = null;
+                final Media written = new Media(file, contentType, version);
+                files.put(id, written);
+                changed(entitySetName);
+                if (current != null) {
+                    Files.deleteIfExists(current.file);
+                }
+                return written.getETag();
+            }
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to write media resource of " + entitySetName + "(" + keyPredicate + ")", e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (final IOException e) {
+                    // it is deleted on the next start
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the media resource of an entity.
+     * @param entitySetName the entity set
+     * @param keyPredicate the key predicate of the entity, e.g. 1
+     * @param eTag the ETag the media resource must still have, or null to delete any
+     * @return true if there was one
+     * @throws ODataApplicationException with 412 if the media resource changed since its ETag was checked
+     */
+    public synchronized boolean delete(final String entitySetName, final String keyPredicate, final String eTag)
+            throws ODataApplicationException {
+        final String id = id(entitySetName, keyPredicate);
+        final Media current = files.get(id);
+        checkETag(current, eTag);
+        if (current == null) {
+            return false;
+        }
+        files.remove(id);
+        changed(entitySetName);
+        try {
+            Files.deleteIfExists(current.file);
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to delete media resource " + current.file, e);
+        }
+        return true;
+    }
+
+    private void changed(final String entitySetName) {
+        for (final Consumer<String> listener : listeners) {
+            listener.accept(entitySetName);
+        }
+    }
+
+    private static void checkETag(final Media current, final String eTag) throws ODataApplicationException {
+        if (eTag != null && (current == null || !eTag.equals(current.getETag()))) {
+            throw new ODataApplicationException("The media resource was changed by another request.",
+                    HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ROOT);
+        }
+    }
+
+    // indexes the files of one entity set, the newest of each entity wins; returns the newest version
+    private long list(final Path entitySetDirectory) throws IOException {
+        long lastVersion = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(entitySetDirectory)) {
+            for (final Path file : entries) {
+                final String name = file.getFileName().toString();
+                final String[] parts = name.split("\\.", -1);
+                if (name.endsWith(TEMP_SUFFIX) || parts.length != 3) {
+                    // an upload that didn't finish
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                final long version;
+                try {
+                    version = Long.parseLong(parts[1]);
+                } catch (final NumberFormatException e) {
+                    continue;
+                }
+                final Media media = new Media(file, decode(parts[2]), version);
+                final String id = entitySetDirectory.getFileName() + "/" + parts[0];
+                final Media other = files.get(id);
+                if (other == null) {
+                    files.put(id, media);
+                } else if (other.version < version) {
+                    // a write that stopped between moving the new file in and deleting the old one
+                    files.put(id, media);
+                    Files.deleteIfExists(other.file);
+                } else {
+                    Files.deleteIfExists(file);
+                }
+                lastVersion = Math.max(lastVersion, version);
+            }
+        }
+        return lastVersion;
+    }
+
+    private static String id(final String entitySetName, final String keyPredicate) {
+        return entitySetName + "/" + encode(keyPredicate);
+    }
+
+    // URL encoded, and without dots, which separate the parts of a file name
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, UTF_8).replace(".", "%2E");
+        } catch (final UnsupportedEncodingException e) {
+            throw new ODataRuntimeException(e);
+        }
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, UTF_8);
+        } catch (final UnsupportedEncodingException e) {
+            throw new ODataRuntimeException(e);
+        }
+    }
+
+    /**
+     * The type Media. One version of a media resource, and once opened the channel it is read from.
+     */
+    public static final class Media implements Closeable {
+
+        private final Path file;
+        private final String contentType;
+        private final long version;
+        private final FileChannel channel;
+
+        private Media(final Path file, final String contentType, final long version) {
+            this(file, contentType, version, null);
+        }
+
+        private Media(final Path file, final String contentType, final long version, final FileChannel channel) {
+            this.file = file;
+            this.contentType = contentType;
+            this.version = version;
+            this.channel = channel;
+        }
+
+        private Media open() throws IOException {
+            return new Media(file, contentType, version, FileChannel.open(file, StandardOpenOption.READ));
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * The strong ETag of this version, e.g. "1760000000042".
+         * @return the ETag
+         */
+        public String getETag() {
+            return "\"" + version + "\"";
+        }
+
+        /**
+         * The channel of an opened media resource.
+         * @return the channel
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * The size of an opened media resource.
+         * @return the number of bytes
+         * @throws IOException if the file can't be read
+         */
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
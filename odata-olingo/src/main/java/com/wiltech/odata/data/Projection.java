@@ -0,0 +1,87 @@
+package com.wiltech.odata.data;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+
+/**
+ * The type Projection. A compiled $select: the names of the top level properties a response needs.
+ * Applied to an entity it returns a view holding only those properties; the property objects themselves are shared, not copied,
+ * so a projection costs one small object per entity and saves serializing everything else.
+ * Instances are immutable and can be reused by concurrent requests.
+ */
+public final class Projection {
+
+    // no $select, or $select=*
+    public static final Projection ALL = new Projection(null);
+
+    private final Set<String> propertyNames;
+
+    private Projection(final Set<String> propertyNames) {
+        this.propertyNames = propertyNames == null ? null : Collections.unmodifiableSet(propertyNames);
+    }
+
+    /**
+     * Of.
+     * @param propertyNames the selected top level properties, the key properties have to be part of them
+     * @return the projection
+     */
+    public static Projection of(final Set<String> propertyNames) {
+        return new Projection(new HashSet<String>(propertyNames));
+    }
+
+    /**
+     * The same projection with one more property, e.g. the property a page is ordered by, which is needed for its $skiptoken.
+     * @param propertyName the property name
+     * @return the projection
+     */
+    public Projection including(final String propertyName) {
+        if (propertyNames == null || propertyNames.contains(propertyName)) {
+            return this;
+        }
+        final Set<String> names = new HashSet<String>(propertyNames);
+        names.add(propertyName);
+        return new Projection(names);
+    }
+
+    public boolean isAll() {
+        return propertyNames == null;
+    }
+
+    /**
+     * Apply.
+     * @param entity the entity, may be null
+     * @return a view of the entity with the selected properties only, or the entity itself if everything is selected
+     */
+    public Entity apply(final Entity entity) {
+        return propertyNames == null ? entity : view(entity);
+    }
+
+    /**
+     * A view of the entity with the selected properties, always a new object, even if everything is selected.
+     * Needed where the response adds something to the entity, e.g. the inline entities of $expand,
+     * since the stored entity is shared by all requests.
+     * @param entity the entity, may be null
+     * @return the view
+     */
+    public Entity view(final Entity entity) {
+        if (entity == null) {
+            return null;
+        }
+
+        final Entity view = new Entity();
+        view.setId(entity.getId());
+        view.setType(entity.getType());
+        view.setETag(entity.getETag());
+        for (final Property property : entity.getProperties()) {
+            if (propertyNames == null || propertyNames.contains(property.getName())) {
+                view.getProperties().add(property);
+            }
+        }
+        view.getNavigationLinks().addAll(entity.getNavigationLinks());
+        return view;
+    }
+}
@@ -0,0 +1,308 @@
+package com.wiltech.odata.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The type Relation index. Adjacency lists for one navigation property and its partner, e.g. Product/Category and Category/Products:
+ * the forward map goes from the source key to the keys of the related targets (the foreign keys), the reverse map back again.
+ * Lookups return immutable lists, so navigation costs O(related) whatever the size of the entity sets.
+ * Every change takes a new version from the clock of the storage, like a write to a table, and counts as a change of both entity sets.
+ * The changes of a changeset are staged in maps of their own, which only the changeset's thread reads until its {@link Staging}
+ * is committed; they are copied to the published maps afterwards.
+ */
+class RelationIndex {
+
+    private final String sourceTable;
+    private final String navigationName;
+    private final String targetTable;
+    private final String partnerName;
+    private final VersionClock clock;
+
+    private final ConcurrentMap<EntityKey, List<EntityKey>> forward = new ConcurrentHashMap<EntityKey, List<EntityKey>>();
+    private final ConcurrentMap<EntityKey, List<EntityKey>> reverse = new ConcurrentHashMap<EntityKey, List<EntityKey>>();
+    // the changes of an open changeset, or null
+    private volatile Staged staged;
+
+    /**
+     * Instantiates a new Relation index.
+     * @param clock the version clock of the storage
+     * @param sourceTable the entity set the navigation starts from, e.g. Products
+     * @param navigationName the navigation property, e.g. Category
+     * @param targetTable the entity set the navigation points to, e.g. Categories
+     * @param partnerName the partner navigation property on the target, e.g. Products, or null if there is none
+     */
+    RelationIndex(final VersionClock clock, final String sourceTable, final String navigationName, final String targetTable,
+            final String partnerName) {
+        this.clock = clock;
+        this.sourceTable = sourceTable;
+        this.navigationName = navigationName;
+        this.targetTable = targetTable;
+        this.partnerName = partnerName;
+    }
+
+    String getSourceTable() {
+        return sourceTable;
+    }
+
+    String getNavigationName() {
+        return navigationName;
+    }
+
+    String getTargetTable() {
+        return targetTable;
+    }
+
+    String getPartnerName() {
+        return partnerName;
+    }
+
+    List<EntityKey> targets(final EntityKey sourceKey) {
+        final Staged pending = visibleStaged();
+        return get(forward, pending == null ? null : pending.forward, sourceKey);
+    }
+
+    List<EntityKey> sources(final EntityKey targetKey) {
+        final Staged pending = visibleStaged();
+        return get(reverse, pending == null ? null : pending.reverse, targetKey);
+    }
+
+    synchronized void link(final EntityKey sourceKey, final EntityKey targetKey) {
+        add(forward, stagedForward(), sourceKey, targetKey);
+        add(reverse, stagedReverse(), targetKey, sourceKey);
+        changed();
+    }
+
+    /**
+     * Adds many links at once, e.g. from files on startup: the links are sorted once by source and once by target,
+     * so that the lists of all related keys are built in one go instead of copied on every link, and the whole load is one change.
+     * @param links the links, each the source key and the target key
+     */
+    synchronized void linkAll(final List<EntityKey[]> links) {
+        final EntityKey[][] sorted = links.toArray(new EntityKey[links.size()][]);
+        Arrays.parallelSort(sorted, (left, right) -> compare(left, right, 0));
+        putAll(forward, sorted, 0);
+        Arrays.parallelSort(sorted, (left, right) -> compare(left, right, 1));
+        putAll(reverse, sorted, 1);
+        changed();
+    }
+
+    synchronized void unlink(final EntityKey sourceKey, final EntityKey targetKey) {
+        remove(forward, stagedForward(), sourceKey, targetKey);
+        remove(reverse, stagedReverse(), targetKey, sourceKey);
+        changed();
+    }
+
+    /**
+     * Removes all links of a source entity, e.g. when the source is deleted.
+     */
+    synchronized void unlinkSource(final EntityKey sourceKey) {
+        if (targets(sourceKey).isEmpty()) {
+            return;
+        }
+        for (final EntityKey targetKey : targets(sourceKey)) {
+            remove(reverse, stagedReverse(), targetKey, sourceKey);
+        }
+        put(forward, stagedForward(), sourceKey, Collections.<EntityKey> emptyList());
+        changed();
+    }
+
+    /**
+     * Removes all links to a target entity, e.g. when the target is deleted.
+     */
+    synchronized void unlinkTarget(final EntityKey targetKey) {
+        if (sources(targetKey).isEmpty()) {
+            return;
+        }
+        for (final EntityKey sourceKey : sources(targetKey)) {
+            remove(forward, stagedForward(), sourceKey, targetKey);
+        }
+        put(reverse, stagedReverse(), targetKey, Collections.<EntityKey> emptyList());
+        changed();
+    }
+
+    /**
+     * Removes all links.
+     */
+    synchronized void clear() {
+        forward.clear();
+        reverse.clear();
+        changed();
+    }
+
+    /**
+     * Stages the changes of a changeset from now on, see {@link #publishStaged()} and {@link #discardStaged()}.
+     * @param staging the changeset
+     */
+    synchronized void stage(final Staging staging) {
+        staged = new Staged(staging);
+    }
+
+    /**
+     * Copies the staged changes to the published maps, once their {@link Staging} is committed, and stops staging.
+     */
+    synchronized void publishStaged() {
+        final Staged pending = staged;
+        if (pending == null) {
+            return;
+        }
+        // the published maps first, so that a reader who no longer finds the staged changes finds them there
+        publish(forward, pending.forward);
+        publish(reverse, pending.reverse);
+        staged = null;
+        if (pending.changed) {
+            clock.changed(sourceTable, targetTable);
+        }
+    }
+
+    /**
+     * Drops the staged changes and stops staging.
+     */
+    synchronized void discardStaged() {
+        staged = null;
+    }
+
+    /**
+     * Visits every published link, e.g. to write the relation to a compacted log.
+     * @param consumer takes the source key and the target key
+     */
+    void forEachLink(final BiConsumer<EntityKey, EntityKey> consumer) {
+        for (final Map.Entry<EntityKey, List<EntityKey>> entry : forward.entrySet()) {
+            for (final EntityKey targetKey : entry.getValue()) {
+                consumer.accept(entry.getKey(), targetKey);
+            }
+        }
+    }
+
+    // a staged change is told on publication
+    private void changed() {
+        clock.next();
+        final Staged pending = staged;
+        if (pending == null) {
+            clock.changed(sourceTable, targetTable);
+        } else {
+            pending.changed = true;
+        }
+    }
+
+    // the staged changes to the thread of their changeset and after the commit, otherwise null
+    private Staged visibleStaged() {
+        final Staged pending = staged;
+        return pending != null && pending.staging.isVisible() ? pending : null;
+    }
+
+    // the maps a change is staged in, only called by the writer
+    private Map<EntityKey, List<EntityKey>> stagedForward() {
+        final Staged pending = staged;
+        return pending == null ? null : pending.forward;
+    }
+
+    private Map<EntityKey, List<EntityKey>> stagedReverse() {
+        final Staged pending = staged;
+        return pending == null ? null : pending.reverse;
+    }
+
+    // an empty list stands for a key whose links are all removed
+    private static void publish(final ConcurrentMap<EntityKey, List<EntityKey>> map, final Map<EntityKey, List<EntityKey>> changes) {
+        for (final Map.Entry<EntityKey, List<EntityKey>> entry : changes.entrySet()) {
+            put(map, null, entry.getKey(), entry.getValue());
+        }
+    }
+
+    // by the key at the index, then by the other key
+    private static int compare(final EntityKey[] left, final EntityKey[] right, final int index) {
+        final int result = left[index].compareTo(right[index]);
+        return result != 0 ? result : left[1 - index].compareTo(right[1 - index]);
+    }
+
+    // the links are sorted by the key at the index, so the related keys of a key are adjacent, and so are duplicate links
+    private static void putAll(final ConcurrentMap<EntityKey, List<EntityKey>> map, final EntityKey[][] links, final int index) {
+        int start = 0;
+        while (start < links.length) {
+            final EntityKey key = links[start][index];
+            final List<EntityKey> current = get(map, key);
+            final List<EntityKey> next = new ArrayList<EntityKey>(current);
+            int end = start;
+            while (end < links.length && links[end][index].equals(key)) {
+                final EntityKey value = links[end][1 - index];
+                if ((end == start || !value.equals(links[end - 1][1 - index])) && (current.isEmpty() || !current.contains(value))) {
+                    next.add(value);
+                }
+                end++;
+            }
+            map.put(key, Collections.unmodifiableList(next));
+            start = end;
+        }
+    }
+
+    private static List<EntityKey> get(final ConcurrentMap<EntityKey, List<EntityKey>> map, final EntityKey key) {
+        final List<EntityKey> keys = map.get(key);
+        return keys == null ? Collections.<EntityKey> emptyList() : keys;
+    }
+
+    // the staged list, if the key has one, otherwise the published one
+    private static List<EntityKey> get(final ConcurrentMap<EntityKey, List<EntityKey>> map, final Map<EntityKey, List<EntityKey>> staged,
+            final EntityKey key) {
+        final List<EntityKey> keys = staged == null ? null : staged.get(key);
+        return keys == null ? get(map, key) : keys;
+    }
+
+    // into the staged map, if there is one, otherwise into the published one
+    private static void put(final ConcurrentMap<EntityKey, List<EntityKey>> map, final Map<EntityKey, List<EntityKey>> staged,
+            final EntityKey key, final List<EntityKey> keys) {
+        if (staged != null) {
+            staged.put(key, keys);
+        } else if (keys.isEmpty()) {
+            map.remove(key);
+        } else {
+            map.put(key, keys);
+        }
+    }
+
+    // the lists are copy-on-write, so readers can iterate them without locking
+    private static void add(final ConcurrentMap<EntityKey, List<EntityKey>> map, final Map<EntityKey, List<EntityKey>> staged,
+            final EntityKey key, final EntityKey value) {
+        final List<EntityKey> current = get(map, staged, key);
+        if (current.contains(value)) {
+            return;
+        }
+        final List<EntityKey> next = new ArrayList<EntityKey>(current.size() + 1);
+        next.addAll(current);
+        next.add(value);
+        put(map, staged, key, Collections.unmodifiableList(next));
+    }
+
+    private static void remove(final ConcurrentMap<EntityKey, List<EntityKey>> map, final Map<EntityKey, List<EntityKey>> staged,
+            final EntityKey key, final EntityKey value) {
+        final List<EntityKey> current = get(map, staged, key);
+        if (!current.contains(value)) {
+            return;
+        }
+        final List<EntityKey> next = new ArrayList<EntityKey>(current);
+        next.remove(value);
+        put(map, staged, key, next.isEmpty() ? Collections.<EntityKey> emptyList() : Collections.unmodifiableList(next));
+    }
+
+    /**
+     * The changes of a changeset: the lists of the keys it changed, an empty one for a key that lost all its links.
+     * Written only by the thread of the changeset, read by others once the staging is committed.
+     */
+    private static final class Staged {
+
+        private final Staging staging;
+        private final Map<EntityKey, List<EntityKey>> forward = new HashMap<EntityKey, List<EntityKey>>();
+        private final Map<EntityKey, List<EntityKey>> reverse = new HashMap<EntityKey, List<EntityKey>>();
+        private boolean changed;
+
+        private Staged(final Staging staging) {
+            this.staging = staging;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.wiltech.odata.data;
+
+import java.util.Arrays;
+
+/**
+ * The type Slot list. An immutable list of row slots, e.g. the rows of a table in key order or a sorted index, kept in chunks
+ * of a few hundred slots. A change returns a new list that shares every chunk but the one it touched, so a write to a table
+ * copies one chunk and the directory of chunks, O(sqrt n) for a million rows, instead of the whole list.
+ * A slot is found by its index with a binary search over the chunks; a reader walking the list passes the chunk it read last,
+ * so that a scan mostly skips the search.
+ */
+final class SlotList {
+
+    static final SlotList EMPTY = new SlotList(new int[0][], new int[] { 0 });
+
+    // slots per chunk when a list is built; a chunk is split in two once it grows past twice that
+    private static final int CHUNK_SIZE = 512;
+    private static final int MAX_CHUNK_SIZE = 2 * CHUNK_SIZE;
+    // a chunk that shrinks below this is merged with its neighbour
+    private static final int MIN_CHUNK_SIZE = CHUNK_SIZE / 4;
+
+    private final int[][] chunks;
+    // the index of the first slot of every chunk, then the size
+    private final int[] offsets;
+
+    private SlotList(final int[][] chunks, final int[] offsets) {
+        this.chunks = chunks;
+        this.offsets = offsets;
+    }
+
+    /**
+     * A list of the given slots. An array that fits into one chunk is kept as it is, so it must not be changed afterwards.
+     * @param slots the slots
+     * @return the list
+     */
+    static SlotList of(final int[] slots) {
+        if (slots.length == 0) {
+            return EMPTY;
+        }
+        if (slots.length <= MAX_CHUNK_SIZE) {
+            return new SlotList(new int[][] { slots }, new int[] { 0, slots.length });
+        }
+        final int[][] chunks = new int[(slots.length + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        final int[] offsets = new int[chunks.length + 1];
+        for (int i = 0; i < chunks.length; i++) {
+            offsets[i] = i * CHUNK_SIZE;
+            chunks[i] = Arrays.copyOfRange(slots, offsets[i], Math.min(offsets[i] + CHUNK_SIZE, slots.length));
+        }
+        offsets[chunks.length] = slots.length;
+        return new SlotList(chunks, offsets);
+    }
+
+    int size() {
+        return offsets[chunks.length];
+    }
+
+    int get(final int index) {
+        return get(index, chunkOf(index, -1));
+    }
+
+    /**
+     * The slot at an index in a chunk found by {@link #chunkOf(int, int)}.
+     * @param index the index
+     * @param chunk the chunk holding the index
+     * @return the slot
+     */
+    int get(final int index, final int chunk) {
+        return chunks[chunk][index - offsets[chunk]];
+    }
+
+    /**
+     * The chunk holding an index. The chunk read last is tried first, then the one after it, which answers a scan without a search;
+     * a hint that doesn't fit, e.g. read by another thread, only costs the search.
+     * @param index the index
+     * @param hint the chunk read last, or -1
+     * @return the chunk
+     */
+    int chunkOf(final int index, final int hint) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        if (hint >= 0 && hint < chunks.length && offsets[hint] <= index) {
+            if (index < offsets[hint + 1]) {
+                return hint;
+            }
+            if (hint + 1 < chunks.length && index < offsets[hint + 2]) {
+                return hint + 1;
+            }
+        }
+        // the last chunk starting at or before the index
+        int low = 0;
+        int high = chunks.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The list with a slot inserted.
+     * @param index the index of the new slot, from 0 to the size
+     * @param slot the slot
+     * @return the new list
+     */
+    SlotList insert(final int index, final int slot) {
+        if (chunks.length == 0) {
+            return of(new int[] { slot });
+        }
+        final int chunk = index == size() ? chunks.length - 1 : chunkOf(index, -1);
+        final int[] current = chunks[chunk];
+        final int at = index - offsets[chunk];
+        final int[] grown = new int[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, at);
+        grown[at] = slot;
+        System.arraycopy(current, at, grown, at + 1, current.length - at);
+        return grown.length <= MAX_CHUNK_SIZE ? replace(chunk, 1, grown) : replace(chunk, 1, split(grown));
+    }
+
+    /**
+     * The list with the slot at an index removed.
+     * @param index the index
+     * @return the new list
+     */
+    SlotList remove(final int index) {
+        final int chunk = chunkOf(index, -1);
+        final int[] current = chunks[chunk];
+        final int at = index - offsets[chunk];
+        final int[] shrunk = new int[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, at);
+        System.arraycopy(current, at + 1, shrunk, at, current.length - at - 1);
+        if (chunks.length == 1) {
+            return shrunk.length == 0 ? EMPTY : new SlotList(new int[][] { shrunk }, new int[] { 0, shrunk.length });
+        }
+        if (shrunk.length >= MIN_CHUNK_SIZE) {
+            return replace(chunk, 1, shrunk);
+        }
+        // merged with the next chunk, or the previous one for the last, so that removes never leave many tiny chunks
+        final int first = chunk + 1 < chunks.length ? chunk : chunk - 1;
+        final int[] left = first == chunk ? shrunk : chunks[first];
+        final int[] right = first == chunk ? chunks[chunk + 1] : shrunk;
+        final int[] merged = Arrays.copyOf(left, left.length + right.length);
+        System.arraycopy(right, 0, merged, left.length, right.length);
+        return merged.length <= MAX_CHUNK_SIZE ? replace(first, 2, merged) : replace(first, 2, split(merged));
+    }
+
+    /**
+     * The list with the slot at an index replaced.
+     * @param index the index
+     * @param slot the new slot
+     * @return the new list
+     */
+    SlotList set(final int index, final int slot) {
+        final int chunk = chunkOf(index, -1);
+        final int[] copy = chunks[chunk].clone();
+        copy[index - offsets[chunk]] = slot;
+        return replace(chunk, 1, copy);
+    }
+
+    /**
+     * All slots in one array. A list of one chunk returns that chunk, which must not be changed.
+     * @return the slots
+     */
+    int[] toArray() {
+        if (chunks.length == 1) {
+            return chunks[0];
+        }
+        final int[] result = new int[size()];
+        for (int i = 0; i < chunks.length; i++) {
+            System.arraycopy(chunks[i], 0, result, offsets[i], chunks[i].length);
+        }
+        return result;
+    }
+
+    private static int[][] split(final int[] slots) {
+        final int half = slots.length / 2;
+        return new int[][] { Arrays.copyOfRange(slots, 0, half), Arrays.copyOfRange(slots, half, slots.length) };
+    }
+
+    private SlotList replace(final int chunk, final int count, final int[]... replacements) {
+        final int[][] nextChunks = new int[chunks.length - count + replacements.length][];
+        System.arraycopy(chunks, 0, nextChunks, 0, chunk);
+        System.arraycopy(replacements, 0, nextChunks, chunk, replacements.length);
+        System.arraycopy(chunks, chunk + count, nextChunks, chunk + replacements.length, chunks.length - chunk - count);
+        final int[] nextOffsets = new int[nextChunks.length + 1];
+        System.arraycopy(offsets, 0, nextOffsets, 0, chunk + 1);
+        for (int i = chunk; i < nextChunks.length; i++) {
+            nextOffsets[i + 1] = nextOffsets[i] + nextChunks[i].length;
+        }
+        return new SlotList(nextChunks, nextOffsets);
+    }
+}
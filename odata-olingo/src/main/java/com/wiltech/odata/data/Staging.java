@@ -0,0 +1,24 @@
+package com.wiltech.odata.data;
+
+/**
+ * The type Staging. The writes of one changeset, which every table and relation keeps apart from its published state:
+ * until {@link #commit()} only the thread of the changeset sees them, from then on every reader does. All tables ask
+ * this one flag, so the writes of a changeset become visible at once, however many entity sets they touch.
+ */
+final class Staging {
+
+    private final Thread owner = Thread.currentThread();
+    private volatile boolean committed;
+
+    /**
+     * Whether the calling thread reads the staged writes.
+     * @return true once committed, or on the thread of the changeset
+     */
+    boolean isVisible() {
+        return committed || owner == Thread.currentThread();
+    }
+
+    void commit() {
+        committed = true;
+    }
+}
@@ -6,20 +6,33 @@
  */
 package com.wiltech.odata.data;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.apache.olingo.commons.api.data.ComplexValue;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.EntityIterator;
 import org.apache.olingo.commons.api.data.Property;
 import org.apache.olingo.commons.api.data.ValueType;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
 import org.apache.olingo.commons.api.edm.FullQualifiedName;
 import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
 import org.apache.olingo.server.api.uri.UriParameter;
 
 import com.wiltech.odata.service.DemoEdmProvider;
@@ -28,24 +41,108 @@ import com.wiltech.odata.utils.Util;
 /**
  * The type Storage.
  * class Storage.java to simulate the data layer (in a real scenario, this would be e.g. a database or any other data storage)
+ * One instance is shared by the whole application, so it is safe for concurrent reads and writes:
+ * every entity set is kept in its own copy-on-write {@link EntityTable}.
+ * Writes are serialized by one lock, and with a {@link WriteAheadLog} every write is logged before it is applied,
+ * and acknowledged once the log has it; on startup the log is replayed over the sample data,
+ * or over the data of a {@link BulkLoader}.
+ * Each table keeps its last writes, so a client that read an entity set can ask for what changed since, see
+ * {@link #readChanges(EdmEntitySet, long, EntityFilter, Projection)}.
  */
 public class Storage {
 
+    // the writes kept per entity set to tell the changes since a version, unless configured otherwise
+    public static final int DEFAULT_MAX_CHANGES = ChangeLog.DEFAULT_CAPACITY;
+
+    // the version of the last write to any table or relation
+    private final VersionClock clock = new VersionClock();
     // represent our database
-    private final List<Entity> productList;
-    private final List<Entity> categoryList;
-    private final List<Entity> supplierList;
+    private final EntityTable productTable;
+    private final EntityTable categoryTable;
+    private final EntityTable supplierTable;
+    // entity type full qualified name -> table
+    private final Map<String, EntityTable> tablesByType = new HashMap<String, EntityTable>();
+
+    // the relationships, registered under both the navigation property and its partner, e.g. Products/Category and Categories/Products
+    private final Map<String, RelationIndex> relations = new HashMap<String, RelationIndex>();
+    private final RelationIndex productCategory;
+    private final RelationIndex productSuppliers;
+    private final List<RelationIndex> allRelations = new ArrayList<RelationIndex>();
+
+    // the log of all writes, null if the storage is memory only
+    private final WriteAheadLog log;
+    // writes are applied and logged in the same order
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // the changeset of the thread that holds the write lock, null outside of changesets
+    private ChangeSet changeSet;
+    // tells the versions of this storage from those of an earlier run, which start over
+    private final long epoch = System.currentTimeMillis();
 
     public Storage() {
+        this(null);
+    }
+
+    public Storage(final WriteAheadLog log) {
+        this(log, null);
+    }
+
+    /**
+     * Instantiates a new Storage.
+     * @param log the log to replay and then to write to, or null to keep everything in memory only
+     * @param loader loads the entity sets and relationships from files instead of the sample data, or null for the sample data
+     */
+    public Storage(final WriteAheadLog log, final BulkLoader loader) {
+        this(log, loader, DEFAULT_MAX_CHANGES);
+    }
 
-        productList = new ArrayList<Entity>();
-        categoryList = new ArrayList<Entity>();
-        supplierList = new ArrayList<Entity>();
+    /**
+     * Instantiates a new Storage.
+     * @param log the log to replay and then to write to, or null to keep everything in memory only
+     * @param loader loads the entity sets and relationships from files instead of the sample data, or null for the sample data
+     * @param maxChanges the writes kept per entity set to tell the changes since a version
+     */
+    public Storage(final WriteAheadLog log, final BulkLoader loader, final int maxChanges) {
+        this.log = log;
+
+        // hash indexes answer equality filters, sorted indexes answer $orderby; dictionary columns keep repeated strings once
+        productTable = new EntityTable(clock, DemoEdmProvider.ES_PRODUCTS_NAME, new String[] { "ID" }, new String[] { "Name" },
+                new String[] { "Name", "Description" });
+        categoryTable = new EntityTable(clock, DemoEdmProvider.ES_CATEGORIES_NAME, new String[] { "ID" }, new String[] { "Name" },
+                new String[] { "Name" });
+        supplierTable = new EntityTable(clock, DemoEdmProvider.ES_SUPPLIERS_NAME, new String[] { "SupplierID" },
+                new String[] { "CompanyName" }, new String[] { "CompanyName" }, new String[] { "Address/City", "Address/Country" });
+        tablesByType.put(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString(), productTable);
+        tablesByType.put(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString(), categoryTable);
+        tablesByType.put(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString(), supplierTable);
+        for (final EntityTable table : tablesByType.values()) {
+            table.setMaxChanges(maxChanges);
+        }
+
+        // many-to-one Product/Category with partner one-to-many Category/Products
+        productCategory = addRelation(new RelationIndex(clock, DemoEdmProvider.ES_PRODUCTS_NAME, "Category",
+                DemoEdmProvider.ES_CATEGORIES_NAME, "Products"));
+        // contained one-to-many Product/Suppliers, without partner
+        productSuppliers = addRelation(new RelationIndex(clock, DemoEdmProvider.ES_PRODUCTS_NAME, "Suppliers",
+                DemoEdmProvider.ES_SUPPLIERS_NAME, null));
+
+        if (loader == null) {
+            // creating some sample data
+            initProductSampleData();
+            initCategorySampleData();
+            initSupplierSampleData();
+            initRelationSampleData();
+        } else {
+            load(loader);
+        }
 
-        // creating some sample data
-        initProductSampleData();
-        initCategorySampleData();
-        initSupplierSampleData();
+        if (log != null) {
+            try {
+                log.replay(this::redo);
+            } catch (final IOException e) {
+                throw new ODataRuntimeException("Unable to replay " + log.getFile(), e);
+            }
+            log.start(this::compactLog);
+        }
     }
 
     /* PUBLIC FACADE */
@@ -62,6 +159,147 @@ public class Storage {
         return entitySet;
     }
 
+    /**
+     * The ETag of an entity set, which changes whenever any of its entities changes.
+     * @param edmEntitySet the entity set
+     * @return the weak ETag
+     */
+    public String getEntitySetETag(final EdmEntitySet edmEntitySet) {
+        return EntityTable.eTag(getTable(edmEntitySet.getName()).version());
+    }
+
+    /**
+     * The ETag of the whole storage, which changes whenever any entity or relationship changes.
+     * Used for responses that combine several entity sets, e.g. navigation and $expand.
+     * @return the weak ETag
+     */
+    public String getETag() {
+        return EntityTable.eTag(clock.current());
+    }
+
+    /**
+     * The version of an entity set, where the changes of a client that reads it now start.
+     * @param edmEntitySet the entity set
+     * @return the version
+     */
+    public long getVersion(final EdmEntitySet edmEntitySet) {
+        return getTable(edmEntitySet.getName()).version();
+    }
+
+    /**
+     * Identifies this storage: versions of another storage, or of this one before a restart, mean nothing to it.
+     * @return the epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Reads what changed in an entity set after a version, from its log of the last writes: the sync traffic of a client
+     * grows with the writes since it last asked, not with the size of the entity set.
+     * @param edmEntitySet the entity set
+     * @param version the version the client read last, see {@link #getVersion(EdmEntitySet)}
+     * @param filter the compiled $filter of the client's query, or null for all entities
+     * @param projection the compiled $select
+     * @return the changes, with the added and updated entities as projected views; null if the version is unknown or too old,
+     * i.e. more writes happened since than the log keeps, and the client has to read the entity set again
+     */
+    public Changes readChanges(final EdmEntitySet edmEntitySet, final long version, final EntityFilter filter,
+            final Projection projection) {
+        final Changes changes = getTable(edmEntitySet.getName()).changesSince(version, filter);
+        if (changes != null) {
+            changes.getEntities().replaceAll(projection::apply);
+        }
+        return changes;
+    }
+
+    /**
+     * Registers a listener that is told the name of an entity set after any of its entities or relationships changed,
+     * e.g. to invalidate cached responses.
+     * @param listener the listener
+     */
+    public void addChangeListener(final Consumer<String> listener) {
+        clock.addListener(listener);
+    }
+
+    /**
+     * Unregisters a listener registered with {@link #addChangeListener(Consumer)}.
+     * @param listener the listener, the same instance that was registered
+     */
+    public void removeChangeListener(final Consumer<String> listener) {
+        clock.removeListener(listener);
+    }
+
+    /**
+     * Reads one page of an entity set.
+     * @param edmEntitySet the entity set
+     * @param filter the compiled $filter, or null for all entities
+     * @param order the compiled $orderby, or null for key order
+     * @param continuation where the previous page ended (from the $skiptoken), or null for the first page
+     * @param skip the number of entities to skip after the continuation
+     * @param limit the maximum number of entities
+     * @param projection the compiled $select
+     * @return the page, as projected views; in key order or the order of a sorted index only the entities of the page
+     * (or the index candidates of the filter) are visited, the scan resumes from the continuation
+     */
+    public EntityCollection readEntitySetData(final EdmEntitySet edmEntitySet, final EntityFilter filter, final EntityOrder order,
+            final Continuation continuation, final int skip, final int limit, final Projection projection) {
+        final EntityCollection entitySet = new EntityCollection();
+        for (final Entity entity : getTable(edmEntitySet.getName()).query(filter, order, continuation, skip, limit)) {
+            entitySet.getEntities().add(projection.apply(entity));
+        }
+        return entitySet;
+    }
+
+    /**
+     * Counts an entity set without reading its entities: all of them in O(1), filtered ones from an index where the filter allows.
+     * @param edmEntitySet the entity set
+     * @param filter the compiled $filter, or null for all entities
+     * @return the number of matching entities
+     */
+    public int countEntitySetData(final EdmEntitySet edmEntitySet, final EntityFilter filter) {
+        return getTable(edmEntitySet.getName()).count(filter);
+    }
+
+    /**
+     * Streams an entity set: the entities are read lazily from the current snapshot while the serializer consumes them,
+     * so no collection of the page is built and the first entity can be written as soon as it is found.
+     * @param edmEntitySet the entity set
+     * @param filter the compiled $filter, or null for all entities
+     * @param order the compiled $orderby, or null for key order
+     * @param continuation where the previous page ended (from the $skiptoken), or null for the first page
+     * @param skip the number of entities to skip after the continuation
+     * @param projection the compiled $select
+     * @return the iterator over projected views, unlimited; the caller stops reading at the end of its page
+     */
+    public EntityIterator readEntitySetStream(final EdmEntitySet edmEntitySet, final EntityFilter filter, final EntityOrder order,
+            final Continuation continuation, final int skip, final Projection projection) {
+        final Iterator<Entity> rows = getTable(edmEntitySet.getName()).iterate(filter, order, continuation, skip);
+        return new EntityIterator() {
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Entity next() {
+                return projection.apply(rows.next());
+            }
+        };
+    }
+
+    /**
+     * Reads one entity as a projected view.
+     * @param edmEntitySet the entity set
+     * @param keyParams the key predicates
+     * @param projection the compiled $select
+     * @return the view, or null if there is no entity with this key
+     */
+    public Entity readEntityData(final EdmEntitySet edmEntitySet, final List<UriParameter> keyParams, final Projection projection) {
+        return projection.apply(readEntityData(edmEntitySet, keyParams));
+    }
+
     public Entity readEntityData(final EdmEntitySet edmEntitySet, final List<UriParameter> keyParams) {
         Entity entity = null;
 
@@ -78,85 +316,516 @@ public class Storage {
         return entity;
     }
 
-    // Navigation
+    // Writes
 
-    public Entity getRelatedEntity(final Entity entity, final EdmEntityType relatedEntityType) {
-        final EntityCollection collection = getRelatedEntityCollection(entity, relatedEntityType);
-        if (collection.getEntities().isEmpty()) {
-            return null;
+    /**
+     * Creates an entity from the properties of a request. A missing Edm.Int32 key is the highest key plus one.
+     * @param edmEntitySet the entity set
+     * @param requestEntity the deserialized request body
+     * @return the created entity
+     * @throws ODataApplicationException with 400 if the key is missing, 409 if the key is taken
+     */
+    public Entity createEntityData(final EdmEntitySet edmEntitySet, final Entity requestEntity) throws ODataApplicationException {
+        final EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+        final EntityTable table = getTable(edmEntitySet.getName());
+        final Entity entity = new Entity();
+        entity.setType(edmEntityType.getFullQualifiedName().getFullQualifiedNameAsString());
+        for (final String propertyName : edmEntityType.getPropertyNames()) {
+            final Property property = requestEntity.getProperty(propertyName);
+            if (property != null) {
+                entity.addProperty(property);
+            }
+        }
+
+        final long sequence;
+        writeLock.lock();
+        try {
+            final String keyName = edmEntityType.getKeyPredicateNames().get(0);
+            assignKey(table, edmEntityType, entity);
+            if (table.findByKey(table.keyOf(entity)) != null) {
+                throw new ODataApplicationException("An entity with this key exists already.",
+                        HttpStatusCode.CONFLICT.getStatusCode(), Locale.ROOT);
+            }
+            entity.setId(createId(entity, keyName));
+            sequence = logged(LogRecord.put(table.getEntitySetName(), entity));
+            table.insert(entity);
+        } finally {
+            writeLock.unlock();
         }
-        return collection.getEntities().get(0);
+        awaitDurable(sequence);
+        return entity;
     }
 
-    public Entity getRelatedEntity(final Entity entity, final EdmEntityType relatedEntityType, final List<UriParameter> keyPredicates) {
+    /**
+     * Updates an entity: PATCH merges the properties of the request into the entity, PUT replaces all of them.
+     * @param edmEntitySet the entity set
+     * @param keyParams the key predicates
+     * @param requestEntity the deserialized request body
+     * @param replace true for PUT, false for PATCH
+     * @param eTag the ETag the client's precondition was checked against, or null
+     * @return the updated entity
+     * @throws ODataApplicationException with 404 if there is no such entity, 412 if it was changed after the precondition
+     * was checked, 400 if a key property is changed
+     */
+    public Entity updateEntityData(final EdmEntitySet edmEntitySet, final List<UriParameter> keyParams, final Entity requestEntity,
+            final boolean replace, final String eTag) throws ODataApplicationException {
+        final EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+        final EntityTable table = getTable(edmEntitySet.getName());
+        final EntityKey key = Util.readEntityKey(edmEntityType, keyParams);
+        final List<String> keyNames = edmEntityType.getKeyPredicateNames();
 
-        final EntityCollection relatedEntities = getRelatedEntityCollection(entity, relatedEntityType);
-        return Util.findEntity(relatedEntityType, relatedEntities, keyPredicates);
+        final long sequence;
+        final Entity entity;
+        writeLock.lock();
+        try {
+            final Entity current = findForWrite(table, key, eTag);
+            entity = copyOf(current);
+            for (final String propertyName : edmEntityType.getPropertyNames()) {
+                final Property requested = requestEntity.getProperty(propertyName);
+                final Property existing = current.getProperty(propertyName);
+                if (keyNames.contains(propertyName)) {
+                    if (requested != null && !existing.getValue().equals(requested.getValue())) {
+                        throw new ODataApplicationException("The key property " + propertyName + " can't be changed.",
+                                HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+                    }
+                    entity.addProperty(existing);
+                } else if (requested != null) {
+                    entity.addProperty(requested);
+                } else if (!replace && existing != null) {
+                    entity.addProperty(existing);
+                }
+            }
+            sequence = logged(LogRecord.put(table.getEntitySetName(), entity));
+            table.put(entity);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitDurable(sequence);
+        return entity;
     }
 
-    public EntityCollection getRelatedEntityCollection(final Entity sourceEntity, final EdmEntityType targetEntityType) {
-        final EntityCollection navigationTargetEntityCollection = new EntityCollection();
+    /**
+     * Sets or removes one property of an entity, e.g. PUT or DELETE Products(1)/Description.
+     * @param edmEntitySet the entity set
+     * @param keyParams the key predicates
+     * @param propertyName the property
+     * @param property the new property, or null to remove its value
+     * @param eTag the ETag the client's precondition was checked against, or null
+     * @return the updated entity
+     * @throws ODataApplicationException with 404 if there is no such entity, 412 if it was changed after the precondition
+     * was checked, 400 for a key property
+     */
+    public Entity updatePropertyData(final EdmEntitySet edmEntitySet, final List<UriParameter> keyParams, final String propertyName,
+            final Property property, final String eTag) throws ODataApplicationException {
+        final EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+        if (edmEntityType.getKeyPredicateNames().contains(propertyName)) {
+            throw new ODataApplicationException("The key property " + propertyName + " can't be changed.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+        final EntityTable table = getTable(edmEntitySet.getName());
+        final EntityKey key = Util.readEntityKey(edmEntityType, keyParams);
 
-        final FullQualifiedName relatedEntityFqn = targetEntityType.getFullQualifiedName();
-        final String sourceEntityFqn = sourceEntity.getType();
-
-        if (sourceEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString())
-                && relatedEntityFqn.equals(DemoEdmProvider.ET_CATEGORY_FQN)) {
-            // relation Products->Category (result all categories)
-            final int productID = (Integer) sourceEntity.getProperty("ID").getValue();
-            if (productID == 1 || productID == 2) {
-                navigationTargetEntityCollection.getEntities().add(categoryList.get(0));
-            } else if (productID == 3 || productID == 4) {
-                navigationTargetEntityCollection.getEntities().add(categoryList.get(1));
-            } else if (productID == 5 || productID == 6) {
-                navigationTargetEntityCollection.getEntities().add(categoryList.get(2));
-            }
-        } else if (sourceEntityFqn.equals(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString())
-                && relatedEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN)) {
-            // relation Category->Products (result all products)
-            final int categoryID = (Integer) sourceEntity.getProperty("ID").getValue();
-            if (categoryID == 1) {
-                // the first 2 products are notebooks
-                navigationTargetEntityCollection.getEntities().addAll(productList.subList(0, 2));
-            } else if (categoryID == 2) {
-                // the next 2 products are organizers
-                navigationTargetEntityCollection.getEntities().addAll(productList.subList(2, 4));
-            } else if (categoryID == 3) {
-                // the first 2 products are monitors
-                navigationTargetEntityCollection.getEntities().addAll(productList.subList(4, 6));
+        final long sequence;
+        final Entity entity;
+        writeLock.lock();
+        try {
+            final Entity current = findForWrite(table, key, eTag);
+            entity = copyOf(current);
+            for (final Property existing : current.getProperties()) {
+                if (!existing.getName().equals(propertyName)) {
+                    entity.addProperty(existing);
+                }
             }
-        } else if (sourceEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString())
-                && relatedEntityFqn.equals(DemoEdmProvider.ET_SUPPLIER_FQN)) {
-            final int productID = (Integer) sourceEntity.getProperty("ID").getValue();
-            if (productID == 1) {
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(0));
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(1));
-            } else if (productID == 2) {
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(2));
-            } else if (productID == 3) {
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(3));
-            } else if (productID == 4) {
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(4));
-            } else if (productID == 5) {
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(5));
-            } else if (productID == 6) {
-                navigationTargetEntityCollection.getEntities().add(supplierList.get(6));
+            if (property != null) {
+                entity.addProperty(new Property(property.getType(), propertyName, property.getValueType(), property.getValue()));
             }
+            sequence = logged(LogRecord.put(table.getEntitySetName(), entity));
+            table.put(entity);
+        } finally {
+            writeLock.unlock();
         }
+        awaitDurable(sequence);
+        return entity;
+    }
+
+    /**
+     * Deletes an entity and its links to other entities.
+     * @param edmEntitySet the entity set
+     * @param keyParams the key predicates
+     * @param eTag the ETag the client's precondition was checked against, or null
+     * @throws ODataApplicationException with 404 if there is no such entity, 412 if it was changed after the precondition
+     * was checked
+     */
+    public void deleteEntityData(final EdmEntitySet edmEntitySet, final List<UriParameter> keyParams, final String eTag)
+            throws ODataApplicationException {
+        final EntityTable table = getTable(edmEntitySet.getName());
+        final EntityKey key = Util.readEntityKey(edmEntitySet.getEntityType(), keyParams);
+
+        final long sequence;
+        writeLock.lock();
+        try {
+            // 404 if it doesn't exist, 412 if the ETag doesn't match
+            findForWrite(table, key, eTag);
+            sequence = logged(LogRecord.delete(table.getEntitySetName(), key));
+            delete(table, key);
+        } finally {
+            writeLock.unlock();
+        }
+        awaitDurable(sequence);
+    }
 
-        if (navigationTargetEntityCollection.getEntities().isEmpty()) {
+    /**
+     * Begins a changeset: the writes of this thread until {@link ChangeSet#commit()} are applied as one.
+     * The changeset holds the write lock from here to {@link ChangeSet#close()}, so no other write interleaves,
+     * and its records are logged together. Its writes are staged by the tables and relations: until the commit only this
+     * thread sees them, the commit makes all of them visible to readers at once, and closing it without a commit drops them.
+     * @return the changeset, to be closed by the calling thread
+     */
+    public ChangeSet beginChangeSet() {
+        writeLock.lock();
+        if (changeSet != null) {
+            writeLock.unlock();
+            throw new ODataRuntimeException("A changeset is open already");
+        }
+        changeSet = new ChangeSet();
+        for (final EntityTable table : tablesByType.values()) {
+            table.stage(changeSet.staging);
+        }
+        for (final RelationIndex relation : allRelations) {
+            relation.stage(changeSet.staging);
+        }
+        return changeSet;
+    }
+
+    /**
+     * Whether the writes of the calling thread go to a changeset, which can still drop them.
+     * @return true between {@link #beginChangeSet()} and the commit or close of the changeset
+     */
+    public boolean isInChangeSet() {
+        return currentChangeSet() != null;
+    }
+
+    /**
+     * Runs an action once the writes of the calling thread are kept: after the commit of its changeset, or at once outside
+     * of changesets. The actions of a changeset closed without a commit are dropped with its writes, e.g. the delete of the
+     * media resource of an entity whose delete was dropped.
+     * @param action the action, it runs on the calling thread
+     */
+    public void afterCommit(final Runnable action) {
+        final ChangeSet current = currentChangeSet();
+        if (current == null) {
+            action.run();
+        } else {
+            current.actions.add(action);
+        }
+    }
+
+    // only the thread that holds the write lock can have a changeset open
+    private ChangeSet currentChangeSet() {
+        return writeLock.isHeldByCurrentThread() ? changeSet : null;
+    }
+
+    // Navigation
+
+    public Entity getRelatedEntity(final Entity entity, final EdmNavigationProperty edmNavigationProperty) {
+        final RelationIndex relation = getRelation(entity, edmNavigationProperty);
+        final List<EntityKey> relatedKeys = getRelatedKeys(relation, entity, edmNavigationProperty);
+        if (relatedKeys.isEmpty()) {
             return null;
         }
+        return getRelatedTable(relation, edmNavigationProperty).findByKey(relatedKeys.get(0));
+    }
+
+    public Entity getRelatedEntity(final Entity entity, final EdmNavigationProperty edmNavigationProperty,
+            final List<UriParameter> keyPredicates) {
+        final RelationIndex relation = getRelation(entity, edmNavigationProperty);
+        final EntityKey relatedKey = Util.readEntityKey(edmNavigationProperty.getType(), keyPredicates);
+        if (relatedKey == null || !getRelatedKeys(relation, entity, edmNavigationProperty).contains(relatedKey)) {
+            return null;
+        }
+        return getRelatedTable(relation, edmNavigationProperty).findByKey(relatedKey);
+    }
+
+    public EntityCollection getRelatedEntityCollection(final Entity sourceEntity, final EdmNavigationProperty edmNavigationProperty) {
+        final EntityCollection navigationTargetEntityCollection = new EntityCollection();
+
+        // e.g. Categories(1)/Products: the reverse side of Products/Category, only the related keys are visited
+        final RelationIndex relation = getRelation(sourceEntity, edmNavigationProperty);
+        final EntityTable targetTable = getRelatedTable(relation, edmNavigationProperty);
+        for (final EntityKey relatedKey : getRelatedKeys(relation, sourceEntity, edmNavigationProperty)) {
+            final Entity relatedEntity = targetTable.findByKey(relatedKey);
+            if (relatedEntity != null) {
+                navigationTargetEntityCollection.getEntities().add(relatedEntity);
+            }
+        }
 
         return navigationTargetEntityCollection;
     }
 
+    /**
+     * Counts the related entities of one entity, e.g. Categories(1)/Products/$count.
+     * Without a filter only the related keys are counted, no entity is looked up.
+     * @param sourceEntity the source entity
+     * @param edmNavigationProperty the navigation property
+     * @param filter the compiled $filter, or null for all related entities
+     * @return the number of matching related entities
+     */
+    public int countRelatedEntities(final Entity sourceEntity, final EdmNavigationProperty edmNavigationProperty,
+            final EntityFilter filter) {
+        final RelationIndex relation = getRelation(sourceEntity, edmNavigationProperty);
+        final List<EntityKey> relatedKeys = getRelatedKeys(relation, sourceEntity, edmNavigationProperty);
+        if (filter == null) {
+            return relatedKeys.size();
+        }
+        final EntityTable targetTable = getRelatedTable(relation, edmNavigationProperty);
+        int count = 0;
+        for (final EntityKey relatedKey : relatedKeys) {
+            final Entity relatedEntity = targetTable.findByKey(relatedKey);
+            if (relatedEntity != null && filter.test(relatedEntity)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the related entities of many source entities at once, e.g. the Category of every Product of a page for $expand.
+     * The relation and the target table are looked up once, and every target entity once, however many sources share it.
+     * @param sourceEntities the source entities, all of the same entity set
+     * @param edmNavigationProperty the navigation property
+     * @return the related entities per source entity, by identity of the source entity; an empty list if there are none
+     */
+    public Map<Entity, List<Entity>> getRelatedEntities(final List<Entity> sourceEntities,
+            final EdmNavigationProperty edmNavigationProperty) {
+        final Map<Entity, List<Entity>> result = new IdentityHashMap<Entity, List<Entity>>(sourceEntities.size() * 4 / 3 + 1);
+        if (sourceEntities.isEmpty()) {
+            return result;
+        }
+
+        final RelationIndex relation = getRelation(sourceEntities.get(0), edmNavigationProperty);
+        final boolean forward = isForward(relation, edmNavigationProperty);
+        final EntityTable sourceTable = getTable(sourceEntities.get(0));
+        final EntityTable targetTable = getRelatedTable(relation, edmNavigationProperty);
+        final Map<EntityKey, Entity> targets = new HashMap<EntityKey, Entity>();
+        for (final Entity sourceEntity : sourceEntities) {
+            final EntityKey sourceKey = sourceTable.keyOf(sourceEntity);
+            final List<EntityKey> relatedKeys = forward ? relation.targets(sourceKey) : relation.sources(sourceKey);
+            final List<Entity> related = new ArrayList<Entity>(relatedKeys.size());
+            for (final EntityKey relatedKey : relatedKeys) {
+                Entity target = targets.get(relatedKey);
+                if (target == null && !targets.containsKey(relatedKey)) {
+                    target = targetTable.findByKey(relatedKey);
+                    targets.put(relatedKey, target);
+                }
+                if (target != null) {
+                    related.add(target);
+                }
+            }
+            result.put(sourceEntity, related);
+        }
+        return result;
+    }
+
     /* INTERNAL */
 
+    // the entity to change, if it is still the version the client's precondition was checked against
+    private static Entity findForWrite(final EntityTable table, final EntityKey key, final String eTag)
+            throws ODataApplicationException {
+        final Entity current = table.findByKey(key);
+        if (current == null) {
+            throw new ODataApplicationException("Entity not found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+        }
+        if (eTag != null && !eTag.equals(current.getETag())) {
+            throw new ODataApplicationException("The entity was changed by another request.",
+                    HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ROOT);
+        }
+        return current;
+    }
+
+    // a new entity with the type and id of the given one, without properties
+    private static Entity copyOf(final Entity entity) {
+        final Entity copy = new Entity();
+        copy.setType(entity.getType());
+        copy.setId(entity.getId());
+        return copy;
+    }
+
+    private static void assignKey(final EntityTable table, final EdmEntityType edmEntityType, final Entity entity)
+            throws ODataApplicationException {
+        for (final String keyName : edmEntityType.getKeyPredicateNames()) {
+            final Property property = entity.getProperty(keyName);
+            if (property != null && property.getValue() != null) {
+                continue;
+            }
+            final boolean generated = edmEntityType.getKeyPredicateNames().size() == 1
+                    && EdmPrimitiveTypeKind.Int32.getFullQualifiedName().equals(
+                            edmEntityType.getStructuralProperty(keyName).getType().getFullQualifiedName());
+            if (!generated) {
+                throw new ODataApplicationException("The key property " + keyName + " is missing.",
+                        HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+            }
+            // the rows are in key order, the last one has the highest key
+            final List<Entity> rows = table.snapshot();
+            final int next = rows.isEmpty() ? 1 : (Integer) rows.get(rows.size() - 1).getProperty(keyName).getValue() + 1;
+            entity.getProperties().remove(property);
+            entity.addProperty(new Property(EdmPrimitiveTypeKind.Int32.getFullQualifiedName().getFullQualifiedNameAsString(),
+                    keyName, ValueType.PRIMITIVE, next));
+        }
+    }
+
+    private void delete(final EntityTable table, final EntityKey key) {
+        table.remove(key);
+        for (final RelationIndex relation : allRelations) {
+            if (relation.getSourceTable().equals(table.getEntitySetName())) {
+                relation.unlinkSource(key);
+            }
+            if (relation.getTargetTable().equals(table.getEntitySetName())) {
+                relation.unlinkTarget(key);
+            }
+        }
+    }
+
+    private long logged(final LogRecord record) {
+        if (changeSet != null) {
+            // logged on commit
+            changeSet.records.add(record);
+            return 0;
+        }
+        return log == null ? 0 : log.append(record);
+    }
+
+    private void awaitDurable(final long sequence) {
+        if (log != null) {
+            log.await(sequence);
+        }
+    }
+
+    // applies a record of the log on replay
+    private void redo(final LogRecord record) {
+        switch (record.getType()) {
+        case PUT:
+            getTable(record.getName()).put(record.getEntity());
+            break;
+        case DELETE:
+            delete(getTable(record.getName()), record.getKey());
+            break;
+        case LINK:
+            relations.get(record.getName()).link(record.getKey(), record.getTargetKey());
+            break;
+        case BATCH:
+            record.getRecords().forEach(this::redo);
+            break;
+        case CLEAR:
+            for (final EntityTable table : tablesByType.values()) {
+                table.clear();
+            }
+            for (final RelationIndex relation : allRelations) {
+                relation.clear();
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /*
+     * Loads every entity set and relationship that has a file, the others stay empty. Runs before the log is replayed,
+     * so that the writes made after the load are applied on top of it.
+     */
+    private void load(final BulkLoader loader) {
+        final Map<String, FullQualifiedName> typeNames = new HashMap<String, FullQualifiedName>();
+        for (final Map.Entry<String, EntityTable> entry : tablesByType.entrySet()) {
+            final FullQualifiedName typeName = new FullQualifiedName(entry.getKey());
+            typeNames.put(entry.getValue().getEntitySetName(), typeName);
+            loader.loadEntities(entry.getValue(), typeName);
+        }
+        for (final RelationIndex relation : allRelations) {
+            loader.loadLinks(relation, typeNames.get(relation.getSourceTable()), typeNames.get(relation.getTargetTable()));
+        }
+    }
+
+    /*
+     * Replaces the log by the current state: everything is cleared, then every entity and every link is put again.
+     * Called by the log's flusher thread; writes wait until the compacted log is on disk.
+     */
+    private void compactLog() {
+        writeLock.lock();
+        try {
+            final List<LogRecord> records = new ArrayList<LogRecord>();
+            records.add(LogRecord.clear());
+            for (final EntityTable table : tablesByType.values()) {
+                for (final Entity entity : table.snapshot()) {
+                    records.add(LogRecord.put(table.getEntitySetName(), entity));
+                }
+            }
+            for (final RelationIndex relation : allRelations) {
+                final String relationName = relation.getSourceTable() + "/" + relation.getNavigationName();
+                relation.forEachLink((sourceKey, targetKey) -> records.add(LogRecord.link(relationName, sourceKey, targetKey)));
+            }
+            try {
+                log.rewrite(records);
+            } catch (final IOException e) {
+                throw new ODataRuntimeException("Unable to compact " + log.getFile(), e);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private RelationIndex addRelation(final RelationIndex relation) {
+        allRelations.add(relation);
+        relations.put(relation.getSourceTable() + "/" + relation.getNavigationName(), relation);
+        if (relation.getPartnerName() != null) {
+            relations.put(relation.getTargetTable() + "/" + relation.getPartnerName(), relation);
+        }
+        return relation;
+    }
+
+    private EntityTable getTable(final Entity entity) {
+        final EntityTable table = tablesByType.get(entity.getType());
+        if (table == null) {
+            throw new ODataRuntimeException("Unknown entity type " + entity.getType());
+        }
+        return table;
+    }
+
+    private RelationIndex getRelation(final Entity sourceEntity, final EdmNavigationProperty edmNavigationProperty) {
+        final RelationIndex relation = relations.get(getTable(sourceEntity).getEntitySetName() + "/" + edmNavigationProperty.getName());
+        if (relation == null) {
+            throw new ODataRuntimeException("Unknown navigation " + edmNavigationProperty.getName() + " from " + sourceEntity.getType());
+        }
+        return relation;
+    }
+
+    private boolean isForward(final RelationIndex relation, final EdmNavigationProperty edmNavigationProperty) {
+        return relation.getNavigationName().equals(edmNavigationProperty.getName());
+    }
+
+    private List<EntityKey> getRelatedKeys(final RelationIndex relation, final Entity sourceEntity,
+            final EdmNavigationProperty edmNavigationProperty) {
+        final EntityKey sourceKey = getTable(sourceEntity).keyOf(sourceEntity);
+        return isForward(relation, edmNavigationProperty) ? relation.targets(sourceKey) : relation.sources(sourceKey);
+    }
+
+    private EntityTable getRelatedTable(final RelationIndex relation, final EdmNavigationProperty edmNavigationProperty) {
+        return getTable(isForward(relation, edmNavigationProperty) ? relation.getTargetTable() : relation.getSourceTable());
+    }
+
+    private EntityTable getTable(final String entitySetName) {
+        if (DemoEdmProvider.ES_PRODUCTS_NAME.equals(entitySetName)) {
+            return productTable;
+        } else if (DemoEdmProvider.ES_CATEGORIES_NAME.equals(entitySetName)) {
+            return categoryTable;
+        } else if (DemoEdmProvider.ES_SUPPLIERS_NAME.equals(entitySetName)) {
+            return supplierTable;
+        }
+        throw new ODataRuntimeException("Unknown entity set " + entitySetName);
+    }
+
     private EntityCollection getProducts() {
         final EntityCollection retEntitySet = new EntityCollection();
 
-        for (final Entity productEntity : this.productList) {
+        for (final Entity productEntity : this.productTable.snapshot()) {
             retEntitySet.getEntities().add(productEntity);
         }
 
@@ -166,7 +835,7 @@ public class Storage {
     private EntityCollection getSuppliers() {
         final EntityCollection retEntitySet = new EntityCollection();
 
-        for (final Entity supplierEntity : this.supplierList) {
+        for (final Entity supplierEntity : this.supplierTable.snapshot()) {
             retEntitySet.getEntities().add(supplierEntity);
         }
 
@@ -175,26 +844,20 @@ public class Storage {
 
     private Entity getProduct(final EdmEntityType edmEntityType, final List<UriParameter> keyParams) {
 
-        // the list of entities at runtime
-        final EntityCollection entityCollection = getProducts();
-
-        /* generic approach to find the requested entity */
-        return Util.findEntity(edmEntityType, entityCollection, keyParams);
+        // primary key lookup, no need to scan the entity set
+        return productTable.findByKey(Util.readEntityKey(edmEntityType, keyParams));
     }
 
     private Entity getSupplier(final EdmEntityType edmEntityType, final List<UriParameter> keyParams) {
 
-        // the list of entities at runtime
-        final EntityCollection entityCollection = getSuppliers();
-
-        /* generic approach to find the requested entity */
-        return Util.findEntity(edmEntityType, entityCollection, keyParams);
+        // primary key lookup, no need to scan the entity set
+        return supplierTable.findByKey(Util.readEntityKey(edmEntityType, keyParams));
     }
 
     private EntityCollection getCategories() {
         final EntityCollection entitySet = new EntityCollection();
 
-        for (final Entity categoryEntity : this.categoryList) {
+        for (final Entity categoryEntity : this.categoryTable.snapshot()) {
             entitySet.getEntities().add(categoryEntity);
         }
 
@@ -203,11 +866,8 @@ public class Storage {
 
     private Entity getCategory(final EdmEntityType edmEntityType, final List<UriParameter> keyParams) {
 
-        // the list of entities at runtime
-        final EntityCollection entitySet = getCategories();
-
-        /* generic approach to find the requested entity */
-        return Util.findEntity(edmEntityType, entitySet, keyParams);
+        // primary key lookup, no need to scan the entity set
+        return categoryTable.findByKey(Util.readEntityKey(edmEntityType, keyParams));
     }
 
     /* HELPER */
@@ -222,7 +882,7 @@ public class Storage {
                 "Notebook Basic, 1.7GHz - 15 XGA - 1024MB DDR2 SDRAM - 40GB"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        productTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
@@ -231,7 +891,7 @@ public class Storage {
                 "Notebook Professional, 2.8GHz - 15 XGA - 8GB DDR3 RAM - 500GB"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        productTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 3));
@@ -240,7 +900,7 @@ public class Storage {
                 "Ultrafast 3G UMTS/HSDPA Pocket PC, supports GSM network"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        productTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 4));
@@ -249,7 +909,7 @@ public class Storage {
                 "32 GB Digital Assitant with high-resolution color screen"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        productTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 5));
@@ -258,7 +918,7 @@ public class Storage {
                 "19 Optimum Resolution 1024 x 768 @ 85Hz, resolution 1280 x 960"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        productTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 6));
@@ -267,7 +927,7 @@ public class Storage {
                 "Optimum Hi-Resolution max. 1600 x 1200 @ 85Hz, Dot Pitch: 0.24mm"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        productTable.insert(entity);
     }
 
     private void initCategorySampleData() {
@@ -278,21 +938,21 @@ public class Storage {
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Notebooks"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        categoryTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Organizers"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        categoryTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 3));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Monitors"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        categoryTable.insert(entity);
     }
 
     private void initSupplierSampleData() {
@@ -313,7 +973,7 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "1"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "SupplierID", ValueType.PRIMITIVE, 2));
@@ -329,7 +989,7 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "1"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "SupplierID", ValueType.PRIMITIVE, 3));
@@ -345,7 +1005,7 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "2"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "SupplierID", ValueType.PRIMITIVE, 4));
@@ -361,7 +1021,7 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "3"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "SupplierID", ValueType.PRIMITIVE, 5));
@@ -377,7 +1037,7 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "4"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "SupplierID", ValueType.PRIMITIVE, 6));
@@ -393,7 +1053,7 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "5"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "SupplierID", ValueType.PRIMITIVE, 7));
@@ -409,7 +1069,34 @@ public class Storage {
         entity.addProperty(new Property(null, "Address", ValueType.COMPLEX, complexValue));
         entity.setType(DemoEdmProvider.ET_SUPPLIER_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "SupplierID", "Suppliers", "6"));
-        supplierList.add(entity);
+        supplierTable.insert(entity);
+    }
+
+    private void initRelationSampleData() {
+
+        // the first 2 products are notebooks, the next 2 organizers and the last 2 monitors
+        linkProductCategory(1, 1);
+        linkProductCategory(2, 1);
+        linkProductCategory(3, 2);
+        linkProductCategory(4, 2);
+        linkProductCategory(5, 3);
+        linkProductCategory(6, 3);
+
+        linkProductSupplier(1, 1);
+        linkProductSupplier(1, 2);
+        linkProductSupplier(2, 3);
+        linkProductSupplier(3, 4);
+        linkProductSupplier(4, 5);
+        linkProductSupplier(5, 6);
+        linkProductSupplier(6, 7);
+    }
+
+    private void linkProductCategory(final int productID, final int categoryID) {
+        productCategory.link(EntityKey.of(productID), EntityKey.of(categoryID));
+    }
+
+    private void linkProductSupplier(final int productID, final int supplierID) {
+        productSuppliers.link(EntityKey.of(productID), EntityKey.of(supplierID));
     }
 
     private URI createId(final Entity entity, final String idPropertyName) {
@@ -455,4 +1142,84 @@ public class Storage {
         }
         return entity.getType();
     }
+
+    /**
+     * The type Change set. The writes of one thread, applied as one; see {@link Storage#beginChangeSet()}.
+     */
+    public final class ChangeSet implements AutoCloseable {
+
+        private final List<LogRecord> records = new ArrayList<LogRecord>();
+        private final List<Runnable> actions = new ArrayList<Runnable>();
+        private final Staging staging = new Staging();
+        private boolean committed;
+
+        private ChangeSet() {
+        }
+
+        /**
+         * Keeps the writes: they are logged as one record, published to all readers at once,
+         * and acknowledged once the log has them. The actions of {@link Storage#afterCommit(Runnable)} run after that.
+         */
+        public void commit() {
+            if (changeSet != this) {
+                throw new ODataRuntimeException("The changeset is closed");
+            }
+            long sequence = 0;
+            try {
+                changeSet = null;
+                if (!records.isEmpty()) {
+                    sequence = logged(records.size() == 1 ? records.get(0) : LogRecord.batch(records));
+                }
+                staging.commit();
+                committed = true;
+            } finally {
+                if (committed) {
+                    publish();
+                } else {
+                    discard();
+                }
+                writeLock.unlock();
+            }
+            awaitDurable(sequence);
+            for (final Runnable action : actions) {
+                action.run();
+            }
+        }
+
+        /**
+         * Drops the writes, unless they are committed, and lets other writes go on.
+         */
+        @Override
+        public void close() {
+            if (committed || changeSet != this) {
+                return;
+            }
+            try {
+                changeSet = null;
+                discard();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // readers see the writes since the staging was committed, this only moves them to the published state
+        private void publish() {
+            for (final EntityTable table : tablesByType.values()) {
+                table.publishStaged();
+            }
+            for (final RelationIndex relation : allRelations) {
+                relation.publishStaged();
+            }
+        }
+
+        // the dropped writes were never logged
+        private void discard() {
+            for (final EntityTable table : tablesByType.values()) {
+                table.discardStaged();
+            }
+            for (final RelationIndex relation : allRelations) {
+                relation.discardStaged();
+            }
+        }
+    }
 }
@@ -0,0 +1,203 @@
+package com.wiltech.odata.data;
+
+import java.util.Map;
+
+/**
+ * The type Value index. An immutable hash index from the values of one property to their rows, the posting lists in key order.
+ * The values are spread over stripes of about a hundred each, and a change copies only the stripe of its value, so a write
+ * to a table doesn't copy the whole index; the stripes are doubled as the index grows. A stripe is one array of values and
+ * posting lists, probed linearly, so copying it is a single array copy. Short posting lists are kept as plain arrays,
+ * long ones, e.g. of a value most rows share, as {@link SlotList}s, so that they aren't copied as a whole either.
+ */
+final class ValueIndex {
+
+    static final ValueIndex EMPTY = new ValueIndex(newStripes(0), 0);
+
+    // values per stripe the stripes are sized for; the index is spread over more stripes once they hold four times that
+    private static final int STRIPE_SIZE = 128;
+    // posting lists up to this length are kept as arrays
+    private static final int ARRAY_POSTING_SIZE = 256;
+
+    private final Stripe[] stripes;
+    private final int shift;
+    private final int size;
+
+    private ValueIndex(final Stripe[] stripes, final int size) {
+        this.stripes = stripes;
+        this.shift = 32 - Integer.numberOfTrailingZeros(stripes.length);
+        this.size = size;
+    }
+
+    /**
+     * An index of the given posting lists.
+     * @param postings value -> slots in key order; the arrays are kept, so they must not be changed afterwards
+     * @return the index
+     */
+    static ValueIndex of(final Map<Object, int[]> postings) {
+        final ValueIndex index = new ValueIndex(newStripes(postings.size()), postings.size());
+        for (final Map.Entry<Object, int[]> posting : postings.entrySet()) {
+            index.stripes[index.stripe(posting.getKey())].put(posting.getKey(), compact(SlotList.of(posting.getValue())));
+        }
+        return index;
+    }
+
+    /**
+     * The rows with a value.
+     * @param value the value
+     * @return the slots in key order, or null if no row has the value
+     */
+    SlotList get(final Object value) {
+        final Object posting = stripes[stripe(value)].get(value);
+        return posting == null ? null : posting instanceof int[] ? SlotList.of((int[]) posting) : (SlotList) posting;
+    }
+
+    /**
+     * The index with the rows of a value replaced.
+     * @param value the value
+     * @param posting the slots in key order, empty to remove the value
+     * @return the new index
+     */
+    ValueIndex with(final Object value, final SlotList posting) {
+        final int stripe = stripe(value);
+        final boolean existed = stripes[stripe].get(value) != null;
+        if (posting.size() == 0 && !existed) {
+            return this;
+        }
+        final Stripe copy = stripes[stripe].copy();
+        if (posting.size() == 0) {
+            copy.remove(value);
+        } else {
+            copy.put(value, compact(posting));
+        }
+        final int nextSize = size + (posting.size() == 0 ? -1 : existed ? 0 : 1);
+        final Stripe[] nextStripes = stripes.clone();
+        nextStripes[stripe] = copy;
+        return nextSize > 4 * STRIPE_SIZE * stripes.length ? restriped(nextStripes, nextSize) : new ValueIndex(nextStripes, nextSize);
+    }
+
+    private static ValueIndex restriped(final Stripe[] stripes, final int size) {
+        final ValueIndex index = new ValueIndex(newStripes(size), size);
+        for (final Stripe stripe : stripes) {
+            for (int i = 0; i < stripe.table.length; i += 2) {
+                if (stripe.table[i] != null) {
+                    index.stripes[index.stripe(stripe.table[i])].put(stripe.table[i], stripe.table[i + 1]);
+                }
+            }
+        }
+        return index;
+    }
+
+    // the stripe from the top bits of a multiplicative hash, the stripes probe from the low bits
+    private int stripe(final Object value) {
+        return shift == 32 ? 0 : value.hashCode() * 0x9E3779B9 >>> shift;
+    }
+
+    private static Object compact(final SlotList posting) {
+        return posting.size() <= ARRAY_POSTING_SIZE ? posting.toArray() : posting;
+    }
+
+    private static Stripe[] newStripes(final int size) {
+        final Stripe[] stripes = new Stripe[Integer.highestOneBit(Math.max(1, size / STRIPE_SIZE)) * 2];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(new Object[2 * Stripe.MIN_CAPACITY], 0);
+        }
+        return stripes;
+    }
+
+    /**
+     * One stripe, an open addressing table with the values at even and their posting lists at odd indexes.
+     * It is changed in place only while it is built or copied, never once it is part of a published index.
+     */
+    private static final class Stripe {
+
+        private static final int MIN_CAPACITY = 16;
+
+        private Object[] table;
+        private int size;
+
+        private Stripe(final Object[] table, final int size) {
+            this.table = table;
+            this.size = size;
+        }
+
+        Stripe copy() {
+            return new Stripe(table.clone(), size);
+        }
+
+        Object get(final Object value) {
+            final int index = find(table, value);
+            return index < 0 ? null : table[index + 1];
+        }
+
+        // at most half full, so that a probe ends soon
+        void put(final Object value, final Object posting) {
+            int index = find(table, value);
+            if (index < 0 && 4 * (size + 1) > table.length) {
+                final Object[] old = table;
+                table = new Object[2 * old.length];
+                for (int i = 0; i < old.length; i += 2) {
+                    if (old[i] != null) {
+                        final int free = ~find(table, old[i]);
+                        table[free] = old[i];
+                        table[free + 1] = old[i + 1];
+                    }
+                }
+                index = find(table, value);
+            }
+            if (index < 0) {
+                index = ~index;
+                table[index] = value;
+                size++;
+            }
+            table[index + 1] = posting;
+        }
+
+        // the entries after the removed one are shifted back into the gap, unless they would move before their home position
+        void remove(final Object value) {
+            final int index = find(table, value);
+            if (index < 0) {
+                return;
+            }
+            final int mask = table.length / 2 - 1;
+            int gap = index / 2;
+            int next = gap;
+            while (true) {
+                next = (next + 1) & mask;
+                final Object other = table[2 * next];
+                if (other == null) {
+                    break;
+                }
+                final int home = hash(other) & mask;
+                if ((next - home & mask) >= (next - gap & mask)) {
+                    table[2 * gap] = other;
+                    table[2 * gap + 1] = table[2 * next + 1];
+                    gap = next;
+                }
+            }
+            table[2 * gap] = null;
+            table[2 * gap + 1] = null;
+            size--;
+        }
+
+        // the index of the value, or the complement of the index of the free entry its probe ends at
+        private static int find(final Object[] table, final Object value) {
+            final int mask = table.length / 2 - 1;
+            int entry = hash(value) & mask;
+            while (true) {
+                final Object other = table[2 * entry];
+                if (other == null) {
+                    return ~(2 * entry);
+                }
+                if (other.equals(value)) {
+                    return 2 * entry;
+                }
+                entry = (entry + 1) & mask;
+            }
+        }
+
+        private static int hash(final Object value) {
+            final int hash = value.hashCode();
+            return hash ^ hash >>> 16;
+        }
+    }
+}
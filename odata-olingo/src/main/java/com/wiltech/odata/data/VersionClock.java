@@ -0,0 +1,41 @@
+package com.wiltech.odata.data;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The type Version clock. Hands out the versions of the writes to one storage, and tells the listeners which entity sets changed.
+ * Writers take a version with {@link #next()} while they build the new state, and call {@link #changed(String...)}
+ * once it is published, so a listener never sees a change before readers can.
+ */
+final class VersionClock {
+
+    private final AtomicLong version = new AtomicLong();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<Consumer<String>>();
+
+    long current() {
+        return version.get();
+    }
+
+    long next() {
+        return version.incrementAndGet();
+    }
+
+    void changed(final String... entitySetNames) {
+        for (final Consumer<String> listener : listeners) {
+            for (final String entitySetName : entitySetNames) {
+                listener.accept(entitySetName);
+            }
+        }
+    }
+
+    void addListener(final Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(final Consumer<String> listener) {
+        listeners.remove(listener);
+    }
+}
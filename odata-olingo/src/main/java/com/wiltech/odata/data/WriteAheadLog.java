@@ -0,0 +1,394 @@
+package com.wiltech.odata.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The type Write ahead log. An append-only file of {@link LogRecord}s, each framed by its length and a CRC32 of its bytes.
+ * Writers append their record to an in-memory batch and wait; a single flusher thread writes the whole batch with one write
+ * and, depending on the {@link FsyncPolicy}, one fsync, so concurrent writers share the cost of a sync (group commit).
+ * On startup the log is replayed; a record that is cut short or fails its checksum marks the end of what was written
+ * before a crash, and the file is truncated there. Once the file has grown past the compaction size, the flusher asks
+ * the storage for its current state and replaces the file with it, so the log never grows with the number of writes.
+ */
+public final class WriteAheadLog implements Closeable {
+
+    /**
+     * When the log is forced to disk.
+     */
+    public enum FsyncPolicy {
+        // before a write is acknowledged, nothing acknowledged is ever lost
+        ALWAYS,
+        // at most once per interval; a write is acknowledged once the operating system has it, a crash of the machine
+        // may lose the writes of the last interval
+        INTERVAL,
+        // never, the operating system decides
+        NEVER
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+    // "OWAL" and the version of the format
+    private static final int MAGIC = 0x4F57414C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // larger lengths can only come from a torn write
+    private static final int MAX_RECORD_SIZE = 64 << 20;
+
+    private final Path file;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final long compactionBytes;
+
+    // guards the batch and the sequence numbers, writers wait on it
+    private final Object lock = new Object();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private long appended;
+    private long written;
+    private IOException failure;
+    private boolean closed;
+
+    // owned by the flusher thread once started
+    private FileChannel channel;
+    private long size;
+    private long compactedSize;
+    private long lastFsync;
+    private boolean unsynced;
+    private Thread flusher;
+    private Runnable compactor;
+
+    /**
+     * Opens a log, creating the file if it doesn't exist.
+     * @param file the log file
+     * @param fsyncPolicy when to force the log to disk
+     * @param fsyncIntervalMillis the interval of {@link FsyncPolicy#INTERVAL}
+     * @param compactionBytes the size from which the log is compacted, 0 to never compact
+     * @throws IOException if the file can't be opened, or isn't a log
+     */
+    public WriteAheadLog(final Path file, final FsyncPolicy fsyncPolicy, final long fsyncIntervalMillis, final long compactionBytes)
+            throws IOException {
+        this.file = file;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.compactionBytes = compactionBytes;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            // new, or created but never written
+            channel.truncate(0);
+            writeFully(channel, header());
+            channel.force(true);
+        } else {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                channel.close();
+                throw new IOException(file + " is not a write-ahead log");
+            }
+        }
+        this.size = channel.size();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Reads all records of the log, in the order they were appended, and leaves the log positioned at its end.
+     * @param consumer applies a record
+     * @throws IOException if the file can't be read
+     */
+    void replay(final Consumer<LogRecord> consumer) throws IOException {
+        long position = HEADER_SIZE;
+        int count = 0;
+        channel.position(position);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        final CRC32 crc = new CRC32();
+        while (true) {
+            final LogRecord record;
+            final int length;
+            try {
+                length = in.readInt();
+                final int checksum = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch");
+                }
+                record = LogRecord.decode(payload);
+            } catch (final EOFException e) {
+                if (position < channel.size()) {
+                    LOG.warn("Incomplete record at {} of {}, the rest of the log is dropped", position, file);
+                }
+                break;
+            } catch (final IOException e) {
+                LOG.warn("Invalid record at " + position + " of " + file + ", the rest of the log is dropped", e);
+                break;
+            }
+            consumer.accept(record);
+            position += 8 + length;
+            count++;
+        }
+
+        // a torn write at the end is cut off, so new records follow the last good one
+        if (position < channel.size()) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        size = position;
+        compactedSize = position;
+        LOG.info("Replayed {} records from {}", count, file);
+    }
+
+    /**
+     * Starts the flusher thread; records can be appended from now on.
+     * @param compactor writes the current state with {@link #rewrite(List)} when the log has grown too large,
+     * called on the flusher thread
+     */
+    void start(final Runnable compactor) {
+        this.compactor = compactor;
+        this.lastFsync = System.currentTimeMillis();
+        flusher = new Thread(this::flushLoop, "odata-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends a record to the next batch. The caller must append in the order the changes are applied.
+     * @param record the record
+     * @return the sequence number to wait for with {@link #await(long)}
+     */
+    long append(final LogRecord record) {
+        final byte[] payload = record.encode();
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        synchronized (lock) {
+            if (closed || failure != null) {
+                throw new ODataRuntimeException("The write-ahead log is not writable", failure);
+            }
+            writeInt(batch, payload.length);
+            writeInt(batch, (int) crc.getValue());
+            batch.write(payload, 0, payload.length);
+            appended++;
+            lock.notifyAll();
+            return appended;
+        }
+    }
+
+    /**
+     * Waits until a record is written as the fsync policy demands.
+     * @param sequence the sequence number of the record
+     */
+    void await(final long sequence) {
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (written < sequence && failure == null && flusher.isAlive()) {
+                try {
+                    lock.wait(100);
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (written < sequence) {
+                throw new ODataRuntimeException("The write-ahead log failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Replaces the log by the given records. Only called by the compactor, on the flusher thread,
+     * while the storage blocks all writes; the records describe everything appended so far.
+     * @param records the current state
+     * @throws IOException if the new log can't be written, the old one is kept then
+     */
+    void rewrite(final List<LogRecord> records) throws IOException {
+        final Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (OutputStream stream = Channels.newOutputStream(FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.write(header().array());
+            final CRC32 crc = new CRC32();
+            for (final LogRecord record : records) {
+                final byte[] payload = record.encode();
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+            }
+            out.flush();
+        }
+        try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+            compactedChannel.force(true);
+        }
+        Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+        channel.position(size);
+        compactedSize = size;
+        unsynced = false;
+        synchronized (lock) {
+            // the batch is part of the state just written
+            batch.reset();
+            written = appended;
+            lock.notifyAll();
+        }
+        LOG.info("Compacted {} to {} records, {} bytes", file, records.size(), size);
+    }
+
+    /**
+     * Writes what is pending, forces the log to disk and stops the flusher.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel.isOpen()) {
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            final byte[] pending;
+            final long sequence;
+            synchronized (lock) {
+                try {
+                    while (batch.size() == 0 && !closed && !isSyncDue()) {
+                        lock.wait(unsynced ? Math.max(1, lastFsync + fsyncIntervalMillis - System.currentTimeMillis()) : 0);
+                    }
+                } catch (final InterruptedException e) {
+                    closed = true;
+                }
+                if (batch.size() == 0 && closed) {
+                    return;
+                }
+                pending = batch.toByteArray();
+                batch.reset();
+                sequence = appended;
+            }
+
+            try {
+                writeFully(channel, ByteBuffer.wrap(pending));
+                size += pending.length;
+                sync(pending.length > 0);
+            } catch (final IOException e) {
+                LOG.error("Unable to write " + file + ", writes are rejected from now on", e);
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                written = sequence;
+                lock.notifyAll();
+            }
+
+            if (compactor != null && compactionBytes > 0 && size > compactionBytes && size > 2 * compactedSize) {
+                try {
+                    compactor.run();
+                } catch (final RuntimeException e) {
+                    LOG.warn("Unable to compact " + file, e);
+                    // try again once the log has doubled
+                    compactedSize = size;
+                }
+            }
+        }
+    }
+
+    // with the interval policy, written records are forced once the interval has passed, even if nothing follows them
+    private boolean isSyncDue() {
+        return unsynced && System.currentTimeMillis() - lastFsync >= fsyncIntervalMillis;
+    }
+
+    private void sync(final boolean wrote) throws IOException {
+        switch (fsyncPolicy) {
+        case ALWAYS:
+            channel.force(false);
+            break;
+        case INTERVAL:
+            unsynced |= wrote;
+            if (unsynced && System.currentTimeMillis() - lastFsync >= fsyncIntervalMillis) {
+                channel.force(false);
+                lastFsync = System.currentTimeMillis();
+                unsynced = false;
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    // makes the rename durable; not every platform can open a directory
+    private void syncDirectory() {
+        final Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (final IOException e) {
+            LOG.debug("Unable to sync " + directory, e);
+        }
+    }
+
+    private static ByteBuffer header() {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,94 @@
+package com.wiltech.odata.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The type Latency histogram. Counts durations in buckets laid out as HdrHistogram does: every power of two is split
+ * into {@value #SUB_BUCKETS} buckets of equal width, so a percentile is off by at most an eighth of its value, whatever
+ * its magnitude, and recording is a bucket index computed from the leading zeros and one atomic increment, without locks.
+ * Durations of up to about 18 minutes are counted, longer ones as the longest.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_NANOS = (1L << 40) - 1;
+    private static final int BUCKETS = bucketOf(MAX_NANOS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Counts a duration.
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sumNanos.add(value);
+        if (value > maxNanos.get()) {
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public double getMaxSeconds() {
+        return maxNanos.get() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * The duration that the given fraction of the counted durations doesn't exceed, e.g. 0.99 for the 99th percentile:
+     * the upper bound of the bucket it falls into, but no more than the longest duration counted.
+     * @param quantile the fraction, from 0 to 1
+     * @return the duration in seconds, 0 if nothing was counted
+     */
+    public double getValueAtQuantile(final double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos.get()) / (double) TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        return getMaxSeconds();
+    }
+
+    // the values below SUB_BUCKETS have a bucket each, then every power of two is split into SUB_BUCKETS buckets
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
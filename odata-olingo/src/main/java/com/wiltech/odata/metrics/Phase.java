@@ -0,0 +1,33 @@
+package com.wiltech.odata.metrics;
+
+import java.util.Locale;
+
+/**
+ * The enum Phase. The phases of a request, in the order they follow each other.
+ */
+public enum Phase {
+
+    /**
+     * From the start of the request until a processor is called: olingo parses and validates the uri,
+     * negotiates the format and checks the preconditions.
+     */
+    PARSE,
+
+    /**
+     * The processor compiles the query options and reads or writes the storage.
+     */
+    STORAGE,
+
+    /**
+     * The response is serialized and written, from the serializer call or the first byte written, whichever comes first.
+     * A streamed response is read from the storage while it is written, so its reads count here.
+     */
+    SERIALIZE;
+
+    private final String label = name().toLowerCase(Locale.ROOT);
+
+    // the value of the phase label of the metrics
+    String label() {
+        return label;
+    }
+}
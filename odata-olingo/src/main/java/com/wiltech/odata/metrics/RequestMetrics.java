@@ -0,0 +1,135 @@
+package com.wiltech.odata.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The type Request metrics. The requests of the service by entity set: how many there were by method and status,
+ * the bytes written, and the latency of the whole request and of each {@link Phase} in {@link LatencyHistogram}s.
+ * Recording takes no lock once an entity set, method and status were seen. The metrics are written in the Prometheus
+ * text format, the latencies as summaries with the 0.5, 0.9, 0.99 and 0.999 quantiles since the start.
+ */
+public final class RequestMetrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final Phase[] PHASES = Phase.values();
+
+    private final ConcurrentMap<String, EntitySetMetrics> entitySets = new ConcurrentHashMap<String, EntitySetMetrics>();
+
+    /**
+     * Records a finished request.
+     * @param entitySet the entity set of the request, or e.g. $metadata
+     * @param method the http method
+     * @param status the status code of the response
+     * @param bytes the bytes of the response body
+     * @param timer the stopped timer of the request
+     */
+    public void record(final String entitySet, final String method, final int status, final long bytes, final RequestTimer timer) {
+        EntitySetMetrics metrics = entitySets.get(entitySet);
+        if (metrics == null) {
+            metrics = entitySets.computeIfAbsent(entitySet, name -> new EntitySetMetrics());
+        }
+        final String requestKey = method + ' ' + status;
+        LongAdder requests = metrics.requests.get(requestKey);
+        if (requests == null) {
+            requests = metrics.requests.computeIfAbsent(requestKey, key -> new LongAdder());
+        }
+        requests.increment();
+        metrics.bytes.add(bytes);
+        metrics.duration.record(timer.getNanos());
+        if (timer.timesPhases()) {
+            for (final Phase phase : PHASES) {
+                final long nanos = timer.getNanos(phase);
+                if (nanos >= 0) {
+                    metrics.phases[phase.ordinal()].record(nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format, sorted by entity set.
+     * @param out the writer
+     * @throws IOException if the writer fails
+     */
+    public void write(final Writer out) throws IOException {
+        final Map<String, EntitySetMetrics> sorted = new TreeMap<String, EntitySetMetrics>(entitySets);
+
+        out.write("# HELP odata_requests_total Requests by entity set, method and status.\n");
+        out.write("# TYPE odata_requests_total counter\n");
+        for (final Map.Entry<String, EntitySetMetrics> entry : sorted.entrySet()) {
+            for (final Map.Entry<String, LongAdder> requests : new TreeMap<String, LongAdder>(entry.getValue().requests).entrySet()) {
+                final String[] methodAndStatus = requests.getKey().split(" ", 2);
+                out.write("odata_requests_total{entity_set=\"" + escape(entry.getKey()) + "\",method=\"" + methodAndStatus[0]
+                        + "\",status=\"" + methodAndStatus[1] + "\"} " + requests.getValue().sum() + "\n");
+            }
+        }
+
+        out.write("# HELP odata_response_bytes_total Bytes of the response bodies by entity set.\n");
+        out.write("# TYPE odata_response_bytes_total counter\n");
+        for (final Map.Entry<String, EntitySetMetrics> entry : sorted.entrySet()) {
+            out.write("odata_response_bytes_total{entity_set=\"" + escape(entry.getKey()) + "\"} " + entry.getValue().bytes.sum() + "\n");
+        }
+
+        out.write("# HELP odata_request_duration_seconds Latency of the requests by entity set.\n");
+        out.write("# TYPE odata_request_duration_seconds summary\n");
+        for (final Map.Entry<String, EntitySetMetrics> entry : sorted.entrySet()) {
+            writeSummary(out, "odata_request_duration_seconds", "entity_set=\"" + escape(entry.getKey()) + "\"",
+                    entry.getValue().duration);
+        }
+
+        out.write("# HELP odata_request_phase_duration_seconds Latency of the phases of the requests by entity set:"
+                + " parse, storage and serialize.\n");
+        out.write("# TYPE odata_request_phase_duration_seconds summary\n");
+        for (final Map.Entry<String, EntitySetMetrics> entry : sorted.entrySet()) {
+            for (final Phase phase : PHASES) {
+                final LatencyHistogram histogram = entry.getValue().phases[phase.ordinal()];
+                if (histogram.getCount() > 0) {
+                    writeSummary(out, "odata_request_phase_duration_seconds",
+                            "entity_set=\"" + escape(entry.getKey()) + "\",phase=\"" + phase.label() + "\"", histogram);
+                }
+            }
+        }
+    }
+
+    private static void writeSummary(final Writer out, final String name, final String labels, final LatencyHistogram histogram)
+            throws IOException {
+        for (final double quantile : QUANTILES) {
+            out.write(name + "{" + labels + ",quantile=\"" + quantile + "\"} " + format(histogram.getValueAtQuantile(quantile)) + "\n");
+        }
+        out.write(name + "_sum{" + labels + "} " + format(histogram.getSumSeconds()) + "\n");
+        out.write(name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+    }
+
+    private static String format(final double seconds) {
+        return String.format(Locale.ROOT, "%.9f", seconds);
+    }
+
+    // a label value is written between double quotes
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // the metrics of the requests of one entity set
+    private static final class EntitySetMetrics {
+
+        private final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+        private final LongAdder bytes = new LongAdder();
+        private final LatencyHistogram duration = new LatencyHistogram();
+        private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+        private EntitySetMetrics() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
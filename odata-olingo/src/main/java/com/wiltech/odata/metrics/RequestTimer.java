@@ -0,0 +1,98 @@
+package com.wiltech.odata.metrics;
+
+/**
+ * The type Request timer. Times a request and its {@link Phase}s: the servlet starts it, the processors mark where a phase
+ * begins through {@link #enter(Phase)}, which finds the timer of the request on the thread, and the servlet stops it.
+ * A phase only follows the ones before it, so marking a phase that already began, or an earlier one, changes nothing;
+ * a phase that was skipped, e.g. the storage of a $metadata request, isn't recorded.
+ */
+public final class RequestTimer {
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final ThreadLocal<RequestTimer> CURRENT = new ThreadLocal<RequestTimer>();
+
+    private final boolean timesPhases;
+    private final long start;
+    // the start of each phase, valid up to the current one
+    private final long[] phaseStarts = new long[PHASES.length];
+    private int current;
+    private long end;
+
+    private RequestTimer(final boolean timesPhases) {
+        this.timesPhases = timesPhases;
+        this.start = System.nanoTime();
+        phaseStarts[0] = start;
+    }
+
+    /**
+     * Starts the timer of a request on the current thread.
+     * @param timesPhases false to only time the whole request, e.g. for a $batch whose parts run their own processors
+     * @return the timer
+     */
+    public static RequestTimer start(final boolean timesPhases) {
+        final RequestTimer timer = new RequestTimer(timesPhases);
+        if (timesPhases) {
+            CURRENT.set(timer);
+        }
+        return timer;
+    }
+
+    /**
+     * Marks the start of a phase of the request of the current thread, if it is timed.
+     * @param phase the phase
+     */
+    public static void enter(final Phase phase) {
+        final RequestTimer timer = CURRENT.get();
+        if (timer != null) {
+            timer.moveTo(phase);
+        }
+    }
+
+    /**
+     * Marks the start of a phase.
+     * @param phase the phase
+     */
+    public void moveTo(final Phase phase) {
+        if (timesPhases && phase.ordinal() > current) {
+            phaseStarts[phase.ordinal()] = System.nanoTime();
+            current = phase.ordinal();
+        }
+    }
+
+    /**
+     * Stops the timer and removes it from the thread.
+     */
+    public void stop() {
+        end = System.nanoTime();
+        if (timesPhases) {
+            CURRENT.remove();
+        }
+    }
+
+    public long getNanos() {
+        return end - start;
+    }
+
+    boolean timesPhases() {
+        return timesPhases;
+    }
+
+    /**
+     * The time of a phase.
+     * @param phase the phase
+     * @return the nanoseconds, -1 if the phase was skipped
+     */
+    long getNanos(final Phase phase) {
+        final int ordinal = phase.ordinal();
+        if (ordinal > current || (ordinal > 0 && phaseStarts[ordinal] == 0)) {
+            return -1;
+        }
+        // until the next phase that began, or the end
+        for (int next = ordinal + 1; next <= current; next++) {
+            if (phaseStarts[next] != 0) {
+                return phaseStarts[next] - phaseStarts[ordinal];
+            }
+        }
+        return end - phaseStarts[ordinal];
+    }
+}
@@ -0,0 +1,389 @@
+package com.wiltech.odata.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmEnumType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeException;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
+import org.apache.olingo.commons.api.edm.EdmProperty;
+import org.apache.olingo.commons.api.edm.EdmType;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriResource;
+import org.apache.olingo.server.api.uri.UriResourceComplexProperty;
+import org.apache.olingo.server.api.uri.UriResourcePrimitiveProperty;
+import org.apache.olingo.server.api.uri.queryoption.FilterOption;
+import org.apache.olingo.server.api.uri.queryoption.expression.BinaryOperatorKind;
+import org.apache.olingo.server.api.uri.queryoption.expression.Expression;
+import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitException;
+import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitor;
+import org.apache.olingo.server.api.uri.queryoption.expression.Literal;
+import org.apache.olingo.server.api.uri.queryoption.expression.Member;
+import org.apache.olingo.server.api.uri.queryoption.expression.MethodKind;
+import org.apache.olingo.server.api.uri.queryoption.expression.UnaryOperatorKind;
+
+import com.wiltech.odata.data.ColumnarEntity;
+import com.wiltech.odata.data.EntityFilter;
+import com.wiltech.odata.data.IndexCondition;
+
+/**
+ * The type Filter compiler. Compiles a $filter expression once into an {@link EntityFilter}, a reusable predicate over the
+ * properties of an entity, instead of interpreting the expression tree for every entity.
+ * Comparisons of a top level property with a literal, e.g. ID gt 3 or Name eq 'Ergo Screen', are also handed to the storage
+ * as index conditions. Compiled filters are cached by entity type and filter text.
+ */
+public final class FilterCompiler {
+
+    private static final int MAX_CACHED_FILTERS = 1024;
+    private static final ConcurrentMap<String, EntityFilter> CACHE = new ConcurrentHashMap<String, EntityFilter>();
+
+    private FilterCompiler() {
+    }
+
+    /**
+     * Compile.
+     * @param edmEntityType the entity type the filter applies to
+     * @param filterOption the $filter of the request, may be null
+     * @return the compiled filter, or null if there is no filter
+     * @throws ODataApplicationException if the filter is not a boolean expression or uses something not supported
+     */
+    public static EntityFilter compile(final EdmEntityType edmEntityType, final FilterOption filterOption)
+            throws ODataApplicationException {
+        if (filterOption == null) {
+            return null;
+        }
+
+        final String cacheKey = filterOption.getText() == null ? null
+                : edmEntityType.getFullQualifiedName().getFullQualifiedNameAsString() + " " + filterOption.getText();
+        if (cacheKey != null) {
+            final EntityFilter cached = CACHE.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final EntityFilter filter = compile(filterOption.getExpression());
+        if (cacheKey != null) {
+            if (CACHE.size() >= MAX_CACHED_FILTERS) {
+                // crude, but ad hoc filters must not grow the cache forever
+                CACHE.clear();
+            }
+            CACHE.put(cacheKey, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Compile an expression that is not cached, e.g. the $filter of an expanded navigation property.
+     * @param expression the boolean expression
+     * @return the compiled filter
+     * @throws ODataApplicationException if the expression is not a boolean expression or uses something not supported
+     */
+    public static EntityFilter compile(final Expression expression) throws ODataApplicationException {
+        final Operand root = compileOperand(expression, "$filter");
+        if (!root.isBoolean()) {
+            throw new ODataApplicationException("The $filter expression must be a boolean expression.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+
+        return new EntityFilter(entity -> Boolean.TRUE.equals(root.evaluate(entity)), root.getIndexConditions(), root.isExact());
+    }
+
+    /**
+     * Compile any expression, boolean or not, e.g. an $orderby expression.
+     * @param expression the expression
+     * @param option the name of the system query option, for the error message
+     * @return the compiled expression
+     * @throws ODataApplicationException if the expression uses something not supported
+     */
+    static Operand compileOperand(final Expression expression, final String option) throws ODataApplicationException {
+        try {
+            return expression.accept(new CompilingVisitor());
+        } catch (final ExpressionVisitException e) {
+            throw new ODataApplicationException("Invalid " + option + ": " + e.getMessage(),
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT, e);
+        }
+    }
+
+    /**
+     * Turns every node of the expression tree into an {@link Operand}, bottom up.
+     */
+    private static final class CompilingVisitor implements ExpressionVisitor<Operand> {
+
+        @Override
+        public Operand visitBinaryOperator(final BinaryOperatorKind operator, final Operand left, final Operand right)
+                throws ODataApplicationException {
+            switch (operator) {
+            case AND:
+                final List<IndexCondition> conditions = new ArrayList<IndexCondition>(left.getIndexConditions());
+                conditions.addAll(right.getIndexConditions());
+                return Operand.condition(entity -> Boolean.TRUE.equals(left.evaluate(entity))
+                        && Boolean.TRUE.equals(right.evaluate(entity)), conditions, left.isExact() && right.isExact());
+            case OR:
+                return Operand.computed(entity -> Boolean.TRUE.equals(left.evaluate(entity))
+                        || Boolean.TRUE.equals(right.evaluate(entity)), true);
+            case EQ:
+                return comparison(IndexCondition.Operator.EQ, left, right,
+                        entity -> Values.isEqual(left.evaluate(entity), right.evaluate(entity)));
+            case NE:
+                return Operand.computed(entity -> !Values.isEqual(left.evaluate(entity), right.evaluate(entity)), true);
+            case GT:
+                return comparison(IndexCondition.Operator.GT, left, right, entity -> compare(left, right, entity, result -> result > 0));
+            case GE:
+                return comparison(IndexCondition.Operator.GE, left, right, entity -> compare(left, right, entity, result -> result >= 0));
+            case LT:
+                return comparison(IndexCondition.Operator.LT, left, right, entity -> compare(left, right, entity, result -> result < 0));
+            case LE:
+                return comparison(IndexCondition.Operator.LE, left, right, entity -> compare(left, right, entity, result -> result <= 0));
+            case ADD:
+                return arithmetic(left, right, Values::add);
+            case SUB:
+                return arithmetic(left, right, Values::subtract);
+            case MUL:
+                return arithmetic(left, right, Values::multiply);
+            case DIV:
+                return arithmetic(left, right, Values::divide);
+            case MOD:
+                return arithmetic(left, right, Values::modulo);
+            default:
+                throw notImplemented("Binary operator " + operator);
+            }
+        }
+
+        @Override
+        public Operand visitUnaryOperator(final UnaryOperatorKind operator, final Operand operand) throws ODataApplicationException {
+            if (operator == UnaryOperatorKind.NOT) {
+                return Operand.computed(entity -> {
+                    final Object value = operand.evaluate(entity);
+                    return value == null ? null : !Boolean.TRUE.equals(value);
+                }, true);
+            } else if (operator == UnaryOperatorKind.MINUS) {
+                return Operand.computed(entity -> {
+                    final Object value = operand.evaluate(entity);
+                    return value instanceof Number ? Values.negate((Number) value) : null;
+                }, false);
+            }
+            throw notImplemented("Unary operator " + operator);
+        }
+
+        @Override
+        public Operand visitMethodCall(final MethodKind methodCall, final List<Operand> parameters) throws ODataApplicationException {
+            final Operand first = parameters.get(0);
+            final Operand second = parameters.size() > 1 ? parameters.get(1) : null;
+
+            switch (methodCall) {
+            case CONTAINS:
+                return stringFunction(first, second, (value, argument) -> value.contains(argument), true);
+            case STARTSWITH:
+                return stringFunction(first, second, (value, argument) -> value.startsWith(argument), true);
+            case ENDSWITH:
+                return stringFunction(first, second, (value, argument) -> value.endsWith(argument), true);
+            case INDEXOF:
+                return stringFunction(first, second, (value, argument) -> value.indexOf(argument), false);
+            case CONCAT:
+                return stringFunction(first, second, (value, argument) -> value + argument, false);
+            case LENGTH:
+                return stringFunction(first, value -> value.length());
+            case TOLOWER:
+                return stringFunction(first, value -> value.toLowerCase(Locale.ROOT));
+            case TOUPPER:
+                return stringFunction(first, value -> value.toUpperCase(Locale.ROOT));
+            case TRIM:
+                return stringFunction(first, value -> value.trim());
+            case SUBSTRING:
+                final Operand length = parameters.size() > 2 ? parameters.get(2) : null;
+                return Operand.computed(entity -> {
+                    final Object value = first.evaluate(entity);
+                    final Object start = second.evaluate(entity);
+                    final Object count = length == null ? null : length.evaluate(entity);
+                    if (!(value instanceof String) || !(start instanceof Number) || length != null && !(count instanceof Number)) {
+                        return null;
+                    }
+                    final String string = (String) value;
+                    final int from = Math.min(string.length(), Math.max(0, ((Number) start).intValue()));
+                    final int to = count == null ? string.length()
+                            : Math.min(string.length(), from + Math.max(0, ((Number) count).intValue()));
+                    return string.substring(from, to);
+                }, false);
+            default:
+                throw notImplemented("Method " + methodCall);
+            }
+        }
+
+        @Override
+        public Operand visitLiteral(final Literal literal) throws ODataApplicationException {
+            final EdmType type = literal.getType();
+            if (type == null) {
+                // the null literal
+                return Operand.literal(null, false, literal.getText());
+            }
+            if (!(type instanceof EdmPrimitiveType)) {
+                throw notImplemented("Literal of type " + type.getName());
+            }
+
+            final EdmPrimitiveType primitiveType = (EdmPrimitiveType) type;
+            try {
+                final Object value = primitiveType.valueOfString(primitiveType.fromUriLiteral(literal.getText()),
+                        null, null, null, null, null, primitiveType.getDefaultType());
+                return Operand.literal(value, isBoolean(primitiveType), literal.getText());
+            } catch (final EdmPrimitiveTypeException e) {
+                throw new ODataApplicationException("Invalid literal " + literal.getText(),
+                        HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT, e);
+            }
+        }
+
+        @Override
+        public Operand visitMember(final Member member) throws ODataApplicationException {
+            final List<UriResource> resourceParts = member.getResourcePath().getUriResourceParts();
+            final String[] path = new String[resourceParts.size()];
+            EdmProperty edmProperty = null;
+
+            // e.g. Name, or Address/City for a property of a complex property
+            for (int i = 0; i < path.length; i++) {
+                final UriResource part = resourceParts.get(i);
+                if (part instanceof UriResourcePrimitiveProperty && i == path.length - 1) {
+                    edmProperty = ((UriResourcePrimitiveProperty) part).getProperty();
+                } else if (part instanceof UriResourceComplexProperty && i < path.length - 1) {
+                    edmProperty = ((UriResourceComplexProperty) part).getProperty();
+                } else {
+                    throw notImplemented("Only primitive properties, also within complex properties, are supported in $filter");
+                }
+                path[i] = edmProperty.getName();
+            }
+
+            final boolean bool = isBoolean(edmProperty.getType());
+            if (path.length == 1) {
+                final String name = path[0];
+                return Operand.property(entity -> ColumnarEntity.valueOf(entity, name), bool, edmProperty);
+            }
+            return Operand.property(entity -> ColumnarEntity.valueOf(entity, path), bool, null);
+        }
+
+        @Override
+        public Operand visitLambdaExpression(final String lambdaFunction, final String lambdaVariable, final Expression expression)
+                throws ODataApplicationException {
+            throw notImplemented("Lambda expressions");
+        }
+
+        @Override
+        public Operand visitAlias(final String aliasName) throws ODataApplicationException {
+            throw notImplemented("Aliases");
+        }
+
+        @Override
+        public Operand visitTypeLiteral(final EdmType type) throws ODataApplicationException {
+            throw notImplemented("Type literals");
+        }
+
+        @Override
+        public Operand visitLambdaReference(final String variableName) throws ODataApplicationException {
+            throw notImplemented("Lambda references");
+        }
+
+        @Override
+        public Operand visitEnum(final EdmEnumType type, final List<String> enumValues) throws ODataApplicationException {
+            throw notImplemented("Enumerations");
+        }
+
+        /*
+         * A comparison of a top level property with a literal also becomes an index condition,
+         * with the literal converted to the Java type of the property, e.g. the Edm.SByte 3 to the Integer of an Edm.Int32
+         */
+        private Operand comparison(final IndexCondition.Operator operator, final Operand left, final Operand right,
+                final Function<Entity, Object> function) {
+            IndexCondition condition = null;
+            if (left.getProperty() != null && right.getLiteralText() != null) {
+                condition = indexCondition(left.getProperty(), operator, right.getLiteralText());
+            } else if (right.getProperty() != null && left.getLiteralText() != null) {
+                condition = indexCondition(right.getProperty(), operator.swap(), left.getLiteralText());
+            }
+
+            final List<IndexCondition> conditions = new ArrayList<IndexCondition>(1);
+            if (condition != null) {
+                conditions.add(condition);
+            }
+            return Operand.condition(function, conditions, condition != null);
+        }
+
+        private IndexCondition indexCondition(final EdmProperty edmProperty, final IndexCondition.Operator operator,
+                final String literalText) {
+            if (!(edmProperty.getType() instanceof EdmPrimitiveType)) {
+                return null;
+            }
+            final EdmPrimitiveType type = (EdmPrimitiveType) edmProperty.getType();
+            try {
+                final Object value = type.valueOfString(type.fromUriLiteral(literalText), edmProperty.isNullable(),
+                        edmProperty.getMaxLength(), edmProperty.getPrecision(), edmProperty.getScale(),
+                        edmProperty.isUnicode(), type.getDefaultType());
+                // null never matches a comparison, so it can't be looked up
+                return value == null ? null : new IndexCondition(edmProperty.getName(), operator, value);
+            } catch (final EdmPrimitiveTypeException e) {
+                // the literal doesn't fit the property, e.g. ID eq 1.5: the predicate decides, no index is used
+                return null;
+            }
+        }
+
+        private Operand arithmetic(final Operand left, final Operand right, final ArithmeticOperator operator) {
+            return Operand.computed(entity -> {
+                final Object leftValue = left.evaluate(entity);
+                final Object rightValue = right.evaluate(entity);
+                if (!(leftValue instanceof Number) || !(rightValue instanceof Number)) {
+                    return null;
+                }
+                return operator.apply((Number) leftValue, (Number) rightValue);
+            }, false);
+        }
+
+        private Operand stringFunction(final Operand first, final Operand second, final StringOperator operator, final boolean bool) {
+            return Operand.computed(entity -> {
+                final Object value = first.evaluate(entity);
+                final Object argument = second.evaluate(entity);
+                if (!(value instanceof String) || !(argument instanceof String)) {
+                    return null;
+                }
+                return operator.apply((String) value, (String) argument);
+            }, bool);
+        }
+
+        private Operand stringFunction(final Operand operand, final Function<String, Object> function) {
+            return Operand.computed(entity -> {
+                final Object value = operand.evaluate(entity);
+                return value instanceof String ? function.apply((String) value) : null;
+            }, false);
+        }
+
+        private ODataApplicationException notImplemented(final String what) {
+            return new ODataApplicationException(what + " not supported in $filter.",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+    }
+
+    // comparing with null is never true, for any operator
+    private static boolean compare(final Operand left, final Operand right, final Entity entity, final IntPredicate test) {
+        final Object leftValue = left.evaluate(entity);
+        final Object rightValue = right.evaluate(entity);
+        return leftValue != null && rightValue != null && test.test(Values.compare(leftValue, rightValue));
+    }
+
+    private static boolean isBoolean(final EdmType type) {
+        return type instanceof EdmPrimitiveType
+                && EdmPrimitiveTypeKind.Boolean.getFullQualifiedName().equals(type.getFullQualifiedName());
+    }
+
+    private interface ArithmeticOperator {
+        Number apply(Number left, Number right);
+    }
+
+    private interface StringOperator {
+        Object apply(String value, String argument);
+    }
+}
@@ -0,0 +1,89 @@
+package com.wiltech.odata.query;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.edm.EdmProperty;
+
+import com.wiltech.odata.data.IndexCondition;
+
+/**
+ * The type Operand. One compiled node of a $filter expression: a function from an entity to a value.
+ * Besides the function it remembers what the node was compiled from, where an index might use it:
+ * a top level property (e.g. Name), a literal (e.g. 'Ergo Screen') or the index conditions implied by a comparison.
+ * A node is exact if it is nothing but its index conditions, e.g. ID gt 3 and Name eq 'Ergo Screen'.
+ */
+final class Operand {
+
+    private final Function<Entity, Object> function;
+    private final boolean bool;
+    private final List<IndexCondition> indexConditions;
+    private final boolean exact;
+    private final EdmProperty property;
+    private final String literalText;
+
+    private Operand(final Function<Entity, Object> function, final boolean bool, final List<IndexCondition> indexConditions,
+            final boolean exact, final EdmProperty property, final String literalText) {
+        this.function = function;
+        this.bool = bool;
+        this.indexConditions = indexConditions;
+        this.exact = exact;
+        this.property = property;
+        this.literalText = literalText;
+    }
+
+    static Operand computed(final Function<Entity, Object> function, final boolean bool) {
+        return new Operand(function, bool, Collections.<IndexCondition> emptyList(), false, null, null);
+    }
+
+    static Operand condition(final Function<Entity, Object> function, final List<IndexCondition> indexConditions,
+            final boolean exact) {
+        return new Operand(function, true, indexConditions, exact, null, null);
+    }
+
+    static Operand property(final Function<Entity, Object> function, final boolean bool, final EdmProperty topLevelProperty) {
+        return new Operand(function, bool, Collections.<IndexCondition> emptyList(), false, topLevelProperty, null);
+    }
+
+    static Operand literal(final Object value, final boolean bool, final String text) {
+        return new Operand(entity -> value, bool, Collections.<IndexCondition> emptyList(), false, null, text);
+    }
+
+    Object evaluate(final Entity entity) {
+        return function.apply(entity);
+    }
+
+    boolean isBoolean() {
+        return bool;
+    }
+
+    List<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
+    /**
+     * Whether an entity matches exactly if it satisfies all index conditions, so an index can count without testing.
+     * @return true if exact
+     */
+    boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * The property, if this operand is a primitive property of the entity itself (not nested in a complex property).
+     * @return the property or null
+     */
+    EdmProperty getProperty() {
+        return property;
+    }
+
+    /**
+     * The literal text, if this operand is a literal.
+     * @return the text or null
+     */
+    String getLiteralText() {
+        return literalText;
+    }
+}
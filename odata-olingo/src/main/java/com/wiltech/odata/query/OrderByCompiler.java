@@ -0,0 +1,59 @@
+package com.wiltech.odata.query;
+
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.queryoption.OrderByItem;
+import org.apache.olingo.server.api.uri.queryoption.OrderByOption;
+
+import com.wiltech.odata.data.EntityOrder;
+
+/**
+ * The type Order by compiler. Compiles a $orderby into an {@link EntityOrder}, a comparator over the compiled expressions
+ * of its items. A single top level property, e.g. $orderby=Name desc, is also handed to the storage by name,
+ * so it can be answered by a sorted index. Null values sort first in ascending order.
+ */
+public final class OrderByCompiler {
+
+    private OrderByCompiler() {
+    }
+
+    /**
+     * Compile.
+     * @param orderByOption the $orderby of the request, may be null
+     * @return the compiled order, or null if there is no $orderby
+     * @throws ODataApplicationException if an expression uses something not supported
+     */
+    public static EntityOrder compile(final OrderByOption orderByOption) throws ODataApplicationException {
+        if (orderByOption == null || orderByOption.getOrders().isEmpty()) {
+            return null;
+        }
+
+        final List<OrderByItem> items = orderByOption.getOrders();
+        Comparator<Entity> comparator = null;
+        Operand first = null;
+        for (final OrderByItem item : items) {
+            final Operand operand = FilterCompiler.compileOperand(item.getExpression(), "$orderby");
+            Comparator<Entity> itemComparator = (left, right) -> compare(operand.evaluate(left), operand.evaluate(right));
+            if (item.isDescending()) {
+                itemComparator = itemComparator.reversed();
+            }
+            comparator = comparator == null ? itemComparator : comparator.thenComparing(itemComparator);
+            if (first == null) {
+                first = operand;
+            }
+        }
+
+        final String propertyName = items.size() == 1 && first.getProperty() != null ? first.getProperty().getName() : null;
+        return new EntityOrder(comparator, propertyName, items.get(0).isDescending());
+    }
+
+    private static int compare(final Object left, final Object right) {
+        if (left == null || right == null) {
+            return left == null ? right == null ? 0 : -1 : 1;
+        }
+        return Values.compare(left, right);
+    }
+}
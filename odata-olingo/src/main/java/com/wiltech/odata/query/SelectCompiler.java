@@ -0,0 +1,49 @@
+package com.wiltech.odata.query;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.server.api.uri.UriResource;
+import org.apache.olingo.server.api.uri.UriResourceProperty;
+import org.apache.olingo.server.api.uri.queryoption.SelectItem;
+import org.apache.olingo.server.api.uri.queryoption.SelectOption;
+
+import com.wiltech.odata.data.Projection;
+
+/**
+ * The type Select compiler. Compiles a $select into a {@link Projection} of top level properties.
+ * A path into a complex property, e.g. Address/City, keeps the whole complex property, the serializer trims it further.
+ * The key properties are always kept, they identify the entity and are needed to read its relations.
+ */
+public final class SelectCompiler {
+
+    private SelectCompiler() {
+    }
+
+    /**
+     * Compile.
+     * @param edmEntityType the entity type the $select applies to
+     * @param selectOption the $select of the request, may be null
+     * @return the projection, {@link Projection#ALL} if there is no $select or it selects all properties
+     */
+    public static Projection compile(final EdmEntityType edmEntityType, final SelectOption selectOption) {
+        if (selectOption == null || selectOption.getSelectItems().isEmpty()) {
+            return Projection.ALL;
+        }
+
+        final Set<String> propertyNames = new HashSet<String>(edmEntityType.getKeyPredicateNames());
+        for (final SelectItem item : selectOption.getSelectItems()) {
+            if (item.isStar()) {
+                return Projection.ALL;
+            }
+            final List<UriResource> parts = item.getResourcePath() == null ? null : item.getResourcePath().getUriResourceParts();
+            // selected navigation properties and operations don't need any structural property
+            if (parts != null && !parts.isEmpty() && parts.get(0) instanceof UriResourceProperty) {
+                propertyNames.add(((UriResourceProperty) parts.get(0)).getProperty().getName());
+            }
+        }
+        return Projection.of(propertyNames);
+    }
+}
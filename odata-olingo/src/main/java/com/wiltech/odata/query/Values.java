@@ -0,0 +1,103 @@
+package com.wiltech.odata.query;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * The type Values. Comparison and arithmetic on the Java values of OData primitives.
+ * Numbers are compared by value whatever their Java type, since e.g. the literal 3 is an Edm.SByte while ID is an Edm.Int32.
+ */
+final class Values {
+
+    private Values() {
+    }
+
+    static boolean isEqual(final Object left, final Object right) {
+        if (left == null || right == null) {
+            return left == right;
+        }
+        if (left instanceof Number && right instanceof Number) {
+            return compare(left, right) == 0;
+        }
+        return left.equals(right);
+    }
+
+    /**
+     * Compare two non null values.
+     * @return negative, zero or positive as left is less than, equal to, or greater than right
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static int compare(final Object left, final Object right) {
+        if (left instanceof Number && right instanceof Number) {
+            if (isIntegral(left) && isIntegral(right)) {
+                return Long.compare(((Number) left).longValue(), ((Number) right).longValue());
+            }
+            return toBigDecimal((Number) left).compareTo(toBigDecimal((Number) right));
+        }
+        if (left instanceof Comparable && left.getClass().isInstance(right)) {
+            return ((Comparable) left).compareTo(right);
+        }
+        return left.toString().compareTo(right.toString());
+    }
+
+    static Number add(final Number left, final Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return left.longValue() + right.longValue();
+        }
+        return toBigDecimal(left).add(toBigDecimal(right));
+    }
+
+    static Number subtract(final Number left, final Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return left.longValue() - right.longValue();
+        }
+        return toBigDecimal(left).subtract(toBigDecimal(right));
+    }
+
+    static Number multiply(final Number left, final Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return left.longValue() * right.longValue();
+        }
+        return toBigDecimal(left).multiply(toBigDecimal(right));
+    }
+
+    // null on division by zero, which makes the comparison using it false
+    static Number divide(final Number left, final Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return right.longValue() == 0 ? null : left.longValue() / right.longValue();
+        }
+        final BigDecimal divisor = toBigDecimal(right);
+        return divisor.signum() == 0 ? null : toBigDecimal(left).divide(divisor, MathContext.DECIMAL64);
+    }
+
+    static Number modulo(final Number left, final Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return right.longValue() == 0 ? null : left.longValue() % right.longValue();
+        }
+        final BigDecimal divisor = toBigDecimal(right);
+        return divisor.signum() == 0 ? null : toBigDecimal(left).remainder(divisor);
+    }
+
+    static Number negate(final Number value) {
+        return isIntegral(value) ? (Number) (-value.longValue()) : toBigDecimal(value).negate();
+    }
+
+    private static boolean isIntegral(final Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger;
+    }
+
+    private static BigDecimal toBigDecimal(final Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return BigDecimal.valueOf(value.doubleValue());
+        }
+        return BigDecimal.valueOf(value.longValue());
+    }
+}
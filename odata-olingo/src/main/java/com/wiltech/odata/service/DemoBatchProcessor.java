@@ -0,0 +1,235 @@
+package com.wiltech.odata.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpMethod;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataHandler;
+import org.apache.olingo.server.api.ODataLibraryException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.batch.BatchFacade;
+import org.apache.olingo.server.api.deserializer.batch.BatchOptions;
+import org.apache.olingo.server.api.deserializer.batch.BatchRequestPart;
+import org.apache.olingo.server.api.deserializer.batch.ODataResponsePart;
+import org.apache.olingo.server.api.processor.BatchProcessor;
+
+import com.wiltech.odata.data.Storage;
+
+/**
+ * The type Demo batch processor.
+ * Handles $batch requests, multipart ones through olingo and JSON ones through {@link #processJsonBatch}.
+ * The parts are answered in order, except that consecutive reads outside of changesets run in parallel on a bounded executor,
+ * each on a handler of its own. A changeset is applied to the storage as one, see {@link Storage#beginChangeSet()}.
+ */
+public class DemoBatchProcessor implements BatchProcessor {
+
+    private static final String CONTINUE_ON_ERROR = "odata.continue-on-error";
+
+    private OData odata;
+    private final Storage storage;
+    private final ExecutorService executor;
+    // creates the handlers of parallel reads; olingo's handlers keep per request state, so they are pooled
+    private final Supplier<? extends ODataHandler> handlerFactory;
+    private final Queue<ODataHandler> readHandlers = new ConcurrentLinkedQueue<ODataHandler>();
+
+    /**
+     * Instantiates a new Demo batch processor.
+     * @param storage the storage
+     * @param executor runs the reads of a batch in parallel
+     * @param handlerFactory creates handlers with all processors registered, for the parallel reads
+     */
+    public DemoBatchProcessor(final Storage storage, final ExecutorService executor,
+            final Supplier<? extends ODataHandler> handlerFactory) {
+        this.storage = storage;
+        this.executor = executor;
+        this.handlerFactory = handlerFactory;
+    }
+
+    public void init(final OData odata, final ServiceMetadata serviceMetadata) {
+        this.odata = odata;
+    }
+
+    public void processBatch(final BatchFacade facade, final ODataRequest request, final ODataResponse response)
+            throws ODataApplicationException, ODataLibraryException {
+        final String boundary = facade.extractBoundaryFromContentType(request.getHeader(HttpHeader.CONTENT_TYPE));
+        final BatchOptions options = BatchOptions.with()
+                .rawBaseUri(request.getRawBaseUri())
+                .rawServiceResolutionUri(request.getRawServiceResolutionUri())
+                .build();
+        final List<BatchRequestPart> parts = odata.createFixedFormatDeserializer().parseBatchRequest(request.getBody(), boundary, options);
+
+        final boolean continueOnError = isContinueOnError(request);
+        final List<ODataResponsePart> responseParts = execute(facade, parts, continueOnError);
+
+        final String responseBoundary = "batch_" + UUID.randomUUID();
+        final InputStream content = odata.createFixedFormatSerializer().batchResponse(responseParts, responseBoundary);
+        response.setContent(content);
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.MULTIPART_MIXED + ";boundary=" + responseBoundary);
+        if (continueOnError) {
+            response.setHeader(HttpHeader.PREFERENCE_APPLIED, CONTINUE_ON_ERROR);
+        }
+    }
+
+    /**
+     * Processes the requests of a changeset as one: the first failing request ends the changeset, drops the writes of the requests
+     * before it and is the only response.
+     */
+    public ODataResponsePart processChangeSet(final BatchFacade facade, final List<ODataRequest> requests)
+            throws ODataApplicationException, ODataLibraryException {
+        try (Storage.ChangeSet changeSet = storage.beginChangeSet()) {
+            final List<ODataResponse> responses = new ArrayList<ODataResponse>(requests.size());
+            for (final ODataRequest request : requests) {
+                final ODataResponse response = facade.handleODataRequest(request);
+                if (isFailure(response)) {
+                    return new ODataResponsePart(response, false);
+                }
+                responses.add(response);
+            }
+            changeSet.commit();
+            return new ODataResponsePart(responses, true);
+        }
+    }
+
+    /**
+     * Processes a JSON batch request, e.g. {"requests":[{"id":"1","method":"get","url":"Products(1)"}]}.
+     * Olingo only reads multipart batches, so the servlet hands JSON ones over here.
+     * @param handler the handler of the batch request, for its changesets and sequential requests
+     * @param request the batch request
+     * @param response the response to fill
+     * @throws ODataApplicationException with 400 if the batch can't be read
+     * @throws ODataLibraryException if a part can't be processed
+     */
+    public void processJsonBatch(final ODataHandler handler, final ODataRequest request, final ODataResponse response)
+            throws ODataApplicationException, ODataLibraryException {
+        final List<BatchRequestPart> parts = JsonBatch.readRequests(request.getBody(), request.getRawBaseUri());
+
+        final boolean continueOnError = isContinueOnError(request);
+        final List<ODataResponsePart> responseParts = execute(new JsonBatchFacade(handler, this), parts, continueOnError);
+
+        response.setContent(new ByteArrayInputStream(JsonBatch.writeResponses(responseParts)));
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.APPLICATION_JSON.toContentTypeString());
+        if (continueOnError) {
+            response.setHeader(HttpHeader.PREFERENCE_APPLIED, CONTINUE_ON_ERROR);
+        }
+    }
+
+    /*
+     * Answers the parts in order. A run of reads doesn't see any change of its own batch, so its reads are independent
+     * and run in parallel; every write waits for the reads before it. Without continue-on-error the first failure ends the batch.
+     */
+    private List<ODataResponsePart> execute(final BatchFacade facade, final List<BatchRequestPart> parts, final boolean continueOnError)
+            throws ODataApplicationException, ODataLibraryException {
+        final List<ODataResponsePart> responseParts = new ArrayList<ODataResponsePart>(parts.size());
+        int index = 0;
+        while (index < parts.size()) {
+            int end = index;
+            while (end < parts.size() && isRead(parts.get(end))) {
+                end++;
+            }
+
+            final List<ODataResponsePart> answered;
+            if (end - index > 1) {
+                answered = readInParallel(parts.subList(index, end));
+            } else {
+                answered = new ArrayList<ODataResponsePart>(1);
+                answered.add(facade.handleBatchRequest(parts.get(index)));
+                end = index + 1;
+            }
+
+            for (final ODataResponsePart part : answered) {
+                responseParts.add(part);
+                if (!continueOnError && isFailure(part.getResponses().get(0))) {
+                    return responseParts;
+                }
+            }
+            index = end;
+        }
+        return responseParts;
+    }
+
+    private List<ODataResponsePart> readInParallel(final List<BatchRequestPart> parts) throws ODataApplicationException {
+        final List<Future<ODataResponse>> futures = new ArrayList<Future<ODataResponse>>(parts.size());
+        try {
+            for (final BatchRequestPart part : parts) {
+                final ODataRequest request = part.getRequests().get(0);
+                futures.add(executor.submit(() -> read(request)));
+            }
+            final List<ODataResponsePart> responseParts = new ArrayList<ODataResponsePart>(parts.size());
+            for (final Future<ODataResponse> future : futures) {
+                responseParts.add(new ODataResponsePart(future.get(), false));
+            }
+            return responseParts;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ODataApplicationException("The batch request was interrupted.",
+                    HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode(), Locale.ROOT);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ODataRuntimeException(e);
+        } finally {
+            for (final Future<ODataResponse> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // one read on a pooled handler; the response is serialized here, so that the work is done in parallel too
+    private ODataResponse read(final ODataRequest request) {
+        ODataHandler handler = readHandlers.poll();
+        if (handler == null) {
+            handler = handlerFactory.get();
+        }
+        final ODataResponse response;
+        try {
+            response = handler.process(request);
+        } finally {
+            readHandlers.offer(handler);
+        }
+
+        if (response.getContent() == null && response.getODataContent() != null) {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            response.getODataContent().write(content);
+            response.setContent(new ByteArrayInputStream(content.toByteArray()));
+        }
+        final String contentId = request.getHeader(HttpHeader.CONTENT_ID);
+        if (contentId != null) {
+            response.setHeader(HttpHeader.CONTENT_ID, contentId);
+        }
+        return response;
+    }
+
+    private boolean isContinueOnError(final ODataRequest request) {
+        return odata.createPreferences(request.getHeaders(HttpHeader.PREFER)).hasContinueOnError();
+    }
+
+    private static boolean isRead(final BatchRequestPart part) {
+        return !part.isChangeSet() && part.getRequests().get(0).getMethod() == HttpMethod.GET;
+    }
+
+    static boolean isFailure(final ODataResponse response) {
+        return response.getStatusCode() >= HttpStatusCode.BAD_REQUEST.getStatusCode();
+    }
+}
@@ -6,13 +6,17 @@
  */
 package com.wiltech.odata.service;
 
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.olingo.commons.api.edm.EdmAnnotation;
+import org.apache.olingo.commons.api.edm.EdmBindingTarget;
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
 import org.apache.olingo.commons.api.edm.FullQualifiedName;
 import org.apache.olingo.commons.api.edm.provider.CsdlAbstractEdmProvider;
+import org.apache.olingo.commons.api.edm.provider.CsdlAnnotation;
 import org.apache.olingo.commons.api.edm.provider.CsdlComplexType;
 import org.apache.olingo.commons.api.edm.provider.CsdlEntityContainer;
 import org.apache.olingo.commons.api.edm.provider.CsdlEntityContainerInfo;
@@ -23,12 +27,19 @@ import org.apache.olingo.commons.api.edm.provider.CsdlNavigationPropertyBinding;
 import org.apache.olingo.commons.api.edm.provider.CsdlProperty;
 import org.apache.olingo.commons.api.edm.provider.CsdlPropertyRef;
 import org.apache.olingo.commons.api.edm.provider.CsdlSchema;
+import org.apache.olingo.commons.api.edm.provider.CsdlTerm;
+import org.apache.olingo.commons.api.edm.provider.annotation.CsdlCollection;
+import org.apache.olingo.commons.api.edmx.EdmxReference;
+import org.apache.olingo.commons.api.edmx.EdmxReferenceInclude;
 import org.apache.olingo.commons.api.ex.ODataException;
+import org.apache.olingo.server.api.etag.CustomETagSupport;
 
 /**
  * The type Demo edm provider.
+ * The entity sets are annotated with Core.OptimisticConcurrency, their entities carry ETags; the same is told to Olingo
+ * through {@link CustomETagSupport}, so it checks the preconditions of modifying requests.
  */
-public class DemoEdmProvider extends CsdlAbstractEdmProvider {
+public class DemoEdmProvider extends CsdlAbstractEdmProvider implements CustomETagSupport {
 
     // Service Namespace
     public static final String NAMESPACE = "OData.Demo";
@@ -56,6 +67,24 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
     public static final String ES_CATEGORIES_NAME = "Categories";
     public static final String ES_SUPPLIERS_NAME = "Suppliers";
 
+    // Core vocabulary, for the ETag annotation
+    public static final String CORE_NAMESPACE = "Org.OData.Core.V1";
+    public static final String CORE_ALIAS = "Core";
+    public static final String CORE_URI = "http://docs.oasis-open.org/odata/odata/v4.0/os/vocabularies/Org.OData.Core.V1.xml";
+    public static final FullQualifiedName TERM_OPTIMISTIC_CONCURRENCY = new FullQualifiedName(CORE_NAMESPACE, "OptimisticConcurrency");
+
+    /**
+     * The references of the metadata document, the Core vocabulary.
+     * @return the references
+     */
+    public static List<EdmxReference> getReferences() {
+        final EdmxReference reference = new EdmxReference(URI.create(CORE_URI));
+        reference.addInclude(new EdmxReferenceInclude(CORE_NAMESPACE, CORE_ALIAS));
+        final List<EdmxReference> references = new ArrayList<EdmxReference>();
+        references.add(reference);
+        return references;
+    }
+
     @Override
     public CsdlEntityType getEntityType(final FullQualifiedName entityTypeName) throws ODataException {
         // this method is called for each EntityType that are configured in the Schema
@@ -93,6 +122,8 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
             entityType.setProperties(Arrays.asList(id, name, description));
             entityType.setKey(Arrays.asList(propertyRef));
             entityType.setNavigationProperties(navPropList);
+            // a media entity, e.g. its picture or data sheet is Products(1)/$value
+            entityType.setHasStream(true);
 
         } else if (entityTypeName.equals(ET_CATEGORY_FQN)) {
             // create EntityType properties
@@ -170,6 +201,7 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
                 entitySet = new CsdlEntitySet();
                 entitySet.setName(ES_PRODUCTS_NAME);
                 entitySet.setType(ET_PRODUCT_FQN);
+                entitySet.getAnnotations().add(createOptimisticConcurrency());
 
                 // navigation
                 final CsdlNavigationPropertyBinding navPropBinding = new CsdlNavigationPropertyBinding();
@@ -184,6 +216,7 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
                 entitySet = new CsdlEntitySet();
                 entitySet.setName(ES_CATEGORIES_NAME);
                 entitySet.setType(ET_CATEGORY_FQN);
+                entitySet.getAnnotations().add(createOptimisticConcurrency());
 
                 // navigation
                 final CsdlNavigationPropertyBinding navPropBinding = new CsdlNavigationPropertyBinding();
@@ -254,4 +287,36 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
         return null;
     }
 
+    @Override
+    public CsdlTerm getTerm(final FullQualifiedName termName) throws ODataException {
+        // the only term we use, so the annotation can be resolved without loading the vocabulary
+        if (TERM_OPTIMISTIC_CONCURRENCY.equals(termName)) {
+            return new CsdlTerm().setName(TERM_OPTIMISTIC_CONCURRENCY.getName())
+                    .setType("Collection(Edm.PropertyPath)")
+                    .setAppliesTo(Arrays.asList("EntitySet"));
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasETag(final EdmBindingTarget entitySetOrSingleton) {
+        for (final EdmAnnotation annotation : entitySetOrSingleton.getAnnotations()) {
+            if (annotation.getTerm() != null && TERM_OPTIMISTIC_CONCURRENCY.equals(annotation.getTerm().getFullQualifiedName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasMediaETag(final EdmBindingTarget entitySetOrSingleton) {
+        // every media resource has its own ETag, so it is replaced and deleted with If-Match like its entity
+        return entitySetOrSingleton.getEntityType().hasStream();
+    }
+
+    // the ETag is computed by the service from the version of the entity, not from properties, so the collection is empty
+    private CsdlAnnotation createOptimisticConcurrency() {
+        return new CsdlAnnotation().setTerm(TERM_OPTIMISTIC_CONCURRENCY.getFullQualifiedNameAsString())
+                .setExpression(new CsdlCollection());
+    }
 }
@@ -6,15 +6,27 @@
  */
 package com.wiltech.odata.service;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 import org.apache.olingo.commons.api.data.ContextURL;
+import org.apache.olingo.commons.api.data.DeletedEntity;
+import org.apache.olingo.commons.api.data.Delta;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.EntityIterator;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.commons.api.edm.EdmProperty;
+import org.apache.olingo.commons.api.edm.constants.ODataServiceVersion;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
 import org.apache.olingo.commons.api.format.ContentType;
 import org.apache.olingo.commons.api.http.HttpHeader;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
@@ -23,7 +35,9 @@ import org.apache.olingo.server.api.ODataApplicationException;
 import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
 import org.apache.olingo.server.api.ServiceMetadata;
-import org.apache.olingo.server.api.processor.EntityCollectionProcessor;
+import org.apache.olingo.server.api.prefer.Preferences;
+import org.apache.olingo.server.api.prefer.PreferencesApplied;
+import org.apache.olingo.server.api.processor.CountEntityCollectionProcessor;
 import org.apache.olingo.server.api.serializer.EntityCollectionSerializerOptions;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
 import org.apache.olingo.server.api.serializer.SerializerException;
@@ -34,21 +48,74 @@ import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
 import org.apache.olingo.server.api.uri.UriResourceNavigation;
 
+import com.wiltech.odata.cache.ResponseCache;
+import com.wiltech.odata.data.Changes;
+import com.wiltech.odata.data.Continuation;
+import com.wiltech.odata.data.EntityKey;
+import com.wiltech.odata.data.EntityFilter;
+import com.wiltech.odata.data.EntityOrder;
+import com.wiltech.odata.data.MediaStore;
+import com.wiltech.odata.data.Projection;
 import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.metrics.Phase;
+import com.wiltech.odata.metrics.RequestTimer;
+import com.wiltech.odata.query.FilterCompiler;
+import com.wiltech.odata.query.OrderByCompiler;
+import com.wiltech.odata.query.SelectCompiler;
+import com.wiltech.odata.utils.DeltaToken;
+import com.wiltech.odata.utils.KeyMatcher;
+import com.wiltech.odata.utils.SkipToken;
 import com.wiltech.odata.utils.Util;
 
 /**
  * The type Demo entity collection processor. Class used to map metadata and data for a request.
+ * A client that reads an entity set with Prefer: odata.track-changes gets an @odata.deltaLink on the last page;
+ * following it returns what changed since, added and updated entities and deleted ones, see {@link Storage#readChanges}.
  */
-public class DemoEntityCollectionProcessor implements EntityCollectionProcessor {
+public class DemoEntityCollectionProcessor implements CountEntityCollectionProcessor {
+
+    // server side page size, used when neither the configuration nor the client ask for one
+    public static final int DEFAULT_MAX_PAGE_SIZE = 1000;
 
     private OData odata;
     private ServiceMetadata srvMetadata;
     // our database-mock
     private final Storage storage;
+    private final int maxPageSize;
+    private final boolean streaming;
+    private final Expander expander;
+    private final MediaAnnotator mediaAnnotator;
+    private final ResponseCache cache;
 
     public DemoEntityCollectionProcessor(final Storage storage) {
+        this(storage, DEFAULT_MAX_PAGE_SIZE, false, null);
+    }
+
+    public DemoEntityCollectionProcessor(final Storage storage, final int maxPageSize, final boolean streaming) {
+        this(storage, maxPageSize, streaming, null);
+    }
+
+    public DemoEntityCollectionProcessor(final Storage storage, final int maxPageSize, final boolean streaming,
+            final ResponseCache cache) {
+        this(storage, maxPageSize, streaming, cache, null);
+    }
+
+    /**
+     * Instantiates a new Demo entity collection processor.
+     * @param storage the storage
+     * @param maxPageSize the server side page size
+     * @param streaming true to write entity sets while they are read from the storage, instead of serializing a whole page first
+     * @param cache the cache of serialized responses, or null to serialize every response
+     * @param mediaStore the files of the media resources, or null if media entities have none
+     */
+    public DemoEntityCollectionProcessor(final Storage storage, final int maxPageSize, final boolean streaming,
+            final ResponseCache cache, final MediaStore mediaStore) {
         this.storage = storage;
+        this.maxPageSize = maxPageSize;
+        this.streaming = streaming;
+        this.expander = new Expander(storage);
+        this.mediaAnnotator = new MediaAnnotator(mediaStore);
+        this.cache = cache;
     }
 
     public void init(final OData odata, final ServiceMetadata serviceMetadata) {
@@ -69,9 +136,12 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
     public void readEntityCollection(final ODataRequest request, final ODataResponse response,
             final UriInfo uriInfo, final ContentType responseFormat)
             throws ODataApplicationException, SerializerException {
+        // olingo parsed the uri, the time from here to the serializer is the storage's
+        RequestTimer.enter(Phase.STORAGE);
 
         EdmEntitySet responseEdmEntitySet = null; // we'll need this to build the ContextURL
         EntityCollection responseEntityCollection = null; // we'll need this to set the response body
+        EntityIterator responseEntityIterator = null; // or this, if the response body is streamed
         EdmEntityType responseEdmEntityType = null;
 
         // 1st retrieve the requested EntitySet from the uriInfo (representation of the parsed URI)
@@ -87,11 +157,103 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         final UriResourceEntitySet uriResourceEntitySet = (UriResourceEntitySet) uriResource;
         final EdmEntitySet startEdmEntitySet = uriResourceEntitySet.getEntitySet();
 
-        if (segmentCount == 1) { // this is the case for: DemoService/DemoService.svc/Categories
+        // a $deltatoken asks for the changes to an entity set since a delta link was handed out
+        final boolean delta = uriInfo.getDeltaTokenOption() != null;
+        if (delta && (segmentCount != 1 || uriInfo.getExpandOption() != null)) {
+            throw new ODataApplicationException("Changes are only tracked for entity sets without $expand",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+        if (delta && !responseFormat.isCompatible(ContentType.APPLICATION_JSON)) {
+            throw new ODataApplicationException("Changes are only available as JSON",
+                    HttpStatusCode.NOT_ACCEPTABLE.getStatusCode(), Locale.ROOT);
+        }
+
+        // conditional GET: a client that has the current version gets 304, nothing is read or serialized;
+        // a navigation or $expand depends on more than the entity set itself
+        final boolean singleEntitySet = segmentCount == 1 && uriInfo.getExpandOption() == null;
+        final String eTag = singleEntitySet ? storage.getEntitySetETag(startEdmEntitySet) : storage.getETag();
+        if (Util.isNotModified(odata, request, response, eTag)) {
+            return;
+        }
+        // an identical request against the same version gets the bytes serialized the last time
+        final String cacheKey = cache == null ? null : ResponseCache.key(request, responseFormat);
+        if (cacheKey != null && cache.serve(cacheKey, eTag, request.getHeader(HttpHeader.ACCEPT_ENCODING), response)) {
+            return;
+        }
+
+        final Preferences preferences = odata.createPreferences(request.getHeaders(HttpHeader.PREFER));
+        final PreferencesApplied.Builder preferencesApplied = PreferencesApplied.with();
+        if (delta) {
+            responseEdmEntitySet = startEdmEntitySet;
+            responseEntityCollection = readChanges(request, uriInfo, startEdmEntitySet);
+        } else if (segmentCount == 1) { // this is the case for: DemoService/DemoService.svc/Categories
             responseEdmEntitySet = startEdmEntitySet; // the response body is built from the first (and only) entitySet
 
             // 2nd: fetch the data from backend for this requested EntitySetName and deliver as EntitySet
-            responseEntityCollection = storage.readEntitySetData(startEdmEntitySet);
+            // server driven paging: at most one page is read, resuming where the previous page ended
+            final EdmEntityType startEdmEntityType = startEdmEntitySet.getEntityType();
+            final KeyMatcher keyMatcher = KeyMatcher.of(startEdmEntityType);
+            // the $filter is compiled once, equality and range conditions on indexed properties are answered by the storage indexes
+            final EntityFilter filter = FilterCompiler.compile(startEdmEntityType, uriInfo.getFilterOption());
+            // a $orderby on a sorted property is read from the storage's sorted index, anything else is sorted on the fly
+            final EntityOrder order = OrderByCompiler.compile(uriInfo.getOrderByOption());
+            final EdmProperty sortProperty = order == null || order.getPropertyName() == null ? null
+                    : startEdmEntityType.getStructuralProperty(order.getPropertyName());
+            final Continuation continuation = readSkipToken(uriInfo, keyMatcher, sortProperty);
+            // the changes after this read start from the version of its first page, which the next links carry along
+            final DeltaToken deltaToken = singleEntitySet && preferences.hasTrackChanges()
+                    ? readDeltaToken(uriInfo, startEdmEntitySet) : null;
+            // only the selected properties are handed out, plus the sort property the $skiptoken is built from
+            Projection projection = SelectCompiler.compile(startEdmEntityType, uriInfo.getSelectOption());
+            if (sortProperty != null) {
+                projection = projection.including(sortProperty.getName());
+            }
+            final int top = uriInfo.getTopOption() == null ? Integer.MAX_VALUE : uriInfo.getTopOption().getValue();
+            // $skip only applies to the first page, the skip token already points behind it
+            final int skip = continuation != null || uriInfo.getSkipOption() == null ? 0 : uriInfo.getSkipOption().getValue();
+            final int pageSize = getPageSize(preferences, preferencesApplied);
+            final int limit = Math.min(top, pageSize);
+
+            // there is a next page if more rows exist after the last one of this page and the client's $top isn't reached yet
+            final Function<Entity, URI> nextLink = last -> {
+                final int remainingTop = top == Integer.MAX_VALUE ? -1 : top - limit;
+                final int offset = (continuation == null ? 0 : continuation.getOffset()) + skip + limit;
+                final String skipToken = SkipToken.format(
+                        Continuation.after(last, keyMatcher.keyOf(last), order, offset), keyMatcher, sortProperty);
+                return Util.createNextLink(request, deltaToken == null ? skipToken : deltaToken.appendTo(skipToken), remainingTop);
+            };
+
+            // the delta link is set on the last page, which a streamed page doesn't know it is before its end
+            if (streaming && uriInfo.getExpandOption() == null && deltaToken == null) {
+                // the entities are read while they are written, $expand needs the whole page to batch its reads
+                responseEntityIterator = new PageIterator(
+                        storage.readEntitySetStream(startEdmEntitySet, filter, order, continuation, skip, projection),
+                        limit, limit < top ? nextLink : null, entity -> mediaAnnotator.annotate(entity, startEdmEntitySet));
+                if (isCountRequested(uriInfo)) {
+                    responseEntityIterator.setCount(storage.countEntitySetData(startEdmEntitySet, filter));
+                }
+            } else {
+                // read one more than needed to find out if there is a next page
+                responseEntityCollection = storage.readEntitySetData(startEdmEntitySet, filter, order, continuation, skip,
+                        limit + 1, projection);
+                final List<Entity> entities = responseEntityCollection.getEntities();
+                final boolean hasMore = entities.size() > limit;
+                if (hasMore) {
+                    entities.remove(limit);
+                }
+                if (hasMore && limit < top) {
+                    responseEntityCollection.setNext(nextLink.apply(entities.get(limit - 1)));
+                } else if (deltaToken != null) {
+                    responseEntityCollection.setDeltaLink(Util.createDeltaLink(request, deltaToken.format()));
+                }
+                if (deltaToken != null) {
+                    preferencesApplied.trackChanges();
+                }
+                // $count=true counts all matching entities, whatever the page, $top and $skip
+                if (isCountRequested(uriInfo)) {
+                    responseEntityCollection.setCount(storage.countEntitySetData(startEdmEntitySet, filter));
+                }
+            }
         } else if (segmentCount == 2) { // in case of navigation: DemoService.svc/Categories(3)/Products
 
             final UriResource lastSegment = resourceParts.get(1); // in our example we don't support more complex URIs
@@ -120,7 +282,21 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
                 // then fetch the entity collection where the entity navigates to
                 // note: we don't need to check uriResourceNavigation.isCollection(),
                 // because we are the EntityCollectionProcessor
-                responseEntityCollection = storage.getRelatedEntityCollection(sourceEntity, targetEntityType);
+                responseEntityCollection = storage.getRelatedEntityCollection(sourceEntity, edmNavigationProperty);
+                final EntityFilter filter = FilterCompiler.compile(targetEntityType, uriInfo.getFilterOption());
+                if (filter != null) {
+                    responseEntityCollection.getEntities().removeIf(entity -> !filter.test(entity));
+                }
+                final EntityOrder order = OrderByCompiler.compile(uriInfo.getOrderByOption());
+                if (order != null) {
+                    responseEntityCollection.getEntities().sort(order.getComparator());
+                }
+                if (isCountRequested(uriInfo)) {
+                    responseEntityCollection.setCount(responseEntityCollection.getEntities().size());
+                }
+                applyTopSkip(responseEntityCollection, uriInfo);
+                final Projection projection = SelectCompiler.compile(targetEntityType, uriInfo.getSelectOption());
+                responseEntityCollection.getEntities().replaceAll(projection::apply);
             }
         } else { // this would be the case for e.g. Products(1)/Category/Products
             throw new ODataApplicationException("Not supported",
@@ -131,24 +307,256 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         EdmEntityType edmEntityType = null;
         // 3rd: create and configure a serializer
         if (isContNav(uriInfo)) {
-            contextUrl = ContextURL.with().entitySetOrSingletonOrType(request.getRawODataPath()).build();
             edmEntityType = responseEdmEntityType;
         } else {
-            contextUrl = ContextURL.with().entitySet(responseEdmEntitySet).build();
             edmEntityType = responseEdmEntitySet.getEntityType();
         }
+        // the related entities of the whole page are read in one batch per expanded navigation property
+        if (responseEntityCollection != null) {
+            expander.expand(responseEntityCollection.getEntities(), edmEntityType, uriInfo.getExpandOption());
+            // media entities tell the ETag and content type of their $value, contained entities have none
+            if (!delta) {
+                mediaAnnotator.annotate(responseEntityCollection.getEntities(), isContNav(uriInfo) ? null : responseEdmEntitySet);
+            }
+        }
+
+        // the context URL names the selected and expanded properties, e.g. $metadata#Products(ID,Name,Category())
+        final String selectList = odata.createUriHelper().buildContextURLSelectList(edmEntityType, uriInfo.getExpandOption(),
+                uriInfo.getSelectOption());
+        if (isContNav(uriInfo)) {
+            contextUrl = ContextURL.with().entitySetOrSingletonOrType(request.getRawODataPath()).selectList(selectList).build();
+        } else {
+            contextUrl = ContextURL.with().entitySet(responseEdmEntitySet).selectList(selectList).build();
+        }
         final String id = request.getRawBaseUri() + "/" + responseEdmEntitySet.getName();
         final EntityCollectionSerializerOptions opts = EntityCollectionSerializerOptions.with()
-                .contextURL(contextUrl).id(id).build();
+                .contextURL(contextUrl).id(id).count(uriInfo.getCountOption()).select(uriInfo.getSelectOption())
+                .expand(uriInfo.getExpandOption()).build();
 
+        RequestTimer.enter(Phase.SERIALIZE);
         final ODataSerializer serializer = odata.createSerializer(responseFormat);
-        final SerializerResult serializerResult = serializer.entityCollection(this.srvMetadata, edmEntityType,
-                responseEntityCollection, opts);
 
         // 4th: configure the response object: set the body, headers and status code
-        response.setContent(serializerResult.getContent());
+        if (delta) {
+            // the changes are written in the OData 4.0 delta format, the serializer adds /$delta to the context URL
+            response.setContent(odata.createEdmDeltaSerializer(responseFormat,
+                    Collections.singletonList(ODataServiceVersion.V40.toString()))
+                    .entityCollection(this.srvMetadata, edmEntityType, (Delta) responseEntityCollection, opts).getContent());
+        } else if (responseEntityIterator != null) {
+            // written straight to the response output stream by the handler, nothing is buffered
+            response.setODataContent(serializer.entityCollectionStreamed(this.srvMetadata, edmEntityType,
+                    responseEntityIterator, opts).getODataContent());
+        } else {
+            final SerializerResult serializerResult = serializer.entityCollection(this.srvMetadata, edmEntityType,
+                    responseEntityCollection, opts);
+            response.setContent(serializerResult.getContent());
+        }
         response.setStatusCode(HttpStatusCode.OK.getStatusCode());
         response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        final String applied = preferencesApplied.build().toValueString();
+        if (!applied.isEmpty()) {
+            response.setHeader(HttpHeader.PREFERENCE_APPLIED, applied);
+        }
+
+        if (cacheKey != null) {
+            final Set<String> dependsOn = singleEntitySet ? Collections.singleton(startEdmEntitySet.getName())
+                    : Collections.singleton(ResponseCache.ALL_ENTITY_SETS);
+            if (responseEntityIterator != null) {
+                // copied on its way to the client
+                response.setODataContent(cache.storing(cacheKey, eTag, dependsOn, response, response.getODataContent()));
+            } else {
+                cache.store(cacheKey, eTag, dependsOn, response);
+            }
+        }
+    }
+
+    /*
+     * This method is invoked when the number of entities of a collection is requested, e.g.
+     * http://localhost:8080/DemoService/DemoService.svc/Products/$count
+     * http://localhost:8080/DemoService/DemoService.svc/Categories(3)/Products/$count?$filter=ID gt 3
+     * Nothing is read to count an entity set: the storage keeps the number of entities,
+     * and a filter is counted from an index where possible.
+     */
+    public void countEntityCollection(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo)
+            throws ODataApplicationException, SerializerException {
+        RequestTimer.enter(Phase.STORAGE);
+        // the last segment is $count
+        final List<UriResource> resourceParts = uriInfo.getUriResourceParts();
+        final int segmentCount = resourceParts.size() - 1;
+
+        final UriResource uriResource = resourceParts.get(0);
+        if (!(uriResource instanceof UriResourceEntitySet)) {
+            throw new ODataApplicationException("Only EntitySet is supported",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+        final UriResourceEntitySet uriResourceEntitySet = (UriResourceEntitySet) uriResource;
+        final EdmEntitySet startEdmEntitySet = uriResourceEntitySet.getEntitySet();
+
+        final String eTag = segmentCount == 1 ? storage.getEntitySetETag(startEdmEntitySet) : storage.getETag();
+        if (Util.isNotModified(odata, request, response, eTag)) {
+            return;
+        }
+
+        final int count;
+        if (segmentCount == 1) { // e.g. DemoService.svc/Products/$count
+            final EntityFilter filter = FilterCompiler.compile(startEdmEntitySet.getEntityType(), uriInfo.getFilterOption());
+            count = storage.countEntitySetData(startEdmEntitySet, filter);
+        } else if (segmentCount == 2 && resourceParts.get(1) instanceof UriResourceNavigation) {
+            // e.g. DemoService.svc/Categories(3)/Products/$count
+            final EdmNavigationProperty edmNavigationProperty = ((UriResourceNavigation) resourceParts.get(1)).getProperty();
+            final Entity sourceEntity = storage.readEntityData(startEdmEntitySet, uriResourceEntitySet.getKeyPredicates());
+            if (sourceEntity == null) {
+                throw new ODataApplicationException("Entity not found.",
+                        HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+            }
+            final EntityFilter filter = FilterCompiler.compile(edmNavigationProperty.getType(), uriInfo.getFilterOption());
+            count = storage.countRelatedEntities(sourceEntity, edmNavigationProperty, filter);
+        } else {
+            throw new ODataApplicationException("Not supported",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+
+        response.setContent(odata.createFixedFormatSerializer().count(count));
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.TEXT_PLAIN.toContentTypeString());
+    }
+
+    private static boolean isCountRequested(final UriInfo uriInfo) {
+        return uriInfo.getCountOption() != null && uriInfo.getCountOption().getValue();
+    }
+
+    private void applyTopSkip(final EntityCollection entityCollection, final UriInfo uriInfo) {
+        final List<Entity> entities = entityCollection.getEntities();
+        if (uriInfo.getSkipOption() != null) {
+            entities.subList(0, Math.min(entities.size(), uriInfo.getSkipOption().getValue())).clear();
+        }
+        if (uriInfo.getTopOption() != null && uriInfo.getTopOption().getValue() < entities.size()) {
+            entities.subList(uriInfo.getTopOption().getValue(), entities.size()).clear();
+        }
+    }
+
+    private Continuation readSkipToken(final UriInfo uriInfo, final KeyMatcher keyMatcher, final EdmProperty sortProperty)
+            throws ODataApplicationException {
+        if (uriInfo.getSkipTokenOption() == null) {
+            return null;
+        }
+        final Continuation continuation = SkipToken.parse(DeltaToken.stripFrom(uriInfo.getSkipTokenOption().getValue()),
+                keyMatcher, sortProperty);
+        if (continuation == null) {
+            throw new ODataApplicationException("Invalid $skiptoken.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+        return continuation;
+    }
+
+    /*
+     * The version a change tracking read starts from: the one the first page carried along in the $skiptoken,
+     * or the current one for the first page. It is read before the entities, a change while they are read is sent again.
+     */
+    private DeltaToken readDeltaToken(final UriInfo uriInfo, final EdmEntitySet edmEntitySet) {
+        final DeltaToken carried = uriInfo.getSkipTokenOption() == null ? null
+                : DeltaToken.of(uriInfo.getSkipTokenOption().getValue());
+        return carried != null ? carried : new DeltaToken(storage.getEpoch(), storage.getVersion(edmEntitySet));
+    }
+
+    /*
+     * The changes since the version of a $deltatoken, as a delta with the link to the next changes:
+     * the added and updated entities as they are now, and the deleted ones, or those that no longer match the $filter, by id.
+     * A token of an earlier run, or older than the changes the storage keeps, gets 410 Gone: the client reads the entity set again.
+     */
+    private Delta readChanges(final ODataRequest request, final UriInfo uriInfo, final EdmEntitySet edmEntitySet)
+            throws ODataApplicationException {
+        final DeltaToken deltaToken = DeltaToken.parse(uriInfo.getDeltaTokenOption().getValue());
+        if (deltaToken == null) {
+            throw new ODataApplicationException("Invalid $deltatoken.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+        final EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+        final Changes changes = deltaToken.getEpoch() != storage.getEpoch() ? null
+                : storage.readChanges(edmEntitySet, deltaToken.getVersion(),
+                        FilterCompiler.compile(edmEntityType, uriInfo.getFilterOption()),
+                        SelectCompiler.compile(edmEntityType, uriInfo.getSelectOption()));
+        if (changes == null) {
+            throw new ODataApplicationException("The $deltatoken expired, the entity set has to be read again.",
+                    HttpStatusCode.GONE.getStatusCode(), Locale.ROOT);
+        }
+
+        final Delta delta = new Delta();
+        delta.getEntities().addAll(changes.getEntities());
+        final KeyMatcher keyMatcher = KeyMatcher.of(edmEntityType);
+        for (final EntityKey key : changes.getDeletedKeys()) {
+            delta.getDeletedEntities().add(deletedEntity(edmEntitySet, keyMatcher, key, DeletedEntity.Reason.deleted));
+        }
+        for (final EntityKey key : changes.getUnmatchedKeys()) {
+            delta.getDeletedEntities().add(deletedEntity(edmEntitySet, keyMatcher, key, DeletedEntity.Reason.changed));
+        }
+        delta.setDeltaLink(Util.createDeltaLink(request, new DeltaToken(storage.getEpoch(), changes.getVersion()).format()));
+        return delta;
+    }
+
+    private static DeletedEntity deletedEntity(final EdmEntitySet edmEntitySet, final KeyMatcher keyMatcher, final EntityKey key,
+            final DeletedEntity.Reason reason) {
+        final DeletedEntity deletedEntity = new DeletedEntity();
+        try {
+            deletedEntity.setId(new URI(edmEntitySet.getName() + "(" + keyMatcher.toKeyPredicate(key) + ")"));
+        } catch (final URISyntaxException e) {
+            throw new ODataRuntimeException("Unable to create id for deleted entity " + key, e);
+        }
+        deletedEntity.setReason(reason);
+        return deletedEntity;
+    }
+
+    /*
+     * The page size is the configured odata.maxpagesize,
+     * unless the client asks for a smaller one with the header Prefer: odata.maxpagesize=n
+     */
+    private int getPageSize(final Preferences preferences, final PreferencesApplied.Builder preferencesApplied) {
+        final Integer preferred = preferences.getMaxPageSize();
+        if (preferred != null && preferred > 0 && preferred < maxPageSize) {
+            preferencesApplied.maxPageSize(preferred);
+            return preferred;
+        }
+        return maxPageSize;
+    }
+
+    /**
+     * One page of a streamed entity set. The serializer asks for the next link after it wrote the last entity,
+     * so it can be built from that entity without reading ahead more than one row.
+     */
+    private static final class PageIterator extends EntityIterator {
+
+        private final EntityIterator rows;
+        private final int limit;
+        private final Function<Entity, URI> nextLink;
+        // e.g. adds the media annotations
+        private final UnaryOperator<Entity> annotator;
+        private int count;
+        private Entity last;
+
+        private PageIterator(final EntityIterator rows, final int limit, final Function<Entity, URI> nextLink,
+                final UnaryOperator<Entity> annotator) {
+            this.rows = rows;
+            this.limit = limit;
+            this.nextLink = nextLink;
+            this.annotator = annotator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return count < limit && rows.hasNext();
+        }
+
+        @Override
+        public Entity next() {
+            last = annotator.apply(rows.next());
+            count++;
+            return last;
+        }
+
+        @Override
+        public URI getNext() {
+            return nextLink != null && count == limit && rows.hasNext() ? nextLink.apply(last) : null;
+        }
     }
 
     private boolean isContNav(final UriInfo uriInfo) {
@@ -6,6 +6,8 @@
  */
 package com.wiltech.odata.service;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -15,8 +17,10 @@ import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
 import org.apache.olingo.commons.api.format.ContentType;
 import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpMethod;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
 import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataApplicationException;
@@ -24,7 +28,7 @@ import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
 import org.apache.olingo.server.api.ServiceMetadata;
 import org.apache.olingo.server.api.deserializer.DeserializerException;
-import org.apache.olingo.server.api.processor.EntityProcessor;
+import org.apache.olingo.server.api.processor.MediaEntityProcessor;
 import org.apache.olingo.server.api.serializer.EntitySerializerOptions;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
 import org.apache.olingo.server.api.serializer.SerializerException;
@@ -33,22 +37,50 @@ import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriParameter;
 import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.apache.olingo.server.api.uri.UriResourceKind;
 import org.apache.olingo.server.api.uri.UriResourceNavigation;
 
+import com.wiltech.odata.cache.ResponseCache;
+import com.wiltech.odata.data.MediaStore;
 import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.metrics.Phase;
+import com.wiltech.odata.metrics.RequestTimer;
+import com.wiltech.odata.query.SelectCompiler;
+import com.wiltech.odata.utils.ByteRange;
+import com.wiltech.odata.utils.FileContent;
+import com.wiltech.odata.utils.KeyMatcher;
 import com.wiltech.odata.utils.Util;
 
 /**
  * The type Demo entity processor. This class will be called when odata is queried by id. Eg http://localhost:8080/DemoService/DemoService.svc/Products(3)
+ * and for the media resources of media entities, Eg http://localhost:8080/DemoService/DemoService.svc/Products(3)/$value
  */
-public class DemoEntityProcessor implements EntityProcessor {
+public class DemoEntityProcessor implements MediaEntityProcessor {
 
     private OData odata;
     private ServiceMetadata srvMetadata;
     private final Storage storage;
+    private final Expander expander;
+    private final MediaAnnotator mediaAnnotator;
+    private final ResponseCache cache;
+    private final MediaStore mediaStore;
 
     public DemoEntityProcessor(final Storage storage) {
+        this(storage, null, null);
+    }
+
+    /**
+     * Instantiates a new Demo entity processor.
+     * @param storage the storage
+     * @param cache the cache of serialized responses, or null to serialize every response
+     * @param mediaStore the files of the media resources, or null if media entities have none
+     */
+    public DemoEntityProcessor(final Storage storage, final ResponseCache cache, final MediaStore mediaStore) {
         this.storage = storage;
+        this.expander = new Expander(storage);
+        this.mediaAnnotator = new MediaAnnotator(mediaStore);
+        this.cache = cache;
+        this.mediaStore = mediaStore;
     }
 
     public void init(final OData odata, final ServiceMetadata serviceMetadata) {
@@ -66,6 +98,8 @@ public class DemoEntityProcessor implements EntityProcessor {
      */
     public void readEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo, final ContentType responseFormat)
             throws ODataApplicationException, SerializerException {
+        // olingo parsed the uri, the time from here to the serializer is the storage's
+        RequestTimer.enter(Phase.STORAGE);
 
         EdmEntityType responseEdmEntityType = null; // we'll need this to build the ContextURL
         Entity responseEntity = null; // required for serialization of the response body
@@ -91,7 +125,8 @@ public class DemoEntityProcessor implements EntityProcessor {
 
             // 2. step: retrieve the data from backend
             final List<UriParameter> keyPredicates = uriResourceEntitySet.getKeyPredicates();
-            responseEntity = storage.readEntityData(startEdmEntitySet, keyPredicates);
+            responseEntity = storage.readEntityData(startEdmEntitySet, keyPredicates,
+                    SelectCompiler.compile(responseEdmEntityType, uriInfo.getSelectOption()));
         } else if (segmentCount == 2) { // navigation
             final UriResource navSegment = resourceParts.get(1); // in our example we don't support more complex URIs
             if (navSegment instanceof UriResourceNavigation) {
@@ -110,6 +145,9 @@ public class DemoEntityProcessor implements EntityProcessor {
                 final List<UriParameter> keyPredicates = uriResourceEntitySet.getKeyPredicates();
                 // e.g. for Products(1)/Category we have to find first the Products(1)
                 final Entity sourceEntity = storage.readEntityData(startEdmEntitySet, keyPredicates);
+                if (sourceEntity == null) {
+                    throw new ODataApplicationException("Entity not found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+                }
 
                 // now we have to check if the navigation is
                 // a) to-one: e.g. Products(1)/Category
@@ -118,10 +156,11 @@ public class DemoEntityProcessor implements EntityProcessor {
                 final List<UriParameter> navKeyPredicates = uriResourceNavigation.getKeyPredicates();
 
                 if (navKeyPredicates.isEmpty()) { // e.g. DemoService.svc/Products(1)/Category
-                    responseEntity = storage.getRelatedEntity(sourceEntity, responseEdmEntityType);
+                    responseEntity = storage.getRelatedEntity(sourceEntity, edmNavigationProperty);
                 } else { // e.g. DemoService.svc/Categories(3)/Products(5)
-                    responseEntity = storage.getRelatedEntity(sourceEntity, responseEdmEntityType, navKeyPredicates);
+                    responseEntity = storage.getRelatedEntity(sourceEntity, edmNavigationProperty, navKeyPredicates);
                 }
+                responseEntity = SelectCompiler.compile(responseEdmEntityType, uriInfo.getSelectOption()).apply(responseEntity);
             }
         } else {
             // this would be the case for e.g. Products(1)/Category/Products(1)/Category
@@ -133,17 +172,36 @@ public class DemoEntityProcessor implements EntityProcessor {
             throw new ODataApplicationException("Nothing found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
         }
 
+        // conditional GET: a client that has the current version gets 304 and nothing is serialized
+        final String eTag = uriInfo.getExpandOption() == null ? responseEntity.getETag() : storage.getETag();
+        if (Util.isNotModified(odata, request, response, eTag)) {
+            return;
+        }
+        final String cacheKey = cache == null ? null : ResponseCache.key(request, responseFormat);
+        if (cacheKey != null && cache.serve(cacheKey, eTag, request.getHeader(HttpHeader.ACCEPT_ENCODING), response)) {
+            return;
+        }
+
+        responseEntity = expander.expand(responseEntity, responseEdmEntityType, uriInfo.getExpandOption());
+        // a media entity tells the ETag and content type of its $value, a contained entity has none
+        responseEntity = mediaAnnotator.annotate(responseEntity, isContNav(uriInfo) ? null : responseEdmEntitySet);
+
         // 3. serialize
         ContextURL contextUrl = null;
+        // the context URL names the selected and expanded properties, e.g. $metadata#Products(ID,Name,Category())/$entity
+        final String selectList = odata.createUriHelper().buildContextURLSelectList(responseEdmEntityType,
+                uriInfo.getExpandOption(), uriInfo.getSelectOption());
         if (isContNav(uriInfo)) {
-            contextUrl = ContextURL.with().entitySetOrSingletonOrType(request.getRawODataPath()).
+            contextUrl = ContextURL.with().entitySetOrSingletonOrType(request.getRawODataPath()).selectList(selectList).
                     suffix(Suffix.ENTITY).build();
         } else {
-            contextUrl = ContextURL.with().entitySet(responseEdmEntitySet).suffix(Suffix.ENTITY).build();
+            contextUrl = ContextURL.with().entitySet(responseEdmEntitySet).selectList(selectList).suffix(Suffix.ENTITY).build();
         }
 
-        final EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl).build();
+        final EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl)
+                .select(uriInfo.getSelectOption()).expand(uriInfo.getExpandOption()).build();
 
+        RequestTimer.enter(Phase.SERIALIZE);
         final ODataSerializer serializer = this.odata.createSerializer(responseFormat);
         final SerializerResult serializerResult = serializer.entity(this.srvMetadata,
                 responseEdmEntityType, responseEntity, opts);
@@ -152,6 +210,10 @@ public class DemoEntityProcessor implements EntityProcessor {
         response.setContent(serializerResult.getContent());
         response.setStatusCode(HttpStatusCode.OK.getStatusCode());
         response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        if (cacheKey != null) {
+            cache.store(cacheKey, eTag, Collections.singleton(uriInfo.getExpandOption() == null
+                    ? responseEdmEntitySet.getName() : ResponseCache.ALL_ENTITY_SETS), response);
+        }
     }
 
     private boolean isContNav(final UriInfo uriInfo) {
@@ -168,23 +230,302 @@ public class DemoEntityProcessor implements EntityProcessor {
     }
 
     /*
-     * These processor methods are not handled in this tutorial
+     * This method is invoked when an entity is created, e.g. POST http://localhost:8080/DemoService/DemoService.svc/Products
+     * The response is 201 with the created entity, including a generated key, and its location.
      */
-
     public void createEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
             final ContentType requestFormat, final ContentType responseFormat)
             throws ODataApplicationException, DeserializerException, SerializerException {
-        throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getWritableEntitySet(uriInfo, false);
+        final EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+
+        final Entity requestEntity = odata.createDeserializer(requestFormat).entity(request.getBody(), edmEntityType).getEntity();
+        // acknowledged once the write-ahead log has it
+        final Entity createdEntity = storage.createEntityData(edmEntitySet, requestEntity);
+
+        RequestTimer.enter(Phase.SERIALIZE);
+        final ContextURL contextUrl = ContextURL.with().entitySet(edmEntitySet).suffix(Suffix.ENTITY).build();
+        final EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl).build();
+        final SerializerResult serializerResult = odata.createSerializer(responseFormat).entity(this.srvMetadata,
+                edmEntityType, createdEntity, opts);
+
+        response.setContent(serializerResult.getContent());
+        response.setStatusCode(HttpStatusCode.CREATED.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        response.setHeader(HttpHeader.LOCATION, request.getRawBaseUri() + "/" + createdEntity.getId());
+        response.setHeader(HttpHeader.ETAG, createdEntity.getETag());
     }
 
+    /*
+     * This method is invoked when an entity is updated, e.g. PATCH or PUT http://localhost:8080/DemoService/DemoService.svc/Products(3)
+     * PATCH changes only the properties in the request body, PUT replaces the entity.
+     * Products and Categories have ETags, so the request must have an If-Match header.
+     */
     public void updateEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
             final ContentType requestFormat, final ContentType responseFormat)
             throws ODataApplicationException, DeserializerException, SerializerException {
-        throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getWritableEntitySet(uriInfo, true);
+        final List<UriParameter> keyPredicates = ((UriResourceEntitySet) uriInfo.getUriResourceParts().get(0)).getKeyPredicates();
+
+        final String eTag = checkChangePreconditions(request, edmEntitySet, keyPredicates);
+        final Entity requestEntity = odata.createDeserializer(requestFormat).entity(request.getBody(),
+                edmEntitySet.getEntityType()).getEntity();
+        final Entity updatedEntity = storage.updateEntityData(edmEntitySet, keyPredicates, requestEntity,
+                request.getMethod() == HttpMethod.PUT, eTag);
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+        response.setHeader(HttpHeader.ETAG, updatedEntity.getETag());
     }
 
+    /*
+     * This method is invoked when an entity is deleted, e.g. DELETE http://localhost:8080/DemoService/DemoService.svc/Products(3)
+     */
     public void deleteEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo)
             throws ODataApplicationException {
-        throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getWritableEntitySet(uriInfo, true);
+        final List<UriParameter> keyPredicates = ((UriResourceEntitySet) uriInfo.getUriResourceParts().get(0)).getKeyPredicates();
+
+        final String eTag = checkChangePreconditions(request, edmEntitySet, keyPredicates);
+        storage.deleteEntityData(edmEntitySet, keyPredicates, eTag);
+        if (mediaStore != null && edmEntitySet.getEntityType().hasStream()) {
+            // the media resource goes with its entity, in a changeset only once the delete is committed
+            final String keyPredicate = getKeyPredicate(edmEntitySet, keyPredicates);
+            storage.afterCommit(() -> deleteMediaResource(edmEntitySet, keyPredicate));
+        }
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+    }
+
+    /*
+     * This method is invoked when the media resource of a media entity is read, e.g. http://localhost:8080/DemoService/DemoService.svc/Products(3)/$value
+     * The file is sent as it is, from disk to the response; a Range header, e.g. bytes=0-1023, gets only that part with 206.
+     */
+    public void readMediaEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
+            final ContentType responseFormat) throws ODataApplicationException {
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getMediaEntitySet(uriInfo);
+        final List<UriParameter> keyPredicates = ((UriResourceEntitySet) uriInfo.getUriResourceParts().get(0)).getKeyPredicates();
+        if (storage.readEntityData(edmEntitySet, keyPredicates) == null) {
+            throw new ODataApplicationException("Nothing found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+        }
+
+        final MediaStore.Media media = mediaStore.open(edmEntitySet.getName(), getKeyPredicate(edmEntitySet, keyPredicates));
+        if (media == null) {
+            throw new ODataApplicationException("The entity has no media resource.",
+                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+        }
+        boolean sent = false;
+        try {
+            // conditional GET on the version of the file that was opened, a write after it doesn't change what is sent
+            if (Util.isNotModified(odata, request, response, media.getETag())) {
+                return;
+            }
+            final long size = media.size();
+            final ByteRange range = ByteRange.matches(request.getHeader(ByteRange.IF_RANGE), media.getETag())
+                    ? ByteRange.parse(request.getHeader(HttpHeader.RANGE), size) : null;
+            response.setHeader(ByteRange.ACCEPT_RANGES, ByteRange.BYTES);
+            if (range != null && !range.isSatisfiable()) {
+                response.setStatusCode(HttpStatusCode.RANGE_NOT_SATISFIABLE.getStatusCode());
+                response.setHeader(ByteRange.CONTENT_RANGE, ByteRange.unsatisfied(size));
+                return;
+            }
+
+            RequestTimer.enter(Phase.SERIALIZE);
+            final long position = range == null ? 0 : range.getFirst();
+            final long length = range == null ? size : range.getLength();
+            response.setODataContent(new FileContent(media.getChannel(), position, length));
+            sent = true;
+            if (range == null) {
+                response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+            } else {
+                response.setStatusCode(HttpStatusCode.PARTIAL_CONTENT.getStatusCode());
+                response.setHeader(ByteRange.CONTENT_RANGE, range.getContentRange());
+            }
+            response.setHeader(HttpHeader.CONTENT_TYPE, media.getContentType());
+            response.setHeader(HttpHeader.CONTENT_LENGTH, Long.toString(length));
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to read the media resource", e);
+        } finally {
+            if (!sent) {
+                close(media);
+            }
+        }
+    }
+
+    /*
+     * This method is invoked when a media entity is created, e.g. POST http://localhost:8080/DemoService/DemoService.svc/Products
+     * with an image as the body: the entity gets a generated key and no properties, the body is its media resource.
+     * A JSON or XML body is the entity itself, as for any other entity set.
+     */
+    public void createMediaEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
+            final ContentType requestFormat, final ContentType responseFormat)
+            throws ODataApplicationException, DeserializerException, SerializerException {
+        if (requestFormat.isCompatible(ContentType.APPLICATION_JSON) || requestFormat.isCompatible(ContentType.APPLICATION_XML)) {
+            createEntity(request, response, uriInfo, requestFormat, responseFormat);
+            return;
+        }
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getWritableEntitySet(uriInfo, false);
+        final EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+        checkMediaStore();
+        checkNotInChangeSet();
+
+        final Entity createdEntity = storage.createEntityData(edmEntitySet, new Entity());
+        final String keyPredicate = KeyMatcher.of(edmEntityType).toKeyPredicate(KeyMatcher.of(edmEntityType).keyOf(createdEntity));
+        final String mediaETag = mediaStore.write(edmEntitySet.getName(), keyPredicate, requestFormat.toContentTypeString(),
+                request.getBody(), null);
+        createdEntity.setMediaContentType(requestFormat.toContentTypeString());
+        createdEntity.setMediaETag(mediaETag);
+
+        RequestTimer.enter(Phase.SERIALIZE);
+        final ContextURL contextUrl = ContextURL.with().entitySet(edmEntitySet).suffix(Suffix.ENTITY).build();
+        final EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl).build();
+        final SerializerResult serializerResult = odata.createSerializer(responseFormat).entity(this.srvMetadata,
+                edmEntityType, createdEntity, opts);
+
+        response.setContent(serializerResult.getContent());
+        response.setStatusCode(HttpStatusCode.CREATED.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        response.setHeader(HttpHeader.LOCATION, request.getRawBaseUri() + "/" + createdEntity.getId());
+        response.setHeader(HttpHeader.ETAG, createdEntity.getETag());
+    }
+
+    /*
+     * This method is invoked when the media resource of a media entity is replaced, e.g. PUT http://localhost:8080/DemoService/DemoService.svc/Products(3)/$value
+     * The body is streamed into a file as it arrives. The If-Match header is checked against the ETag of the media resource.
+     */
+    public void updateMediaEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
+            final ContentType requestFormat, final ContentType responseFormat) throws ODataApplicationException {
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getMediaEntitySet(uriInfo);
+        final String keyPredicate = getMediaKeyPredicate(edmEntitySet, uriInfo);
+        checkNotInChangeSet();
+
+        final String eTag = checkMediaPreconditions(request, edmEntitySet, keyPredicate);
+        final String mediaETag = mediaStore.write(edmEntitySet.getName(), keyPredicate, requestFormat.toContentTypeString(),
+                request.getBody(), eTag);
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+        response.setHeader(HttpHeader.ETAG, mediaETag);
+    }
+
+    /*
+     * This method is invoked when the media resource of a media entity is deleted, e.g. DELETE http://localhost:8080/DemoService/DemoService.svc/Products(3)/$value
+     * The entity stays, without a media resource.
+     */
+    public void deleteMediaEntity(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo)
+            throws ODataApplicationException {
+        RequestTimer.enter(Phase.STORAGE);
+        final EdmEntitySet edmEntitySet = getMediaEntitySet(uriInfo);
+        final String keyPredicate = getMediaKeyPredicate(edmEntitySet, uriInfo);
+        checkNotInChangeSet();
+
+        final String eTag = checkMediaPreconditions(request, edmEntitySet, keyPredicate);
+        if (!mediaStore.delete(edmEntitySet.getName(), keyPredicate, eTag)) {
+            throw new ODataApplicationException("The entity has no media resource.",
+                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+        }
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+    }
+
+    // only entity sets and single entities of entity sets are written, not navigations
+    private EdmEntitySet getWritableEntitySet(final UriInfo uriInfo, final boolean withKey) throws ODataApplicationException {
+        final List<UriResource> resourceParts = uriInfo.getUriResourceParts();
+        if (resourceParts.size() != 1 || !(resourceParts.get(0) instanceof UriResourceEntitySet)
+                || ((UriResourceEntitySet) resourceParts.get(0)).getKeyPredicates().isEmpty() == withKey) {
+            throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+        return ((UriResourceEntitySet) resourceParts.get(0)).getEntitySet();
+    }
+
+    // only the media resources of entities of an entity set, e.g. Products(1)/$value, not Categories(1)/Products(1)/$value
+    private EdmEntitySet getMediaEntitySet(final UriInfo uriInfo) throws ODataApplicationException {
+        final List<UriResource> resourceParts = uriInfo.getUriResourceParts();
+        if (resourceParts.size() != 2 || !(resourceParts.get(0) instanceof UriResourceEntitySet)
+                || resourceParts.get(1).getKind() != UriResourceKind.value) {
+            throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+        checkMediaStore();
+        return ((UriResourceEntitySet) resourceParts.get(0)).getEntitySet();
+    }
+
+    private void checkMediaStore() throws ODataApplicationException {
+        if (mediaStore == null) {
+            throw new ODataApplicationException("Media resources are not supported.",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+    }
+
+    // a media resource is written to its file at once, a changeset that fails later couldn't drop the write
+    private void checkNotInChangeSet() throws ODataApplicationException {
+        if (storage.isInChangeSet()) {
+            throw new ODataApplicationException("Media resources can't be written in a changeset.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+    }
+
+    // without an ETag the media store doesn't refuse the delete
+    private void deleteMediaResource(final EdmEntitySet edmEntitySet, final String keyPredicate) {
+        try {
+            mediaStore.delete(edmEntitySet.getName(), keyPredicate, null);
+        } catch (final ODataApplicationException e) {
+            throw new ODataRuntimeException(e);
+        }
+    }
+
+    // the key predicate of an entity that exists, which names its media resource
+    private String getMediaKeyPredicate(final EdmEntitySet edmEntitySet, final UriInfo uriInfo) throws ODataApplicationException {
+        final List<UriParameter> keyPredicates = ((UriResourceEntitySet) uriInfo.getUriResourceParts().get(0)).getKeyPredicates();
+        if (storage.readEntityData(edmEntitySet, keyPredicates) == null) {
+            throw new ODataApplicationException("Nothing found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+        }
+        return getKeyPredicate(edmEntitySet, keyPredicates);
+    }
+
+    // the key predicate in a canonical form, e.g. 1 for Products(1) and Products(ID=1)
+    private static String getKeyPredicate(final EdmEntitySet edmEntitySet, final List<UriParameter> keyPredicates) {
+        final KeyMatcher keyMatcher = KeyMatcher.of(edmEntitySet.getEntityType());
+        return keyMatcher.toKeyPredicate(keyMatcher.parse(keyPredicates));
+    }
+
+    // the ETag of the media resource the If-Match header was checked against, the media store refuses the write if it changed
+    // since; null for If-Match: *, which matches any version
+    private String checkMediaPreconditions(final ODataRequest request, final EdmEntitySet edmEntitySet, final String keyPredicate)
+            throws ODataApplicationException {
+        final String current = mediaStore.getETag(edmEntitySet.getName(), keyPredicate);
+        if (current == null) {
+            // no If-Match, not even *, matches a media resource that doesn't exist; the first one is written with If-None-Match: *
+            if (request.getHeader(HttpHeader.IF_MATCH) != null) {
+                throw new ODataApplicationException("The entity has no media resource.",
+                        HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ROOT);
+            }
+            return null;
+        }
+        Util.checkChangePreconditions(odata, request, current);
+        return Util.isUnconditional(request) ? null : current;
+    }
+
+    private static void close(final MediaStore.Media media) {
+        try {
+            media.close();
+        } catch (final IOException e) {
+            // read only, nothing is lost
+        }
+    }
+
+    // the ETag of the entity the If-Match header was checked against, the storage refuses the write if it changed since;
+    // null for If-Match: *, which matches any version
+    private String checkChangePreconditions(final ODataRequest request, final EdmEntitySet edmEntitySet,
+            final List<UriParameter> keyPredicates) throws ODataApplicationException {
+        final Entity current = storage.readEntityData(edmEntitySet, keyPredicates);
+        if (current == null) {
+            throw new ODataApplicationException("Nothing found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
+        }
+        Util.checkChangePreconditions(odata, request, current.getETag());
+        return Util.isUnconditional(request) ? null : current.getETag();
     }
 }
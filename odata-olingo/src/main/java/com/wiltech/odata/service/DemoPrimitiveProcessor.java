@@ -13,6 +13,7 @@ import java.util.Locale;
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
 import org.apache.olingo.commons.api.edm.EdmProperty;
@@ -25,23 +26,28 @@ import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
 import org.apache.olingo.server.api.ServiceMetadata;
 import org.apache.olingo.server.api.deserializer.DeserializerException;
-import org.apache.olingo.server.api.processor.PrimitiveProcessor;
+import org.apache.olingo.server.api.processor.PrimitiveValueProcessor;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
 import org.apache.olingo.server.api.serializer.PrimitiveSerializerOptions;
+import org.apache.olingo.server.api.serializer.PrimitiveValueSerializerOptions;
 import org.apache.olingo.server.api.serializer.SerializerException;
 import org.apache.olingo.server.api.serializer.SerializerResult;
 import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriParameter;
 import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.apache.olingo.server.api.uri.UriResourceKind;
 import org.apache.olingo.server.api.uri.UriResourceProperty;
 
 import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.metrics.Phase;
+import com.wiltech.odata.metrics.RequestTimer;
+import com.wiltech.odata.utils.Util;
 
 /**
- * The type Demo primitive processor.
+ * The type Demo primitive processor. Reads and writes single properties, wrapped in JSON or XML, or as their raw $value.
  */
-public class DemoPrimitiveProcessor implements PrimitiveProcessor {
+public class DemoPrimitiveProcessor implements PrimitiveValueProcessor {
 
     private OData odata;
     private final Storage storage;
@@ -69,6 +75,8 @@ public class DemoPrimitiveProcessor implements PrimitiveProcessor {
     public void readPrimitive(final ODataRequest request, final ODataResponse response,
             final UriInfo uriInfo, final ContentType responseFormat)
             throws ODataApplicationException, SerializerException {
+        // olingo parsed the uri, the time from here to the serializer is the storage's
+        RequestTimer.enter(Phase.STORAGE);
 
         // 1. Retrieve info from URI
         // 1.1. retrieve the info about the requested entity set
@@ -95,6 +103,11 @@ public class DemoPrimitiveProcessor implements PrimitiveProcessor {
                     HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
         }
 
+        // conditional GET: the property changes with the version of its entity
+        if (Util.isNotModified(odata, request, response, entity.getETag())) {
+            return;
+        }
+
         // 2.2. retrieve the property data from the entity
         final Property property = entity.getProperty(edmPropertyName);
         if (property == null) {
@@ -106,6 +119,7 @@ public class DemoPrimitiveProcessor implements PrimitiveProcessor {
         final Object value = property.getValue();
         if (value != null) {
             // 3.1. configure the serializer
+            RequestTimer.enter(Phase.SERIALIZE);
             final ODataSerializer serializer = odata.createSerializer(responseFormat);
 
             final ContextURL contextUrl = ContextURL.with().entitySet(edmEntitySet).navOrPropertyPath(edmPropertyName).build();
@@ -125,17 +139,133 @@ public class DemoPrimitiveProcessor implements PrimitiveProcessor {
     }
 
     /*
-     * These processor methods are not handled in this tutorial
+     * This method is invoked when a property is set, e.g. PUT http://localhost:8080/DemoService/DemoService.svc/Products(1)/Name
+     * with the body {"value": "Notebook Basic 17"}
      */
-
     public void updatePrimitive(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo, final ContentType requestFormat,
             final ContentType responseFormat)
             throws ODataApplicationException, DeserializerException, SerializerException {
-        throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        RequestTimer.enter(Phase.STORAGE);
+        final UriResourceEntitySet uriEntityset = (UriResourceEntitySet) uriInfo.getUriResourceParts().get(0);
+        final EdmProperty edmProperty = getWritableProperty(uriInfo);
+
+        final String eTag = checkChangePreconditions(request, uriEntityset);
+        final Property property = odata.createDeserializer(requestFormat).property(request.getBody(), edmProperty).getProperty();
+        if (property.getValue() == null && !edmProperty.isNullable()) {
+            throw new ODataApplicationException("The property " + edmProperty.getName() + " can't be null.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+        final Entity updatedEntity = storage.updatePropertyData(uriEntityset.getEntitySet(), uriEntityset.getKeyPredicates(),
+                edmProperty.getName(), property, eTag);
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+        response.setHeader(HttpHeader.ETAG, updatedEntity.getETag());
     }
 
+    /*
+     * This method is invoked when a property is set to null, e.g. DELETE http://localhost:8080/DemoService/DemoService.svc/Products(1)/Description
+     */
     public void deletePrimitive(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo)
             throws ODataApplicationException {
-        throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        RequestTimer.enter(Phase.STORAGE);
+        final UriResourceEntitySet uriEntityset = (UriResourceEntitySet) uriInfo.getUriResourceParts().get(0);
+        final EdmProperty edmProperty = getWritableProperty(uriInfo);
+        if (!edmProperty.isNullable()) {
+            throw new ODataApplicationException("The property " + edmProperty.getName() + " can't be null.",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+        }
+
+        final String eTag = checkChangePreconditions(request, uriEntityset);
+        storage.updatePropertyData(uriEntityset.getEntitySet(), uriEntityset.getKeyPredicates(), edmProperty.getName(), null, eTag);
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+    }
+
+    /*
+     * This method is invoked when the raw value of a property is read, e.g. http://localhost:8080/DemoService/DemoService.svc/Products(1)/Name/$value
+     * The response is the value as text, Notebook Basic 15, without the JSON or XML around it and without escaping.
+     */
+    public void readPrimitiveValue(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
+            final ContentType responseFormat) throws ODataApplicationException, SerializerException {
+        RequestTimer.enter(Phase.STORAGE);
+        final UriResourceEntitySet uriEntityset = (UriResourceEntitySet) uriInfo.getUriResourceParts().get(0);
+        final EdmProperty edmProperty = getWritableProperty(uriInfo);
+
+        final Entity entity = storage.readEntityData(uriEntityset.getEntitySet(), uriEntityset.getKeyPredicates());
+        if (entity == null) {
+            throw new ODataApplicationException("Entity not found",
+                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+        }
+        if (Util.isNotModified(odata, request, response, entity.getETag())) {
+            return;
+        }
+
+        final Property property = entity.getProperty(edmProperty.getName());
+        if (property == null || property.getValue() == null) {
+            // a null value has no raw representation
+            response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+            return;
+        }
+        RequestTimer.enter(Phase.SERIALIZE);
+        final PrimitiveValueSerializerOptions options = PrimitiveValueSerializerOptions.with().facetsFrom(edmProperty).build();
+        response.setContent(odata.createFixedFormatSerializer().primitiveValue((EdmPrimitiveType) edmProperty.getType(),
+                property.getValue(), options));
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+    }
+
+    /*
+     * This method is invoked when the raw value of a property is set, e.g. PUT http://localhost:8080/DemoService/DemoService.svc/Products(1)/Name/$value
+     * with the body Notebook Basic 17
+     */
+    public void updatePrimitiveValue(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo,
+            final ContentType requestFormat, final ContentType responseFormat)
+            throws ODataApplicationException, DeserializerException {
+        RequestTimer.enter(Phase.STORAGE);
+        final UriResourceEntitySet uriEntityset = (UriResourceEntitySet) uriInfo.getUriResourceParts().get(0);
+        final EdmProperty edmProperty = getWritableProperty(uriInfo);
+
+        final String eTag = checkChangePreconditions(request, uriEntityset);
+        final Object value = odata.createFixedFormatDeserializer().primitiveValue(request.getBody(), edmProperty);
+        final Property property = new Property(null, edmProperty.getName(), ValueType.PRIMITIVE, value);
+        final Entity updatedEntity = storage.updatePropertyData(uriEntityset.getEntitySet(), uriEntityset.getKeyPredicates(),
+                edmProperty.getName(), property, eTag);
+
+        response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
+        response.setHeader(HttpHeader.ETAG, updatedEntity.getETag());
+    }
+
+    /*
+     * This method is invoked when the raw value of a property is deleted, e.g. DELETE http://localhost:8080/DemoService/DemoService.svc/Products(1)/Description/$value
+     * which sets the property to null, as deleting the property does.
+     */
+    public void deletePrimitiveValue(final ODataRequest request, final ODataResponse response, final UriInfo uriInfo)
+            throws ODataApplicationException {
+        deletePrimitive(request, response, uriInfo);
+    }
+
+    // only properties of entities of an entity set are written, e.g. Products(1)/Name or its Products(1)/Name/$value,
+    // not Products(1)/Category/Name
+    private EdmProperty getWritableProperty(final UriInfo uriInfo) throws ODataApplicationException {
+        final List<UriResource> resourceParts = uriInfo.getUriResourceParts();
+        final int valueSegments = resourceParts.get(resourceParts.size() - 1).getKind() == UriResourceKind.value ? 1 : 0;
+        if (resourceParts.size() != 2 + valueSegments || !(resourceParts.get(0) instanceof UriResourceEntitySet)
+                || !(resourceParts.get(1) instanceof UriResourceProperty)) {
+            throw new ODataApplicationException("Not supported.", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+        }
+        return ((UriResourceProperty) resourceParts.get(1)).getProperty();
+    }
+
+    // the ETag of the entity the If-Match header was checked against, the storage refuses the write if it changed since;
+    // null for If-Match: *, which matches any version
+    private String checkChangePreconditions(final ODataRequest request, final UriResourceEntitySet uriEntityset)
+            throws ODataApplicationException {
+        final Entity entity = storage.readEntityData(uriEntityset.getEntitySet(), uriEntityset.getKeyPredicates());
+        if (entity == null) {
+            throw new ODataApplicationException("Entity not found",
+                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+        }
+        Util.checkChangePreconditions(odata, request, entity.getETag());
+        return Util.isUnconditional(request) ? null : entity.getETag();
     }
 }
@@ -0,0 +1,162 @@
+package com.wiltech.odata.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.olingo.commons.api.Constants;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.Link;
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriResource;
+import org.apache.olingo.server.api.uri.UriResourceNavigation;
+import org.apache.olingo.server.api.uri.queryoption.ExpandItem;
+import org.apache.olingo.server.api.uri.queryoption.ExpandOption;
+
+import com.wiltech.odata.data.EntityFilter;
+import com.wiltech.odata.data.EntityOrder;
+import com.wiltech.odata.data.Projection;
+import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.query.FilterCompiler;
+import com.wiltech.odata.query.OrderByCompiler;
+import com.wiltech.odata.query.SelectCompiler;
+
+/**
+ * The type Expander. Adds the inline entities of a $expand to the entities of a response.
+ * The related entities are read in one batch per navigation property for all entities of the response,
+ * not once per entity, and nested $expand items are resolved the same way, one level after the other.
+ * Inside an expand item $select, $filter, $orderby, $top and $skip are supported.
+ */
+final class Expander {
+
+    private final Storage storage;
+
+    Expander(final Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Expand the entities of a response.
+     * @param entities the entities, they are replaced by views in place, since the stored entities must not get the inline entities
+     * @param edmEntityType the entity type of the entities
+     * @param expandOption the $expand, may be null
+     * @throws ODataApplicationException if an expand item uses something not supported
+     */
+    void expand(final List<Entity> entities, final EdmEntityType edmEntityType, final ExpandOption expandOption)
+            throws ODataApplicationException {
+        if (expandOption == null || entities.isEmpty()) {
+            return;
+        }
+        entities.replaceAll(Projection.ALL::view);
+        expandViews(entities, edmEntityType, expandOption);
+    }
+
+    // the entities are views owned by this response
+    private void expandViews(final List<Entity> entities, final EdmEntityType edmEntityType, final ExpandOption expandOption)
+            throws ODataApplicationException {
+        for (final ExpandItem item : expandOption.getExpandItems()) {
+            if (item.getLevelsOption() != null || item.hasCountPath() || item.isRef()) {
+                throw new ODataApplicationException("$levels, $count and $ref are not supported in $expand.",
+                        HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+            }
+            if (item.isStar()) {
+                for (final String navigationName : edmEntityType.getNavigationPropertyNames()) {
+                    expandNavigation(entities, edmEntityType.getNavigationProperty(navigationName), null);
+                }
+            } else {
+                final List<UriResource> parts = item.getResourcePath().getUriResourceParts();
+                final UriResource last = parts.get(parts.size() - 1);
+                if (!(last instanceof UriResourceNavigation)) {
+                    throw new ODataApplicationException("Only navigation properties can be expanded.",
+                            HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+                }
+                expandNavigation(entities, ((UriResourceNavigation) last).getProperty(), item);
+            }
+        }
+    }
+
+    /**
+     * Expand one entity.
+     * @param entity the entity, may be null
+     * @param edmEntityType the entity type of the entity
+     * @param expandOption the $expand, may be null
+     * @return the entity, or a view of it with the inline entities
+     * @throws ODataApplicationException if an expand item uses something not supported
+     */
+    Entity expand(final Entity entity, final EdmEntityType edmEntityType, final ExpandOption expandOption)
+            throws ODataApplicationException {
+        if (entity == null || expandOption == null) {
+            return entity;
+        }
+        final List<Entity> entities = new ArrayList<Entity>(Collections.singletonList(entity));
+        expand(entities, edmEntityType, expandOption);
+        return entities.get(0);
+    }
+
+    private void expandNavigation(final List<Entity> entities, final EdmNavigationProperty edmNavigationProperty,
+            final ExpandItem item) throws ODataApplicationException {
+        final EdmEntityType targetType = edmNavigationProperty.getType();
+        final Projection projection = SelectCompiler.compile(targetType, item == null ? null : item.getSelectOption());
+        final EntityFilter filter = item == null ? null : FilterCompiler.compile(targetType, item.getFilterOption());
+        final EntityOrder order = item == null ? null : OrderByCompiler.compile(item.getOrderByOption());
+
+        // one batch for all entities of this level
+        final Map<Entity, List<Entity>> related = storage.getRelatedEntities(entities, edmNavigationProperty);
+
+        // a target shared by several entities, e.g. the Category of many Products, gets one view
+        final Map<Entity, Entity> views = new IdentityHashMap<Entity, Entity>();
+        for (final Entity entity : entities) {
+            final List<Entity> targets = new ArrayList<Entity>(related.get(entity));
+            if (filter != null) {
+                targets.removeIf(target -> !filter.test(target));
+            }
+            if (order != null) {
+                targets.sort(order.getComparator());
+            }
+            // a nested $count=true counts the filtered targets, before $top and $skip
+            final int count = targets.size();
+            if (item != null) {
+                applyTopSkip(targets, item);
+            }
+            targets.replaceAll(target -> views.computeIfAbsent(target, projection::view));
+
+            final Link link = new Link();
+            link.setTitle(edmNavigationProperty.getName());
+            link.setRel(Constants.NS_NAVIGATION_LINK_REL + edmNavigationProperty.getName());
+            if (edmNavigationProperty.isCollection()) {
+                final EntityCollection inline = new EntityCollection();
+                inline.getEntities().addAll(targets);
+                if (item != null && item.getCountOption() != null && item.getCountOption().getValue()) {
+                    inline.setCount(count);
+                }
+                link.setType(Constants.ENTITY_SET_NAVIGATION_LINK_TYPE);
+                link.setInlineEntitySet(inline);
+            } else {
+                link.setType(Constants.ENTITY_NAVIGATION_LINK_TYPE);
+                link.setInlineEntity(targets.isEmpty() ? null : targets.get(0));
+            }
+            entity.getNavigationLinks().add(link);
+        }
+
+        // the next level, again in one batch per navigation property
+        if (item != null && item.getExpandOption() != null && !views.isEmpty()) {
+            expandViews(new ArrayList<Entity>(views.values()), targetType, item.getExpandOption());
+        }
+    }
+
+    private void applyTopSkip(final List<Entity> entities, final ExpandItem item) {
+        if (item.getSkipOption() != null) {
+            entities.subList(0, Math.min(entities.size(), item.getSkipOption().getValue())).clear();
+        }
+        if (item.getTopOption() != null && item.getTopOption().getValue() < entities.size()) {
+            entities.subList(item.getTopOption().getValue(), entities.size()).clear();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.wiltech.odata.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpMethod;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.deserializer.batch.BatchRequestPart;
+import org.apache.olingo.server.api.deserializer.batch.ODataResponsePart;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The type Json batch. Reads and writes the JSON format of batch requests:
+ * {"requests":[{"id":"1","atomicityGroup":"g1","method":"post","url":"Products","headers":{...},"body":{...}}]}
+ * is answered by {"responses":[{"id":"1","status":201,"headers":{...},"body":{...}}]}.
+ * Consecutive requests of the same atomicity group are a changeset. The requests are answered in order,
+ * so dependsOn needs no handling of its own.
+ */
+final class JsonBatch {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private JsonBatch() {
+    }
+
+    /**
+     * Reads the requests of a JSON batch.
+     * @param body the batch request body
+     * @param rawBaseUri the service root, the urls of the requests are relative to it
+     * @return the parts, in order
+     * @throws ODataApplicationException with 400 if the batch is malformed
+     */
+    static List<BatchRequestPart> readRequests(final InputStream body, final String rawBaseUri) throws ODataApplicationException {
+        final List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>();
+        try (JsonParser parser = JSON.createParser(body)) {
+            expect(parser.nextToken() == JsonToken.START_OBJECT, "A JSON batch must be an object.");
+            boolean found = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("requests".equals(field)) {
+                    expect(parser.currentToken() == JsonToken.START_ARRAY, "The requests must be an array.");
+                    readParts(parser, rawBaseUri, parts);
+                    found = true;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            expect(found, "The batch has no requests.");
+        } catch (final IOException e) {
+            throw badRequest("The batch is not valid JSON: " + e.getMessage());
+        }
+        return parts;
+    }
+
+    /**
+     * Writes the responses of a JSON batch.
+     * @param parts the responses, in order
+     * @return the response body
+     */
+    static byte[] writeResponses(final List<ODataResponsePart> parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("responses");
+            for (final ODataResponsePart part : parts) {
+                for (final ODataResponse response : part.getResponses()) {
+                    writeResponse(json, response);
+                }
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        } catch (final IOException e) {
+            // a byte array doesn't throw
+            throw new ODataRuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void readParts(final JsonParser parser, final String rawBaseUri, final List<BatchRequestPart> parts)
+            throws IOException, ODataApplicationException {
+        // atomicity groups must be consecutive, a group that was closed can't start again
+        final Set<String> closedGroups = new HashSet<String>();
+        String group = null;
+        List<ODataRequest> changeSet = null;
+        int index = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            index++;
+            final String[] requestGroup = new String[1];
+            final ODataRequest request = readRequest(parser, rawBaseUri, index, requestGroup);
+            if (requestGroup[0] == null || !requestGroup[0].equals(group)) {
+                if (group != null) {
+                    closedGroups.add(group);
+                    parts.add(new BatchRequestPart(true, changeSet));
+                }
+                group = requestGroup[0];
+                changeSet = null;
+                if (group != null) {
+                    expect(!closedGroups.contains(group), "The requests of atomicity group " + group + " are not adjacent.");
+                    changeSet = new ArrayList<ODataRequest>();
+                }
+            }
+            if (group == null) {
+                parts.add(new BatchRequestPart(false, request));
+            } else {
+                expect(request.getMethod() != HttpMethod.GET, "Request " + index + " reads in atomicity group " + group + ".");
+                changeSet.add(request);
+            }
+        }
+        if (group != null) {
+            parts.add(new BatchRequestPart(true, changeSet));
+        }
+    }
+
+    private static ODataRequest readRequest(final JsonParser parser, final String rawBaseUri, final int index, final String[] group)
+            throws IOException, ODataApplicationException {
+        final ODataRequest request = new ODataRequest();
+        String id = null;
+        String method = null;
+        String url = null;
+        byte[] body = null;
+        boolean jsonBody = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            switch (field) {
+            case "id":
+                id = parser.getValueAsString();
+                break;
+            case "atomicityGroup":
+                group[0] = parser.getValueAsString();
+                break;
+            case "method":
+                method = parser.getValueAsString();
+                break;
+            case "url":
+                url = parser.getValueAsString();
+                break;
+            case "headers":
+                expect(value == JsonToken.START_OBJECT, "The headers of request " + index + " must be an object.");
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    parser.nextToken();
+                    request.addHeader(name, parser.getValueAsString());
+                }
+                break;
+            case "body":
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+                    try (JsonGenerator json = JSON.createGenerator(copy, JsonEncoding.UTF8)) {
+                        json.copyCurrentStructure(parser);
+                    }
+                    body = copy.toByteArray();
+                    jsonBody = true;
+                } else if (value != JsonToken.VALUE_NULL) {
+                    body = parser.getValueAsString().getBytes(StandardCharsets.UTF_8);
+                }
+                break;
+            default:
+                // dependsOn, if-conditions and anything unknown
+                parser.skipChildren();
+                break;
+            }
+        }
+        expect(method != null && url != null, "Request " + index + " needs a method and a url.");
+
+        try {
+            request.setMethod(HttpMethod.valueOf(method.toUpperCase(Locale.ROOT)));
+        } catch (final IllegalArgumentException e) {
+            throw badRequest("Request " + index + " has an unknown method " + method + ".");
+        }
+        final String resource = resolve(url, rawBaseUri, index);
+        final int query = resource.indexOf('?');
+        request.setRawBaseUri(rawBaseUri);
+        request.setRawServiceResolutionUri("");
+        request.setRawODataPath(query < 0 ? resource : resource.substring(0, query));
+        request.setRawQueryPath(query < 0 ? "" : resource.substring(query + 1));
+        request.setRawRequestUri(rawBaseUri + resource);
+        request.setProtocol("HTTP/1.1");
+        if (id != null) {
+            request.setHeader(HttpHeader.CONTENT_ID, id);
+        }
+        if (body != null) {
+            if (jsonBody && request.getHeader(HttpHeader.CONTENT_TYPE) == null) {
+                request.setHeader(HttpHeader.CONTENT_TYPE, ContentType.APPLICATION_JSON.toContentTypeString());
+            }
+            request.setBody(new ByteArrayInputStream(body));
+        }
+        return request;
+    }
+
+    // the url relative to the service root, starting with a slash: absolute urls and absolute paths must be below the root
+    private static String resolve(final String url, final String rawBaseUri, final int index) throws ODataApplicationException {
+        if (url.startsWith(rawBaseUri)) {
+            return ensureSlash(url.substring(rawBaseUri.length()));
+        }
+        if (url.startsWith("/")) {
+            final String basePath = URI.create(rawBaseUri).getRawPath();
+            expect(url.startsWith(basePath), "The url of request " + index + " is not below the service root.");
+            return ensureSlash(url.substring(basePath.length()));
+        }
+        expect(!url.contains("://"), "The url of request " + index + " is not below the service root.");
+        return ensureSlash(url);
+    }
+
+    private static String ensureSlash(final String path) {
+        return path.startsWith("/") ? path : "/" + path;
+    }
+
+    private static void writeResponse(final JsonGenerator json, final ODataResponse response) throws IOException {
+        json.writeStartObject();
+        final String contentId = response.getHeader(HttpHeader.CONTENT_ID);
+        if (contentId != null) {
+            json.writeStringField("id", contentId);
+        }
+        json.writeNumberField("status", response.getStatusCode());
+        json.writeObjectFieldStart("headers");
+        for (final Map.Entry<String, List<String>> header : response.getAllHeaders().entrySet()) {
+            if (!HttpHeader.CONTENT_ID.equalsIgnoreCase(header.getKey())) {
+                json.writeStringField(header.getKey().toLowerCase(Locale.ROOT), String.join(", ", header.getValue()));
+            }
+        }
+        json.writeEndObject();
+
+        final byte[] body = bodyOf(response);
+        if (body != null && body.length > 0) {
+            json.writeFieldName("body");
+            final String contentType = response.getHeader(HttpHeader.CONTENT_TYPE);
+            if (contentType == null) {
+                json.writeBinary(body);
+            } else if (ContentType.parse(contentType).isCompatible(ContentType.APPLICATION_JSON)) {
+                json.writeRawValue(new String(body, StandardCharsets.UTF_8));
+            } else if (contentType.startsWith("text/") || contentType.contains("xml")) {
+                json.writeString(new String(body, StandardCharsets.UTF_8));
+            } else {
+                json.writeBinary(body);
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private static byte[] bodyOf(final ODataResponse response) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (response.getContent() != null) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            try (InputStream content = response.getContent()) {
+                while ((read = content.read(buffer)) > 0) {
+                    body.write(buffer, 0, read);
+                }
+            }
+        } else if (response.getODataContent() != null) {
+            response.getODataContent().write(body);
+        } else {
+            return null;
+        }
+        return body.toByteArray();
+    }
+
+    private static void expect(final boolean condition, final String message) throws ODataApplicationException {
+        if (!condition) {
+            throw badRequest(message);
+        }
+    }
+
+    private static ODataApplicationException badRequest(final String message) {
+        return new ODataApplicationException(message, HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+    }
+}
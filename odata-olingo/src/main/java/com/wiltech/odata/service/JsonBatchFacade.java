@@ -0,0 +1,90 @@
+package com.wiltech.odata.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataHandler;
+import org.apache.olingo.server.api.ODataLibraryException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.batch.BatchFacade;
+import org.apache.olingo.server.api.deserializer.batch.BatchDeserializerException;
+import org.apache.olingo.server.api.deserializer.batch.BatchRequestPart;
+import org.apache.olingo.server.api.deserializer.batch.ODataResponsePart;
+import org.apache.olingo.server.api.processor.BatchProcessor;
+
+/**
+ * The type Json batch facade. What olingo's own facade does for a multipart batch, for a JSON batch:
+ * the requests go to the handler, changesets to the batch processor, and a request of a changeset may start
+ * with $id to refer to the entity created by the request with that id, e.g. $1/Category.
+ */
+final class JsonBatchFacade implements BatchFacade {
+
+    private final ODataHandler handler;
+    private final BatchProcessor batchProcessor;
+    // content id -> resource path of the created entity, e.g. 1 -> /Products(7)
+    private final Map<String, String> references = new HashMap<String, String>();
+
+    JsonBatchFacade(final ODataHandler handler, final BatchProcessor batchProcessor) {
+        this.handler = handler;
+        this.batchProcessor = batchProcessor;
+    }
+
+    @Override
+    public ODataResponse handleODataRequest(final ODataRequest request) {
+        resolveReference(request);
+        final ODataResponse response = handle(request);
+        addReference(request, response);
+        return response;
+    }
+
+    @Override
+    public ODataResponsePart handleBatchRequest(final BatchRequestPart request)
+            throws ODataApplicationException, ODataLibraryException {
+        if (request.isChangeSet()) {
+            return batchProcessor.processChangeSet(this, request.getRequests());
+        }
+        return new ODataResponsePart(handle(request.getRequests().get(0)), false);
+    }
+
+    @Override
+    public String extractBoundaryFromContentType(final String contentType) throws BatchDeserializerException {
+        throw new BatchDeserializerException("A JSON batch has no boundary", BatchDeserializerException.MessageKeys.INVALID_BOUNDARY, "0");
+    }
+
+    private ODataResponse handle(final ODataRequest request) {
+        final ODataResponse response = handler.process(request);
+        final String contentId = request.getHeader(HttpHeader.CONTENT_ID);
+        if (contentId != null) {
+            response.setHeader(HttpHeader.CONTENT_ID, contentId);
+        }
+        return response;
+    }
+
+    private void resolveReference(final ODataRequest request) {
+        final String path = request.getRawODataPath();
+        if (!path.startsWith("/$")) {
+            return;
+        }
+        final int end = path.indexOf('/', 2);
+        final String target = references.get(end < 0 ? path.substring(2) : path.substring(2, end));
+        if (target == null) {
+            // olingo answers the unknown segment
+            return;
+        }
+        final String resolved = end < 0 ? target : target + path.substring(end);
+        request.setRawODataPath(resolved);
+        request.setRawRequestUri(request.getRawBaseUri() + resolved
+                + (request.getRawQueryPath() == null || request.getRawQueryPath().isEmpty() ? "" : "?" + request.getRawQueryPath()));
+    }
+
+    private void addReference(final ODataRequest request, final ODataResponse response) {
+        final String contentId = request.getHeader(HttpHeader.CONTENT_ID);
+        final String location = response.getHeader(HttpHeader.LOCATION);
+        if (contentId != null && location != null && location.startsWith(request.getRawBaseUri())) {
+            references.put(contentId, location.substring(request.getRawBaseUri().length()));
+        }
+    }
+}
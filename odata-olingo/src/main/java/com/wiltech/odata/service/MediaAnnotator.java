@@ -0,0 +1,66 @@
+package com.wiltech.odata.service;
+
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+
+import com.wiltech.odata.data.MediaStore;
+import com.wiltech.odata.data.Projection;
+import com.wiltech.odata.utils.KeyMatcher;
+
+/**
+ * The type Media annotator. Adds the media annotations, @odata.mediaEtag and @odata.mediaContentType, to the media entities
+ * of a response that have a media resource, e.g. to Products(1), so a client finds out from the entity whether its $value
+ * changed. The media store is asked per entity, the files themselves are not opened.
+ */
+final class MediaAnnotator {
+
+    // null if media entities have no media resources
+    private final MediaStore mediaStore;
+
+    MediaAnnotator(final MediaStore mediaStore) {
+        this.mediaStore = mediaStore;
+    }
+
+    /**
+     * Annotate the entities of a response.
+     * @param entities the entities, the annotated ones are replaced by views in place, since the stored entities are shared
+     * @param edmEntitySet the entity set of the entities, null for contained entities, e.g. Products(1)/Suppliers
+     */
+    void annotate(final List<Entity> entities, final EdmEntitySet edmEntitySet) {
+        if (isMediaEntitySet(edmEntitySet)) {
+            entities.replaceAll(entity -> annotateEntity(entity, edmEntitySet));
+        }
+    }
+
+    /**
+     * Annotate one entity.
+     * @param entity the entity, may be null
+     * @param edmEntitySet the entity set of the entity, null for a contained entity
+     * @return the entity, or an annotated view of it if it has a media resource
+     */
+    Entity annotate(final Entity entity, final EdmEntitySet edmEntitySet) {
+        return entity == null || !isMediaEntitySet(edmEntitySet) ? entity : annotateEntity(entity, edmEntitySet);
+    }
+
+    private boolean isMediaEntitySet(final EdmEntitySet edmEntitySet) {
+        return mediaStore != null && edmEntitySet != null && edmEntitySet.getEntityType().hasStream();
+    }
+
+    /*
+     * The key properties are part of every projection, so the key predicate that names the media resource can be built from
+     * any view. The entity may still be the stored one, so the annotations go on a new view.
+     */
+    private Entity annotateEntity(final Entity entity, final EdmEntitySet edmEntitySet) {
+        final KeyMatcher keyMatcher = KeyMatcher.of(edmEntitySet.getEntityType());
+        final MediaStore.Media media = mediaStore.get(edmEntitySet.getName(), keyMatcher.toKeyPredicate(keyMatcher.keyOf(entity)));
+        if (media == null) {
+            return entity;
+        }
+        final Entity view = Projection.ALL.view(entity);
+        view.setMediaContentType(media.getContentType());
+        view.setMediaETag(media.getETag());
+        return view;
+    }
+}
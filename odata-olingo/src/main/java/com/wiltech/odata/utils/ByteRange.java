@@ -0,0 +1,105 @@
+package com.wiltech.odata.utils;
+
+/**
+ * The type Byte range. The part of a media resource a request asks for with a Range header, e.g. bytes=0-1023, bytes=1024-
+ * or bytes=-512 for the last bytes. Only a single range is served; a header with several ranges, or one that can't be parsed,
+ * is ignored and the whole resource is sent, which the Range header allows.
+ */
+public final class ByteRange {
+
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String IF_RANGE = "If-Range";
+    public static final String BYTES = "bytes";
+
+    private static final String PREFIX = BYTES + "=";
+
+    private final long first;
+    private final long last;
+    private final long size;
+
+    private ByteRange(final long first, final long last, final long size) {
+        this.first = first;
+        this.last = last;
+        this.size = size;
+    }
+
+    /**
+     * Parses a Range header.
+     * @param range the header, may be null
+     * @param size the size of the resource
+     * @return the range, which may not be satisfiable; null if the whole resource is sent
+     */
+    public static ByteRange parse(final String range, final long size) {
+        if (range == null || !range.startsWith(PREFIX) || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring(PREFIX.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                // the last n bytes
+                final long suffix = Long.parseLong(spec.substring(1));
+                // the last 0 bytes can't be satisfied, more than there are is all of them
+                return new ByteRange(suffix == 0 ? size : Math.max(0, size - suffix), size - 1, size);
+            }
+            final long first = Long.parseLong(spec.substring(0, dash));
+            final boolean open = dash == spec.length() - 1;
+            final long last = open ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+            if (first < 0 || !open && last < first) {
+                // not a valid range at all, unlike one past the end
+                return null;
+            }
+            return new ByteRange(first, Math.min(last, size - 1), size);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the range is sent with an If-Range header: only if the client's copy is still the current one,
+     * otherwise it gets the whole resource. A date is never the same as the strong ETag, so it gets the whole resource.
+     * @param ifRange the If-Range header, may be null
+     * @param eTag the strong ETag of the resource
+     * @return true if the range is sent
+     */
+    public static boolean matches(final String ifRange, final String eTag) {
+        return ifRange == null || ifRange.trim().equals(eTag);
+    }
+
+    /**
+     * Whether any byte of the range is in the resource; if not, the request is answered with 416.
+     * @return true if satisfiable
+     */
+    public boolean isSatisfiable() {
+        return first < size && first <= last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * The Content-Range header of the partial response, e.g. bytes 0-1023/4096.
+     * @return the header
+     */
+    public String getContentRange() {
+        return BYTES + " " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * The Content-Range header of a response to a range that isn't satisfiable, an asterisk and the size, e.g. for 4096 bytes.
+     * @param size the size of the resource
+     * @return the header
+     */
+    public static String unsatisfied(final long size) {
+        return BYTES + " */" + size;
+    }
+}
@@ -0,0 +1,176 @@
+package com.wiltech.odata.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * The enum Content encoding. The compressed content codings of the responses, in order of preference,
+ * and the negotiation of the Accept-Encoding header of a request.
+ */
+public enum ContentEncoding {
+
+    GZIP("gzip") {
+        @Override
+        public DeflaterOutputStream compress(final OutputStream out, final int level) throws IOException {
+            return new LevelGzipOutputStream(out, level);
+        }
+    },
+    DEFLATE("deflate") {
+        @Override
+        public DeflaterOutputStream compress(final OutputStream out, final int level) {
+            return new LevelDeflaterOutputStream(out, level);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String coding;
+
+    ContentEncoding(final String coding) {
+        this.coding = coding;
+    }
+
+    /**
+     * The name of the coding in the Content-Encoding header.
+     * @return the name
+     */
+    public String getCoding() {
+        return coding;
+    }
+
+    /**
+     * A stream that compresses what is written to it into another; closing it writes the end of the compressed data
+     * and closes the other stream. Closing it always ends its deflater, also if the end can't be written.
+     * @param out the stream of the compressed data
+     * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     * @return the compressing stream
+     * @throws IOException if the header can't be written
+     */
+    public abstract DeflaterOutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Compresses a whole body as well as it can, for a body that is sent many times.
+     * @param body the body
+     * @return the compressed body
+     */
+    public byte[] compress(final byte[] body) {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (DeflaterOutputStream out = compress(compressed, Deflater.BEST_COMPRESSION)) {
+            out.write(body);
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to compress the response", e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * The coding of a response: the one the client prefers by the quality values of its Accept-Encoding header,
+     * gzip over deflate on a tie.
+     * @param acceptEncoding the Accept-Encoding header of the request, may be null
+     * @return the content encoding, null for an uncompressed response
+     */
+    public static ContentEncoding negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        final ContentEncoding[] encodings = values();
+        // the quality of each coding, -1 if not listed
+        final double[] qualities = new double[encodings.length];
+        Arrays.fill(qualities, -1);
+        double wildcard = -1;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String codingName = parts[0].trim().toLowerCase(Locale.ROOT);
+            final double quality = quality(parts);
+            if ("*".equals(codingName)) {
+                wildcard = quality;
+            } else if ("gzip".equals(codingName) || "x-gzip".equals(codingName)) {
+                qualities[GZIP.ordinal()] = quality;
+            } else if ("deflate".equals(codingName)) {
+                qualities[DEFLATE.ordinal()] = quality;
+            }
+        }
+
+        ContentEncoding best = null;
+        double bestQuality = 0;
+        for (final ContentEncoding encoding : encodings) {
+            final double quality = qualities[encoding.ordinal()] >= 0 ? qualities[encoding.ordinal()] : wildcard;
+            if (quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Whether a response of a content type is worth compressing: text, JSON, XML and multipart, not media.
+     * @param contentType the Content-Type header, may be null
+     * @return true if compressible
+     */
+    public static boolean isCompressible(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.startsWith("multipart/") || type.contains("json") || type.contains("xml");
+    }
+
+    private static double quality(final String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            final String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    // the level of the deflater is set before anything is compressed
+    private static final class LevelGzipOutputStream extends GZIPOutputStream {
+
+        private LevelGzipOutputStream(final OutputStream out, final int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // close() of Java 8 skips ending the deflater when the trailer can't be written
+                def.end();
+            }
+        }
+    }
+
+    private static final class LevelDeflaterOutputStream extends DeflaterOutputStream {
+
+        private LevelDeflaterOutputStream(final OutputStream out, final int level) {
+            super(out, new Deflater(level), BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // a deflater of our own isn't ended by close()
+                def.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.wiltech.odata.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The type Delta token. Formats the version of an entity set a client read as an opaque $deltatoken and back:
+ * the epoch of the storage and the version, comma separated and base64url encoded as a whole.
+ * A token is also appended to the $skiptoken of the pages of a change tracking read, behind a dot, which base64url never uses,
+ * so the delta link of the last page starts from the version the first page was read at.
+ */
+public final class DeltaToken {
+
+    private static final char SEPARATOR = '.';
+
+    private final long epoch;
+    private final long version;
+
+    public DeltaToken(final long epoch, final long version) {
+        this.epoch = epoch;
+        this.version = version;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Format.
+     * @return the token
+     */
+    public String format() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((epoch + "," + version).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a token created by {@link #format()}.
+     * @param token the token
+     * @return the delta token, or null if the token is not valid
+     */
+    public static DeltaToken parse(final String token) {
+        try {
+            final String[] values = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(",", -1);
+            if (values.length != 2) {
+                return null;
+            }
+            return new DeltaToken(Long.parseLong(values[0]), Long.parseLong(values[1]));
+        } catch (final IllegalArgumentException e) {
+            // not base64 or not numbers
+            return null;
+        }
+    }
+
+    /**
+     * Appends the token to a $skiptoken.
+     * @param skipToken the skip token
+     * @return the skip token with the delta token
+     */
+    public String appendTo(final String skipToken) {
+        return skipToken + SEPARATOR + format();
+    }
+
+    /**
+     * The delta token appended to a $skiptoken by {@link #appendTo(String)}.
+     * @param skipToken the skip token
+     * @return the delta token, or null if there is none or it is not valid
+     */
+    public static DeltaToken of(final String skipToken) {
+        final int separator = skipToken.lastIndexOf(SEPARATOR);
+        return separator < 0 ? null : parse(skipToken.substring(separator + 1));
+    }
+
+    /**
+     * The $skiptoken without the delta token appended to it.
+     * @param skipToken the skip token
+     * @return the skip token as created by {@link SkipToken}
+     */
+    public static String stripFrom(final String skipToken) {
+        final int separator = skipToken.lastIndexOf(SEPARATOR);
+        return separator < 0 ? skipToken : skipToken.substring(0, separator);
+    }
+}
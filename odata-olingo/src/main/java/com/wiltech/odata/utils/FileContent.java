@@ -0,0 +1,66 @@
+package com.wiltech.odata.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.server.api.ODataContent;
+
+/**
+ * The type File content. A response body read from a part of a file with {@link FileChannel#transferTo}, which leaves
+ * the copying to the operating system where the target allows it and otherwise copies through a small buffer;
+ * the file is never read onto the heap as a whole. The file is closed once the body is written.
+ */
+public final class FileContent implements ODataContent {
+
+    private final FileChannel file;
+    private final long position;
+    private final long length;
+
+    /**
+     * Instantiates a new File content.
+     * @param file the open file, closed by this content
+     * @param position the first byte sent
+     * @param length the number of bytes sent
+     */
+    public FileContent(final FileChannel file, final long position, final long length) {
+        this.file = file;
+        this.position = position;
+        this.length = length;
+    }
+
+    @Override
+    public void write(final WritableByteChannel channel) {
+        try {
+            long written = 0;
+            while (written < length) {
+                final long transferred = file.transferTo(position + written, length - written, channel);
+                if (transferred <= 0) {
+                    // the file got shorter than it was, which a replaced media resource never does
+                    throw new IOException("Unexpected end of file after " + written + " of " + length + " bytes");
+                }
+                written += transferred;
+            }
+        } catch (final IOException e) {
+            throw new ODataRuntimeException("Unable to send the media resource", e);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void write(final OutputStream stream) {
+        write(Channels.newChannel(stream));
+    }
+
+    private void close() {
+        try {
+            file.close();
+        } catch (final IOException e) {
+            // read only, nothing is lost
+        }
+    }
+}
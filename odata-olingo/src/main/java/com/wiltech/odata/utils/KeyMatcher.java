@@ -0,0 +1,222 @@
+package com.wiltech.odata.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeException;
+import org.apache.olingo.commons.api.edm.EdmProperty;
+import org.apache.olingo.commons.api.edm.FullQualifiedName;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.server.api.uri.UriParameter;
+
+import com.wiltech.odata.data.EntityKey;
+
+/**
+ * The type Key matcher. Everything needed to read and compare the keys of one entity type, looked up once from the Edm
+ * and cached per entity type: key literals are parsed once into the Java type of the key property,
+ * and entities are then compared against the parsed values with equals, without formatting anything.
+ */
+public final class KeyMatcher {
+
+    // keyed by name, the Edm objects themselves are not shared between service metadata instances
+    private static final ConcurrentMap<FullQualifiedName, KeyMatcher> CACHE = new ConcurrentHashMap<FullQualifiedName, KeyMatcher>();
+
+    // the URI literal of a null value
+    public static final String NULL_LITERAL = "null";
+
+    private final String[] keyNames;
+    private final EdmPrimitiveType[] types;
+    private final EdmProperty[] properties;
+
+    private KeyMatcher(final EdmEntityType edmEntityType) {
+        final List<String> keyPredicateNames = edmEntityType.getKeyPredicateNames();
+        final int size = keyPredicateNames.size();
+        keyNames = keyPredicateNames.toArray(new String[size]);
+        types = new EdmPrimitiveType[size];
+        properties = new EdmProperty[size];
+
+        for (int i = 0; i < size; i++) {
+            // note: key properties that are part of a complex type are not supported, our model has none
+            properties[i] = (EdmProperty) edmEntityType.getProperty(keyNames[i]);
+            types[i] = (EdmPrimitiveType) properties[i].getType();
+        }
+    }
+
+    public static KeyMatcher of(final EdmEntityType edmEntityType) {
+        final FullQualifiedName name = edmEntityType.getFullQualifiedName();
+        KeyMatcher matcher = CACHE.get(name);
+        if (matcher == null) {
+            final KeyMatcher created = new KeyMatcher(edmEntityType);
+            matcher = CACHE.putIfAbsent(name, created);
+            if (matcher == null) {
+                matcher = created;
+            }
+        }
+        return matcher;
+    }
+
+    /**
+     * Parses the key predicates of a request, e.g. contacts(ContactID=1, CompanyID=1), into typed values.
+     * @param keyParams the key predicates
+     * @return the key, or null if a predicate is missing or a literal doesn't fit the type of its key property
+     */
+    public EntityKey parse(final List<UriParameter> keyParams) {
+        final Object[] values = new Object[keyNames.length];
+
+        for (int i = 0; i < keyNames.length; i++) {
+            final UriParameter key = findKeyParam(keyParams, keyNames[i]);
+            if (key == null) {
+                return null;
+            }
+
+            final EdmProperty property = properties[i];
+            final EdmPrimitiveType type = types[i];
+            try {
+                values[i] = type.valueOfString(type.fromUriLiteral(key.getText()), property.isNullable(),
+                        property.getMaxLength(), property.getPrecision(), property.getScale(), property.isUnicode(),
+                        type.getDefaultType());
+            } catch (final EdmPrimitiveTypeException e) {
+                return null;
+            }
+        }
+
+        return EntityKey.of(values);
+    }
+
+    /**
+     * The key of an entity.
+     * @param entity the entity
+     * @return the key
+     */
+    public EntityKey keyOf(final Entity entity) {
+        final Object[] values = new Object[keyNames.length];
+        for (int i = 0; i < keyNames.length; i++) {
+            values[i] = entity.getProperty(keyNames[i]).getValue();
+        }
+        return EntityKey.of(values);
+    }
+
+    /**
+     * Matches.
+     * @param entity the entity
+     * @param key the key as returned by {@link #parse(List)}
+     * @return true if all key properties of the entity are equal to the key
+     */
+    public boolean matches(final Entity entity, final EntityKey key) {
+        if (key == null) {
+            return false;
+        }
+        for (int i = 0; i < keyNames.length; i++) {
+            final Property property = entity.getProperty(keyNames[i]);
+            if (property == null || !key.getValue(i).equals(property.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Formats a key as URI literals, one per key property.
+     * @param key the key
+     * @return the literals
+     */
+    public List<String> toLiterals(final EntityKey key) {
+        final List<String> literals = new ArrayList<String>(keyNames.length);
+        for (int i = 0; i < keyNames.length; i++) {
+            literals.add(toLiteral(properties[i], key.getValue(i)));
+        }
+        return literals;
+    }
+
+    /**
+     * Formats a key as the key predicate of a URI, e.g. 5 or ContactID=1,CompanyID=1.
+     * @param key the key
+     * @return the key predicate, without the parentheses
+     */
+    public String toKeyPredicate(final EntityKey key) {
+        if (keyNames.length == 1) {
+            return toLiteral(properties[0], key.getValue(0));
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keyNames.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(keyNames[i]).append('=').append(toLiteral(properties[i], key.getValue(i)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses the literals created by {@link #toLiterals(EntityKey)}.
+     * @param literals the literals
+     * @return the key, or null if the literals don't fit the key properties
+     */
+    public EntityKey fromLiterals(final List<String> literals) {
+        if (literals.size() != keyNames.length) {
+            return null;
+        }
+        final Object[] values = new Object[keyNames.length];
+        for (int i = 0; i < keyNames.length; i++) {
+            values[i] = fromLiteral(properties[i], literals.get(i));
+            if (values[i] == null) {
+                return null;
+            }
+        }
+        return EntityKey.of(values);
+    }
+
+    /**
+     * Formats the value of a primitive property as URI literal, e.g. 'Ergo Screen' or 5.
+     * @param property the property
+     * @param value the value, may be null
+     * @return the literal
+     */
+    public static String toLiteral(final EdmProperty property, final Object value) {
+        if (value == null) {
+            return NULL_LITERAL;
+        }
+        final EdmPrimitiveType type = (EdmPrimitiveType) property.getType();
+        try {
+            return type.toUriLiteral(type.valueToString(value, property.isNullable(), property.getMaxLength(),
+                    property.getPrecision(), property.getScale(), property.isUnicode()));
+        } catch (final EdmPrimitiveTypeException e) {
+            throw new ODataRuntimeException("Unable to format value " + value + " of property " + property.getName(), e);
+        }
+    }
+
+    /**
+     * Parses a literal created by {@link #toLiteral(EdmProperty, Object)}.
+     * @param property the property
+     * @param literal the literal
+     * @return the value, or null if the literal is the null literal or doesn't fit the property
+     */
+    public static Object fromLiteral(final EdmProperty property, final String literal) {
+        if (NULL_LITERAL.equals(literal)) {
+            return null;
+        }
+        final EdmPrimitiveType type = (EdmPrimitiveType) property.getType();
+        try {
+            return type.valueOfString(type.fromUriLiteral(literal), property.isNullable(), property.getMaxLength(),
+                    property.getPrecision(), property.getScale(), property.isUnicode(), type.getDefaultType());
+        } catch (final EdmPrimitiveTypeException e) {
+            return null;
+        }
+    }
+
+    private static UriParameter findKeyParam(final List<UriParameter> keyParams, final String keyName) {
+        for (final UriParameter key : keyParams) {
+            if (keyName.equals(key.getName())) {
+                return key;
+            }
+        }
+        // a single key may be given without its name, e.g. Products(1)
+        return keyParams.size() == 1 && keyParams.get(0).getName() == null ? keyParams.get(0) : null;
+    }
+}
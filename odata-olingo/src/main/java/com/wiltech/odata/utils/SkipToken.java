@@ -0,0 +1,91 @@
+package com.wiltech.odata.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.olingo.commons.api.edm.EdmProperty;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+import com.wiltech.odata.data.Continuation;
+import com.wiltech.odata.data.EntityKey;
+
+/**
+ * The type Skip token. Formats a {@link Continuation} as an opaque $skiptoken and back:
+ * the offset, the URI literal of the sort value (empty without a sort property) and the URI literals of the key values,
+ * each URL encoded, comma separated and base64url encoded as a whole.
+ */
+public final class SkipToken {
+
+    private static final String UTF_8 = "UTF-8";
+    private static final int KEY_START = 2;
+
+    private SkipToken() {
+    }
+
+    /**
+     * Format.
+     * @param continuation the continuation after the last entity of a page
+     * @param keyMatcher the key matcher of the entity type
+     * @param sortProperty the single property the page is ordered by, or null
+     * @return the token
+     */
+    public static String format(final Continuation continuation, final KeyMatcher keyMatcher, final EdmProperty sortProperty) {
+        final List<String> literals = new ArrayList<String>();
+        literals.add(Integer.toString(continuation.getOffset()));
+        literals.add(sortProperty == null ? "" : KeyMatcher.toLiteral(sortProperty, continuation.getAfterValue()));
+        literals.addAll(keyMatcher.toLiterals(continuation.getAfterKey()));
+
+        final StringBuilder sb = new StringBuilder();
+        try {
+            for (final String literal : literals) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(URLEncoder.encode(literal, UTF_8));
+            }
+        } catch (final UnsupportedEncodingException e) {
+            throw new ODataRuntimeException("Unable to create skip token for key " + continuation.getAfterKey(), e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a token created by {@link #format(Continuation, KeyMatcher, EdmProperty)} for the same entity type and order.
+     * @param token the token
+     * @param keyMatcher the key matcher of the entity type
+     * @param sortProperty the single property the page is ordered by, or null
+     * @return the continuation, or null if the token is not valid for this entity type and order
+     */
+    public static Continuation parse(final String token, final KeyMatcher keyMatcher, final EdmProperty sortProperty) {
+        try {
+            final String[] encoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+                    .split(",", -1);
+            if (encoded.length <= KEY_START) {
+                return null;
+            }
+            final String[] literals = new String[encoded.length];
+            for (int i = 0; i < encoded.length; i++) {
+                literals[i] = URLDecoder.decode(encoded[i], UTF_8);
+            }
+
+            final int offset = Integer.parseInt(literals[0]);
+            final EntityKey afterKey = keyMatcher.fromLiterals(Arrays.asList(literals).subList(KEY_START, literals.length));
+            if (offset < 0 || afterKey == null || sortProperty == null != literals[1].isEmpty()) {
+                return null;
+            }
+            final Object afterValue = sortProperty == null ? null : KeyMatcher.fromLiteral(sortProperty, literals[1]);
+            if (afterValue == null && sortProperty != null && !KeyMatcher.NULL_LITERAL.equals(literals[1])) {
+                return null;
+            }
+            return new Continuation(afterKey, afterValue, offset);
+        } catch (final IllegalArgumentException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+}
@@ -6,6 +6,8 @@
  */
 package com.wiltech.odata.utils;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Locale;
 
@@ -15,13 +17,18 @@ import org.apache.olingo.commons.api.edm.EdmBindingTarget;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
-import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
-import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeException;
-import org.apache.olingo.commons.api.edm.EdmProperty;
-import org.apache.olingo.commons.api.edm.EdmType;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.commons.api.http.HttpHeader;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.etag.PreconditionException;
 import org.apache.olingo.server.api.uri.UriParameter;
+import org.apache.olingo.server.api.uri.queryoption.SystemQueryOptionKind;
+
+import com.wiltech.odata.data.EntityKey;
 
 public class Util {
 
@@ -30,11 +37,17 @@ public class Util {
 
         final List<Entity> entityList = entitySet.getEntities();
 
+        // the key literals are parsed only once, not once per entity
+        final KeyMatcher keyMatcher = KeyMatcher.of(edmEntityType);
+        final EntityKey key = keyMatcher.parse(keyParams);
+        if (key == null) {
+            return null;
+        }
+
         // loop over all entities in order to find that one that matches
         // all keys in request e.g. contacts(ContactID=1, CompanyID=1)
         for (final Entity entity : entityList) {
-            final boolean foundEntity = entityMatchesAllKeys(edmEntityType, entity, keyParams);
-            if (foundEntity) {
+            if (keyMatcher.matches(entity, key)) {
                 return entity;
             }
         }
@@ -45,57 +58,143 @@ public class Util {
     public static boolean entityMatchesAllKeys(final EdmEntityType edmEntityType, final Entity rt_entity,
             final List<UriParameter> keyParams) {
 
-        // loop over all keys
-        for (final UriParameter key : keyParams) {
-            // key
-            final String keyName = key.getName();
-            final String keyText = key.getText();
-
-            // note: below line doesn't consider: keyProp can be part of a complexType in V4
-            // in such case, it would be required to access it via getKeyPropertyRef()
-            // but since this isn't the case in our model, we ignore it in our implementation
-            final EdmProperty edmKeyProperty = (EdmProperty) edmEntityType.getProperty(keyName);
-            // Edm: we need this info for the comparison below
-            final Boolean isNullable = edmKeyProperty.isNullable();
-            final Integer maxLength = edmKeyProperty.getMaxLength();
-            final Integer precision = edmKeyProperty.getPrecision();
-            final Boolean isUnicode = edmKeyProperty.isUnicode();
-            final Integer scale = edmKeyProperty.getScale();
-            // get the EdmType in order to compare
-            final EdmType edmType = edmKeyProperty.getType();
-            // if(EdmType instanceof EdmPrimitiveType) // do we need this?
-            final EdmPrimitiveType edmPrimitiveType = (EdmPrimitiveType) edmType;
-
-            // Runtime data: the value of the current entity
-            // don't need to check for null, this is done in FWK
-            final Object valueObject = rt_entity.getProperty(keyName).getValue();
-            // TODO if the property is a complex type
-
-            // now need to compare the valueObject with the keyText String
-            // this is done using the type.valueToString
-            String valueAsString = null;
-            try {
-                valueAsString = edmPrimitiveType.valueToString(valueObject, isNullable,
-                        maxLength, precision, scale, isUnicode);
-            } catch (final EdmPrimitiveTypeException e) {
-                return false; // TODO proper Exception handling
+        final KeyMatcher keyMatcher = KeyMatcher.of(edmEntityType);
+        return keyMatcher.matches(rt_entity, keyMatcher.parse(keyParams));
+    }
+
+    /**
+     * Parses the key predicates of a request, e.g. contacts(ContactID=1, CompanyID=1), into the typed key
+     * used by the primary key index of the storage. The values are ordered as the entity type declares its keys.
+     * @return the key, or null if a key literal doesn't fit the type of its key property (so nothing can match)
+     */
+    public static EntityKey readEntityKey(final EdmEntityType edmEntityType, final List<UriParameter> keyParams) {
+        return KeyMatcher.of(edmEntityType).parse(keyParams);
+    }
+
+    /**
+     * Creates the @odata.nextLink of a page: the request URI with the $skiptoken of the next page.
+     * $skip is dropped since the token already points behind it, and $top is reduced by what was already returned.
+     * @param request the request
+     * @param skipToken the token of the next page
+     * @param remainingTop the remaining $top, or a negative value if the request had none
+     * @return the next link
+     */
+    public static URI createNextLink(final ODataRequest request, final String skipToken, final int remainingTop) {
+        final StringBuilder sb = new StringBuilder(request.getRawBaseUri()).append(request.getRawODataPath()).append('?');
+        final String rawQueryPath = request.getRawQueryPath();
+        if (rawQueryPath != null && !rawQueryPath.isEmpty()) {
+            for (final String option : rawQueryPath.split("&")) {
+                final String name = option.split("=", 2)[0];
+                if (!isPagingOption(name) && !option.isEmpty()) {
+                    sb.append(option).append('&');
+                }
             }
+        }
+        if (remainingTop >= 0) {
+            sb.append(SystemQueryOptionKind.TOP.toString()).append('=').append(remainingTop).append('&');
+        }
+        sb.append(SystemQueryOptionKind.SKIPTOKEN.toString()).append('=').append(skipToken);
 
-            if (valueAsString == null) {
-                return false;
+        try {
+            return new URI(sb.toString());
+        } catch (final URISyntaxException e) {
+            throw new ODataRuntimeException("Unable to create next link for " + request.getRawRequestUri(), e);
+        }
+    }
+
+    /**
+     * Creates the @odata.deltaLink of the last page of a change tracking read, or of a delta response: the request URI
+     * with the $deltatoken, and without the options of a page; the $filter and $select stay, they define what is tracked.
+     * @param request the request
+     * @param deltaToken the token of the version the changes start after
+     * @return the delta link
+     */
+    public static URI createDeltaLink(final ODataRequest request, final String deltaToken) {
+        final StringBuilder sb = new StringBuilder(request.getRawBaseUri()).append(request.getRawODataPath()).append('?');
+        final String rawQueryPath = request.getRawQueryPath();
+        if (rawQueryPath != null && !rawQueryPath.isEmpty()) {
+            for (final String option : rawQueryPath.split("&")) {
+                final String name = option.split("=", 2)[0];
+                if (!isPagingOption(name) && !isDeltaOption(name) && !option.isEmpty()) {
+                    sb.append(option).append('&');
+                }
             }
+        }
+        sb.append(SystemQueryOptionKind.DELTATOKEN.toString()).append('=').append(deltaToken);
 
-            final boolean matches = valueAsString.equals(keyText);
-            if (matches) {
-                // if the given key value is found in the current entity, continue with the next key
-                continue;
-            } else {
-                // if any of the key properties is not found in the entity, we don't need to search further
-                return false;
+        try {
+            return new URI(sb.toString());
+        } catch (final URISyntaxException e) {
+            throw new ODataRuntimeException("Unable to create delta link for " + request.getRawRequestUri(), e);
+        }
+    }
+
+    /**
+     * Sets the ETag of a read response and checks the conditional headers of the request against it.
+     * @param odata the odata instance
+     * @param request the request
+     * @param response the response
+     * @param eTag the current ETag of the requested resource
+     * @return true if the client's copy is current; the response is then complete as 304 Not Modified and nothing has to be read
+     * or serialized
+     * @throws ODataApplicationException with 412 if an If-Match header doesn't match
+     */
+    public static boolean isNotModified(final OData odata, final ODataRequest request, final ODataResponse response,
+            final String eTag) throws ODataApplicationException {
+        response.setHeader(HttpHeader.ETAG, eTag);
+        try {
+            if (odata.createETagHelper().checkReadPreconditions(eTag, request.getHeaders(HttpHeader.IF_MATCH),
+                    request.getHeaders(HttpHeader.IF_NONE_MATCH))) {
+                response.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
+                return true;
             }
+            return false;
+        } catch (final PreconditionException e) {
+            throw new ODataApplicationException(e.getMessage(), HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ROOT, e);
+        }
+    }
+
+    /**
+     * Checks the If-Match and If-None-Match headers of a change request against the current ETag of the resource.
+     * A request without precondition on an entity set with ETags never gets here, the handler answers it with 428.
+     * @param odata the odata
+     * @param request the request
+     * @param eTag the current ETag of the resource
+     * @throws ODataApplicationException with 412 if the precondition fails
+     */
+    public static void checkChangePreconditions(final OData odata, final ODataRequest request, final String eTag)
+            throws ODataApplicationException {
+        try {
+            odata.createETagHelper().checkChangePreconditions(eTag, request.getHeaders(HttpHeader.IF_MATCH),
+                    request.getHeaders(HttpHeader.IF_NONE_MATCH));
+        } catch (final PreconditionException e) {
+            throw new ODataApplicationException(e.getMessage(), HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ROOT, e);
         }
+    }
+
+    /**
+     * Whether a change request applies to any version of the resource, i.e. it has no If-Match header or If-Match: *.
+     * @param request the request
+     * @return true if the request has no precondition on the version
+     */
+    public static boolean isUnconditional(final ODataRequest request) {
+        final List<String> ifMatch = request.getHeaders(HttpHeader.IF_MATCH);
+        return ifMatch == null || ifMatch.isEmpty() || ifMatch.contains("*");
+    }
+
+    private static boolean isPagingOption(final String name) {
+        final String decoded = name.replace("%24", "$");
+        return decoded.equals(SystemQueryOptionKind.TOP.toString())
+                || decoded.equals(SystemQueryOptionKind.SKIP.toString())
+                || decoded.equals(SystemQueryOptionKind.SKIPTOKEN.toString());
+    }
 
-        return true;
+    // the options that don't apply to the changes: the order, the count and the token of the previous delta
+    private static boolean isDeltaOption(final String name) {
+        final String decoded = name.replace("%24", "$");
+        return decoded.equals(SystemQueryOptionKind.ORDERBY.toString())
+                || decoded.equals(SystemQueryOptionKind.COUNT.toString())
+                || decoded.equals(SystemQueryOptionKind.DELTATOKEN.toString());
     }
 
     /**
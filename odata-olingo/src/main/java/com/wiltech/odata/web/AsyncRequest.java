@@ -0,0 +1,37 @@
+package com.wiltech.odata.web;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * The type Async request. An asynchronous request processed after the container dispatched it: the container may reset
+ * the paths of the dispatch once it returns, so they are kept from the start, for olingo to find the resource path.
+ */
+final class AsyncRequest extends HttpServletRequestWrapper {
+
+    private final String contextPath;
+    private final String servletPath;
+    private final String pathInfo;
+
+    AsyncRequest(final HttpServletRequest request) {
+        super(request);
+        this.contextPath = request.getContextPath();
+        this.servletPath = request.getServletPath();
+        this.pathInfo = request.getPathInfo();
+    }
+
+    @Override
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    @Override
+    public String getServletPath() {
+        return servletPath;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return pathInfo;
+    }
+}
@@ -0,0 +1,161 @@
+package com.wiltech.odata.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * The type Buffered response. The response of an asynchronous request: the body is kept in memory while the request is
+ * processed, then {@link #send()} hands it to the container, which writes it whenever the client can take more, so a slow
+ * client holds some memory but no thread. The status and the headers go to the response as they are set.
+ */
+final class BufferedResponse extends HttpServletResponseWrapper {
+
+    private static final int CHUNK_SIZE = 32 << 10;
+
+    private final AsyncContext asyncContext;
+    private final Buffer buffer = new Buffer();
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    BufferedResponse(final HttpServletResponse response, final AsyncContext asyncContext) {
+        super(response);
+        this.asyncContext = asyncContext;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() was called");
+        }
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+
+                @Override
+                public void write(final int b) {
+                    buffer.write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) {
+                    buffer.write(b, off, len);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener writeListener) {
+                    throw new UnsupportedOperationException("The response is buffered");
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (outputStream != null) {
+            throw new IllegalStateException("getOutputStream() was called");
+        }
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        // nothing is committed before send()
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        buffer.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        buffer.reset();
+    }
+
+    // sendError would commit the response while the request is processed
+    @Override
+    public void sendError(final int sc) {
+        buffer.reset();
+        setStatus(sc);
+    }
+
+    @Override
+    public void sendError(final int sc, final String msg) {
+        sendError(sc);
+    }
+
+    /**
+     * Writes the body without blocking and completes the request once it is written.
+     * @throws IOException if the response can't be written
+     */
+    void send() throws IOException {
+        flushBuffer();
+        setContentLength(buffer.size());
+        final ServletOutputStream out = getResponse().getOutputStream();
+        out.setWriteListener(new WriteListener() {
+
+            private int written;
+
+            @Override
+            public void onWritePossible() throws IOException {
+                // write as long as the container takes it without blocking, it calls back when it takes more
+                while (out.isReady()) {
+                    if (written == buffer.size()) {
+                        asyncContext.complete();
+                        return;
+                    }
+                    final int length = Math.min(CHUNK_SIZE, buffer.size() - written);
+                    out.write(buffer.array(), written, length);
+                    written += length;
+                }
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                // the client is gone
+                asyncContext.complete();
+            }
+        });
+    }
+
+    /**
+     * Completes the request with an empty body, e.g. when it failed.
+     * @param status the status code
+     */
+    void sendStatus(final int status) {
+        buffer.reset();
+        if (!isCommitted()) {
+            super.reset();
+            setStatus(status);
+        }
+        asyncContext.complete();
+    }
+
+    // the bytes of the body without a copy
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.wiltech.odata.web;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.olingo.commons.api.http.HttpHeader;
+
+import com.wiltech.odata.utils.ByteRange;
+import com.wiltech.odata.utils.ContentEncoding;
+
+/**
+ * The type Compressing response. Compresses the body with the content encoding the client accepts while it is written,
+ * if it is text, JSON or XML of at least the given size: the first bytes are held back until there are enough of them
+ * or the body ends, then the rest streams through the compressor. A body compressed already, e.g. from the response
+ * cache, goes through as it is, and so does a media resource that is served in ranges.
+ */
+final class CompressingResponse extends HttpServletResponseWrapper {
+
+    private final ContentEncoding encoding;
+    private final int minBytes;
+    // the first bytes of the body, until it is decided whether it is compressed
+    private byte[] head;
+    private int headLength;
+    private long contentLength = -1;
+    // the stream the body goes to once that is decided, the compressor or the response's
+    private OutputStream target;
+    private DeflaterOutputStream compressor;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+    private boolean finished;
+    // the compressor is closed into nothing, after a failed request
+    private boolean abandoned;
+
+    /**
+     * Instantiates a new Compressing response.
+     * @param response the response
+     * @param encoding the content encoding the client accepts, null if it accepts none
+     * @param minBytes the smallest body that is compressed
+     */
+    CompressingResponse(final HttpServletResponse response, final ContentEncoding encoding, final int minBytes) {
+        super(response);
+        this.encoding = encoding;
+        this.minBytes = minBytes;
+    }
+
+    // the length of a body that turns out to be compressed isn't known beforehand
+    @Override
+    public void setContentLength(final int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong(final long len) {
+        if (target == null) {
+            contentLength = len;
+        } else if (compressor == null) {
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() was called");
+        }
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+
+                @Override
+                public void write(final int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    if (target == null && headLength + len < minBytes) {
+                        hold(b, off, len);
+                        return;
+                    }
+                    if (target == null) {
+                        start(true);
+                    }
+                    target.write(b, off, len);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener writeListener) {
+                    throw new UnsupportedOperationException("The response may be compressed");
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    // nothing is written before it is decided whether the body is compressed
+                    if (target != null) {
+                        target.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    finish();
+                    getResponse().getOutputStream().close();
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (target != null) {
+            target.flush();
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        headLength = 0;
+        super.resetBuffer();
+    }
+
+    @Override
+    public void reset() {
+        headLength = 0;
+        contentLength = -1;
+        super.reset();
+    }
+
+    /**
+     * Writes what is held back, or the end of the compressed body. The response's stream is left open.
+     * @throws IOException if the response can't be written
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (writer != null) {
+            writer.flush();
+        }
+        if (target == null) {
+            start(false);
+        }
+        if (compressor != null) {
+            // ends the deflater, also if the end of the body can't be written
+            compressor.close();
+        }
+    }
+
+    /**
+     * Ends the compressor of a request that failed, without writing anything more; the body stays incomplete.
+     * @throws IOException never, nothing is written
+     */
+    void abandon() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        abandoned = true;
+        if (compressor != null) {
+            compressor.close();
+        }
+    }
+
+    private void hold(final byte[] b, final int off, final int len) {
+        if (head == null) {
+            head = new byte[minBytes];
+        }
+        System.arraycopy(b, off, head, headLength, len);
+        headLength += len;
+    }
+
+    // decides, once the body reached the minimum size or ended, whether it is compressed
+    private void start(final boolean large) throws IOException {
+        final OutputStream out = super.getOutputStream();
+        // a range of a media resource is a range of its bytes as they are stored, not compressed
+        final boolean compressible = ContentEncoding.isCompressible(getContentType()) && getHeader(HttpHeader.CONTENT_ENCODING) == null
+                && getHeader(ByteRange.ACCEPT_RANGES) == null;
+        if (compressible) {
+            // whether it is compressed depends on the Accept-Encoding of the request, for a cache on the way
+            addHeader(HttpHeader.VARY, HttpHeader.ACCEPT_ENCODING);
+        }
+        if (large && compressible && encoding != null) {
+            setHeader(HttpHeader.CONTENT_ENCODING, encoding.getCoding());
+            // closing the compressor ends the compressed data, the response's stream stays open
+            compressor = encoding.compress(new FilterOutputStream(out) {
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    if (!abandoned) {
+                        out.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (!abandoned) {
+                        out.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, Deflater.DEFAULT_COMPRESSION);
+            target = compressor;
+        } else {
+            if (contentLength >= 0) {
+                super.setContentLengthLong(contentLength);
+            }
+            target = out;
+        }
+        if (headLength > 0) {
+            target.write(head, 0, headLength);
+        }
+        head = null;
+    }
+}
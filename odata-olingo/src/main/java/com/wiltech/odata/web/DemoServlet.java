@@ -7,35 +7,202 @@
 package com.wiltech.odata.web;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
-import org.apache.olingo.commons.api.edmx.EdmxReference;
+import org.apache.olingo.commons.api.edm.provider.CsdlEntitySet;
+import org.apache.olingo.commons.api.ex.ODataException;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpMethod;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
 import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataApplicationException;
 import org.apache.olingo.server.api.ODataHttpHandler;
+import org.apache.olingo.server.api.ODataLibraryException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.ODataServerError;
 import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.processor.Processor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.wiltech.odata.cache.ResponseCache;
+import com.wiltech.odata.data.BulkLoader;
+import com.wiltech.odata.data.MediaStore;
 import com.wiltech.odata.data.Storage;
+import com.wiltech.odata.data.WriteAheadLog;
+import com.wiltech.odata.metrics.RequestMetrics;
+import com.wiltech.odata.metrics.RequestTimer;
+import com.wiltech.odata.service.DemoBatchProcessor;
 import com.wiltech.odata.service.DemoEdmProvider;
 import com.wiltech.odata.service.DemoEntityCollectionProcessor;
 import com.wiltech.odata.service.DemoEntityProcessor;
 import com.wiltech.odata.service.DemoPrimitiveProcessor;
+import com.wiltech.odata.utils.ContentEncoding;
 
 /**
  * The type Demo servlet.
+ * By default the OData instance, the service metadata and the processors are built once in {@link #init()} and shared by all requests.
+ * Setting the init parameter "odata.lifecycle" to "request" restores the old behaviour of building everything per request.
+ * Olingo only reads multipart $batch requests, JSON ones are handed to the {@link DemoBatchProcessor} here,
+ * if the service is built once.
+ * Every request is timed, phase by phase, and counted in the {@link RequestMetrics} the {@link MetricsServlet} serves,
+ * unless the init parameter "odata.metrics" is false.
+ * With the init parameter "odata.async" set to true, the requests are processed asynchronously on a pool of threads of
+ * their own, and their responses written without blocking, see {@link AsyncRequest} and {@link BufferedResponse}.
+ * Responses are compressed for the clients that accept it, see {@link CompressingResponse}, unless the init parameter
+ * "odata.compression" is false.
+ * The media resources, e.g. Products(1)/$value, are files in the directory of the init parameter "odata.media.directory",
+ * see {@link MediaStore}.
  */
 public class DemoServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
     private static final Logger LOG = LoggerFactory.getLogger(DemoServlet.class);
 
+    public static final String LIFECYCLE_PARAM = "odata.lifecycle";
+    public static final String LIFECYCLE_REQUEST = "request";
+    public static final String LIFECYCLE_SERVLET = "servlet";
+    public static final String MAX_PAGE_SIZE_PARAM = "odata.maxpagesize";
+    public static final String STREAMING_PARAM = "odata.streaming";
+    public static final String CACHE_MAX_BYTES_PARAM = "odata.cache.maxbytes";
+    public static final String WAL_FILE_PARAM = "odata.wal.file";
+    public static final String WAL_FSYNC_PARAM = "odata.wal.fsync";
+    public static final String WAL_FSYNC_MILLIS_PARAM = "odata.wal.fsyncmillis";
+    public static final String WAL_COMPACT_BYTES_PARAM = "odata.wal.compactbytes";
+    public static final String BATCH_THREADS_PARAM = "odata.batch.threads";
+    public static final String LOAD_DIRECTORY_PARAM = "odata.load.directory";
+    public static final String LOAD_THREADS_PARAM = "odata.load.threads";
+    public static final String METRICS_PARAM = "odata.metrics";
+    public static final String ASYNC_PARAM = "odata.async";
+    public static final String ASYNC_THREADS_PARAM = "odata.async.threads";
+    public static final String ASYNC_MAX_REQUESTS_PARAM = "odata.async.maxrequests";
+    public static final String COMPRESSION_PARAM = "odata.compression";
+    public static final String COMPRESSION_MIN_BYTES_PARAM = "odata.compression.minbytes";
+    public static final String DELTA_MAX_CHANGES_PARAM = "odata.delta.maxchanges";
+    public static final String MEDIA_DIRECTORY_PARAM = "odata.media.directory";
+
+    private static final String BATCH_PATH = "/$batch";
+    private static final String VALUE_SUFFIX = "/$value";
+    // the entity set labels of the metrics of requests for $metadata, $batch and anything else but an entity set
+    private static final String METADATA_LABEL = "$metadata";
+    private static final String BATCH_LABEL = "$batch";
+    private static final String OTHER_LABEL = "other";
+
+    private static final int DEFAULT_WAL_FSYNC_MILLIS = 100;
+    private static final int DEFAULT_WAL_COMPACT_BYTES = 64 << 20;
+    private static final int DEFAULT_ASYNC_THREADS_PER_PROCESSOR = 8;
+    private static final int DEFAULT_ASYNC_MAX_REQUESTS = 10000;
+    // below about a kilobyte, compressing saves less than it costs
+    private static final int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+
+    private boolean perRequestLifecycle;
+    private int maxPageSize;
+    private boolean streaming;
+    // the smallest response body that is compressed, -1 if compression is disabled
+    private int compressionMinBytes;
+
+    // one storage for the whole application, shared by all requests and sessions
+    private transient Storage storage;
+    // the log of the storage, if this servlet created the storage with one
+    private transient WriteAheadLog log;
+    // the files of the media resources, shared like the storage
+    private transient MediaStore mediaStore;
+    // serialized responses, null if the cache is disabled
+    private transient ResponseCache cache;
+    private transient ObjectName cacheName;
+    // invalidates the cache; the storage and the media store outlive the servlet, so it is unregistered on destroy
+    private transient Consumer<String> cacheInvalidator;
+    // runs the reads of $batch requests in parallel
+    private transient ExecutorService batchExecutor;
+    // processes the asynchronous requests, null if they are processed on the threads of the container
+    private transient ExecutorService asyncExecutor;
+    // one per asynchronous request in progress, from the dispatch to the last byte written
+    private transient Semaphore asyncPermits;
+    // servlet lifecycle state, built once in init()
+    private transient OData odata;
+    private transient DemoEdmProvider edmProvider;
+    private transient ServiceMetadata edm;
+    private transient Processor[] processors;
+    private transient DemoBatchProcessor batchProcessor;
+    // the olingo handler keeps per request state (uriInfo, last exception), so handlers are pooled instead of shared
+    private transient Queue<ODataHttpHandler> handlers;
+    // the metrics of the requests, shared with the MetricsServlet, null if disabled
+    private transient RequestMetrics metrics;
+    // the labels of the metrics: the entity sets, $metadata and $batch
+    private transient Set<String> metricsLabels;
+
+    @Override
+    public void init() throws ServletException {
+        final String lifecycle = getInitParameter(LIFECYCLE_PARAM);
+        perRequestLifecycle = LIFECYCLE_REQUEST.equalsIgnoreCase(lifecycle);
+        storage = getSharedStorage();
+        mediaStore = getSharedMediaStore();
+        maxPageSize = getIntInitParameter(MAX_PAGE_SIZE_PARAM, DemoEntityCollectionProcessor.DEFAULT_MAX_PAGE_SIZE);
+        streaming = Boolean.parseBoolean(getInitParameter(STREAMING_PARAM));
+        compressionMinBytes = getCompressionMinBytes();
+        createCache();
+        createMetrics();
+        batchExecutor = createBatchExecutor();
+        createAsyncExecutor();
+        if (perRequestLifecycle) {
+            LOG.info("OData service is built per request");
+            return;
+        }
+
+        odata = OData.newInstance();
+        edmProvider = new DemoEdmProvider();
+        edm = odata.createServiceMetadata(edmProvider, DemoEdmProvider.getReferences());
+        // resolve the entity container eagerly, so the first requests don't race to build it
+        edm.getEdm().getEntityContainer();
+
+        // the processors hold no per request state, one instance of each serves all requests
+        batchProcessor = new DemoBatchProcessor(storage, batchExecutor, this::createServletHandler);
+        batchProcessor.init(odata, edm);
+        processors = new Processor[] {
+                new DemoEntityCollectionProcessor(storage, maxPageSize, streaming, cache, mediaStore),
+                new DemoEntityProcessor(storage, cache, mediaStore),
+                new DemoPrimitiveProcessor(storage),
+                batchProcessor
+        };
+        handlers = new ConcurrentLinkedQueue<ODataHttpHandler>();
+        LOG.info("OData service is built once per servlet lifecycle");
+    }
+
     /**
      * Service.
      * @param req the req
@@ -44,29 +211,529 @@ public class DemoServlet extends HttpServlet {
      * @throws IOException the io exception
      */
     protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
-        try {
-            final HttpSession session = req.getSession(true);
-            Storage storage = (Storage) session.getAttribute(Storage.class.getName());
-            if (storage == null) {
-                storage = new Storage();
-                session.setAttribute(Storage.class.getName(), storage);
+        // a $value is streamed from its file on this thread, the asynchronous response would buffer all of it
+        if (asyncExecutor != null && req.isAsyncSupported() && !isValueRequest(req)) {
+            dispatch(req, resp);
+        } else {
+            processMetered(req, resp);
+        }
+    }
+
+    /*
+     * Processes the request on the async executor, unless odata.async.maxrequests requests are in progress already.
+     * The thread of the container returns at once, the response is written without blocking once it is processed.
+     */
+    private void dispatch(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+        if (!asyncPermits.tryAcquire()) {
+            resp.setHeader(HttpHeader.RETRY_AFTER, "1");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        final AsyncContext asyncContext = req.startAsync(req, resp);
+        // no timeout, the container would complete the request while it is processed;
+        // the idle timeout of the connection still ends the write to a client that stopped reading
+        asyncContext.setTimeout(0);
+        asyncContext.addListener(new AsyncListener() {
+
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                asyncPermits.release();
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                // no timeout
             }
 
-            // create odata handler and configure it with EdmProvider and Processor
-            final OData odata = OData.newInstance();
-            final ServiceMetadata edm = odata.createServiceMetadata(new DemoEdmProvider(), new ArrayList<EdmxReference>());
+            @Override
+            public void onError(final AsyncEvent event) {
+                // the request completes once it is processed
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+                // started once
+            }
+        });
+
+        final AsyncRequest asyncReq = new AsyncRequest(req);
+        final BufferedResponse bufferedResp = new BufferedResponse(resp, asyncContext);
+        try {
+            asyncExecutor.execute(() -> {
+                try {
+                    processMetered(asyncReq, bufferedResp);
+                    bufferedResp.send();
+                } catch (final ServletException | IOException | RuntimeException e) {
+                    LOG.error("Server Error occurred in DemoServlet", e);
+                    bufferedResp.sendStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // the servlet is destroyed
+            bufferedResp.sendStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void processMetered(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        if (metrics == null) {
+            process(req, resp);
+            return;
+        }
+
+        // the parts of a $batch run their own processors, on other threads too, only the batch as a whole is timed
+        final String metricsLabel = getMetricsLabel(req);
+        final RequestTimer timer = RequestTimer.start(!BATCH_LABEL.equals(metricsLabel));
+        final MeteredResponse meteredResp = new MeteredResponse(resp, timer);
+        boolean failed = true;
+        try {
+            process(req, meteredResp);
+            failed = false;
+        } finally {
+            timer.stop();
+            metrics.record(metricsLabel, req.getMethod(), failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : meteredResp.getStatus(),
+                    meteredResp.getBytes(), timer);
+        }
+    }
+
+    private void process(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        if (compressionMinBytes < 0) {
+            processUncompressed(req, resp);
+            return;
+        }
+        final CompressingResponse compressingResp = new CompressingResponse(resp,
+                ContentEncoding.negotiate(req.getHeader(HttpHeader.ACCEPT_ENCODING)), compressionMinBytes);
+        boolean processed = false;
+        try {
+            processUncompressed(req, compressingResp);
+            processed = true;
+        } finally {
+            // the deflater holds native memory until it is ended, so it is on every path
+            if (processed) {
+                compressingResp.finish();
+            } else {
+                compressingResp.abandon();
+            }
+        }
+    }
 
-            //register handlers
-            final ODataHttpHandler handler = odata.createHandler(edm);
-            handler.register(new DemoEntityCollectionProcessor(storage));
-            handler.register(new DemoEntityProcessor(storage));
-            handler.register(new DemoPrimitiveProcessor(storage));
+    private void processUncompressed(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        try {
+            if (perRequestLifecycle) {
+                createRequestHandler().process(req, resp);
+                return;
+            }
 
-            // let the handler do the work
-            handler.process(req, resp);
+            // let a pooled handler do the work
+            ODataHttpHandler handler = handlers.poll();
+            if (handler == null) {
+                handler = createServletHandler();
+            }
+            try {
+                if (isJsonBatch(req)) {
+                    processJsonBatch(handler, req, resp);
+                } else {
+                    handler.process(req, resp);
+                }
+            } finally {
+                handlers.offer(handler);
+            }
         } catch (final RuntimeException e) {
             LOG.error("Server Error occurred in ExampleServlet", e);
             throw new ServletException(e);
         }
     }
+
+    @Override
+    public void destroy() {
+        if (handlers != null) {
+            handlers.clear();
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+        }
+        if (asyncExecutor != null) {
+            // the requests in progress still complete
+            asyncExecutor.shutdown();
+        }
+        if (cacheInvalidator != null) {
+            storage.removeChangeListener(cacheInvalidator);
+            mediaStore.removeChangeListener(cacheInvalidator);
+            cacheInvalidator = null;
+        }
+        if (log != null) {
+            closeSharedStorage();
+        }
+        if (cacheName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(cacheName);
+            } catch (final JMException e) {
+                LOG.warn("Unable to unregister " + cacheName, e);
+            }
+        }
+        super.destroy();
+    }
+
+    private ODataHttpHandler createServletHandler() {
+        final ODataHttpHandler handler = odata.createHandler(edm);
+        for (final Processor processor : processors) {
+            handler.register(processor);
+        }
+        // the provider knows which entity sets have ETags
+        handler.register(edmProvider);
+        return handler;
+    }
+
+    /*
+     * The response cache is enabled by the init parameter odata.cache.maxbytes; 0, or leaving it out, disables it.
+     * Its statistics are published over JMX as com.wiltech.odata:type=ResponseCache,name=<servlet name>.
+     */
+    private void createCache() throws ServletException {
+        final int maxBytes = getIntInitParameter(CACHE_MAX_BYTES_PARAM, 0, 0);
+        if (maxBytes == 0) {
+            LOG.info("Response cache is disabled");
+            return;
+        }
+        cache = new ResponseCache(maxBytes, compressionMinBytes);
+        // a change to an entity set drops the cached responses built from it, as does a media resource written or deleted,
+        // which changes the media annotations of its entity
+        cacheInvalidator = cache::invalidate;
+        storage.addChangeListener(cacheInvalidator);
+        mediaStore.addChangeListener(cacheInvalidator);
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("com.wiltech.odata:type=ResponseCache,name=" + ObjectName.quote(getServletName()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(cache, name);
+                cacheName = name;
+            }
+        } catch (final JMException e) {
+            LOG.warn("Unable to register the response cache statistics", e);
+        }
+        LOG.info("Response cache holds up to {} bytes", maxBytes);
+    }
+
+    /*
+     * The metrics of the requests are kept unless the init parameter odata.metrics is false, and served by the MetricsServlet.
+     */
+    private void createMetrics() throws ServletException {
+        if (getInitParameter(METRICS_PARAM) != null && !Boolean.parseBoolean(getInitParameter(METRICS_PARAM).trim())) {
+            LOG.info("Request metrics are disabled");
+            return;
+        }
+        metrics = getSharedMetrics(getServletContext());
+        metricsLabels = new HashSet<String>();
+        try {
+            for (final CsdlEntitySet entitySet : new DemoEdmProvider().getEntityContainer().getEntitySets()) {
+                metricsLabels.add(entitySet.getName());
+            }
+        } catch (final ODataException e) {
+            throw new ServletException("Unable to read the entity sets", e);
+        }
+        metricsLabels.add(METADATA_LABEL);
+        metricsLabels.add(BATCH_LABEL);
+    }
+
+    /**
+     * The request metrics of a web application, created by the first servlet that asks for them.
+     * @param context the servlet context
+     * @return the metrics
+     */
+    static RequestMetrics getSharedMetrics(final ServletContext context) {
+        synchronized (context) {
+            RequestMetrics shared = (RequestMetrics) context.getAttribute(RequestMetrics.class.getName());
+            if (shared == null) {
+                shared = new RequestMetrics();
+                context.setAttribute(RequestMetrics.class.getName(), shared);
+            }
+            return shared;
+        }
+    }
+
+    // the first segment of the resource path, e.g. Products for /Products(1)/Name, if it is an entity set, $metadata or $batch
+    private String getMetricsLabel(final HttpServletRequest req) {
+        final String pathInfo = req.getPathInfo();
+        if (pathInfo == null || pathInfo.length() < 2) {
+            return OTHER_LABEL;
+        }
+        int end = 1;
+        while (end < pathInfo.length() && pathInfo.charAt(end) != '(' && pathInfo.charAt(end) != '/') {
+            end++;
+        }
+        final String segment = pathInfo.substring(1, end);
+        return metricsLabels.contains(segment) ? segment : OTHER_LABEL;
+    }
+
+    /*
+     * Responses of odata.compression.minbytes bytes or more, 1024 by default, are compressed unless odata.compression is false.
+     */
+    private int getCompressionMinBytes() throws ServletException {
+        final String compression = getInitParameter(COMPRESSION_PARAM);
+        if (compression != null && !Boolean.parseBoolean(compression.trim())) {
+            LOG.info("Response compression is disabled");
+            return -1;
+        }
+        final int minBytes = getIntInitParameter(COMPRESSION_MIN_BYTES_PARAM, DEFAULT_COMPRESSION_MIN_BYTES);
+        LOG.info("Responses of {} bytes or more are compressed", minBytes);
+        return minBytes;
+    }
+
+    /*
+     * The reads of a $batch request run on at most odata.batch.threads threads, the number of processors by default.
+     * Once all threads are busy and the queue is full, a batch runs its reads itself.
+     */
+    private ExecutorService createBatchExecutor() throws ServletException {
+        final int threads = getIntInitParameter(BATCH_THREADS_PARAM, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads), runnable -> {
+                    final Thread thread = new Thread(runnable, "odata-batch-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        LOG.info("$batch reads run on up to {} threads", threads);
+        return executor;
+    }
+
+    /*
+     * With the init parameter odata.async, the requests are processed on odata.async.threads threads, 8 per processor by default,
+     * leaving room for storage that blocks. At most odata.async.maxrequests requests are in progress, queued, processed or
+     * writing their response, the others are answered 503, so the queue never overflows.
+     */
+    private void createAsyncExecutor() throws ServletException {
+        if (!Boolean.parseBoolean(getInitParameter(ASYNC_PARAM))) {
+            LOG.info("Requests are processed on the threads of the container");
+            return;
+        }
+        final int threads = getIntInitParameter(ASYNC_THREADS_PARAM,
+                DEFAULT_ASYNC_THREADS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+        final int maxRequests = getIntInitParameter(ASYNC_MAX_REQUESTS_PARAM, DEFAULT_ASYNC_MAX_REQUESTS);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxRequests), runnable -> {
+                    final Thread thread = new Thread(runnable, "odata-async-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        asyncExecutor = executor;
+        asyncPermits = new Semaphore(maxRequests);
+        LOG.info("Requests are processed asynchronously on up to {} threads, at most {} at a time", threads, maxRequests);
+    }
+
+    private static boolean isJsonBatch(final HttpServletRequest req) {
+        if (!HttpMethod.POST.name().equals(req.getMethod()) || !BATCH_PATH.equals(req.getPathInfo())) {
+            return false;
+        }
+        try {
+            final String contentType = req.getContentType();
+            return contentType != null && ContentType.parse(contentType).isCompatible(ContentType.APPLICATION_JSON);
+        } catch (final IllegalArgumentException e) {
+            // olingo rejects it
+            return false;
+        }
+    }
+
+    // the part of olingo's ODataHttpHandler a JSON batch needs: the servlet request as an OData request, and back
+    private void processJsonBatch(final ODataHttpHandler handler, final HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException {
+        final String requestUrl = req.getRequestURL().toString();
+        final ODataRequest request = new ODataRequest();
+        request.setMethod(HttpMethod.POST);
+        request.setRawBaseUri(requestUrl.substring(0, requestUrl.length() - BATCH_PATH.length()));
+        request.setRawServiceResolutionUri("");
+        request.setRawODataPath(BATCH_PATH);
+        request.setRawQueryPath(req.getQueryString() == null ? "" : req.getQueryString());
+        request.setRawRequestUri(req.getQueryString() == null ? requestUrl : requestUrl + "?" + req.getQueryString());
+        request.setProtocol(req.getProtocol());
+        for (final Object name : Collections.list(req.getHeaderNames())) {
+            for (final Object value : Collections.list(req.getHeaders((String) name))) {
+                request.addHeader((String) name, (String) value);
+            }
+        }
+        request.setBody(req.getInputStream());
+
+        ODataResponse response = new ODataResponse();
+        try {
+            batchProcessor.processJsonBatch(handler, request, response);
+        } catch (final ODataApplicationException e) {
+            response = errorResponse(e.getStatusCode(), e.getMessage());
+        } catch (final ODataLibraryException e) {
+            response = errorResponse(HttpStatusCode.BAD_REQUEST.getStatusCode(), e.getMessage());
+        }
+
+        resp.setStatus(response.getStatusCode());
+        for (final Map.Entry<String, List<String>> header : response.getAllHeaders().entrySet()) {
+            for (final String value : header.getValue()) {
+                resp.addHeader(header.getKey(), value);
+            }
+        }
+        try (InputStream content = response.getContent(); OutputStream out = resp.getOutputStream()) {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = content.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private ODataResponse errorResponse(final int statusCode, final String message) {
+        final ODataServerError error = new ODataServerError().setStatusCode(statusCode).setMessage(message);
+        final ODataResponse response = new ODataResponse();
+        response.setStatusCode(statusCode);
+        response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.APPLICATION_JSON.toContentTypeString());
+        try {
+            response.setContent(odata.createSerializer(ContentType.APPLICATION_JSON).error(error).getContent());
+        } catch (final ODataLibraryException e) {
+            throw new IllegalStateException(e);
+        }
+        return response;
+    }
+
+    private int getIntInitParameter(final String name, final int defaultValue) throws ServletException {
+        return getIntInitParameter(name, defaultValue, 1);
+    }
+
+    // a minimum of 0 for the parameters where 0 turns something off
+    private int getIntInitParameter(final String name, final int defaultValue, final int minimum) throws ServletException {
+        final String value = getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            final int result = Integer.parseInt(value.trim());
+            if (result < minimum) {
+                final String expected = minimum == 0 ? " must not be negative: " : " must be positive: ";
+                throw new ServletException("Init parameter " + name + expected + value);
+            }
+            return result;
+        } catch (final NumberFormatException e) {
+            throw new ServletException("Init parameter " + name + " is not a number: " + value, e);
+        }
+    }
+
+    private Storage getSharedStorage() throws ServletException {
+        final ServletContext context = getServletContext();
+        synchronized (context) {
+            Storage shared = (Storage) context.getAttribute(Storage.class.getName());
+            if (shared == null) {
+                log = openLog();
+                shared = new Storage(log, createLoader(),
+                        getIntInitParameter(DELTA_MAX_CHANGES_PARAM, Storage.DEFAULT_MAX_CHANGES));
+                context.setAttribute(Storage.class.getName(), shared);
+            }
+            return shared;
+        }
+    }
+
+    /*
+     * The storage can't be written once its log is closed, so it leaves the context with it: a servlet initialised again
+     * in the same context opens the log again and replays it into a new storage.
+     */
+    private void closeSharedStorage() {
+        final ServletContext context = getServletContext();
+        synchronized (context) {
+            if (context.getAttribute(Storage.class.getName()) == storage) {
+                context.removeAttribute(Storage.class.getName());
+            }
+            try {
+                log.close();
+            } catch (final IOException e) {
+                LOG.warn("Unable to close " + log.getFile(), e);
+            }
+            log = null;
+        }
+    }
+
+    /*
+     * The media resources are kept in the directory odata.media.directory if the init parameter names one,
+     * and in a temporary directory otherwise, which like the memory only storage starts empty on every start.
+     */
+    private MediaStore getSharedMediaStore() throws ServletException {
+        final ServletContext context = getServletContext();
+        synchronized (context) {
+            MediaStore shared = (MediaStore) context.getAttribute(MediaStore.class.getName());
+            if (shared == null) {
+                final String directory = getInitParameter(MEDIA_DIRECTORY_PARAM);
+                try {
+                    final Path path = directory == null || directory.trim().isEmpty()
+                            ? Files.createTempDirectory("odata-media") : Paths.get(directory.trim());
+                    shared = new MediaStore(path);
+                    LOG.info("Media resources are kept in {}", path);
+                } catch (final IOException e) {
+                    throw new ServletException("Unable to open the media directory " + directory, e);
+                }
+                context.setAttribute(MediaStore.class.getName(), shared);
+            }
+            return shared;
+        }
+    }
+
+    private static boolean isValueRequest(final HttpServletRequest req) {
+        final String pathInfo = req.getPathInfo();
+        return pathInfo != null && pathInfo.endsWith(VALUE_SUFFIX);
+    }
+
+    /*
+     * The storage is loaded from the files of the directory odata.load.directory, parsed on odata.load.threads threads
+     * (the number of processors by default), if the init parameter names one, and filled with the sample data otherwise.
+     */
+    private BulkLoader createLoader() throws ServletException {
+        final String directory = getInitParameter(LOAD_DIRECTORY_PARAM);
+        if (directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        final Path path = Paths.get(directory.trim());
+        if (!Files.isDirectory(path)) {
+            throw new ServletException("Init parameter " + LOAD_DIRECTORY_PARAM + " is not a directory: " + directory);
+        }
+        final int threads = getIntInitParameter(LOAD_THREADS_PARAM, Runtime.getRuntime().availableProcessors());
+        LOG.info("Storage is loaded from {} on {} threads", path, threads);
+        return new BulkLoader(path, threads);
+    }
+
+    /*
+     * The storage keeps its writes in a write-ahead log if the init parameter odata.wal.file names one,
+     * and in memory only otherwise.
+     */
+    private WriteAheadLog openLog() throws ServletException {
+        final String file = getInitParameter(WAL_FILE_PARAM);
+        if (file == null || file.trim().isEmpty()) {
+            LOG.info("Storage is memory only");
+            return null;
+        }
+        final String fsync = getInitParameter(WAL_FSYNC_PARAM);
+        final WriteAheadLog.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = fsync == null || fsync.trim().isEmpty() ? WriteAheadLog.FsyncPolicy.ALWAYS
+                    : WriteAheadLog.FsyncPolicy.valueOf(fsync.trim().toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new ServletException("Init parameter " + WAL_FSYNC_PARAM + " must be always, interval or never: " + fsync, e);
+        }
+        final int fsyncMillis = getIntInitParameter(WAL_FSYNC_MILLIS_PARAM, DEFAULT_WAL_FSYNC_MILLIS);
+        final int compactBytes = getIntInitParameter(WAL_COMPACT_BYTES_PARAM, DEFAULT_WAL_COMPACT_BYTES);
+        try {
+            final WriteAheadLog writeAheadLog = new WriteAheadLog(Paths.get(file.trim()), fsyncPolicy, fsyncMillis, compactBytes);
+            LOG.info("Storage writes to {}, fsync {}", writeAheadLog.getFile(), fsyncPolicy);
+            return writeAheadLog;
+        } catch (final IOException e) {
+            throw new ServletException("Unable to open the write-ahead log " + file, e);
+        }
+    }
+
+    private ODataHttpHandler createRequestHandler() {
+        // create odata handler and configure it with EdmProvider and Processor
+        final OData odata = OData.newInstance();
+        final DemoEdmProvider edmProvider = new DemoEdmProvider();
+        final ServiceMetadata edm = odata.createServiceMetadata(edmProvider, DemoEdmProvider.getReferences());
+
+        //register handlers
+        final ODataHttpHandler handler = odata.createHandler(edm);
+        handler.register(new DemoEntityCollectionProcessor(storage, maxPageSize, streaming, cache, mediaStore));
+        handler.register(new DemoEntityProcessor(storage, cache, mediaStore));
+        handler.register(new DemoPrimitiveProcessor(storage));
+        handler.register(new DemoBatchProcessor(storage, batchExecutor, this::createRequestHandler));
+        handler.register(edmProvider);
+        return handler;
+    }
 }
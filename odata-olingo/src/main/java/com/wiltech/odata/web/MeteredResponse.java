@@ -0,0 +1,81 @@
+package com.wiltech.odata.web;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.wiltech.odata.metrics.Phase;
+import com.wiltech.odata.metrics.RequestTimer;
+
+/**
+ * The type Metered response. Counts the bytes of the body and starts the serialize phase of the request at the first byte,
+ * for the responses written without a serializer call in the processor, e.g. from the response cache, or serialized
+ * while they are written.
+ */
+final class MeteredResponse extends HttpServletResponseWrapper {
+
+    private final RequestTimer timer;
+    private long bytes;
+    private ServletOutputStream outputStream;
+
+    MeteredResponse(final HttpServletResponse response, final RequestTimer timer) {
+        super(response);
+        this.timer = timer;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            final ServletOutputStream out = super.getOutputStream();
+            outputStream = new ServletOutputStream() {
+
+                @Override
+                public void write(final int b) throws IOException {
+                    written(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    written(len);
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return out.isReady();
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener writeListener) {
+                    out.setWriteListener(writeListener);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    private void written(final int length) {
+        if (bytes == 0) {
+            timer.moveTo(Phase.SERIALIZE);
+        }
+        bytes += length;
+    }
+}
@@ -0,0 +1,47 @@
+package com.wiltech.odata.web;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.wiltech.odata.metrics.RequestMetrics;
+
+/**
+ * The type Metrics servlet. Serves the {@link RequestMetrics} of the {@link DemoServlet} in the Prometheus text format.
+ * Only clients on the same host are answered, unless the init parameter "odata.metrics.remote" is true.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String REMOTE_PARAM = "odata.metrics.remote";
+
+    private boolean remote;
+    private transient RequestMetrics metrics;
+
+    @Override
+    public void init() throws ServletException {
+        remote = Boolean.parseBoolean(getInitParameter(REMOTE_PARAM));
+        metrics = DemoServlet.getSharedMetrics(getServletContext());
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        // a literal address, nothing is looked up
+        if (!remote && !InetAddress.getByName(req.getRemoteAddr()).isLoopbackAddress()) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        resp.setContentType(RequestMetrics.CONTENT_TYPE);
+        final Writer out = new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8);
+        metrics.write(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,143 @@
+package com.wiltech.odata.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.junit.After;
+import org.junit.Test;
+
+import com.wiltech.odata.service.DemoEdmProvider;
+
+/**
+ * The type Change set test. Reads the storage from another thread while a changeset is open, after its commit and after
+ * it was closed without a commit, and checks when the actions that wait for the commit run.
+ */
+public class ChangeSetTest {
+
+    private final Storage storage = new Storage();
+    private final EdmEntitySet products = StorageFixtures.entitySet(DemoEdmProvider.ES_PRODUCTS_NAME);
+    private final EdmEntitySet categories = StorageFixtures.entitySet(DemoEdmProvider.ES_CATEGORIES_NAME);
+    private final EdmNavigationProperty categoryProducts = categories.getEntityType().getNavigationProperty("Products");
+    private final ExecutorService reader = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        reader.shutdownNow();
+    }
+
+    @Test
+    public void writesAreHiddenUntilCommit() throws Exception {
+        final long version = storage.getVersion(products);
+        try (Storage.ChangeSet changeSet = storage.beginChangeSet()) {
+            rename(1, "Notebook Basic 15 v2");
+            storage.deleteEntityData(products, StorageFixtures.key("ID", 2), null);
+
+            // the thread of the changeset reads its own writes
+            assertEquals("Notebook Basic 15 v2", name(1));
+            assertNull(product(2));
+            assertEquals(ids(1), productsOfCategory(1));
+
+            // any other thread reads the state before the changeset
+            assertEquals("Notebook Basic 15", read(() -> name(1)));
+            assertNotNull(read(() -> product(2)));
+            assertEquals(ids(1, 2), read(() -> productsOfCategory(1)));
+            assertEquals(version, (long) read(() -> storage.getVersion(products)));
+
+            changeSet.commit();
+        }
+
+        assertEquals("Notebook Basic 15 v2", read(() -> name(1)));
+        assertNull(read(() -> product(2)));
+        assertEquals(ids(1), read(() -> productsOfCategory(1)));
+    }
+
+    @Test
+    public void closingWithoutCommitDropsWrites() throws Exception {
+        final long version = storage.getVersion(products);
+        try (Storage.ChangeSet changeSet = storage.beginChangeSet()) {
+            rename(1, "Notebook Basic 15 v2");
+            storage.deleteEntityData(products, StorageFixtures.key("ID", 2), null);
+        }
+
+        assertEquals("Notebook Basic 15", name(1));
+        assertNotNull(product(2));
+        assertEquals(ids(1, 2), productsOfCategory(1));
+        assertEquals(version, storage.getVersion(products));
+
+        // the next write starts from the state before the changeset
+        rename(3, "1UMTS PDA v2");
+        assertEquals("Notebook Basic 15", read(() -> name(1)));
+        assertEquals("1UMTS PDA v2", read(() -> name(3)));
+    }
+
+    @Test
+    public void afterCommitActionsRunOnlyOnCommit() throws Exception {
+        final List<String> actions = new ArrayList<String>();
+        storage.afterCommit(() -> actions.add("outside"));
+        assertEquals(1, actions.size());
+        assertFalse(storage.isInChangeSet());
+
+        try (Storage.ChangeSet changeSet = storage.beginChangeSet()) {
+            assertTrue(storage.isInChangeSet());
+            assertFalse(read(storage::isInChangeSet));
+            storage.afterCommit(() -> actions.add("dropped"));
+        }
+        try (Storage.ChangeSet changeSet = storage.beginChangeSet()) {
+            storage.afterCommit(() -> actions.add("committed"));
+            assertEquals(1, actions.size());
+            changeSet.commit();
+        }
+
+        assertEquals(Arrays.asList("outside", "committed"), actions);
+        assertFalse(storage.isInChangeSet());
+    }
+
+    private <T> T read(final Callable<T> read) throws Exception {
+        return reader.submit(read).get();
+    }
+
+    private void rename(final int id, final String name) throws Exception {
+        storage.updatePropertyData(products, StorageFixtures.key("ID", id), "Name",
+                new Property(null, "Name", ValueType.PRIMITIVE, name), null);
+    }
+
+    private Entity product(final int id) {
+        return storage.readEntityData(products, StorageFixtures.key("ID", id));
+    }
+
+    private String name(final int id) {
+        return (String) product(id).getProperty("Name").getValue();
+    }
+
+    private List<Integer> productsOfCategory(final int id) {
+        final Entity category = storage.readEntityData(categories, StorageFixtures.key("ID", id));
+        final List<Integer> ids = new ArrayList<Integer>();
+        for (final Entity product : storage.getRelatedEntityCollection(category, categoryProducts).getEntities()) {
+            ids.add((Integer) product.getProperty("ID").getValue());
+        }
+        return ids;
+    }
+
+    private static List<Integer> ids(final int... ids) {
+        final List<Integer> list = new ArrayList<Integer>();
+        for (final int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,64 @@
+package com.wiltech.odata.data;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.olingo.commons.api.edm.EdmEntityContainer;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.uri.UriParameter;
+import org.apache.olingo.server.api.uri.queryoption.expression.Expression;
+
+import com.wiltech.odata.service.DemoEdmProvider;
+
+/**
+ * The type Storage fixtures. The metadata and key predicates the storage is called with, built without parsing a request.
+ */
+final class StorageFixtures {
+
+    private static final EdmEntityContainer CONTAINER = OData.newInstance()
+            .createServiceMetadata(new DemoEdmProvider(), Collections.emptyList()).getEdm().getEntityContainer();
+
+    private StorageFixtures() {
+    }
+
+    static EdmEntitySet entitySet(final String name) {
+        return CONTAINER.getEntitySet(name);
+    }
+
+    /**
+     * The key predicate of a single Edm.Int32 key, e.g. ID=1.
+     * @param name the key property
+     * @param value the key
+     * @return the key predicates
+     */
+    static List<UriParameter> key(final String name, final int value) {
+        return Collections.<UriParameter> singletonList(new UriParameter() {
+
+            @Override
+            public String getAlias() {
+                return null;
+            }
+
+            @Override
+            public String getText() {
+                return Integer.toString(value);
+            }
+
+            @Override
+            public Expression getExpression() {
+                return null;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getReferencedProperty() {
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,188 @@
+package com.wiltech.odata.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.olingo.commons.api.data.ComplexValue;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.wiltech.odata.service.DemoEdmProvider;
+
+/**
+ * The type Write ahead log test. Replays logs that were cut off or damaged on disk, and restarts a storage from a compacted log.
+ */
+public class WriteAheadLogTest {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayTruncatesTornTail() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("torn.wal");
+        write(file, 3);
+        final long size = Files.size(file);
+
+        // a record whose payload never made it to the disk
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6, 7 }));
+        }
+
+        assertEquals(names(0, 1, 2), replay(file, 0));
+        assertEquals(size, Files.size(file));
+
+        // a new record follows the last good one
+        assertEquals(names(0, 1, 2), replay(file, 1));
+        assertEquals(names(0, 1, 2, 3), replay(file, 0));
+    }
+
+    @Test
+    public void replayStopsAtChecksumMismatch() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("corrupt.wal");
+        write(file, 3);
+
+        // flips the last byte of the payload of the second record
+        final int first = RECORD_HEADER_SIZE + record(0).encode().length;
+        final long secondEnd = HEADER_SIZE + first + RECORD_HEADER_SIZE + record(1).encode().length;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, secondEnd - 1);
+            last.put(0, (byte) ~last.get(0));
+            last.rewind();
+            channel.write(last, secondEnd - 1);
+        }
+
+        assertEquals(names(0), replay(file, 0));
+        assertEquals(HEADER_SIZE + first, Files.size(file));
+    }
+
+    @Test
+    public void compactedLogRestoresState() throws IOException, ODataApplicationException {
+        final Path file = folder.getRoot().toPath().resolve("storage.wal");
+        final EdmEntitySet products = StorageFixtures.entitySet(DemoEdmProvider.ES_PRODUCTS_NAME);
+        final EdmEntitySet categories = StorageFixtures.entitySet(DemoEdmProvider.ES_CATEGORIES_NAME);
+
+        // a log of one byte is compacted after the first write, the later writes follow the compacted state
+        final String before;
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.NEVER, 100, 1)) {
+            final Storage storage = new Storage(log);
+            final Entity created = new Entity();
+            created.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Notebook Basic 17"));
+            created.addProperty(new Property(null, "Description", ValueType.PRIMITIVE, "Notebook Basic, 17\" LCD"));
+            storage.createEntityData(products, created);
+            storage.updatePropertyData(products, StorageFixtures.key("ID", 1), "Name",
+                    new Property(null, "Name", ValueType.PRIMITIVE, "Notebook Basic 15 v2"), null);
+            storage.deleteEntityData(products, StorageFixtures.key("ID", 2), null);
+            before = describe(storage, products, categories);
+        }
+
+        final List<LogRecord.Type> types = new ArrayList<LogRecord.Type>();
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.NEVER, 100, 0)) {
+            log.replay(record -> types.add(record.getType()));
+        }
+        assertEquals(LogRecord.Type.CLEAR, types.get(0));
+        assertTrue(types.contains(LogRecord.Type.DELETE));
+
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.NEVER, 100, 0)) {
+            assertEquals(before, describe(new Storage(log), products, categories));
+        }
+    }
+
+    private static void write(final Path file, final int count) throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.NEVER, 100, 0)) {
+            log.replay(record -> { });
+            log.start(() -> { });
+            long sequence = 0;
+            for (int i = 0; i < count; i++) {
+                sequence = log.append(record(i));
+            }
+            log.await(sequence);
+        }
+    }
+
+    // replays the log, then appends the given number of records numbered after those replayed
+    private static List<String> replay(final Path file, final int appends) throws IOException {
+        final List<String> names = new ArrayList<String>();
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.NEVER, 100, 0)) {
+            log.replay(record -> names.add(record.getEntity().getProperty("Name").getValue().toString()));
+            log.start(() -> { });
+            long sequence = 0;
+            for (int i = 0; i < appends; i++) {
+                sequence = log.append(record(names.size() + i));
+            }
+            if (appends > 0) {
+                log.await(sequence);
+            }
+        }
+        return names;
+    }
+
+    private static LogRecord record(final int id) {
+        final Entity entity = new Entity();
+        entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
+        entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, id));
+        entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Product " + id));
+        return LogRecord.put(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
+    }
+
+    private static List<String> names(final int... ids) {
+        final List<String> names = new ArrayList<String>();
+        for (final int id : ids) {
+            names.add("Product " + id);
+        }
+        return names;
+    }
+
+    // every product and category with its properties, and the links of the products
+    private static String describe(final Storage storage, final EdmEntitySet products, final EdmEntitySet categories) {
+        final TreeMap<String, String> state = new TreeMap<String, String>();
+        final EdmNavigationProperty category = products.getEntityType().getNavigationProperty("Category");
+        final EdmNavigationProperty suppliers = products.getEntityType().getNavigationProperty("Suppliers");
+        for (final Entity product : storage.readEntitySetData(products).getEntities()) {
+            final StringBuilder links = new StringBuilder(describe(product)).append(" -> ");
+            final Entity related = storage.getRelatedEntity(product, category);
+            links.append(related == null ? null : describe(related)).append(" + ");
+            for (final Entity supplier : storage.getRelatedEntityCollection(product, suppliers).getEntities()) {
+                links.append(describe(supplier));
+            }
+            state.put("Products " + product.getProperty("ID").getValue(), links.toString());
+        }
+        for (final Entity entity : storage.readEntitySetData(categories).getEntities()) {
+            state.put("Categories " + entity.getProperty("ID").getValue(), describe(entity));
+        }
+        return state.toString();
+    }
+
+    private static String describe(final Entity entity) {
+        return describe(entity.getProperties());
+    }
+
+    private static String describe(final List<Property> properties) {
+        final TreeMap<String, Object> values = new TreeMap<String, Object>();
+        for (final Property property : properties) {
+            values.put(property.getName(), property.isComplex() ? describe(((ComplexValue) property.getValue()).getValue())
+                    : property.getValue());
+        }
+        return values.toString();
+    }
+}